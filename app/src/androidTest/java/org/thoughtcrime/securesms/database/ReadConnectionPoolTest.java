@@ -0,0 +1,231 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import net.sqlcipher.Cursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class ReadConnectionPoolTest {
+
+  private static final String TAG = "ReadConnectionPoolTest";
+
+  private static final String PASSWORD         = "password";
+  private static final int    THREAD_COUNT     = 20;
+  private static final int    BURST_SIZE       = 10_000;
+  private static final int    TRANSACTION_SIZE = 25;
+
+  private File                                  file;
+  private net.sqlcipher.database.SQLiteDatabase writer;
+  private ReadConnectionPool                    readPool;
+
+  @Before
+  public void setUp() {
+    Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    net.sqlcipher.database.SQLiteDatabase.loadLibs(context);
+
+    file = new File(context.getCacheDir(), "read-connection-pool-test.db");
+    deleteDatabase();
+
+    writer = net.sqlcipher.database.SQLiteDatabase.openOrCreateDatabase(file, PASSWORD, null, new SqlCipherDatabaseHook());
+    assertTrue(writer.enableWriteAheadLogging());
+
+    writer.execSQL("CREATE TABLE message (_id INTEGER PRIMARY KEY, thread_id INTEGER, date INTEGER, body TEXT)");
+    writer.execSQL("CREATE INDEX message_thread_date_index ON message (thread_id, date)");
+
+    readPool = new ReadConnectionPool(file.getPath(), PASSWORD, new SqlCipherDatabaseHook(), 4);
+  }
+
+  @After
+  public void tearDown() {
+    readPool.close();
+    writer.close();
+    deleteDatabase();
+  }
+
+  @Test
+  public void query_inTransaction_seesOwnUncommittedWrites() throws Exception {
+    SQLiteDatabase db = new SQLiteDatabase(writer, readPool);
+
+    db.beginTransaction();
+    try {
+      insertMessage(db, 1, 1);
+
+      assertEquals(1, countMessages(db));
+      assertEquals(0, countMessagesOnOtherThread(db));
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    assertEquals(1, countMessagesOnOtherThread(db));
+  }
+
+  @Test
+  public void runPostTransaction_waitsForOutermostTransaction() {
+    SQLiteDatabase db  = new SQLiteDatabase(writer, readPool);
+    AtomicLong     ran = new AtomicLong();
+
+    db.beginTransaction();
+    db.beginTransaction();
+    db.runPostTransaction(ran::incrementAndGet);
+    db.setTransactionSuccessful();
+    db.endTransaction();
+
+    assertEquals(0, ran.get());
+
+    db.setTransactionSuccessful();
+    db.endTransaction();
+
+    assertEquals(1, ran.get());
+
+    db.runPostTransaction(ran::incrementAndGet);
+
+    assertEquals(2, ran.get());
+  }
+
+  /**
+   * Runs conversation and conversation list style queries back to back while another thread
+   * inserts a burst of messages in small transactions, the way message processing does.
+   */
+  @Test
+  public void readLatency_duringInsertBurst() throws Exception {
+    List<Long> singleConnection = measureReadsDuringInsertBurst(new SQLiteDatabase(writer));
+
+    writer.execSQL("DELETE FROM message");
+
+    List<Long> pooled = measureReadsDuringInsertBurst(new SQLiteDatabase(writer, readPool));
+
+    Log.i(TAG, describe("Single connection", singleConnection));
+    Log.i(TAG, describe("Read pool", pooled));
+  }
+
+  private List<Long> measureReadsDuringInsertBurst(SQLiteDatabase db) throws Exception {
+    CountDownLatch             done      = new CountDownLatch(1);
+    AtomicReference<Throwable> error     = new AtomicReference<>();
+    List<Long>                 latencies = new ArrayList<>();
+
+    Thread inserter = new Thread(() -> {
+      try {
+        for (int i = 0; i < BURST_SIZE; i += TRANSACTION_SIZE) {
+          db.beginTransaction();
+          try {
+            for (int j = i; j < i + TRANSACTION_SIZE; j++) {
+              insertMessage(db, j % THREAD_COUNT, j);
+            }
+            db.setTransactionSuccessful();
+          } finally {
+            db.endTransaction();
+          }
+        }
+      } catch (Throwable t) {
+        error.set(t);
+      } finally {
+        done.countDown();
+      }
+    });
+
+    inserter.start();
+
+    int threadId = 0;
+    while (!done.await(0, TimeUnit.MILLISECONDS)) {
+      long start = System.nanoTime();
+
+      try (Cursor cursor = db.rawQuery("SELECT * FROM message WHERE thread_id = ? ORDER BY date DESC LIMIT 50", new String[] { String.valueOf(threadId) })) {
+        cursor.moveToLast();
+      }
+
+      try (Cursor cursor = db.rawQuery("SELECT thread_id, COUNT(*), MAX(date) FROM message GROUP BY thread_id ORDER BY MAX(date) DESC", (String[]) null)) {
+        cursor.moveToLast();
+      }
+
+      latencies.add(System.nanoTime() - start);
+      threadId = (threadId + 1) % THREAD_COUNT;
+    }
+
+    inserter.join();
+
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+
+    assertEquals(BURST_SIZE, countMessages(db));
+
+    return latencies;
+  }
+
+  private static void insertMessage(SQLiteDatabase db, long threadId, long date) {
+    ContentValues values = new ContentValues();
+    values.put("thread_id", threadId);
+    values.put("date", date);
+    values.put("body", "Message " + date);
+
+    db.insert("message", null, values);
+  }
+
+  private static long countMessages(SQLiteDatabase db) {
+    try (Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM message", (String[]) null)) {
+      cursor.moveToFirst();
+      return cursor.getLong(0);
+    }
+  }
+
+  private static long countMessagesOnOtherThread(SQLiteDatabase db) throws InterruptedException {
+    AtomicLong count  = new AtomicLong(-1);
+    Thread     thread = new Thread(() -> count.set(countMessages(db)));
+
+    thread.start();
+    thread.join(TimeUnit.SECONDS.toMillis(5));
+
+    assertFalse("Read blocked on the writer", thread.isAlive());
+    return count.get();
+  }
+
+  private static String describe(String name, List<Long> latencies) {
+    Collections.sort(latencies);
+
+    return String.format(Locale.US, "%s: %d reads, p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+                         name,
+                         latencies.size(),
+                         percentile(latencies, 0.5),
+                         percentile(latencies, 0.9),
+                         percentile(latencies, 0.99),
+                         percentile(latencies, 1));
+  }
+
+  private static double percentile(List<Long> sorted, double percentile) {
+    if (sorted.isEmpty()) {
+      return 0;
+    }
+
+    int index = (int) Math.min(sorted.size() - 1, Math.round(percentile * (sorted.size() - 1)));
+    return sorted.get(index) / 1_000_000.0;
+  }
+
+  private void deleteDatabase() {
+    for (String suffix : new String[] { "", "-wal", "-shm", "-journal" }) {
+      new File(file.getPath() + suffix).delete();
+    }
+  }
+}
@@ -37,6 +37,7 @@ import org.signal.core.util.tracing.Tracer;
 import org.signal.glide.SignalGlideCodecs;
 import org.signal.ringrtc.CallManager;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.QueryProfiler;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencyProvider;
@@ -80,6 +81,7 @@ import org.webrtc.voiceengine.WebRtcAudioManager;
 import org.webrtc.voiceengine.WebRtcAudioUtils;
 import org.whispersystems.libsignal.logging.SignalProtocolLoggerProvider;
 
+import java.io.File;
 import java.security.Security;
 import java.util.HashSet;
 import java.util.Set;
@@ -113,7 +115,7 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
     long startTime = System.currentTimeMillis();
 
     if (FeatureFlags.internalUser()) {
-      Tracer.getInstance().setMaxBufferSize(35_000);
+      Tracer.getInstance().enableStreaming();
     }
 
     super.onCreate();
@@ -155,6 +157,7 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
                             .addNonBlocking(this::initializeCleanup)
                             .addNonBlocking(this::initializeGlideCodecs)
                             .addNonBlocking(FeatureFlags::init)
+                            .addNonBlocking(() -> QueryProfiler.getInstance().setEnabled(FeatureFlags.queryProfiler()))
                             .addNonBlocking(RefreshPreKeysJob::scheduleIfNecessary)
                             .addNonBlocking(StorageSyncHelper::scheduleRoutineSync)
                             .addNonBlocking(() -> ApplicationDependencies.getJobManager().beginJobLoop())
@@ -243,9 +246,13 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
   }
 
   private void initializeLogging() {
-    persistentLogger = new PersistentLogger(this, LogSecretProvider.getOrCreateAttachmentSecret(this), BuildConfig.VERSION_NAME);
+    byte[] logSecret = LogSecretProvider.getOrCreateAttachmentSecret(this);
+
+    persistentLogger = new PersistentLogger(this, logSecret, BuildConfig.VERSION_NAME);
     org.signal.core.util.logging.Log.initialize(new AndroidLogger(), persistentLogger);
 
+    Tracer.getInstance().startWriting(new File(getCacheDir(), "trace"), logSecret);
+
     SignalProtocolLoggerProvider.setProvider(new CustomSignalProtocolLogger());
   }
 
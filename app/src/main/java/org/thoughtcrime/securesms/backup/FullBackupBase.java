@@ -16,10 +16,35 @@ public abstract class FullBackupBase {
   @SuppressWarnings("unused")
   private static final String TAG = Log.tag(FullBackupBase.class);
 
+  /**
+   * The version of the backup format, written to the header. Readers refuse anything newer than
+   * what they know about. Backups from before there was a version have none, and read as 0.
+   *
+   * 1: Adds incremental backups (see {@link IncrementalBackupBase}).
+   */
+  static final int BACKUP_VERSION = 1;
+
+  /**
+   * Written in place of the real database version by incremental backups, which carry the real one
+   * in their {@link BackupProtos.IncrementalBackup} frame instead. Readers from before incremental
+   * backups existed don't know that they need to restore attachments from the base backup, so this
+   * makes them reject the backup as coming from a newer version of Signal.
+   */
+  static final int INCREMENTAL_DATABASE_VERSION = Integer.MAX_VALUE;
+
   static class BackupStream {
     static @NonNull byte[] getBackupKey(@NonNull String passphrase, @Nullable byte[] salt) {
+      return getBackupKey(passphrase, salt, true);
+    }
+
+    /**
+     * @param postProgress Whether to post progress events while the key is derived. Only makes
+     *                     sense while importing or exporting, since it makes it look like one is
+     *                     happening.
+     */
+    static @NonNull byte[] getBackupKey(@NonNull String passphrase, @Nullable byte[] salt, boolean postProgress) {
       try {
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, 0));
+        if (postProgress) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, 0));
 
         MessageDigest digest = MessageDigest.getInstance("SHA-512");
         byte[]        input  = passphrase.replace(" ", "").getBytes();
@@ -28,7 +53,7 @@ public abstract class FullBackupBase {
         if (salt != null) digest.update(salt);
 
         for (int i=0;i<250000;i++) {
-          if (i % 1000 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, 0));
+          if (postProgress && i % 1000 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, 0));
           digest.update(hash);
           hash = digest.digest(input);
         }
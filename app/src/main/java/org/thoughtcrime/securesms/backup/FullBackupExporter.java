@@ -8,6 +8,7 @@ import android.text.TextUtils;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
 import androidx.documentfile.provider.DocumentFile;
 
 import com.annimon.stream.function.Predicate;
@@ -17,13 +18,17 @@ import net.sqlcipher.database.SQLiteDatabase;
 
 import org.greenrobot.eventbus.EventBus;
 import org.signal.core.util.Conversions;
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.backup.IncrementalBackupBase.AttachmentKey;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ClassicDecryptingPartInputStream;
 import org.thoughtcrime.securesms.crypto.IdentityKeyUtil;
 import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.ContactDiscoveryDatabase;
+import org.thoughtcrime.securesms.database.EarlyMessageDatabase;
 import org.thoughtcrime.securesms.database.GroupReceiptDatabase;
 import org.thoughtcrime.securesms.database.KeyValueDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase;
@@ -38,6 +43,7 @@ import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.keyvalue.KeyValueDataSet;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.profiles.AvatarHelper;
+import org.thoughtcrime.securesms.util.ReadAheadInputStream;
 import org.thoughtcrime.securesms.util.SetUtil;
 import org.thoughtcrime.securesms.util.Stopwatch;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
@@ -49,14 +55,26 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -74,20 +92,28 @@ public class FullBackupExporter extends FullBackupBase {
     SignedPreKeyDatabase.TABLE_NAME,
     OneTimePreKeyDatabase.TABLE_NAME,
     SessionDatabase.TABLE_NAME,
+    EarlyMessageDatabase.TABLE_NAME,
+    ContactDiscoveryDatabase.TABLE_NAME,
     SearchDatabase.SMS_FTS_TABLE_NAME,
     SearchDatabase.MMS_FTS_TABLE_NAME
   );
 
-  public static void export(@NonNull Context context,
-                            @NonNull AttachmentSecret attachmentSecret,
-                            @NonNull SQLiteDatabase input,
-                            @NonNull File output,
-                            @NonNull String passphrase,
-                            @NonNull BackupCancellationSignal cancellationSignal)
+  /**
+   * @param base If present, the backup will be written as an increment on top of this full backup,
+   *             leaving out the data for any attachments that it already contains.
+   * @return What the backup contains, for use as the base of later incremental backups.
+   */
+  public static @NonNull ExportResult export(@NonNull Context context,
+                                                  @NonNull AttachmentSecret attachmentSecret,
+                                                  @NonNull SQLiteDatabase input,
+                                                  @NonNull File output,
+                                                  @NonNull String passphrase,
+                                                  @Nullable IncrementalBackupBase base,
+                                                  @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
   {
     try (OutputStream outputStream = new FileOutputStream(output)) {
-      internalExport(context, attachmentSecret, input, outputStream, passphrase, true, cancellationSignal);
+      return internalExport(context, attachmentSecret, input, outputStream, passphrase, true, base, cancellationSignal);
     }
   }
 
@@ -101,7 +127,7 @@ public class FullBackupExporter extends FullBackupBase {
       throws IOException
   {
     try (OutputStream outputStream = Objects.requireNonNull(context.getContentResolver().openOutputStream(output.getUri()))) {
-      internalExport(context, attachmentSecret, input, outputStream, passphrase, true, cancellationSignal);
+      internalExport(context, attachmentSecret, input, outputStream, passphrase, true, null, cancellationSignal);
     }
   }
 
@@ -112,23 +138,32 @@ public class FullBackupExporter extends FullBackupBase {
                               @NonNull String passphrase)
       throws IOException
   {
-    internalExport(context, attachmentSecret, input, outputStream, passphrase, false, () -> false);
+    internalExport(context, attachmentSecret, input, outputStream, passphrase, false, null, () -> false);
   }
 
-  private static void internalExport(@NonNull Context context,
-                                     @NonNull AttachmentSecret attachmentSecret,
-                                     @NonNull SQLiteDatabase input,
-                                     @NonNull OutputStream fileOutputStream,
-                                     @NonNull String passphrase,
-                                     boolean closeOutputStream,
-                                     @NonNull BackupCancellationSignal cancellationSignal)
+  private static @NonNull ExportResult internalExport(@NonNull Context context,
+                                                      @NonNull AttachmentSecret attachmentSecret,
+                                                      @NonNull SQLiteDatabase input,
+                                                      @NonNull OutputStream fileOutputStream,
+                                                      @NonNull String passphrase,
+                                                      boolean closeOutputStream,
+                                                      @Nullable IncrementalBackupBase base,
+                                                      @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
   {
-    BackupFrameOutputStream outputStream = new BackupFrameOutputStream(fileOutputStream, passphrase);
+    BackupFrameOutputStream frameStream  = new BackupFrameOutputStream(fileOutputStream, passphrase);
+    PipelinedFrameWriter    outputStream = new PipelinedFrameWriter(frameStream);
+    Set<AttachmentKey>      attachments  = Collections.synchronizedSet(new HashSet<>());
     int                     count        = 0;
 
     try {
-      outputStream.writeDatabaseVersion(input.getVersion());
+      if (base != null) {
+        Log.i(TAG, "Writing an incremental backup on top of " + base.getFileName() + ", which contains " + base.getAttachments().size() + " attachment(s).");
+      }
+
+      for (BackupProtos.BackupFrame frame : getPreamble(input.getVersion(), base)) {
+        outputStream.write(frame);
+      }
       count++;
 
       List<String> tables = exportSchema(input, outputStream);
@@ -145,7 +180,7 @@ public class FullBackupExporter extends FullBackupBase {
         } else if (table.equals(GroupReceiptDatabase.TABLE_NAME)) {
           count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptDatabase.MMS_ID))), null, count, cancellationSignal);
         } else if (table.equals(AttachmentDatabase.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, innerCount), count, cancellationSignal);
+          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, base, attachments, innerCount), count, cancellationSignal);
         } else if (table.equals(StickerDatabase.TABLE_NAME)) {
           count = exportTable(table, input, outputStream, cursor -> true, (cursor, innerCount) -> exportSticker(attachmentSecret, cursor, outputStream, innerCount), count, cancellationSignal);
         } else if (!BLACKLISTED_TABLES.contains(table) && !table.startsWith("sqlite_")) {
@@ -156,13 +191,13 @@ public class FullBackupExporter extends FullBackupBase {
 
       for (BackupProtos.SharedPreference preference : IdentityKeyUtil.getBackupRecord(context)) {
         throwIfCanceled(cancellationSignal);
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+        outputStream.postProgress(++count);
         outputStream.write(preference);
       }
       
       for (BackupProtos.SharedPreference preference : TextSecurePreferences.getPreferencesToSaveToBackup(context)) {
         throwIfCanceled(cancellationSignal);
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+        outputStream.postProgress(++count);
         outputStream.write(preference);
       }
 
@@ -175,21 +210,57 @@ public class FullBackupExporter extends FullBackupBase {
       for (AvatarHelper.Avatar avatar : AvatarHelper.getAvatars(context)) {
         throwIfCanceled(cancellationSignal);
         if (avatar != null) {
-          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+          outputStream.postProgress(++count);
           outputStream.write(avatar.getFilename(), avatar.getInputStream(), avatar.getLength());
         }
       }
 
+      outputStream.writeEnd();
+      outputStream.finish();
+
       stopwatch.split("avatars");
       stopwatch.stop(TAG);
-
-      outputStream.writeEnd();
     } finally {
+      outputStream.shutdown();
+
       if (closeOutputStream) {
-        outputStream.close();
+        frameStream.close();
       }
       EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, ++count));
     }
+
+    return new ExportResult(frameStream.getIv(), attachments);
+  }
+
+  /**
+   * The frames that come right after the header and describe the backup as a whole. For a full
+   * backup, that's just the database version.
+   *
+   * An incremental backup can't be restored without its base, which older versions don't know how
+   * to do, so it claims to come from a database version that nobody has in order to make them
+   * refuse it. The real version follows in the {@link BackupProtos.IncrementalBackup} frame.
+   */
+  @VisibleForTesting
+  static @NonNull List<BackupProtos.BackupFrame> getPreamble(int databaseVersion, @Nullable IncrementalBackupBase base) {
+    List<BackupProtos.BackupFrame> frames = new ArrayList<>(2);
+
+    if (base == null) {
+      frames.add(BackupProtos.BackupFrame.newBuilder()
+                                         .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(databaseVersion))
+                                         .build());
+    } else {
+      frames.add(BackupProtos.BackupFrame.newBuilder()
+                                         .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(INCREMENTAL_DATABASE_VERSION))
+                                         .build());
+      frames.add(BackupProtos.BackupFrame.newBuilder()
+                                         .setIncremental(BackupProtos.IncrementalBackup.newBuilder()
+                                                                                       .setBaseBackup(base.getFileName())
+                                                                                       .setBaseIv(ByteString.copyFrom(base.getIv()))
+                                                                                       .setDatabaseVersion(databaseVersion))
+                                         .build());
+    }
+
+    return frames;
   }
 
   private static void throwIfCanceled(@NonNull BackupCancellationSignal cancellationSignal) throws BackupCanceledException {
@@ -198,7 +269,7 @@ public class FullBackupExporter extends FullBackupBase {
     }
   }
 
-  private static List<String> exportSchema(@NonNull SQLiteDatabase input, @NonNull BackupFrameOutputStream outputStream)
+  private static List<String> exportSchema(@NonNull SQLiteDatabase input, @NonNull PipelinedFrameWriter outputStream)
       throws IOException
   {
     List<String> tables = new LinkedList<>();
@@ -230,7 +301,7 @@ public class FullBackupExporter extends FullBackupBase {
 
   private static int exportTable(@NonNull String table,
                                  @NonNull SQLiteDatabase input,
-                                 @NonNull BackupFrameOutputStream outputStream,
+                                 @NonNull PipelinedFrameWriter outputStream,
                                  @Nullable Predicate<Cursor> predicate,
                                  @Nullable PostProcessor postProcess,
                                  int count,
@@ -273,7 +344,7 @@ public class FullBackupExporter extends FullBackupBase {
 
           statement.append(')');
 
-          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+          outputStream.postProgress(++count);
           outputStream.write(statementBuilder.setStatement(statement.toString()).build());
 
           if (postProcess != null) {
@@ -286,11 +357,25 @@ public class FullBackupExporter extends FullBackupBase {
     return count;
   }
 
-  private static int exportAttachment(@NonNull AttachmentSecret attachmentSecret, @NonNull Cursor cursor, @NonNull BackupFrameOutputStream outputStream, int count) {
+  private static int exportAttachment(@NonNull AttachmentSecret attachmentSecret,
+                                      @NonNull Cursor cursor,
+                                      @NonNull PipelinedFrameWriter outputStream,
+                                      @Nullable IncrementalBackupBase base,
+                                      @NonNull Set<AttachmentKey> written,
+                                      int count)
+  {
     try {
-      long rowId    = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.ROW_ID));
-      long uniqueId = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.UNIQUE_ID));
-      long size     = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.SIZE));
+      long   rowId    = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.ROW_ID));
+      long   uniqueId = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.UNIQUE_ID));
+      long   size     = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.SIZE));
+      String dataHash = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA_HASH));
+
+      AttachmentId  attachmentId = new AttachmentId(rowId, uniqueId);
+      AttachmentKey key          = new AttachmentKey(attachmentId, size, dataHash);
+
+      if (base != null && base.getAttachments().contains(key)) {
+        return count;
+      }
 
       String data   = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA));
       byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA_RANDOM));
@@ -301,18 +386,18 @@ public class FullBackupExporter extends FullBackupBase {
 
         if (size <= 0 || fileLength != dbLength) {
           size = calculateVeryOldStreamLength(attachmentSecret, random, data);
-          Log.w(TAG, "Needed size calculation! Manual: " + size + " File: " + fileLength + "  DB: " + dbLength + " ID: " + new AttachmentId(rowId, uniqueId));
+          Log.w(TAG, "Needed size calculation! Manual: " + size + " File: " + fileLength + "  DB: " + dbLength + " ID: " + attachmentId);
         }
       }
 
       if (!TextUtils.isEmpty(data) && size > 0) {
-        InputStream inputStream;
+        StreamOpener opener;
 
-        if (random != null && random.length == 32) inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
-        else                                       inputStream = ClassicDecryptingPartInputStream.createFor(attachmentSecret, new File(data));
+        if (random != null && random.length == 32) opener = () -> ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
+        else                                       opener = () -> ClassicDecryptingPartInputStream.createFor(attachmentSecret, new File(data));
 
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
-        outputStream.write(new AttachmentId(rowId, uniqueId), inputStream, size);
+        outputStream.postProgress(++count);
+        outputStream.write(attachmentId, opener, size, () -> written.add(key));
       }
     } catch (IOException e) {
       Log.w(TAG, e);
@@ -321,7 +406,7 @@ public class FullBackupExporter extends FullBackupBase {
     return count;
   }
 
-  private static int exportSticker(@NonNull AttachmentSecret attachmentSecret, @NonNull Cursor cursor, @NonNull BackupFrameOutputStream outputStream, int count) {
+  private static int exportSticker(@NonNull AttachmentSecret attachmentSecret, @NonNull Cursor cursor, @NonNull PipelinedFrameWriter outputStream, int count) {
     try {
       long rowId    = cursor.getLong(cursor.getColumnIndexOrThrow(StickerDatabase._ID));
       long size     = cursor.getLong(cursor.getColumnIndexOrThrow(StickerDatabase.FILE_LENGTH));
@@ -330,9 +415,8 @@ public class FullBackupExporter extends FullBackupBase {
       byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(StickerDatabase.FILE_RANDOM));
 
       if (!TextUtils.isEmpty(data) && size > 0) {
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
-        InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
-        outputStream.writeSticker(rowId, inputStream, size);
+        outputStream.postProgress(++count);
+        outputStream.writeSticker(rowId, () -> ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0), size);
       }
     } catch (IOException e) {
       Log.w(TAG, e);
@@ -358,7 +442,7 @@ public class FullBackupExporter extends FullBackupBase {
     return result;
   }
 
-  private static int exportKeyValues(@NonNull BackupFrameOutputStream outputStream,
+  private static int exportKeyValues(@NonNull PipelinedFrameWriter outputStream,
                                      @NonNull List<String> keysToIncludeInBackup,
                                      int count,
                                      BackupCancellationSignal cancellationSignal) throws IOException
@@ -391,7 +475,7 @@ public class FullBackupExporter extends FullBackupBase {
         throw new AssertionError("Unknown type: " + type);
       }
 
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+      outputStream.postProgress(++count);
       outputStream.write(builder.build());
     }
 
@@ -423,7 +507,8 @@ public class FullBackupExporter extends FullBackupBase {
   }
 
 
-  private static class BackupFrameOutputStream extends BackupStream {
+  @VisibleForTesting
+  static class BackupFrameOutputStream extends BackupStream {
 
     private final OutputStream outputStream;
     private final Cipher       cipher;
@@ -431,11 +516,13 @@ public class FullBackupExporter extends FullBackupBase {
 
     private final byte[]       cipherKey;
     private final byte[]       macKey;
+    private final byte[]       headerIv;
 
     private byte[] iv;
     private int    counter;
+    private long   bytesWritten;
 
-    private BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase) throws IOException {
+    BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase) throws IOException {
       try {
         byte[]   salt    = Util.getSecretBytes(32);
         byte[]   key     = getBackupKey(passphrase, salt);
@@ -449,13 +536,15 @@ public class FullBackupExporter extends FullBackupBase {
         this.mac          = Mac.getInstance("HmacSHA256");
         this.outputStream = output;
         this.iv           = Util.getSecretBytes(16);
+        this.headerIv     = iv.clone();
         this.counter      = Conversions.byteArrayToInt(iv);
 
         mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
 
         byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(BackupProtos.Header.newBuilder()
                                                                                            .setIv(ByteString.copyFrom(iv))
-                                                                                           .setSalt(ByteString.copyFrom(salt)))
+                                                                                           .setSalt(ByteString.copyFrom(salt))
+                                                                                           .setVersion(BACKUP_VERSION))
                                                 .build().toByteArray();
 
         outputStream.write(Conversions.intToByteArray(header.length));
@@ -465,72 +554,17 @@ public class FullBackupExporter extends FullBackupBase {
       }
     }
 
-    public void write(BackupProtos.SharedPreference preference) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
-    }
-
-    public void write(BackupProtos.KeyValue keyValue) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setKeyValue(keyValue).build());
-    }
-
-    public void write(BackupProtos.SqlStatement statement) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
-    }
-
-    public void write(@NonNull String avatarName, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setAvatar(BackupProtos.Avatar.newBuilder()
-                                                                                .setRecipientId(avatarName)
-                                                                                .setLength(Util.toIntExact(size))
-                                                                                .build())
-                                                  .build());
-
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
-    }
-
-    public void write(@NonNull AttachmentId attachmentId, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setAttachment(BackupProtos.Attachment.newBuilder()
-                                                                                        .setRowId(attachmentId.getRowId())
-                                                                                        .setAttachmentId(attachmentId.getUniqueId())
-                                                                                        .setLength(Util.toIntExact(size))
-                                                                                        .build())
-                                                  .build());
-
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
-    }
-
-    public void writeSticker(long rowId, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setSticker(BackupProtos.Sticker.newBuilder()
-                                                                                  .setRowId(rowId)
-                                                                                  .setLength(Util.toIntExact(size))
-                                                                                  .build())
-                                                  .build());
-
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
-    }
-
-    void writeDatabaseVersion(int version) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
-                                                  .build());
-    }
-
-    void writeEnd() throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+    /**
+     * Encrypts and writes an already-serialized {@link BackupProtos.BackupFrame}.
+     */
+    void writeFrame(@NonNull byte[] frame) throws IOException {
+      write(outputStream, frame);
     }
 
     /**
      * @return The amount of data written from the provided InputStream.
      */
-    private long writeStream(@NonNull InputStream inputStream) throws IOException {
+    long writeStream(@NonNull InputStream inputStream) throws IOException {
       try {
         Conversions.intToByteArray(iv, 0, counter++);
         cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
@@ -559,35 +593,320 @@ public class FullBackupExporter extends FullBackupBase {
         byte[] attachmentDigest = mac.doFinal();
         outputStream.write(attachmentDigest, 0, 10);
 
+        bytesWritten += total + 10;
+
         return total;
       } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
         throw new AssertionError(e);
       }
     }
 
-    private void write(@NonNull OutputStream out, @NonNull BackupProtos.BackupFrame frame) throws IOException {
+    private void write(@NonNull OutputStream out, @NonNull byte[] frame) throws IOException {
       try {
         Conversions.intToByteArray(iv, 0, counter++);
         cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
 
-        byte[] frameCiphertext = cipher.doFinal(frame.toByteArray());
+        byte[] frameCiphertext = cipher.doFinal(frame);
         byte[] frameMac        = mac.doFinal(frameCiphertext);
         byte[] length          = Conversions.intToByteArray(frameCiphertext.length + 10);
 
         out.write(length);
         out.write(frameCiphertext);
         out.write(frameMac, 0, 10);
+
+        bytesWritten += length.length + frameCiphertext.length + 10;
       } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
         throw new AssertionError(e);
       }
     }
 
+    long getBytesWritten() {
+      return bytesWritten;
+    }
+
+    /**
+     * @return The IV written to the header, which identifies this particular backup.
+     */
+    @NonNull byte[] getIv() {
+      return headerIv.clone();
+    }
 
     public void close() throws IOException {
       outputStream.close();
     }
   }
 
+  /**
+   * Splits writing the backup across threads. The thread doing the export reads rows and builds
+   * and serializes frames, then hands them off through a bounded queue to a writer thread, which
+   * encrypts, MACs and writes them in order. When streaming larger attachments, decryption happens
+   * on yet another thread, ahead of the writer.
+   *
+   * Because there's a single writer consuming frames in the order they were produced, the output
+   * is identical to writing every frame inline.
+   */
+  private static final class PipelinedFrameWriter {
+
+    private static final ExecutorService WRITE_EXECUTOR      = SignalExecutors.newCachedSingleThreadExecutor("signal-backup-writer");
+    private static final ExecutorService READ_AHEAD_EXECUTOR = SignalExecutors.newCachedSingleThreadExecutor("signal-backup-read-ahead");
+
+    private static final int  QUEUE_SIZE             = 256;
+    private static final long POLL_INTERVAL_MS       = 100;
+    private static final long PROGRESS_INTERVAL_MS   = 100;
+    private static final long READ_AHEAD_MIN_SIZE    = 256 * 1024;
+    private static final int  READ_AHEAD_BUFFER_SIZE = 64 * 1024;
+    private static final int  READ_AHEAD_BUFFERS     = 4;
+
+    private static final Task END_OF_QUEUE = out -> {};
+
+    private final BackupFrameOutputStream frameStream;
+    private final BlockingQueue<Task>     queue;
+    private final Future<?>               writer;
+    private final long                    startTime;
+
+    private volatile Throwable error;
+    private volatile boolean   aborted;
+
+    private boolean finished;
+    private long    lastProgressTime;
+    private int     rowCount;
+
+    private PipelinedFrameWriter(@NonNull BackupFrameOutputStream frameStream) {
+      this.frameStream = frameStream;
+      this.queue       = new ArrayBlockingQueue<>(QUEUE_SIZE);
+      this.startTime   = System.currentTimeMillis();
+      this.writer      = WRITE_EXECUTOR.submit(this::drain);
+    }
+
+    void write(@NonNull BackupProtos.SharedPreference preference) throws IOException {
+      enqueueFrame(BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
+    }
+
+    void write(@NonNull BackupProtos.KeyValue keyValue) throws IOException {
+      enqueueFrame(BackupProtos.BackupFrame.newBuilder().setKeyValue(keyValue).build());
+    }
+
+    void write(@NonNull BackupProtos.BackupFrame frame) throws IOException {
+      enqueueFrame(frame);
+    }
+
+    void write(@NonNull BackupProtos.SqlStatement statement) throws IOException {
+      rowCount++;
+      enqueueFrame(BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
+    }
+
+    /**
+     * Avatars come to us with their stream already open, so rather than queueing up an unbounded
+     * number of open files, this waits for the avatar to be written.
+     */
+    void write(@NonNull String avatarName, @NonNull InputStream in, long size) throws IOException {
+      byte[] frame = BackupProtos.BackupFrame.newBuilder()
+                                             .setAvatar(BackupProtos.Avatar.newBuilder()
+                                                                           .setRecipientId(avatarName)
+                                                                           .setLength(Util.toIntExact(size))
+                                                                           .build())
+                                             .build()
+                                             .toByteArray();
+
+      CountDownLatch written = new CountDownLatch(1);
+
+      enqueue(out -> {
+        try {
+          writeFrameAndStream(out, frame, in, size);
+        } finally {
+          written.countDown();
+        }
+      });
+
+      try {
+        while (!written.await(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+          throwIfFailed();
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+
+      throwIfFailed();
+    }
+
+    /**
+     * Failing to read an attachment isn't fatal to the backup, so any errors doing so are logged
+     * and the backup carries on.
+     *
+     * @param onWritten Run on the writer thread once the attachment has been written successfully.
+     */
+    void write(@NonNull AttachmentId attachmentId, @NonNull StreamOpener opener, long size, @NonNull Runnable onWritten) throws IOException {
+      byte[] frame = BackupProtos.BackupFrame.newBuilder()
+                                             .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                                   .setRowId(attachmentId.getRowId())
+                                                                                   .setAttachmentId(attachmentId.getUniqueId())
+                                                                                   .setLength(Util.toIntExact(size))
+                                                                                   .build())
+                                             .build()
+                                             .toByteArray();
+
+      enqueue(out -> {
+        if (writeNonFatal(out, frame, opener, size)) {
+          onWritten.run();
+        }
+      });
+    }
+
+    /**
+     * Same as {@link #write(AttachmentId, StreamOpener, long, Runnable)}, but for stickers.
+     */
+    void writeSticker(long rowId, @NonNull StreamOpener opener, long size) throws IOException {
+      byte[] frame = BackupProtos.BackupFrame.newBuilder()
+                                             .setSticker(BackupProtos.Sticker.newBuilder()
+                                                                             .setRowId(rowId)
+                                                                             .setLength(Util.toIntExact(size))
+                                                                             .build())
+                                             .build()
+                                             .toByteArray();
+
+      enqueue(out -> writeNonFatal(out, frame, opener, size));
+    }
+
+    void writeEnd() throws IOException {
+      enqueueFrame(BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+    }
+
+    /**
+     * Posts a progress event, but no more often than every {@link #PROGRESS_INTERVAL_MS}.
+     */
+    void postProgress(int count) {
+      long now = System.currentTimeMillis();
+
+      if (now - lastProgressTime >= PROGRESS_INTERVAL_MS) {
+        lastProgressTime = now;
+        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count));
+      }
+    }
+
+    /**
+     * Waits for everything that has been queued to be written.
+     */
+    void finish() throws IOException {
+      enqueue(END_OF_QUEUE);
+      awaitWriter();
+      throwIfFailed();
+
+      finished = true;
+
+      long  duration  = Math.max(1, System.currentTimeMillis() - startTime);
+      float megabytes = frameStream.getBytesWritten() / (1024f * 1024f);
+
+      Log.i(TAG, String.format(Locale.US, "Wrote %d rows and %.2f MB in %d ms (%.2f MB/s, %.0f rows/s).",
+                               rowCount, megabytes, duration, megabytes * 1000 / duration, rowCount * 1000f / duration));
+    }
+
+    /**
+     * Stops the writer if the export didn't finish (e.g. it was canceled), discarding anything that
+     * hasn't been written yet. Safe to call after {@link #finish()}.
+     */
+    void shutdown() {
+      if (!finished) {
+        aborted = true;
+        queue.clear();
+        queue.offer(END_OF_QUEUE);
+      }
+
+      awaitWriter();
+    }
+
+    private void enqueueFrame(@NonNull BackupProtos.BackupFrame frame) throws IOException {
+      byte[] serialized = frame.toByteArray();
+      enqueue(out -> out.writeFrame(serialized));
+    }
+
+    private void enqueue(@NonNull Task task) throws IOException {
+      try {
+        while (!queue.offer(task, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+          throwIfFailed();
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+
+      throwIfFailed();
+    }
+
+    private void drain() {
+      try {
+        while (true) {
+          Task task = queue.take();
+
+          if (task == END_OF_QUEUE || aborted) {
+            return;
+          }
+
+          task.run(frameStream);
+        }
+      } catch (Throwable t) {
+        error = t;
+      }
+    }
+
+    private void awaitWriter() {
+      try {
+        writer.get();
+      } catch (InterruptedException | ExecutionException e) {
+        Log.w(TAG, "Failed to wait for the backup writer.", e);
+      }
+    }
+
+    private void throwIfFailed() throws IOException {
+      Throwable error = this.error;
+
+      if      (error == null)                     return;
+      else if (error instanceof IOException)      throw (IOException) error;
+      else if (error instanceof RuntimeException) throw (RuntimeException) error;
+      else if (error instanceof Error)            throw (Error) error;
+      else                                        throw new IOException(error);
+    }
+
+    private static boolean writeNonFatal(@NonNull BackupFrameOutputStream out, @NonNull byte[] frame, @NonNull StreamOpener opener, long size) {
+      try {
+        writeFrameAndStream(out, frame, opener.open(), size);
+        return true;
+      } catch (IOException e) {
+        Log.w(TAG, e);
+        return false;
+      }
+    }
+
+    /**
+     * Writes the frame describing a stream, followed by the stream itself. Closes the stream.
+     */
+    private static void writeFrameAndStream(@NonNull BackupFrameOutputStream out, @NonNull byte[] frame, @NonNull InputStream in, long size) throws IOException {
+      try {
+        out.writeFrame(frame);
+      } catch (IOException e) {
+        in.close();
+        throw e;
+      }
+
+      InputStream source = size >= READ_AHEAD_MIN_SIZE ? new ReadAheadInputStream(in, READ_AHEAD_EXECUTOR, READ_AHEAD_BUFFER_SIZE, READ_AHEAD_BUFFERS)
+                                                       : in;
+
+      try {
+        if (out.writeStream(source) != size) {
+          throw new IOException("Size mismatch!");
+        }
+      } finally {
+        source.close();
+      }
+    }
+
+    private interface Task {
+      void run(@NonNull BackupFrameOutputStream out) throws IOException;
+    }
+  }
+
+  private interface StreamOpener {
+    @NonNull InputStream open() throws IOException;
+  }
+
   public interface PostProcessor {
     int postProcess(@NonNull Cursor cursor, int count);
   }
@@ -597,4 +916,29 @@ public class FullBackupExporter extends FullBackupBase {
   }
 
   public static final class BackupCanceledException extends IOException { }
+
+  public static final class ExportResult {
+
+    private final byte[]             iv;
+    private final Set<AttachmentKey> attachments;
+
+    private ExportResult(@NonNull byte[] iv, @NonNull Set<AttachmentKey> attachments) {
+      this.iv          = iv;
+      this.attachments = attachments;
+    }
+
+    /**
+     * @return The IV from the header of the backup.
+     */
+    public @NonNull byte[] getIv() {
+      return iv;
+    }
+
+    /**
+     * @return The attachments whose data was written to the backup.
+     */
+    public @NonNull Set<AttachmentKey> getAttachments() {
+      return attachments;
+    }
+  }
 }
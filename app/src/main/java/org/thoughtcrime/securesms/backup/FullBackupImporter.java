@@ -10,16 +10,21 @@ import android.net.Uri;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.documentfile.provider.DocumentFile;
 
 import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
 
 import org.greenrobot.eventbus.EventBus;
 import org.signal.core.util.Conversions;
 import org.signal.core.util.StreamUtil;
 import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.backup.BackupProtos.Attachment;
 import org.thoughtcrime.securesms.backup.BackupProtos.BackupFrame;
-import org.thoughtcrime.securesms.backup.BackupProtos.DatabaseVersion;
+import org.thoughtcrime.securesms.backup.BackupProtos.IncrementalBackup;
 import org.thoughtcrime.securesms.backup.BackupProtos.SharedPreference;
 import org.thoughtcrime.securesms.backup.BackupProtos.SqlStatement;
 import org.thoughtcrime.securesms.backup.BackupProtos.Sticker;
@@ -31,9 +36,11 @@ import org.thoughtcrime.securesms.database.SearchDatabase;
 import org.thoughtcrime.securesms.database.StickerDatabase;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.keyvalue.KeyValueDataSet;
+import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.profiles.AvatarHelper;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.util.BackupUtil;
+import org.thoughtcrime.securesms.util.SetUtil;
 import org.thoughtcrime.securesms.util.SqlUtil;
 import org.whispersystems.libsignal.kdf.HKDFv3;
 import org.whispersystems.libsignal.util.ByteUtil;
@@ -41,6 +48,7 @@ import org.whispersystems.libsignal.util.ByteUtil;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -48,11 +56,15 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -70,17 +82,90 @@ public class FullBackupImporter extends FullBackupBase {
   public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
                                 @NonNull SQLiteDatabase db, @NonNull Uri uri, @NonNull String passphrase)
       throws IOException
+  {
+    importFile(context, attachmentSecret, db, uri, null, passphrase);
+  }
+
+  /**
+   * @param baseBackupUri Where to find the base backup if this turns out to be an incremental one.
+   *                      If not provided, we look for it next to the backup and in the backup
+   *                      directory. Either way, a {@link BaseBackupUnavailableException} is thrown
+   *                      if it can't be found.
+   */
+  public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                @NonNull SQLiteDatabase db, @NonNull Uri uri, @Nullable Uri baseBackupUri,
+                                @NonNull String passphrase)
+      throws IOException
   {
     try (InputStream is = getInputStream(context, uri)) {
-      importFile(context, attachmentSecret, db, is, passphrase);
+      importFile(context, attachmentSecret, db, is, passphrase, baseBackup -> {
+        try {
+          return getInputStream(context, baseBackupUri != null ? baseBackupUri : getBaseBackupUri(uri, baseBackup));
+        } catch (FileNotFoundException | SecurityException e) {
+          Log.w(TAG, "Failed to open the base backup.", e);
+          throw new BaseBackupUnavailableException(baseBackup);
+        }
+      });
     }
   }
 
+  /**
+   * Backups that come in as a stream (i.e. from another device) are always full backups, since
+   * there'd be no way to get at the base of an incremental one.
+   */
   public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
                                 @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase)
       throws IOException
   {
-    int count = 0;
+    importFile(context, attachmentSecret, db, is, passphrase, baseBackup -> {
+      throw new BaseBackupUnavailableException(baseBackup);
+    });
+  }
+
+  /**
+   * @return The name of the base backup if the backup is an incremental one, otherwise null.
+   */
+  public static @Nullable String getBaseBackupName(@NonNull Context context, @NonNull Uri uri, @NonNull String passphrase) throws IOException {
+    try (InputStream is = getInputStream(context, uri)) {
+      return readBaseBackupName(is, passphrase);
+    }
+  }
+
+  /**
+   * Only the first couple of frames have to be read, since an incremental backup says so right
+   * after the database version.
+   */
+  @VisibleForTesting
+  static @Nullable String readBaseBackupName(@NonNull InputStream is, @NonNull String passphrase) throws IOException {
+    BackupRecordInputStream inputStream = new BackupRecordInputStream(is, passphrase, false);
+    BackupFrame             frame;
+
+    while (!(frame = inputStream.readFrame()).getEnd()) {
+      if (frame.hasIncremental()) {
+        return frame.getIncremental().getBaseBackup();
+      } else if (!frame.hasVersion()) {
+        return null;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * @param baseBackupProvider If the backup turns out to be an incremental one, this is used to
+   *                           open the full backup it was written on top of, so that the remaining
+   *                           attachments can be restored from it.
+   */
+  private static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                 @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase,
+                                 @NonNull BaseBackupProvider baseBackupProvider)
+      throws IOException
+  {
+    int                          count            = 0;
+    Map<String, SQLiteStatement> statementCache   = new HashMap<>();
+    List<String>                 deferredTriggers = new LinkedList<>();
+    Set<AttachmentId>            attachments      = new HashSet<>();
+    BackupRecordInputStream      baseInputStream  = null;
 
     SQLiteDatabase keyValueDatabase = KeyValueDatabase.getInstance(ApplicationDependencies.getApplication()).getSqlCipherDatabase();
     try {
@@ -97,21 +182,38 @@ public class FullBackupImporter extends FullBackupBase {
         if (count % 100 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count));
         count++;
 
-        if      (frame.hasVersion())    processVersion(db, frame.getVersion());
-        else if (frame.hasStatement())  processStatement(db, frame.getStatement());
-        else if (frame.hasPreference()) processPreference(context, frame.getPreference());
-        else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream);
-        else if (frame.hasSticker())    processSticker(context, attachmentSecret, db, frame.getSticker(), inputStream);
-        else if (frame.hasAvatar())     processAvatar(context, db, frame.getAvatar(), inputStream);
-        else if (frame.hasKeyValue())   processKeyValue(frame.getKeyValue());
-        else                            count--;
+        if      (frame.hasVersion())     processVersion(db, frame.getVersion().getVersion());
+        else if (frame.hasStatement())   processStatement(db, frame.getStatement(), statementCache, deferredTriggers);
+        else if (frame.hasPreference())  processPreference(context, frame.getPreference());
+        else if (frame.hasAttachment())  processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream, attachments);
+        else if (frame.hasSticker())     processSticker(context, attachmentSecret, db, frame.getSticker(), inputStream);
+        else if (frame.hasAvatar())      processAvatar(context, db, frame.getAvatar(), inputStream);
+        else if (frame.hasKeyValue())    processKeyValue(frame.getKeyValue());
+        else if (frame.hasIncremental()) baseInputStream = processIncremental(db, frame.getIncremental(), passphrase, baseBackupProvider);
+        else                             count--;
+      }
+
+      if (baseInputStream != null) {
+        Set<AttachmentId> needed = SetUtil.difference(getAttachmentIdsWithData(db), attachments);
+
+        count = importAttachmentsFromBase(baseInputStream, needed, (attachment, in) -> processAttachment(context, attachmentSecret, db, attachment, in, attachments), count);
       }
 
+      rebuildFtsIndexes(db, deferredTriggers);
+
       db.setTransactionSuccessful();
       keyValueDatabase.setTransactionSuccessful();
     } finally {
+      for (SQLiteStatement statement : statementCache.values()) {
+        statement.close();
+      }
+
       db.endTransaction();
       keyValueDatabase.endTransaction();
+
+      if (baseInputStream != null) {
+        baseInputStream.close();
+      }
     }
 
     EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, count));
@@ -125,15 +227,67 @@ public class FullBackupImporter extends FullBackupBase {
     }
   }
 
-  private static void processVersion(@NonNull SQLiteDatabase db, DatabaseVersion version) throws IOException {
-    if (version.getVersion() > db.getVersion()) {
-      throw new DatabaseDowngradeException(db.getVersion(), version.getVersion());
+  private static void processVersion(@NonNull SQLiteDatabase db, int version) throws IOException {
+    if (version == INCREMENTAL_DATABASE_VERSION) {
+      Log.i(TAG, "Incremental backup. The real database version follows.");
+      return;
+    }
+
+    if (version > db.getVersion()) {
+      throw new DatabaseDowngradeException(db.getVersion(), version);
     }
 
-    db.setVersion(version.getVersion());
+    db.setVersion(version);
   }
 
-  private static void processStatement(@NonNull SQLiteDatabase db, SqlStatement statement) {
+  /**
+   * Opens the base backup as soon as we know there is one, so that if it's missing we fail before
+   * restoring anything. The IV check makes sure that it's the exact backup the incremental one was
+   * written on top of, and not just one with the same name.
+   */
+  private static @NonNull BackupRecordInputStream processIncremental(@NonNull SQLiteDatabase db,
+                                                                     @NonNull IncrementalBackup incremental,
+                                                                     @NonNull String passphrase,
+                                                                     @NonNull BaseBackupProvider baseBackupProvider)
+      throws IOException
+  {
+    processVersion(db, incremental.getDatabaseVersion());
+
+    Log.i(TAG, "Incremental backup on top of " + incremental.getBaseBackup());
+
+    InputStream             is = baseBackupProvider.open(incremental.getBaseBackup());
+    BackupRecordInputStream baseInputStream;
+
+    try {
+      baseInputStream = new BackupRecordInputStream(is, passphrase);
+    } catch (IOException e) {
+      is.close();
+      throw e;
+    }
+
+    if (!Arrays.equals(baseInputStream.getIv(), incremental.getBaseIv().toByteArray())) {
+      Log.w(TAG, "The base backup doesn't match the one the incremental backup was written on top of!");
+      baseInputStream.close();
+      throw new BaseBackupUnavailableException(incremental.getBaseBackup());
+    }
+
+    return baseInputStream;
+  }
+
+  /**
+   * Rows are restored as a stream of identical INSERT templates, so each distinct statement is only
+   * compiled once and then re-bound for every row.
+   *
+   * The triggers that keep the search index up to date are held back until everything else has
+   * been restored, at which point the index is rebuilt in one go (see
+   * {@link #rebuildFtsIndexes(SQLiteDatabase, List)}). Otherwise they'd fire for every single
+   * message we insert.
+   */
+  private static void processStatement(@NonNull SQLiteDatabase db,
+                                       @NonNull SqlStatement statement,
+                                       @NonNull Map<String, SQLiteStatement> statementCache,
+                                       @NonNull List<String> deferredTriggers)
+  {
     boolean isForSmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.SMS_FTS_TABLE_NAME + "_");
     boolean isForMmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.MMS_FTS_TABLE_NAME + "_");
     boolean isForSqliteSecretTable = statement.getStatement().toLowerCase().startsWith("create table sqlite_");
@@ -143,21 +297,169 @@ public class FullBackupImporter extends FullBackupBase {
       return;
     }
 
-    List<Object> parameters = new LinkedList<>();
+    if (isFtsTrigger(statement.getStatement())) {
+      Log.i(TAG, "Deferring FTS trigger until the end of the import.");
+      deferredTriggers.add(statement.getStatement());
+      return;
+    }
+
+    if (statement.getParametersCount() == 0) {
+      db.execSQL(statement.getStatement());
+      return;
+    }
+
+    SQLiteStatement compiled = statementCache.get(statement.getStatement());
+
+    if (compiled == null) {
+      compiled = db.compileStatement(statement.getStatement());
+      statementCache.put(statement.getStatement(), compiled);
+    }
+
+    compiled.clearBindings();
+
+    int index = 1;
 
     for (SqlStatement.SqlParameter parameter : statement.getParametersList()) {
-      if      (parameter.hasStringParamter())   parameters.add(parameter.getStringParamter());
-      else if (parameter.hasDoubleParameter())  parameters.add(parameter.getDoubleParameter());
-      else if (parameter.hasIntegerParameter()) parameters.add(parameter.getIntegerParameter());
-      else if (parameter.hasBlobParameter())    parameters.add(parameter.getBlobParameter().toByteArray());
-      else if (parameter.hasNullparameter())    parameters.add(null);
+      if      (parameter.hasStringParamter())   compiled.bindString(index, parameter.getStringParamter());
+      else if (parameter.hasDoubleParameter())  compiled.bindDouble(index, parameter.getDoubleParameter());
+      else if (parameter.hasIntegerParameter()) compiled.bindLong(index, parameter.getIntegerParameter());
+      else if (parameter.hasBlobParameter())    compiled.bindBlob(index, parameter.getBlobParameter().toByteArray());
+      else if (parameter.hasNullparameter())    compiled.bindNull(index);
+      else                                      continue;
+
+      index++;
+    }
+
+    compiled.execute();
+  }
+
+  private static boolean isFtsTrigger(@NonNull String statement) {
+    return statement.toLowerCase().startsWith("create trigger") &&
+           (statement.contains(SearchDatabase.SMS_FTS_TABLE_NAME) || statement.contains(SearchDatabase.MMS_FTS_TABLE_NAME));
+  }
+
+  /**
+   * Re-creates the FTS triggers that were skipped during the import and populates the search index
+   * from the restored message tables.
+   */
+  private static void rebuildFtsIndexes(@NonNull SQLiteDatabase db, @NonNull List<String> deferredTriggers) {
+    if (deferredTriggers.isEmpty()) {
+      return;
+    }
+
+    boolean rebuildSms = false;
+    boolean rebuildMms = false;
+
+    for (String trigger : deferredTriggers) {
+      db.execSQL(trigger);
+
+      rebuildSms |= trigger.contains(SearchDatabase.SMS_FTS_TABLE_NAME);
+      rebuildMms |= trigger.contains(SearchDatabase.MMS_FTS_TABLE_NAME);
     }
 
-    if (parameters.size() > 0) db.execSQL(statement.getStatement(), parameters.toArray());
-    else                       db.execSQL(statement.getStatement());
+    long startTime = System.currentTimeMillis();
+
+    if (rebuildSms) db.execSQL("INSERT INTO " + SearchDatabase.SMS_FTS_TABLE_NAME + "(" + SearchDatabase.SMS_FTS_TABLE_NAME + ") VALUES('rebuild')");
+    if (rebuildMms) db.execSQL("INSERT INTO " + SearchDatabase.MMS_FTS_TABLE_NAME + "(" + SearchDatabase.MMS_FTS_TABLE_NAME + ") VALUES('rebuild')");
+
+    Log.i(TAG, "Rebuilt the search index in " + (System.currentTimeMillis() - startTime) + " ms.");
   }
 
-  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
+  /**
+   * An incremental backup only contains the attachments that weren't already in its base backup.
+   * This restores the rest of them, skipping over everything else in the base.
+   *
+   * @param needed The attachments that have data, but weren't in the incremental backup. Each one
+   *               is removed as it's restored.
+   */
+  @VisibleForTesting
+  static int importAttachmentsFromBase(@NonNull BackupRecordInputStream inputStream,
+                                       @NonNull Set<AttachmentId> needed,
+                                       @NonNull AttachmentRestorer restorer,
+                                       int count)
+      throws IOException
+  {
+    Log.i(TAG, "Restoring " + needed.size() + " attachment(s) from the base backup.");
+
+    BackupFrame frame;
+
+    while (!needed.isEmpty() && !(frame = inputStream.readFrame()).getEnd()) {
+      if (frame.hasAttachment()) {
+        Attachment   attachment   = frame.getAttachment();
+        AttachmentId attachmentId = new AttachmentId(attachment.getRowId(), attachment.getAttachmentId());
+
+        if (needed.remove(attachmentId)) {
+          if (count % 100 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count));
+          count++;
+
+          restorer.restore(attachment, inputStream);
+        } else {
+          skipAttachment(inputStream, attachment.getLength());
+        }
+      } else if (frame.hasSticker()) {
+        skipAttachment(inputStream, frame.getSticker().getLength());
+      } else if (frame.hasAvatar()) {
+        skipAttachment(inputStream, frame.getAvatar().getLength());
+      }
+    }
+
+    if (!needed.isEmpty()) {
+      Log.w(TAG, needed.size() + " attachment(s) were missing from the base backup!");
+    }
+
+    return count;
+  }
+
+  private static @NonNull Set<AttachmentId> getAttachmentIdsWithData(@NonNull SQLiteDatabase db) {
+    Set<AttachmentId> ids     = new HashSet<>();
+    String[]          columns = new String[] { AttachmentDatabase.ROW_ID, AttachmentDatabase.UNIQUE_ID };
+
+    try (Cursor cursor = db.query(AttachmentDatabase.TABLE_NAME, columns, AttachmentDatabase.DATA + " NOT NULL", null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        ids.add(new AttachmentId(cursor.getLong(0), cursor.getLong(1)));
+      }
+    }
+
+    return ids;
+  }
+
+  private static void skipAttachment(@NonNull BackupRecordInputStream inputStream, int length) throws IOException {
+    try {
+      inputStream.readAttachmentTo(new DiscardingOutputStream(), length);
+    } catch (BadMacException e) {
+      Log.w(TAG, "Bad MAC while skipping over an attachment. Ignoring, since we didn't need it.");
+    }
+  }
+
+  private static @NonNull Uri getBaseBackupUri(@NonNull Uri uri, @NonNull String baseBackup) throws IOException {
+    if ("file".equals(uri.getScheme()) && uri.getPath() != null) {
+      File file = new File(new File(uri.getPath()).getParentFile(), baseBackup);
+
+      if (file.exists()) {
+        return Uri.fromFile(file);
+      }
+    }
+
+    Uri backupDirectory = SignalStore.settings().getSignalBackupDirectory();
+
+    if (backupDirectory != null) {
+      DocumentFile directory = DocumentFile.fromTreeUri(ApplicationDependencies.getApplication(), backupDirectory);
+      DocumentFile file      = directory != null ? directory.findFile(baseBackup) : null;
+
+      if (file != null && file.exists()) {
+        return file.getUri();
+      }
+    }
+
+    throw new BaseBackupUnavailableException(baseBackup);
+  }
+
+  private static void processAttachment(@NonNull Context context,
+                                        @NonNull AttachmentSecret attachmentSecret,
+                                        @NonNull SQLiteDatabase db,
+                                        @NonNull Attachment attachment,
+                                        @NonNull BackupRecordInputStream inputStream,
+                                        @NonNull Set<AttachmentId> restored)
       throws IOException
   {
     File                       partsDirectory = context.getDir(AttachmentDatabase.DIRECTORY, Context.MODE_PRIVATE);
@@ -181,6 +483,8 @@ public class FullBackupImporter extends FullBackupBase {
     db.update(AttachmentDatabase.TABLE_NAME, contentValues,
               AttachmentDatabase.ROW_ID + " = ? AND " + AttachmentDatabase.UNIQUE_ID + " = ?",
               new String[] {String.valueOf(attachment.getRowId()), String.valueOf(attachment.getAttachmentId())});
+
+    restored.add(new AttachmentId(attachment.getRowId(), attachment.getAttachmentId()));
   }
 
   private static void processSticker(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Sticker sticker, BackupRecordInputStream inputStream)
@@ -271,7 +575,8 @@ public class FullBackupImporter extends FullBackupBase {
     }
   }
 
-  private static class BackupRecordInputStream extends BackupStream {
+  @VisibleForTesting
+  static class BackupRecordInputStream extends BackupStream {
 
     private final InputStream in;
     private final Cipher      cipher;
@@ -279,11 +584,16 @@ public class FullBackupImporter extends FullBackupBase {
 
     private final byte[] cipherKey;
     private final byte[] macKey;
+    private final byte[] headerIv;
 
     private byte[] iv;
     private int    counter;
 
-    private BackupRecordInputStream(@NonNull InputStream in, @NonNull String passphrase) throws IOException {
+    BackupRecordInputStream(@NonNull InputStream in, @NonNull String passphrase) throws IOException {
+      this(in, passphrase, true);
+    }
+
+    BackupRecordInputStream(@NonNull InputStream in, @NonNull String passphrase, boolean postProgress) throws IOException {
       try {
         this.in = in;
 
@@ -302,13 +612,18 @@ public class FullBackupImporter extends FullBackupBase {
 
         BackupProtos.Header header = frame.getHeader();
 
-        this.iv = header.getIv().toByteArray();
+        if (header.getVersion() > BACKUP_VERSION) {
+          throw new UnsupportedBackupVersionException(header.getVersion());
+        }
+
+        this.iv       = header.getIv().toByteArray();
+        this.headerIv = iv.clone();
 
         if (iv.length != 16) {
           throw new IOException("Invalid IV length!");
         }
 
-        byte[]   key     = getBackupKey(passphrase, header.hasSalt() ? header.getSalt().toByteArray() : null);
+        byte[]   key     = getBackupKey(passphrase, header.hasSalt() ? header.getSalt().toByteArray() : null, postProgress);
         byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
         byte[][] split   = ByteUtil.split(derived, 32, 32);
 
@@ -329,6 +644,17 @@ public class FullBackupImporter extends FullBackupBase {
       return readFrame(in);
     }
 
+    /**
+     * @return The IV from the header, which identifies this particular backup.
+     */
+    @NonNull byte[] getIv() {
+      return headerIv.clone();
+    }
+
+    void close() throws IOException {
+      in.close();
+    }
+
     void readAttachmentTo(OutputStream out, int length) throws IOException {
       try {
         Conversions.intToByteArray(iv, 0, counter++);
@@ -409,9 +735,53 @@ public class FullBackupImporter extends FullBackupBase {
 
   private static class BadMacException extends IOException {}
 
+  private static class DiscardingOutputStream extends OutputStream {
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) {}
+  }
+
+  private interface BaseBackupProvider {
+    @NonNull InputStream open(@NonNull String baseBackup) throws IOException;
+  }
+
+  @VisibleForTesting
+  interface AttachmentRestorer {
+    void restore(@NonNull Attachment attachment, @NonNull BackupRecordInputStream inputStream) throws IOException;
+  }
+
   public static class DatabaseDowngradeException extends IOException {
     DatabaseDowngradeException(int currentVersion, int backupVersion) {
       super("Tried to import a backup with version " + backupVersion + " into a database with version " + currentVersion);
     }
   }
+
+  public static class UnsupportedBackupVersionException extends IOException {
+    UnsupportedBackupVersionException(int backupVersion) {
+      super("Tried to import a backup with format version " + backupVersion + ", but only know up to " + BACKUP_VERSION);
+    }
+  }
+
+  /**
+   * Thrown when restoring an incremental backup and its base backup either can't be found or isn't
+   * the one that the incremental backup was written on top of.
+   */
+  public static class BaseBackupUnavailableException extends IOException {
+
+    private final String baseBackup;
+
+    BaseBackupUnavailableException(@NonNull String baseBackup) {
+      super("The base backup " + baseBackup + " is unavailable");
+      this.baseBackup = baseBackup;
+    }
+
+    /**
+     * @return The file name of the base backup.
+     */
+    public @NonNull String getBaseBackup() {
+      return baseBackup;
+    }
+  }
 }
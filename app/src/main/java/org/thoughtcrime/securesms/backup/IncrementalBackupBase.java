@@ -0,0 +1,194 @@
+package org.thoughtcrime.securesms.backup;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Describes the most recent full local backup, which later backups can be written as increments
+ * on top of. An incremental backup only contains attachments that aren't already in its base, so
+ * we need to remember exactly which ones made it in.
+ */
+public final class IncrementalBackupBase {
+
+  private static final String TAG = Log.tag(IncrementalBackupBase.class);
+
+  private static final String FILE_NAME = "local_backup_base";
+  private static final int    VERSION   = 2;
+
+  private final String             fileName;
+  private final long               timestamp;
+  private final byte[]             iv;
+  private final Set<AttachmentKey> attachments;
+
+  public IncrementalBackupBase(@NonNull String fileName, long timestamp, @NonNull byte[] iv, @NonNull Set<AttachmentKey> attachments) {
+    this.fileName    = fileName;
+    this.timestamp   = timestamp;
+    this.iv          = iv;
+    this.attachments = Collections.unmodifiableSet(attachments);
+  }
+
+  /**
+   * @return The name of the full backup file, relative to the backup directory.
+   */
+  public @NonNull String getFileName() {
+    return fileName;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return The IV from the header of the full backup. It's random for every backup, so it tells
+   *         us whether a file with the right name is actually the right backup.
+   */
+  public @NonNull byte[] getIv() {
+    return iv;
+  }
+
+  /**
+   * @return The attachments whose data is contained in the full backup.
+   */
+  public @NonNull Set<AttachmentKey> getAttachments() {
+    return attachments;
+  }
+
+  public static @Nullable IncrementalBackupBase read(@NonNull Context context) {
+    File file = getFile(context);
+
+    if (!file.exists()) {
+      return null;
+    }
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      return read(in);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read the backup base.", e);
+      return null;
+    }
+  }
+
+  public static void write(@NonNull Context context, @NonNull IncrementalBackupBase base) throws IOException {
+    File file     = getFile(context);
+    File tempFile = new File(file.getParentFile(), FILE_NAME + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+      write(out, base);
+    }
+
+    if (!tempFile.renameTo(file)) {
+      throw new IOException("Failed to rename the backup base!");
+    }
+  }
+
+  public static void clear(@NonNull Context context) {
+    File file = getFile(context);
+
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Failed to delete the backup base.");
+    }
+  }
+
+  @VisibleForTesting
+  static @Nullable IncrementalBackupBase read(@NonNull DataInputStream in) throws IOException {
+    if (in.readInt() != VERSION) {
+      Log.w(TAG, "Unknown version. Ignoring.");
+      return null;
+    }
+
+    String fileName  = in.readUTF();
+    long   timestamp = in.readLong();
+    byte[] iv        = new byte[in.readInt()];
+
+    in.readFully(iv);
+
+    int                count       = in.readInt();
+    Set<AttachmentKey> attachments = new HashSet<>(count);
+
+    for (int i = 0; i < count; i++) {
+      AttachmentId attachmentId = new AttachmentId(in.readLong(), in.readLong());
+      long         size         = in.readLong();
+      String       dataHash     = in.readBoolean() ? in.readUTF() : null;
+
+      attachments.add(new AttachmentKey(attachmentId, size, dataHash));
+    }
+
+    return new IncrementalBackupBase(fileName, timestamp, iv, attachments);
+  }
+
+  @VisibleForTesting
+  static void write(@NonNull DataOutputStream out, @NonNull IncrementalBackupBase base) throws IOException {
+    out.writeInt(VERSION);
+    out.writeUTF(base.fileName);
+    out.writeLong(base.timestamp);
+    out.writeInt(base.iv.length);
+    out.write(base.iv);
+    out.writeInt(base.attachments.size());
+
+    for (AttachmentKey key : base.attachments) {
+      out.writeLong(key.attachmentId.getRowId());
+      out.writeLong(key.attachmentId.getUniqueId());
+      out.writeLong(key.size);
+      out.writeBoolean(key.dataHash != null);
+
+      if (key.dataHash != null) {
+        out.writeUTF(key.dataHash);
+      }
+    }
+  }
+
+  private static @NonNull File getFile(@NonNull Context context) {
+    return new File(context.getFilesDir(), FILE_NAME);
+  }
+
+  /**
+   * Identifies the data of an attachment, not just the attachment itself. The same attachment can
+   * have its data replaced (e.g. after a re-download), in which case it has to be backed up again.
+   */
+  public static final class AttachmentKey {
+
+    private final AttachmentId attachmentId;
+    private final long         size;
+    private final String       dataHash;
+
+    public AttachmentKey(@NonNull AttachmentId attachmentId, long size, @Nullable String dataHash) {
+      this.attachmentId = attachmentId;
+      this.size         = size;
+      this.dataHash     = dataHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      AttachmentKey that = (AttachmentKey) o;
+      return size == that.size &&
+             attachmentId.equals(that.attachmentId) &&
+             Objects.equals(dataHash, that.dataHash);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(attachmentId, size, dataHash);
+    }
+  }
+}
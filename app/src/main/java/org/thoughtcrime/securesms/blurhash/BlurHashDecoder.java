@@ -21,11 +21,12 @@
 package org.thoughtcrime.securesms.blurhash;
 
 import android.graphics.Bitmap;
-import android.graphics.Color;
 
 import androidx.annotation.Nullable;
 
-import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.linearTosRGB;
+import java.util.Arrays;
+
+import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.lookupsRGB;
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.sRGBToLinear;
 import static org.thoughtcrime.securesms.blurhash.BlurHashUtil.signPow;
 
@@ -36,6 +37,19 @@ class BlurHashDecoder {
   }
 
   static @Nullable Bitmap decode(@Nullable String blurHash, int width, int height, double punch) {
+    int[] pixels = decodePixels(blurHash, width, height, punch);
+
+    if (pixels == null) {
+      return null;
+    }
+
+    return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+  }
+
+  /**
+   * @return The decoded image as ARGB pixels in row-major order, or null if the hash is invalid.
+   */
+  static @Nullable int[] decodePixels(@Nullable String blurHash, int width, int height, double punch) {
 
     if (blurHash == null || blurHash.length() < 6) {
       return null;
@@ -49,65 +63,94 @@ class BlurHashDecoder {
       return null;
     }
 
-    int        maxAcEnc = Base83.decode(blurHash, 1, 2);
-    double     maxAc    = (maxAcEnc + 1) / 166f;
-    double[][] colors   = new double[numCompX * numCompY][];
-    for (int i = 0; i < colors.length; i++) {
+    int      maxAcEnc = Base83.decode(blurHash, 1, 2);
+    double   maxAc    = (maxAcEnc + 1) / 166f;
+    double[] colors   = new double[numCompX * numCompY * 3];
+    for (int i = 0; i < numCompX * numCompY; i++) {
       if (i == 0) {
         int colorEnc = Base83.decode(blurHash, 2, 6);
-        colors[i] = decodeDc(colorEnc);
+        decodeDc(colorEnc, colors, 0);
       } else {
         int from = 4 + i * 2;
         int colorEnc = Base83.decode(blurHash, from, from + 2);
-        colors[i] = decodeAc(colorEnc, maxAc * punch);
+        decodeAc(colorEnc, maxAc * punch, colors, i * 3);
       }
     }
 
-    return composeBitmap(width, height, numCompX, numCompY, colors);
+    return composePixels(width, height, numCompX, numCompY, colors);
   }
 
-  private static double[] decodeDc(int colorEnc) {
+  private static void decodeDc(int colorEnc, double[] colors, int offset) {
     int r = colorEnc >> 16;
     int g = (colorEnc >> 8) & 255;
     int b = colorEnc & 255;
-    return new double[] {sRGBToLinear(r),
-                         sRGBToLinear(g),
-                         sRGBToLinear(b)};
+    colors[offset]     = sRGBToLinear(r);
+    colors[offset + 1] = sRGBToLinear(g);
+    colors[offset + 2] = sRGBToLinear(b);
   }
 
-  private static double[] decodeAc(int value, double maxAc) {
+  private static void decodeAc(int value, double maxAc, double[] colors, int offset) {
     int r = value / (19 * 19);
     int g = (value / 19) % 19;
     int b = value % 19;
-    return new double[]{
-        signPow((r - 9) / 9.0f, 2f) * maxAc,
-        signPow((g - 9) / 9.0f, 2f) * maxAc,
-        signPow((b - 9) / 9.0f, 2f) * maxAc
-    };
+    colors[offset]     = signPow((r - 9) / 9.0f, 2f) * maxAc;
+    colors[offset + 1] = signPow((g - 9) / 9.0f, 2f) * maxAc;
+    colors[offset + 2] = signPow((b - 9) / 9.0f, 2f) * maxAc;
   }
 
-  private static Bitmap composeBitmap(int width, int height, int numCompX, int numCompY, double[][] colors) {
-    Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+  /**
+   * The basis functions are separable, so rather than evaluating every component at every pixel,
+   * we fold the vertical components into a single color per horizontal component once per row, and
+   * look the cosines up from tables instead of recalculating them.
+   */
+  private static int[] composePixels(int width, int height, int numCompX, int numCompY, double[] colors) {
+    double[] cosX   = new double[width * numCompX];
+    double[] cosY   = new double[height * numCompY];
+    double[] row    = new double[numCompX * 3];
+    int[]    pixels = new int[width * height];
+
+    for (int x = 0; x < width; x++) {
+      for (int i = 0; i < numCompX; i++) {
+        cosX[x * numCompX + i] = Math.cos(Math.PI * x * i / width);
+      }
+    }
+
     for (int y = 0; y < height; y++) {
-      for (int x = 0; x < width; x++) {
+      for (int j = 0; j < numCompY; j++) {
+        cosY[y * numCompY + j] = Math.cos(Math.PI * y * j / height);
+      }
+    }
+
+    for (int y = 0; y < height; y++) {
+      Arrays.fill(row, 0);
+
+      for (int j = 0; j < numCompY; j++) {
+        double basis = cosY[y * numCompY + j];
 
-        double r = 0f;
-        double g = 0f;
-        double b = 0f;
-
-        for (int j = 0; j < numCompY; j++) {
-          for (int i = 0; i < numCompX; i++) {
-            double basis = (Math.cos(Math.PI * x * i / width) * Math.cos(Math.PI * y * j / height));
-            double[] color = colors[j * numCompX + i];
-            r += color[0] * basis;
-            g += color[1] * basis;
-            b += color[2] * basis;
-          }
+        for (int i = 0; i < numCompX; i++) {
+          int color = (j * numCompX + i) * 3;
+          row[i * 3]     += colors[color]     * basis;
+          row[i * 3 + 1] += colors[color + 1] * basis;
+          row[i * 3 + 2] += colors[color + 2] * basis;
         }
-        bitmap.setPixel(x, y, Color.rgb((int) linearTosRGB(r), (int) linearTosRGB(g), (int) linearTosRGB(b)));
+      }
+
+      for (int x = 0; x < width; x++) {
+        double r = 0;
+        double g = 0;
+        double b = 0;
+
+        for (int i = 0; i < numCompX; i++) {
+          double basis = cosX[x * numCompX + i];
+          r += row[i * 3]     * basis;
+          g += row[i * 3 + 1] * basis;
+          b += row[i * 3 + 2] * basis;
+        }
+
+        pixels[y * width + x] = 0xff000000 | (lookupsRGB(r) << 16) | (lookupsRGB(g) << 8) | lookupsRGB(b);
       }
     }
 
-    return bitmap;
+    return pixels;
   }
 }
@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.blurhash;
 
 import android.graphics.Bitmap;
+import android.util.LruCache;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -16,6 +17,13 @@ public class BlurHashResourceDecoder implements ResourceDecoder<BlurHash, Bitmap
 
   private static final int MAX_DIMEN = 20;
 
+  /**
+   * The same placeholders get decoded over and over as conversations and media grids scroll, and at
+   * most {@link #MAX_DIMEN} pixels square they're cheap to keep around. The bitmaps are immutable,
+   * so they can be safely shared.
+   */
+  private static final LruCache<String, Bitmap> BITMAP_CACHE = new LruCache<>(100);
+
   @Override
   public boolean handles(@NonNull BlurHash source, @NonNull Options options) throws IOException {
     return true;
@@ -34,6 +42,17 @@ public class BlurHashResourceDecoder implements ResourceDecoder<BlurHash, Bitmap
       finalWidth  = (int) (finalHeight * width / (float) height);
     }
 
-    return new SimpleResource<>(BlurHashDecoder.decode(source.getHash(), finalWidth, finalHeight));
+    String key    = source.getHash() + ":" + finalWidth + "x" + finalHeight;
+    Bitmap bitmap = BITMAP_CACHE.get(key);
+
+    if (bitmap == null) {
+      bitmap = BlurHashDecoder.decode(source.getHash(), finalWidth, finalHeight);
+
+      if (bitmap != null) {
+        BITMAP_CACHE.put(key, bitmap);
+      }
+    }
+
+    return new SimpleResource<>(bitmap);
   }
 }
\ No newline at end of file
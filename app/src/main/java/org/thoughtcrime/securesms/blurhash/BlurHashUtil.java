@@ -22,6 +22,53 @@ package org.thoughtcrime.securesms.blurhash;
 
 final class BlurHashUtil {
 
+  private static final double[] SRGB_TO_LINEAR = new double[256];
+
+  /** The smallest linear value that {@link #linearTosRGB(double)} maps to each sRGB value. */
+  private static final double[] SRGB_THRESHOLDS = new double[256];
+
+  /**
+   * The sRGB value at the start of each of a series of equal slices of the linear range. Slices are
+   * narrow enough that a value is never more than a step or so above the start of its slice.
+   */
+  private static final int   SRGB_BUCKET_COUNT = 4096;
+  private static final int[] SRGB_BUCKETS      = new int[SRGB_BUCKET_COUNT];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      SRGB_TO_LINEAR[i] = sRGBToLinear(i);
+    }
+
+    // Searching over the bit patterns (which sort the same as non-negative doubles do) finds the
+    // exact boundaries, so lookups always agree with the direct calculation.
+    for (int i = 1; i < 256; i++) {
+      long low  = Double.doubleToLongBits(0);
+      long high = Double.doubleToLongBits(1);
+
+      while (high - low > 1) {
+        long mid = (low + high) >>> 1;
+
+        if (linearTosRGB(Double.longBitsToDouble(mid)) >= i) {
+          high = mid;
+        } else {
+          low = mid;
+        }
+      }
+
+      SRGB_THRESHOLDS[i] = Double.longBitsToDouble(high);
+    }
+
+    for (int i = 0, value = 0; i < SRGB_BUCKET_COUNT; i++) {
+      double start = i / (double) SRGB_BUCKET_COUNT;
+
+      while (value < 255 && start >= SRGB_THRESHOLDS[value + 1]) {
+        value++;
+      }
+
+      SRGB_BUCKETS[i] = value;
+    }
+  }
+
   static double sRGBToLinear(long value) {
     double v = value / 255.0;
     if (v <= 0.04045) {
@@ -40,6 +87,32 @@ final class BlurHashUtil {
     }
   }
 
+  /**
+   * Table-driven equivalent of {@link #sRGBToLinear(long)} for a single 8-bit channel.
+   */
+  static double lookupLinear(int value) {
+    return SRGB_TO_LINEAR[value];
+  }
+
+  /**
+   * Table-driven equivalent of {@link #linearTosRGB(double)}.
+   */
+  static int lookupsRGB(double value) {
+    if (!(value > 0)) {
+      return 0;
+    } else if (value >= 1) {
+      return 255;
+    }
+
+    int result = SRGB_BUCKETS[(int) (value * SRGB_BUCKET_COUNT)];
+
+    while (result < 255 && value >= SRGB_THRESHOLDS[result + 1]) {
+      result++;
+    }
+
+    return result;
+  }
+
   static double signPow(double val, double exp) {
     return Math.copySign(Math.pow(Math.abs(val), exp), val);
   }
@@ -24,8 +24,9 @@ package org.thoughtcrime.securesms.components.emoji.parsing;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -40,19 +41,17 @@ public class EmojiParser {
   }
 
   public @NonNull CandidateList findCandidates(@Nullable CharSequence text) {
-    List<Candidate> results = new LinkedList<>();
-
-    if (text == null) {
-      return new CandidateList(results, false);
+    if (text == null || text.length() == 0) {
+      return CandidateList.EMPTY;
     }
 
-    boolean allEmojis = text.length() > 0;
+    List<Candidate> results   = null;
+    boolean         allEmojis = true;
+    EmojiTree.Match match     = new EmojiTree.Match();
 
     for (int i = 0; i < text.length(); i++) {
-      int emojiEnd = getEmojiEndPos(text, i);
-
-      if (emojiEnd != -1) {
-        EmojiDrawInfo drawInfo = emojiTree.getEmoji(text, i, emojiEnd);
+      if (emojiTree.findLongestMatch(text, i, match)) {
+        int emojiEnd = match.end;
 
         if (emojiEnd + 2 <= text.length()) {
           if (Fitzpatrick.fitzpatrickFromUnicode(text, emojiEnd) != null) {
@@ -60,7 +59,11 @@ public class EmojiParser {
           }
         }
 
-        results.add(new Candidate(i, emojiEnd, drawInfo));
+        if (results == null) {
+          results = new ArrayList<>();
+        }
+
+        results.add(new Candidate(i, emojiEnd, match.drawInfo));
 
         i = emojiEnd - 1;
       } else if (text.charAt(i) != ' '){
@@ -68,25 +71,11 @@ public class EmojiParser {
       }
     }
 
-    allEmojis &= !results.isEmpty();
-
-    return new CandidateList(results, allEmojis);
-  }
-
-  private int getEmojiEndPos(CharSequence text, int startPos) {
-    int best = -1;
-
-    for (int j = startPos + 1; j <= text.length(); j++) {
-      EmojiTree.Matches status = emojiTree.isEmoji(text, startPos, j);
-
-      if (status.exactMatch()) {
-        best = j;
-      } else if (status.impossibleMatch()) {
-        return best;
-      }
+    if (results == null) {
+      return CandidateList.EMPTY;
     }
 
-    return best;
+    return new CandidateList(results, allEmojis);
   }
 
   public static class Candidate {
@@ -115,6 +104,8 @@ public class EmojiParser {
   }
 
   public static class CandidateList implements Iterable<Candidate> {
+    private static final CandidateList EMPTY = new CandidateList(Collections.emptyList(), false);
+
     public final List<EmojiParser.Candidate> list;
     public final boolean                     allEmojis;
 
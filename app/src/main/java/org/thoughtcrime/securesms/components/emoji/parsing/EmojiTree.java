@@ -20,32 +20,56 @@
 
 package org.thoughtcrime.securesms.components.emoji.parsing;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * Based in part on code from emoji-java
+ *
+ * Nodes are stored as indices into parallel arrays, and each node's children as a sorted char array
+ * alongside their node indices, so that walking the tree never boxes a character or allocates.
  */
 public class EmojiTree {
 
-  private final EmojiTreeNode root = new EmojiTreeNode();
-
   private static final char TERMINATOR = '\ufe0f';
+  private static final int  ROOT       = 0;
+  private static final int  NONE       = -1;
+
+  private static final char[] NO_KEYS     = new char[0];
+  private static final int[]  NO_CHILDREN = new int[0];
+
+  private final long[] rootCharacters = new long[(Character.MAX_VALUE + 1) / 64];
+
+  private char[][]        childKeys  = new char[64][];
+  private int[][]         childNodes = new int[64][];
+  private EmojiDrawInfo[] emoji      = new EmojiDrawInfo[64];
+  private int             size;
+
+  public EmojiTree() {
+    newNode();
+  }
 
   public void add(String emojiEncoding, EmojiDrawInfo emoji) {
-    EmojiTreeNode tree = root;
+    int node = ROOT;
+
+    for (int i = 0; i < emojiEncoding.length(); i++) {
+      char c     = emojiEncoding.charAt(i);
+      int  child = getChild(node, c);
+
+      if (child == NONE) {
+        child = addChild(node, c);
+      }
 
-    for (char c: emojiEncoding.toCharArray()) {
-      if (!tree.hasChild(c)) {
-        tree.addChild(c);
+      if (node == ROOT) {
+        rootCharacters[c >>> 6] |= 1L << c;
       }
 
-      tree = tree.getChild(c);
+      node = child;
     }
 
-    tree.setEmoji(emoji);
+    this.emoji[node] = emoji;
   }
 
   public Matches isEmoji(CharSequence sequence, int startPosition, int endPosition) {
@@ -53,21 +77,11 @@ public class EmojiTree {
       return Matches.POSSIBLY;
     }
 
-    EmojiTreeNode tree = root;
-
-    for (int i=startPosition; i<endPosition; i++) {
-      char character = sequence.charAt(i);
+    int node = walk(sequence, startPosition, endPosition);
 
-      if (!tree.hasChild(character)) {
-        return Matches.IMPOSSIBLE;
-      }
-
-      tree = tree.getChild(character);
-    }
-
-    if (tree.isEndOfEmoji()) {
-      return Matches.EXACTLY;
-    } else if (sequence.charAt(endPosition-1) != TERMINATOR && tree.hasChild(TERMINATOR) && tree.getChild(TERMINATOR).isEndOfEmoji()) {
+    if (node == NONE) {
+      return Matches.IMPOSSIBLE;
+    } else if (getEmojiAt(node, sequence.charAt(endPosition - 1)) != null) {
       return Matches.EXACTLY;
     } else {
       return Matches.POSSIBLY;
@@ -75,52 +89,128 @@ public class EmojiTree {
   }
 
   public @Nullable EmojiDrawInfo getEmoji(CharSequence unicode, int startPosition, int endPostiion) {
-    EmojiTreeNode tree = root;
+    int node = walk(unicode, startPosition, endPostiion);
 
-    for (int i=startPosition; i<endPostiion; i++) {
-      char character = unicode.charAt(i);
+    if (node == NONE) {
+      return null;
+    }
 
-      if (!tree.hasChild(character)) {
-        return null;
-      }
+    return getEmojiAt(node, unicode.charAt(endPostiion - 1));
+  }
 
-      tree = tree.getChild(character);
+  /**
+   * Finds the longest emoji starting at the given position with a single walk down the tree.
+   *
+   * @return True if there was one, in which case the match has been filled in with where it ends
+   *         and what to draw.
+   */
+  boolean findLongestMatch(@NonNull CharSequence text, int startPosition, @NonNull Match match) {
+    char first = text.charAt(startPosition);
+
+    // Most characters can't start an emoji, so rule those out without searching the root's children.
+    if ((rootCharacters[first >>> 6] & (1L << first)) == 0) {
+      return false;
     }
 
-    if      (tree.getEmoji() != null)                                                  return tree.getEmoji();
-    else if (unicode.charAt(endPostiion-1) != TERMINATOR && tree.hasChild(TERMINATOR)) return tree.getChild(TERMINATOR).getEmoji();
-    else    return null;
-  }
+    int node  = ROOT;
+    int found = NONE;
 
+    for (int i = startPosition; i < text.length(); i++) {
+      char character = text.charAt(i);
 
-  private static class EmojiTreeNode {
+      node = getChild(node, character);
 
-    private Map<Character, EmojiTreeNode> children = new HashMap<>();
-    private EmojiDrawInfo emoji;
+      if (node == NONE) {
+        break;
+      }
 
-    public void setEmoji(EmojiDrawInfo emoji) {
-      this.emoji = emoji;
-    }
+      EmojiDrawInfo drawInfo = getEmojiAt(node, character);
 
-    public @Nullable EmojiDrawInfo getEmoji() {
-      return emoji;
+      if (drawInfo != null) {
+        found          = i + 1;
+        match.drawInfo = drawInfo;
+      }
     }
 
-    boolean hasChild(char child) {
-      return children.containsKey(child);
-    }
+    match.end = found;
+
+    return found != NONE;
+  }
 
-    void addChild(char child) {
-      children.put(child, new EmojiTreeNode());
+  /**
+   * @return The emoji at the node, or the one just past it if the sequence only left off the
+   *         trailing variation selector.
+   */
+  private @Nullable EmojiDrawInfo getEmojiAt(int node, char lastCharacter) {
+    if (emoji[node] != null) {
+      return emoji[node];
+    } else if (lastCharacter != TERMINATOR) {
+      int terminator = getChild(node, TERMINATOR);
+      return terminator != NONE ? emoji[terminator] : null;
+    } else {
+      return null;
     }
+  }
+
+  private int walk(@NonNull CharSequence sequence, int startPosition, int endPosition) {
+    int node = ROOT;
 
-    EmojiTreeNode getChild(char child) {
-      return children.get(child);
+    for (int i = startPosition; i < endPosition && node != NONE; i++) {
+      node = getChild(node, sequence.charAt(i));
     }
 
-    boolean isEndOfEmoji() {
-      return emoji != null;
+    return node;
+  }
+
+  private int getChild(int node, char character) {
+    int index = Arrays.binarySearch(childKeys[node], character);
+    return index >= 0 ? childNodes[node][index] : NONE;
+  }
+
+  private int addChild(int node, char character) {
+    int    child    = newNode();
+    char[] keys     = childKeys[node];
+    int[]  children = childNodes[node];
+    int    index    = -(Arrays.binarySearch(keys, character) + 1);
+
+    char[] newKeys     = new char[keys.length + 1];
+    int[]  newChildren = new int[children.length + 1];
+
+    System.arraycopy(keys, 0, newKeys, 0, index);
+    System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+    System.arraycopy(children, 0, newChildren, 0, index);
+    System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+
+    newKeys[index]     = character;
+    newChildren[index] = child;
+
+    childKeys[node]  = newKeys;
+    childNodes[node] = newChildren;
+
+    return child;
+  }
+
+  private int newNode() {
+    if (size == emoji.length) {
+      int capacity = size * 2;
+
+      childKeys  = Arrays.copyOf(childKeys, capacity);
+      childNodes = Arrays.copyOf(childNodes, capacity);
+      emoji      = Arrays.copyOf(emoji, capacity);
     }
+
+    childKeys[size]  = NO_KEYS;
+    childNodes[size] = NO_CHILDREN;
+
+    return size++;
+  }
+
+  /**
+   * Result of {@link #findLongestMatch(CharSequence, int, Match)}, meant to be reused across calls.
+   */
+  static final class Match {
+    int           end;
+    EmojiDrawInfo drawInfo;
   }
 
   public enum Matches {
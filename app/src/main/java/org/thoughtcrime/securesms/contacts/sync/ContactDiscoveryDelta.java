@@ -0,0 +1,162 @@
+package org.thoughtcrime.securesms.contacts.sync;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import org.thoughtcrime.securesms.contacts.sync.DirectoryHelper.DirectoryResult;
+import org.thoughtcrime.securesms.database.ContactDiscoveryDatabase.CachedResult;
+import org.thoughtcrime.securesms.util.SetUtil;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Works out which numbers a directory refresh actually needs to ask CDS about, given what we
+ * learned about each number the last time we asked, and combines the answer with what we already
+ * knew into a single {@link DirectoryResult} covering every number.
+ *
+ * A number is asked about again if we've never asked about it, our last answer is too old, or we've
+ * since come to believe something different about it locally (e.g. we were told it wasn't
+ * registered, but have since heard from it).
+ */
+final class ContactDiscoveryDelta {
+
+  private ContactDiscoveryDelta() {}
+
+  /**
+   * @param registeredNumbers The numbers we currently believe to be registered locally.
+   * @param cache             What we last learned about each number, keyed by number.
+   * @param maxAge            How long a cached result can be used before asking again.
+   */
+  @WorkerThread
+  static @NonNull Result refresh(@NonNull Set<String> databaseNumbers,
+                                 @NonNull Set<String> systemNumbers,
+                                 @NonNull Set<String> registeredNumbers,
+                                 @NonNull Map<String, CachedResult> cache,
+                                 long now,
+                                 long maxAge,
+                                 @NonNull DirectoryLookup lookup)
+      throws IOException
+  {
+    Set<String>       allNumbers = SetUtil.union(databaseNumbers, systemNumbers);
+    Set<String>       query      = new HashSet<>();
+    Map<String, UUID> registered = new HashMap<>();
+
+    for (String number : allNumbers) {
+      CachedResult cached = cache.get(number);
+
+      if (isFresh(cached, now, maxAge) && !disagrees(number, cached, databaseNumbers, registeredNumbers)) {
+        if (cached.isRegistered()) {
+          registered.put(number, cached.getUuid());
+        }
+      } else {
+        query.add(number);
+      }
+    }
+
+    Map<String, String>       rewrites = Collections.emptyMap();
+    Set<String>               ignored  = Collections.emptySet();
+    Map<String, CachedResult> updates  = new HashMap<>();
+
+    if (!query.isEmpty()) {
+      DirectoryResult result = lookup.getDirectoryResult(query, databaseNumbers);
+
+      rewrites = result.getNumberRewrites();
+      ignored  = result.getIgnoredNumbers();
+
+      for (Map.Entry<String, UUID> entry : result.getRegisteredNumbers().entrySet()) {
+        registered.put(entry.getKey(), entry.getValue());
+        updates.put(entry.getKey(), new CachedResult(entry.getValue(), true, now));
+      }
+
+      for (String number : query) {
+        if (!updates.containsKey(number) && !rewrites.containsKey(number) && !ignored.contains(number)) {
+          updates.put(number, new CachedResult(null, false, now));
+        }
+      }
+    }
+
+    Set<String> removed = SetUtil.difference(cache.keySet(), allNumbers);
+    removed.removeAll(updates.keySet());
+
+    return new Result(new DirectoryResult(registered, rewrites, ignored), updates, removed, query.size());
+  }
+
+  private static boolean isFresh(@Nullable CachedResult cached, long now, long maxAge) {
+    if (cached == null) {
+      return false;
+    }
+
+    long age = now - cached.getLastChecked();
+
+    return age >= 0 && age < maxAge;
+  }
+
+  private static boolean disagrees(@NonNull String number,
+                                   @NonNull CachedResult cached,
+                                   @NonNull Set<String> databaseNumbers,
+                                   @NonNull Set<String> registeredNumbers)
+  {
+    return databaseNumbers.contains(number) && cached.isRegistered() != registeredNumbers.contains(number);
+  }
+
+  interface DirectoryLookup {
+    /**
+     * @param numbers       The numbers to ask about.
+     * @param storedNumbers Every number we have stored locally.
+     */
+    @NonNull DirectoryResult getDirectoryResult(@NonNull Set<String> numbers, @NonNull Set<String> storedNumbers) throws IOException;
+  }
+
+  static final class Result {
+    private final DirectoryResult           directoryResult;
+    private final Map<String, CachedResult> updates;
+    private final Set<String>               removed;
+    private final int                       queriedCount;
+
+    private Result(@NonNull DirectoryResult directoryResult,
+                   @NonNull Map<String, CachedResult> updates,
+                   @NonNull Set<String> removed,
+                   int queriedCount)
+    {
+      this.directoryResult = directoryResult;
+      this.updates         = updates;
+      this.removed         = removed;
+      this.queriedCount    = queriedCount;
+    }
+
+    /**
+     * @return The result for every number, whether we asked about it this time or not.
+     */
+    @NonNull DirectoryResult getDirectoryResult() {
+      return directoryResult;
+    }
+
+    /**
+     * @return What we learned this time, to be saved to the cache.
+     */
+    @NonNull Map<String, CachedResult> getUpdates() {
+      return updates;
+    }
+
+    /**
+     * @return Cached numbers we no longer have, to be removed from the cache.
+     */
+    @NonNull Set<String> getRemoved() {
+      return removed;
+    }
+
+    /**
+     * @return How many numbers we had to ask CDS about.
+     */
+    int getQueriedCount() {
+      return queriedCount;
+    }
+  }
+}
@@ -50,8 +50,21 @@ class ContactDiscoveryV2 {
                                             @NonNull Set<String> systemNumbers)
       throws IOException
   {
-    Set<String>                        allNumbers        = SetUtil.union(databaseNumbers, systemNumbers);
-    FuzzyPhoneNumberHelper.InputResult inputResult       = FuzzyPhoneNumberHelper.generateInput(allNumbers, databaseNumbers);
+    return getDirectoryResultForNumbers(context, SetUtil.union(databaseNumbers, systemNumbers), databaseNumbers);
+  }
+
+  /**
+   * @param numbers       The numbers to look up.
+   * @param storedNumbers Every number we have stored locally, whether or not it's being looked up.
+   *                      Used to decide which alternate forms of a number are worth asking about.
+   */
+  @WorkerThread
+  static DirectoryResult getDirectoryResultForNumbers(@NonNull Context context,
+                                                      @NonNull Set<String> numbers,
+                                                      @NonNull Set<String> storedNumbers)
+      throws IOException
+  {
+    FuzzyPhoneNumberHelper.InputResult inputResult       = FuzzyPhoneNumberHelper.generateInput(numbers, storedNumbers);
     Set<String>                        sanitizedNumbers  = sanitizeNumbers(inputResult.getNumbers());
     Set<String>                        ignoredNumbers    = new HashSet<>();
 
@@ -24,6 +24,8 @@ import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.contacts.ContactAccessor;
 import org.thoughtcrime.securesms.contacts.ContactsDatabase;
 import org.thoughtcrime.securesms.crypto.SessionUtil;
+import org.thoughtcrime.securesms.database.ContactDiscoveryDatabase;
+import org.thoughtcrime.securesms.database.ContactDiscoveryDatabase.CachedResult;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MessageDatabase.InsertResult;
 import org.thoughtcrime.securesms.database.RecipientDatabase;
@@ -43,6 +45,7 @@ import org.thoughtcrime.securesms.registration.RegistrationUtil;
 import org.thoughtcrime.securesms.sms.IncomingJoinedMessage;
 import org.thoughtcrime.securesms.storage.StorageSyncHelper;
 import org.thoughtcrime.securesms.util.CursorUtil;
+import org.thoughtcrime.securesms.util.FeatureFlags;
 import org.thoughtcrime.securesms.util.ProfileUtil;
 import org.thoughtcrime.securesms.util.SetUtil;
 import org.thoughtcrime.securesms.util.Stopwatch;
@@ -99,7 +102,7 @@ public class DirectoryHelper {
     Set<String>       databaseNumbers   = sanitizeNumbers(recipientDatabase.getAllPhoneNumbers());
     Set<String>       systemNumbers     = sanitizeNumbers(ContactAccessor.getInstance().getAllContactsWithNumbers(context));
 
-    refreshNumbers(context, databaseNumbers, systemNumbers, notifyOfNewUsers);
+    refreshNumbers(context, databaseNumbers, systemNumbers, notifyOfNewUsers, true);
 
     StorageSyncHelper.scheduleSyncForDataChange();
   }
@@ -123,7 +126,7 @@ public class DirectoryHelper {
                                 .map(Recipient::requireE164)
                                 .collect(Collectors.toSet());
 
-    refreshNumbers(context, numbers, numbers, notifyOfNewUsers);
+    refreshNumbers(context, numbers, numbers, notifyOfNewUsers, false);
   }
 
   @WorkerThread
@@ -209,10 +212,17 @@ public class DirectoryHelper {
     return newRegisteredState;
   }
 
+  /**
+   * @param useCache Whether we can skip asking about numbers we've asked about recently. Only
+   *                 applies if {@link FeatureFlags#cdsCacheMaxAgeHours()} is set. Otherwise, or
+   *                 if false, every number is looked up.
+   */
   @WorkerThread
-  private static void refreshNumbers(@NonNull Context context, @NonNull Set<String> databaseNumbers, @NonNull Set<String> systemNumbers, boolean notifyOfNewUsers) throws IOException {
-    RecipientDatabase recipientDatabase = DatabaseFactory.getRecipientDatabase(context);
-    Set<String>       allNumbers        = SetUtil.union(databaseNumbers, systemNumbers);
+  private static void refreshNumbers(@NonNull Context context, @NonNull Set<String> databaseNumbers, @NonNull Set<String> systemNumbers, boolean notifyOfNewUsers, boolean useCache) throws IOException {
+    RecipientDatabase        recipientDatabase = DatabaseFactory.getRecipientDatabase(context);
+    ContactDiscoveryDatabase discoveryDatabase = DatabaseFactory.getContactDiscoveryDatabase(context);
+    Set<String>              allNumbers        = SetUtil.union(databaseNumbers, systemNumbers);
+    long                     cacheMaxAge       = TimeUnit.HOURS.toMillis(FeatureFlags.cdsCacheMaxAgeHours());
 
     if (allNumbers.isEmpty()) {
       Log.w(TAG, "No numbers to refresh!");
@@ -221,7 +231,26 @@ public class DirectoryHelper {
 
     Stopwatch stopwatch = new Stopwatch("refresh");
 
-    DirectoryResult result = ContactDiscoveryV2.getDirectoryResult(context, databaseNumbers, systemNumbers);
+    ContactDiscoveryDelta.Result delta = null;
+    DirectoryResult              result;
+
+    if (cacheMaxAge > 0) {
+      Map<String, CachedResult> cache      = useCache ? discoveryDatabase.getAll() : Collections.emptyMap();
+      Set<String>               registered = useCache ? recipientDatabase.getRegisteredPhoneNumbers() : Collections.emptySet();
+
+      delta  = ContactDiscoveryDelta.refresh(databaseNumbers,
+                                             systemNumbers,
+                                             registered,
+                                             cache,
+                                             System.currentTimeMillis(),
+                                             cacheMaxAge,
+                                             (numbers, storedNumbers) -> ContactDiscoveryV2.getDirectoryResultForNumbers(context, numbers, storedNumbers));
+      result = delta.getDirectoryResult();
+
+      Log.i(TAG, "[refreshNumbers] Looked up " + delta.getQueriedCount() + " of " + allNumbers.size() + " numbers.");
+    } else {
+      result = ContactDiscoveryV2.getDirectoryResult(context, databaseNumbers, systemNumbers);
+    }
 
     stopwatch.split("network");
 
@@ -233,12 +262,12 @@ public class DirectoryHelper {
     Map<RecipientId, String> uuidMap       = recipientDatabase.bulkProcessCdsResult(result.getRegisteredNumbers());
     Set<String>              activeNumbers = result.getRegisteredNumbers().keySet();
     Set<RecipientId>         activeIds     = uuidMap.keySet();
-    Set<RecipientId>         inactiveIds   = Stream.of(allNumbers)
+    Set<String>              inactive      = Stream.of(allNumbers)
                                                    .filterNot(activeNumbers::contains)
                                                    .filterNot(n -> result.getNumberRewrites().containsKey(n))
                                                    .filterNot(n -> result.getIgnoredNumbers().contains(n))
-                                                   .map(recipientDatabase::getOrInsertFromE164)
                                                    .collect(Collectors.toSet());
+    Set<RecipientId>         inactiveIds   = new HashSet<>(recipientDatabase.getOrInsertFromE164s(inactive).values());
 
     stopwatch.split("process-cds");
 
@@ -257,6 +286,10 @@ public class DirectoryHelper {
 
     recipientDatabase.bulkUpdatedRegisteredStatus(uuidMap, inactiveIds);
 
+    if (delta != null) {
+      discoveryDatabase.update(delta.getUpdates(), delta.getRemoved());
+    }
+
     stopwatch.split("update-registered");
 
     updateContactsDatabase(context, activeIds, true, result.getNumberRewrites());
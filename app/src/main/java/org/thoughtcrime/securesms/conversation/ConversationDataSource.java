@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.conversation;
 
 import android.content.Context;
+import android.database.Cursor;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -8,11 +9,14 @@ import androidx.annotation.Nullable;
 import com.annimon.stream.Stream;
 
 import org.signal.core.util.logging.Log;
-import org.signal.paging.PagedDataSource;
+import org.signal.paging.SeekablePagedDataSource;
 import org.thoughtcrime.securesms.conversation.ConversationMessage.ConversationMessageFactory;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MessageDatabase;
 import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.NoSuchMessageException;
 import org.thoughtcrime.securesms.database.model.Mention;
+import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.util.Stopwatch;
 
@@ -24,9 +28,11 @@ import java.util.List;
 import java.util.Map;
 
 /**
- * Core data source for loading an individual conversation.
+ * Core data source for loading an individual conversation. Messages are keyed by {@link MessageId},
+ * so individual inserts, updates and removals can be applied without reloading the whole page, and
+ * pages next to already-loaded messages are found by seeking rather than by offset.
  */
-class ConversationDataSource implements PagedDataSource<ConversationMessage> {
+class ConversationDataSource implements SeekablePagedDataSource<MessageId, ConversationMessage> {
 
   private static final String TAG = Log.tag(ConversationDataSource.class);
 
@@ -50,12 +56,35 @@ class ConversationDataSource implements PagedDataSource<ConversationMessage> {
 
   @Override
   public @NonNull List<ConversationMessage> load(int start, int length, @NonNull CancellationSignal cancellationSignal) {
-    Stopwatch           stopwatch     = new Stopwatch("load(" + start + ", " + length + "), thread " + threadId);
+    MmsSmsDatabase db = DatabaseFactory.getMmsSmsDatabase(context);
+    return load(db.getConversation(threadId, start, length), "load(" + start + ", " + length + ")", length, cancellationSignal);
+  }
+
+  @Override
+  public @NonNull List<ConversationMessage> loadAfter(@NonNull ConversationMessage anchor, int length, @NonNull CancellationSignal cancellationSignal) {
+    MmsSmsDatabase db     = DatabaseFactory.getMmsSmsDatabase(context);
+    MessageRecord  record = anchor.getMessageRecord();
+    Cursor         cursor = db.getConversationPage(threadId, record.getDateReceived(), getKey(anchor), true, length);
+
+    return load(cursor, "loadAfter(" + getKey(anchor) + ", " + length + ")", length, cancellationSignal);
+  }
+
+  @Override
+  public @NonNull List<ConversationMessage> loadBefore(@NonNull ConversationMessage anchor, int length, @NonNull CancellationSignal cancellationSignal) {
+    MmsSmsDatabase db     = DatabaseFactory.getMmsSmsDatabase(context);
+    MessageRecord  record = anchor.getMessageRecord();
+    Cursor         cursor = db.getConversationPage(threadId, record.getDateReceived(), getKey(anchor), false, length);
+
+    return load(cursor, "loadBefore(" + getKey(anchor) + ", " + length + ")", length, cancellationSignal);
+  }
+
+  private @NonNull List<ConversationMessage> load(@NonNull Cursor cursor, @NonNull String description, int length, @NonNull CancellationSignal cancellationSignal) {
+    Stopwatch           stopwatch     = new Stopwatch(description + ", thread " + threadId);
     MmsSmsDatabase      db            = DatabaseFactory.getMmsSmsDatabase(context);
     List<MessageRecord> records       = new ArrayList<>(length);
     MentionHelper       mentionHelper = new MentionHelper();
 
-    try (MmsSmsDatabase.Reader reader = db.readerFor(db.getConversation(threadId, start, length))) {
+    try (MmsSmsDatabase.Reader reader = db.readerFor(cursor)) {
       MessageRecord record;
       while ((record = reader.getNext()) != null && !cancellationSignal.isCanceled()) {
         records.add(record);
@@ -79,6 +108,59 @@ class ConversationDataSource implements PagedDataSource<ConversationMessage> {
     return messages;
   }
 
+  @Override
+  public @Nullable ConversationMessage load(@NonNull MessageId messageId) {
+    Stopwatch       stopwatch = new Stopwatch("load(" + messageId + "), thread " + threadId);
+    MessageDatabase db        = messageId.isMms() ? DatabaseFactory.getMmsDatabase(context) : DatabaseFactory.getSmsDatabase(context);
+    MessageRecord   record;
+
+    try {
+      record = db.getMessageRecord(messageId.getId());
+    } catch (NoSuchMessageException e) {
+      Log.w(TAG, "Message no longer exists: " + messageId);
+      return null;
+    }
+
+    stopwatch.split("message");
+
+    ConversationMessage message = ConversationMessageFactory.createWithUnresolvedData(context, record);
+
+    stopwatch.split("conversion");
+    stopwatch.stop(TAG);
+
+    return message;
+  }
+
+  @Override
+  public @NonNull MessageId getKey(@NonNull ConversationMessage conversationMessage) {
+    MessageRecord record = conversationMessage.getMessageRecord();
+    return new MessageId(record.getId(), record.isMms());
+  }
+
+  /**
+   * Matches the conversation order in {@link MmsSmsDatabase}: newest first by received date, with
+   * ties broken by transport and then by id, both descending.
+   */
+  @Override
+  public int compare(@NonNull ConversationMessage a, @NonNull ConversationMessage b) {
+    MessageRecord first  = a.getMessageRecord();
+    MessageRecord second = b.getMessageRecord();
+
+    if (first.getDateReceived() != second.getDateReceived()) {
+      return Long.compare(second.getDateReceived(), first.getDateReceived());
+    }
+
+    if (first.isMms() != second.isMms()) {
+      return getTransport(second).compareTo(getTransport(first));
+    }
+
+    return Long.compare(second.getId(), first.getId());
+  }
+
+  private static @NonNull String getTransport(@NonNull MessageRecord record) {
+    return record.isMms() ? MmsSmsDatabase.MMS_TRANSPORT : MmsSmsDatabase.SMS_TRANSPORT;
+  }
+
   private static class MentionHelper {
 
     private Collection<Long>         messageIds          = new LinkedList<>();
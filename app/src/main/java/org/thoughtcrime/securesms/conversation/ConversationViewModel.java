@@ -16,6 +16,7 @@ import org.signal.paging.PagingConfig;
 import org.signal.paging.PagingController;
 import org.signal.paging.ProxyPagingController;
 import org.thoughtcrime.securesms.database.DatabaseObserver;
+import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.mediasend.Media;
 import org.thoughtcrime.securesms.mediasend.MediaRepository;
@@ -33,6 +34,8 @@ class ConversationViewModel extends ViewModel {
 
   private static final String TAG = Log.tag(ConversationViewModel.class);
 
+  private static final long UPDATE_INTERVAL_MS = 250;
+
   private final Application                         context;
   private final MediaRepository                     mediaRepository;
   private final ConversationRepository              conversationRepository;
@@ -43,8 +46,11 @@ class ConversationViewModel extends ViewModel {
   private final MutableLiveData<Boolean>            showScrollButtons;
   private final MutableLiveData<Boolean>            hasUnreadMentions;
   private final LiveData<Boolean>                   canShowAsBubble;
-  private final ProxyPagingController               pagingController;
+  private final ProxyPagingController<MessageId>    pagingController;
   private final DatabaseObserver.Observer           messageObserver;
+  private final DatabaseObserver.MessageObserver    messageInsertObserver;
+  private final DatabaseObserver.MessageObserver    messageUpdateObserver;
+  private final DatabaseObserver.MessageObserver    messageRemoveObserver;
   private final MutableLiveData<RecipientId>        recipientId;
   private final LiveData<ChatWallpaper>             wallpaper;
 
@@ -60,8 +66,11 @@ class ConversationViewModel extends ViewModel {
     this.showScrollButtons      = new MutableLiveData<>(false);
     this.hasUnreadMentions      = new MutableLiveData<>(false);
     this.recipientId            = new MutableLiveData<>();
-    this.pagingController       = new ProxyPagingController();
+    this.pagingController       = new ProxyPagingController<>();
     this.messageObserver        = pagingController::onDataInvalidated;
+    this.messageInsertObserver  = pagingController::onDataItemInserted;
+    this.messageUpdateObserver  = pagingController::onDataItemChanged;
+    this.messageRemoveObserver  = pagingController::onDataItemRemoved;
 
     LiveData<ConversationData> metadata = Transformations.switchMap(threadId, thread -> {
       LiveData<ConversationData> conversationData = conversationRepository.getConversationData(thread, jumpToPosition);
@@ -83,8 +92,17 @@ class ConversationViewModel extends ViewModel {
         startPosition = data.getThreadSize();
       }
 
-      ApplicationDependencies.getDatabaseObserver().unregisterObserver(messageObserver);
-      ApplicationDependencies.getDatabaseObserver().registerConversationObserver(data.getThreadId(), messageObserver);
+      DatabaseObserver databaseObserver = ApplicationDependencies.getDatabaseObserver();
+
+      databaseObserver.unregisterObserver(messageObserver);
+      databaseObserver.unregisterObserver(messageInsertObserver);
+      databaseObserver.unregisterObserver(messageUpdateObserver);
+      databaseObserver.unregisterObserver(messageRemoveObserver);
+
+      databaseObserver.registerCoalescedConversationObserver(data.getThreadId(), UPDATE_INTERVAL_MS, messageObserver);
+      databaseObserver.registerMessageInsertObserver(data.getThreadId(), messageInsertObserver);
+      databaseObserver.registerMessageUpdateObserver(data.getThreadId(), messageUpdateObserver);
+      databaseObserver.registerMessageRemoveObserver(data.getThreadId(), messageRemoveObserver);
 
       ConversationDataSource dataSource = new ConversationDataSource(context, data.getThreadId());
       PagingConfig           config     = new PagingConfig.Builder()
@@ -187,6 +205,9 @@ class ConversationViewModel extends ViewModel {
   protected void onCleared() {
     super.onCleared();
     ApplicationDependencies.getDatabaseObserver().unregisterObserver(messageObserver);
+    ApplicationDependencies.getDatabaseObserver().unregisterObserver(messageInsertObserver);
+    ApplicationDependencies.getDatabaseObserver().unregisterObserver(messageUpdateObserver);
+    ApplicationDependencies.getDatabaseObserver().unregisterObserver(messageRemoveObserver);
   }
 
   static class Factory extends ViewModelProvider.NewInstanceFactory {
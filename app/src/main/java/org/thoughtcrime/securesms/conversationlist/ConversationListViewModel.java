@@ -25,7 +25,6 @@ import org.thoughtcrime.securesms.megaphone.Megaphones;
 import org.thoughtcrime.securesms.net.PipeConnectivityListener;
 import org.thoughtcrime.securesms.search.SearchRepository;
 import org.thoughtcrime.securesms.util.Debouncer;
-import org.thoughtcrime.securesms.util.ThrottledDebouncer;
 import org.thoughtcrime.securesms.util.livedata.LiveDataUtil;
 import org.thoughtcrime.securesms.util.paging.Invalidator;
 
@@ -35,6 +34,8 @@ class ConversationListViewModel extends ViewModel {
 
   private static final String TAG = Log.tag(ConversationListViewModel.class);
 
+  private static final long UPDATE_INTERVAL_MS = 500;
+
   private static boolean coldStart = true;
 
   private final MutableLiveData<Megaphone>     megaphone;
@@ -44,7 +45,6 @@ class ConversationListViewModel extends ViewModel {
   private final SearchRepository               searchRepository;
   private final MegaphoneRepository            megaphoneRepository;
   private final Debouncer                      searchDebouncer;
-  private final ThrottledDebouncer             updateDebouncer;
   private final DatabaseObserver.Observer      observer;
   private final Invalidator                    invalidator;
 
@@ -57,7 +57,6 @@ class ConversationListViewModel extends ViewModel {
     this.searchRepository    = searchRepository;
     this.megaphoneRepository = ApplicationDependencies.getMegaphoneRepository();
     this.searchDebouncer     = new Debouncer(300);
-    this.updateDebouncer     = new ThrottledDebouncer(500);
     this.invalidator         = new Invalidator();
     this.pagedData           = PagedData.create(ConversationListDataSource.create(application, isArchived),
                                                 new PagingConfig.Builder()
@@ -65,12 +64,10 @@ class ConversationListViewModel extends ViewModel {
                                                                 .setBufferPages(2)
                                                                 .build());
     this.observer            = () -> {
-      updateDebouncer.publish(() -> {
-        if (!TextUtils.isEmpty(getLastQuery())) {
-          searchRepository.query(getLastQuery(), searchResult::postValue);
-        }
-        pagedData.getController().onDataInvalidated();
-      });
+      if (!TextUtils.isEmpty(getLastQuery())) {
+        searchRepository.query(getLastQuery(), searchResult::postValue);
+      }
+      pagedData.getController().onDataInvalidated();
     };
 
     this.hasNoConversations = LiveDataUtil.mapAsync(pagedData.getData(), conversations -> {
@@ -83,7 +80,7 @@ class ConversationListViewModel extends ViewModel {
       }
     });
 
-    ApplicationDependencies.getDatabaseObserver().registerConversationListObserver(observer);
+    ApplicationDependencies.getDatabaseObserver().registerCoalescedConversationListObserver(UPDATE_INTERVAL_MS, observer);
   }
 
   public LiveData<Boolean> hasNoConversations() {
@@ -157,7 +154,6 @@ class ConversationListViewModel extends ViewModel {
   protected void onCleared() {
     invalidator.invalidate();
     searchDebouncer.clear();
-    updateDebouncer.clear();
     ApplicationDependencies.getDatabaseObserver().unregisterObserver(observer);
   }
 
@@ -112,7 +112,7 @@ public class AttachmentDatabase extends Database {
           static final String WIDTH                  = "width";
           static final String HEIGHT                 = "height";
           static final String CAPTION                = "caption";
-          static final String DATA_HASH              = "data_hash";
+  public  static final String DATA_HASH              = "data_hash";
           static final String VISUAL_HASH            = "blur_hash";
           static final String TRANSFORM_PROPERTIES   = "transform_properties";
           static final String DISPLAY_ORDER          = "display_order";
@@ -1061,6 +1061,10 @@ public class AttachmentDatabase extends Database {
 
       return new DataInfo(destination, length, out.first, hash);
     } catch (IOException | NoSuchAlgorithmException e) {
+      // The source may only discover it's invalid once it's been read to the end
+      if (destination.delete()) {
+        Log.w(TAG, "[setAttachmentData] Deleted partially written file. " + destination);
+      }
       throw new MmsException(e);
     }
   }
@@ -0,0 +1,125 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.util.CursorUtil;
+import org.thoughtcrime.securesms.util.SqlUtil;
+import org.thoughtcrime.securesms.util.Util;
+import org.whispersystems.signalservice.api.util.UuidUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Remembers what contact discovery told us about each number the last time we asked, so that a
+ * routine directory refresh only has to ask about numbers that are new or that we haven't checked
+ * in a while. See {@link org.thoughtcrime.securesms.contacts.sync.DirectoryHelper}.
+ */
+public class ContactDiscoveryDatabase extends Database {
+
+  public static final String TABLE_NAME = "contact_discovery";
+
+  private static final String ID           = "_id";
+  private static final String E164         = "e164";
+  private static final String UUID         = "uuid";
+  private static final String REGISTERED   = "registered";
+  private static final String LAST_CHECKED = "last_checked";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + "(" + ID           + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                                                                                 E164         + " TEXT UNIQUE NOT NULL, " +
+                                                                                 UUID         + " TEXT DEFAULT NULL, " +
+                                                                                 REGISTERED   + " INTEGER NOT NULL, " +
+                                                                                 LAST_CHECKED + " INTEGER NOT NULL)";
+
+  private static final int MAX_BULK_QUERY_SIZE = 500;
+
+  public ContactDiscoveryDatabase(@NonNull Context context, @NonNull SQLCipherOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  /**
+   * @return The last result we got for every number we have one for, keyed by number.
+   */
+  public @NonNull Map<String, CachedResult> getAll() {
+    Map<String, CachedResult> results = new HashMap<>();
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, null, null, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        String uuid = CursorUtil.requireString(cursor, UUID);
+
+        results.put(CursorUtil.requireString(cursor, E164),
+                    new CachedResult(uuid != null ? UuidUtil.parseOrNull(uuid) : null,
+                                     CursorUtil.requireBoolean(cursor, REGISTERED),
+                                     CursorUtil.requireLong(cursor, LAST_CHECKED)));
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Stores the provided results, replacing any we already had for those numbers, and forgets the
+   * removed numbers, all in one transaction.
+   */
+  public void update(@NonNull Map<String, CachedResult> results, @NonNull Collection<String> removed) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      for (Map.Entry<String, CachedResult> entry : results.entrySet()) {
+        CachedResult  result = entry.getValue();
+        ContentValues values = new ContentValues(4);
+
+        values.put(E164, entry.getKey());
+        values.put(UUID, result.getUuid() != null ? result.getUuid().toString() : null);
+        values.put(REGISTERED, result.isRegistered() ? 1 : 0);
+        values.put(LAST_CHECKED, result.getLastChecked());
+
+        db.replace(TABLE_NAME, null, values);
+      }
+
+      for (List<String> chunk : Util.chunk(new ArrayList<>(removed), MAX_BULK_QUERY_SIZE)) {
+        SqlUtil.Query query = SqlUtil.buildCollectionQuery(E164, chunk);
+        db.delete(TABLE_NAME, query.getWhere(), query.getWhereArgs());
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  public static final class CachedResult {
+    private final UUID    uuid;
+    private final boolean registered;
+    private final long    lastChecked;
+
+    public CachedResult(@Nullable UUID uuid, boolean registered, long lastChecked) {
+      this.uuid        = uuid;
+      this.registered  = registered;
+      this.lastChecked = lastChecked;
+    }
+
+    public @Nullable UUID getUuid() {
+      return uuid;
+    }
+
+    public boolean isRegistered() {
+      return registered;
+    }
+
+    public long getLastChecked() {
+      return lastChecked;
+    }
+  }
+}
@@ -23,6 +23,7 @@ import android.database.Cursor;
 import androidx.annotation.NonNull;
 
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 
 import java.util.Set;
@@ -40,36 +41,56 @@ public abstract class Database {
   }
 
   protected void notifyConversationListeners(Set<Long> threadIds) {
-    ApplicationDependencies.getDatabaseObserver().notifyConversationListeners(threadIds);
+    runPostTransaction(() -> {
+      ApplicationDependencies.getDatabaseObserver().notifyConversationListeners(threadIds);
 
-    for (long threadId : threadIds) {
-      notifyConversationListeners(threadId);
-    }
+      for (long threadId : threadIds) {
+        notifyConversationListeners(threadId);
+      }
+    });
   }
 
   protected void notifyConversationListeners(long threadId) {
-    ApplicationDependencies.getDatabaseObserver().notifyConversationListeners(threadId);
+    runPostTransaction(() -> {
+      ApplicationDependencies.getDatabaseObserver().notifyConversationListeners(threadId);
 
-    context.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadId), null);
-    notifyVerboseConversationListeners(threadId);
+      context.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadId), null);
+      notifyVerboseConversationListeners(threadId);
+    });
   }
 
   protected void notifyVerboseConversationListeners(long threadId) {
-    ApplicationDependencies.getDatabaseObserver().notifyVerboseConversationListeners(threadId);
-    context.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getVerboseUriForThread(threadId), null);
+    runPostTransaction(() -> {
+      ApplicationDependencies.getDatabaseObserver().notifyVerboseConversationListeners(threadId);
+      context.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getVerboseUriForThread(threadId), null);
+    });
+  }
+
+  protected void notifyMessageInsertObservers(long threadId, @NonNull MessageId messageId) {
+    runPostTransaction(() -> ApplicationDependencies.getDatabaseObserver().notifyMessageInsertObservers(threadId, messageId));
+  }
+
+  protected void notifyMessageUpdateObservers(long threadId, @NonNull MessageId messageId) {
+    runPostTransaction(() -> ApplicationDependencies.getDatabaseObserver().notifyMessageUpdateObservers(threadId, messageId));
+  }
+
+  protected void notifyMessageRemoveObservers(long threadId, @NonNull MessageId messageId) {
+    runPostTransaction(() -> ApplicationDependencies.getDatabaseObserver().notifyMessageRemoveObservers(threadId, messageId));
   }
 
   protected void notifyConversationListListeners() {
-    ApplicationDependencies.getDatabaseObserver().notifyConversationListListeners();
-    context.getContentResolver().notifyChange(DatabaseContentProviders.ConversationList.CONTENT_URI, null);
+    runPostTransaction(() -> {
+      ApplicationDependencies.getDatabaseObserver().notifyConversationListListeners();
+      context.getContentResolver().notifyChange(DatabaseContentProviders.ConversationList.CONTENT_URI, null);
+    });
   }
 
   protected void notifyStickerListeners() {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.Sticker.CONTENT_URI, null);
+    runPostTransaction(() -> context.getContentResolver().notifyChange(DatabaseContentProviders.Sticker.CONTENT_URI, null));
   }
 
   protected void notifyStickerPackListeners() {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.StickerPack.CONTENT_URI, null);
+    runPostTransaction(() -> context.getContentResolver().notifyChange(DatabaseContentProviders.StickerPack.CONTENT_URI, null));
   }
 
   @Deprecated
@@ -109,7 +130,15 @@ public abstract class Database {
   }
 
   protected void notifyAttachmentListeners() {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.Attachment.CONTENT_URI, null);
+    runPostTransaction(() -> context.getContentResolver().notifyChange(DatabaseContentProviders.Attachment.CONTENT_URI, null));
+  }
+
+  /**
+   * Listeners may re-query from a read connection, which won't see what we've written until the
+   * transaction we're in, if any, is committed.
+   */
+  private void runPostTransaction(@NonNull Runnable task) {
+    databaseHelper.getWritableDatabase().runPostTransaction(task);
   }
 
   public void reset(SQLCipherOpenHelper databaseHelper) {
@@ -41,28 +41,30 @@ public class DatabaseFactory {
 
   private static volatile DatabaseFactory instance;
 
-  private final SQLCipherOpenHelper     databaseHelper;
-  private final SmsDatabase             sms;
-  private final MmsDatabase             mms;
-  private final AttachmentDatabase      attachments;
-  private final MediaDatabase           media;
-  private final ThreadDatabase          thread;
-  private final MmsSmsDatabase          mmsSmsDatabase;
-  private final IdentityDatabase        identityDatabase;
-  private final DraftDatabase           draftDatabase;
-  private final PushDatabase            pushDatabase;
-  private final GroupDatabase           groupDatabase;
-  private final RecipientDatabase       recipientDatabase;
-  private final ContactsDatabase        contactsDatabase;
-  private final GroupReceiptDatabase    groupReceiptDatabase;
-  private final OneTimePreKeyDatabase   preKeyDatabase;
-  private final SignedPreKeyDatabase    signedPreKeyDatabase;
-  private final SessionDatabase         sessionDatabase;
-  private final SearchDatabase          searchDatabase;
-  private final StickerDatabase         stickerDatabase;
-  private final StorageKeyDatabase      storageKeyDatabase;
-  private final RemappedRecordsDatabase remappedRecordsDatabase;
-  private final MentionDatabase         mentionDatabase;
+  private final SQLCipherOpenHelper      databaseHelper;
+  private final SmsDatabase              sms;
+  private final MmsDatabase              mms;
+  private final AttachmentDatabase       attachments;
+  private final MediaDatabase            media;
+  private final ThreadDatabase           thread;
+  private final MmsSmsDatabase           mmsSmsDatabase;
+  private final IdentityDatabase         identityDatabase;
+  private final DraftDatabase            draftDatabase;
+  private final PushDatabase             pushDatabase;
+  private final GroupDatabase            groupDatabase;
+  private final RecipientDatabase        recipientDatabase;
+  private final ContactsDatabase         contactsDatabase;
+  private final GroupReceiptDatabase     groupReceiptDatabase;
+  private final OneTimePreKeyDatabase    preKeyDatabase;
+  private final SignedPreKeyDatabase     signedPreKeyDatabase;
+  private final SessionDatabase          sessionDatabase;
+  private final SearchDatabase           searchDatabase;
+  private final StickerDatabase          stickerDatabase;
+  private final StorageKeyDatabase       storageKeyDatabase;
+  private final RemappedRecordsDatabase  remappedRecordsDatabase;
+  private final MentionDatabase          mentionDatabase;
+  private final EarlyMessageDatabase     earlyMessageDatabase;
+  private final ContactDiscoveryDatabase contactDiscoveryDatabase;
 
   public static DatabaseFactory getInstance(Context context) {
     if (instance == null) {
@@ -165,6 +167,14 @@ public class DatabaseFactory {
     return getInstance(context).mentionDatabase;
   }
 
+  public static EarlyMessageDatabase getEarlyMessageDatabase(Context context) {
+    return getInstance(context).earlyMessageDatabase;
+  }
+
+  public static ContactDiscoveryDatabase getContactDiscoveryDatabase(Context context) {
+    return getInstance(context).contactDiscoveryDatabase;
+  }
+
   public static SQLiteDatabase getBackupDatabase(Context context) {
     return getInstance(context).databaseHelper.getReadableDatabase().getSqlCipherDatabase();
   }
@@ -189,34 +199,44 @@ public class DatabaseFactory {
     return getInstance(context).databaseHelper.getWritableDatabase().inTransaction();
   }
 
+  /**
+   * Runs the task once the current transaction on this thread commits, or right away if there isn't
+   * one. Use this to enqueue jobs that read rows written in that transaction.
+   */
+  public static void runOnCommit(Context context, Runnable task) {
+    getInstance(context).databaseHelper.getWritableDatabase().runOnCommit(task);
+  }
+
   private DatabaseFactory(@NonNull Context context) {
     SQLiteDatabase.loadLibs(context);
 
     DatabaseSecret   databaseSecret   = DatabaseSecretProvider.getOrCreateDatabaseSecret(context);
     AttachmentSecret attachmentSecret = AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret();
 
-    this.databaseHelper          = new SQLCipherOpenHelper(context, databaseSecret);
-    this.sms                     = new SmsDatabase(context, databaseHelper);
-    this.mms                     = new MmsDatabase(context, databaseHelper);
-    this.attachments             = new AttachmentDatabase(context, databaseHelper, attachmentSecret);
-    this.media                   = new MediaDatabase(context, databaseHelper);
-    this.thread                  = new ThreadDatabase(context, databaseHelper);
-    this.mmsSmsDatabase          = new MmsSmsDatabase(context, databaseHelper);
-    this.identityDatabase        = new IdentityDatabase(context, databaseHelper);
-    this.draftDatabase           = new DraftDatabase(context, databaseHelper);
-    this.pushDatabase            = new PushDatabase(context, databaseHelper);
-    this.groupDatabase           = new GroupDatabase(context, databaseHelper);
-    this.recipientDatabase       = new RecipientDatabase(context, databaseHelper);
-    this.groupReceiptDatabase    = new GroupReceiptDatabase(context, databaseHelper);
-    this.contactsDatabase        = new ContactsDatabase(context);
-    this.preKeyDatabase          = new OneTimePreKeyDatabase(context, databaseHelper);
-    this.signedPreKeyDatabase    = new SignedPreKeyDatabase(context, databaseHelper);
-    this.sessionDatabase         = new SessionDatabase(context, databaseHelper);
-    this.searchDatabase          = new SearchDatabase(context, databaseHelper);
-    this.stickerDatabase         = new StickerDatabase(context, databaseHelper, attachmentSecret);
-    this.storageKeyDatabase      = new StorageKeyDatabase(context, databaseHelper);
-    this.remappedRecordsDatabase = new RemappedRecordsDatabase(context, databaseHelper);
-    this.mentionDatabase         = new MentionDatabase(context, databaseHelper);
+    this.databaseHelper           = new SQLCipherOpenHelper(context, databaseSecret);
+    this.sms                      = new SmsDatabase(context, databaseHelper);
+    this.mms                      = new MmsDatabase(context, databaseHelper);
+    this.attachments              = new AttachmentDatabase(context, databaseHelper, attachmentSecret);
+    this.media                    = new MediaDatabase(context, databaseHelper);
+    this.thread                   = new ThreadDatabase(context, databaseHelper);
+    this.mmsSmsDatabase           = new MmsSmsDatabase(context, databaseHelper);
+    this.identityDatabase         = new IdentityDatabase(context, databaseHelper);
+    this.draftDatabase            = new DraftDatabase(context, databaseHelper);
+    this.pushDatabase             = new PushDatabase(context, databaseHelper);
+    this.groupDatabase            = new GroupDatabase(context, databaseHelper);
+    this.recipientDatabase        = new RecipientDatabase(context, databaseHelper);
+    this.groupReceiptDatabase     = new GroupReceiptDatabase(context, databaseHelper);
+    this.contactsDatabase         = new ContactsDatabase(context);
+    this.preKeyDatabase           = new OneTimePreKeyDatabase(context, databaseHelper);
+    this.signedPreKeyDatabase     = new SignedPreKeyDatabase(context, databaseHelper);
+    this.sessionDatabase          = new SessionDatabase(context, databaseHelper);
+    this.searchDatabase           = new SearchDatabase(context, databaseHelper);
+    this.stickerDatabase          = new StickerDatabase(context, databaseHelper, attachmentSecret);
+    this.storageKeyDatabase       = new StorageKeyDatabase(context, databaseHelper);
+    this.remappedRecordsDatabase  = new RemappedRecordsDatabase(context, databaseHelper);
+    this.mentionDatabase          = new MentionDatabase(context, databaseHelper);
+    this.earlyMessageDatabase     = new EarlyMessageDatabase(context, databaseHelper);
+    this.contactDiscoveryDatabase = new ContactDiscoveryDatabase(context, databaseHelper);
   }
 
   public void onApplicationLevelUpgrade(@NonNull Context context, @NonNull MasterSecret masterSecret,
@@ -251,6 +271,14 @@ public class DatabaseFactory {
     return databaseHelper.getWritableDatabase().getSqlCipherDatabase();
   }
 
+  /**
+   * Like {@link #getRawDatabase()}, but transactions started on it will hold back change
+   * notifications until they've finished.
+   */
+  public org.thoughtcrime.securesms.database.SQLiteDatabase getWritableDatabase() {
+    return databaseHelper.getWritableDatabase();
+  }
+
   public boolean hasTable(String table) {
     return SqlUtil.tableExists(databaseHelper.getReadableDatabase().getSqlCipherDatabase(), table);
   }
@@ -5,8 +5,10 @@ import android.database.ContentObserver;
 import android.database.Cursor;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 
 import org.signal.core.util.concurrent.SignalExecutors;
+import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.util.concurrent.SerialExecutor;
 
 import java.util.HashMap;
@@ -14,6 +16,10 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Allows listening to database changes to varying degrees of specificity.
@@ -22,19 +28,43 @@ import java.util.concurrent.Executor;
  */
 public final class DatabaseObserver {
 
-  private final Application application;
-  private final Executor    executor;
+  private final Application              application;
+  private final Executor                 executor;
+  private final ScheduledExecutorService scheduler;
 
   private final Set<Observer>            conversationListObservers;
   private final Map<Long, Set<Observer>> conversationObservers;
   private final Map<Long, Set<Observer>> verboseConversationObservers;
 
+  private final Map<Long, Set<MessageObserver>> messageInsertObservers;
+  private final Map<Long, Set<MessageObserver>> messageUpdateObservers;
+  private final Map<Long, Set<MessageObserver>> messageRemoveObservers;
+
+  private final Map<Observer, CoalescingObserver> coalescingObservers;
+
+  private final AtomicLong rawCoalescedNotifications;
+  private final AtomicLong deliveredCoalescedNotifications;
+
   public DatabaseObserver(Application application) {
-    this.application                  = application;
-    this.executor                     = new SerialExecutor(SignalExecutors.BOUNDED);
-    this.conversationListObservers    = new HashSet<>();
-    this.conversationObservers        = new HashMap<>();
-    this.verboseConversationObservers = new HashMap<>();
+    this(application,
+         new SerialExecutor(SignalExecutors.BOUNDED),
+         Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "signal-DatabaseObserver")));
+  }
+
+  @VisibleForTesting
+  DatabaseObserver(@NonNull Application application, @NonNull Executor executor, @NonNull ScheduledExecutorService scheduler) {
+    this.application                     = application;
+    this.executor                        = executor;
+    this.scheduler                       = scheduler;
+    this.conversationListObservers       = new HashSet<>();
+    this.conversationObservers           = new HashMap<>();
+    this.verboseConversationObservers    = new HashMap<>();
+    this.messageInsertObservers          = new HashMap<>();
+    this.messageUpdateObservers          = new HashMap<>();
+    this.messageRemoveObservers          = new HashMap<>();
+    this.coalescingObservers             = new HashMap<>();
+    this.rawCoalescedNotifications       = new AtomicLong();
+    this.deliveredCoalescedNotifications = new AtomicLong();
   }
 
   public void registerConversationListObserver(@NonNull Observer listener) {
@@ -55,14 +85,98 @@ public final class DatabaseObserver {
     });
   }
 
+  /**
+   * Like {@link #registerConversationListObserver(Observer)}, except that bursts of changes are
+   * coalesced, so the listener is notified at most once every {@code intervalMs}. The first change
+   * in a burst is delivered right away, and everything after it is merged into a single
+   * notification at the end of the interval.
+   *
+   * Unregister with {@link #unregisterObserver(Observer)}, same as any other observer.
+   */
+  public void registerCoalescedConversationListObserver(long intervalMs, @NonNull Observer listener) {
+    executor.execute(() -> {
+      conversationListObservers.add(registerCoalescing(listener, intervalMs));
+    });
+  }
+
+  /**
+   * Like {@link #registerConversationObserver(long, Observer)}, except that bursts of changes are
+   * coalesced. See {@link #registerCoalescedConversationListObserver(long, Observer)}.
+   */
+  public void registerCoalescedConversationObserver(long threadId, long intervalMs, @NonNull Observer listener) {
+    executor.execute(() -> {
+      registerMapped(conversationObservers, threadId, registerCoalescing(listener, intervalMs));
+    });
+  }
+
+  /**
+   * Notified when a message is inserted into the specified thread. Unlike a conversation observer,
+   * this tells you exactly which message changed, so you can update just that item.
+   */
+  public void registerMessageInsertObserver(long threadId, @NonNull MessageObserver listener) {
+    executor.execute(() -> {
+      registerMapped(messageInsertObservers, threadId, listener);
+    });
+  }
+
+  /**
+   * Notified when a message in the specified thread is updated in a way that only affects that
+   * message, like a receipt being received.
+   */
+  public void registerMessageUpdateObserver(long threadId, @NonNull MessageObserver listener) {
+    executor.execute(() -> {
+      registerMapped(messageUpdateObservers, threadId, listener);
+    });
+  }
+
+  /**
+   * Notified when a message is removed from the specified thread.
+   */
+  public void registerMessageRemoveObserver(long threadId, @NonNull MessageObserver listener) {
+    executor.execute(() -> {
+      registerMapped(messageRemoveObservers, threadId, listener);
+    });
+  }
+
+  public void unregisterObserver(@NonNull MessageObserver listener) {
+    executor.execute(() -> {
+      unregisterMapped(messageInsertObservers, listener);
+      unregisterMapped(messageUpdateObservers, listener);
+      unregisterMapped(messageRemoveObservers, listener);
+    });
+  }
+
   public void unregisterObserver(@NonNull Observer listener) {
     executor.execute(() -> {
-      conversationListObservers.remove(listener);
-      unregisterMapped(conversationObservers, listener);
-      unregisterMapped(verboseConversationObservers, listener);
+      CoalescingObserver coalescing = coalescingObservers.remove(listener);
+      Observer           observer   = listener;
+
+      if (coalescing != null) {
+        coalescing.cancel();
+        observer = coalescing;
+      }
+
+      conversationListObservers.remove(observer);
+      unregisterMapped(conversationObservers, observer);
+      unregisterMapped(verboseConversationObservers, observer);
     });
   }
 
+  /**
+   * @return The number of times a coalesced observer would have been notified if it weren't
+   *         coalesced.
+   */
+  public long getRawCoalescedNotificationCount() {
+    return rawCoalescedNotifications.get();
+  }
+
+  /**
+   * @return The number of times a coalesced observer was actually notified.
+   */
+  public long getDeliveredCoalescedNotificationCount() {
+    return deliveredCoalescedNotifications.get();
+  }
+
   public void notifyConversationListeners(Set<Long> threadIds) {
     executor.execute(() -> {
       for (long threadId : threadIds) {
@@ -95,6 +209,36 @@ public final class DatabaseObserver {
     application.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getVerboseUriForThread(threadId), null);
   }
 
+  public void notifyMessageInsertObservers(long threadId, @NonNull MessageId messageId) {
+    executor.execute(() -> {
+      notifyMessageMapped(messageInsertObservers, threadId, messageId);
+      notifyMapped(verboseConversationObservers, threadId);
+    });
+
+    application.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadId), null);
+    application.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getVerboseUriForThread(threadId), null);
+  }
+
+  public void notifyMessageUpdateObservers(long threadId, @NonNull MessageId messageId) {
+    executor.execute(() -> {
+      notifyMessageMapped(messageUpdateObservers, threadId, messageId);
+      notifyMapped(verboseConversationObservers, threadId);
+    });
+
+    application.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadId), null);
+    application.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getVerboseUriForThread(threadId), null);
+  }
+
+  public void notifyMessageRemoveObservers(long threadId, @NonNull MessageId messageId) {
+    executor.execute(() -> {
+      notifyMessageMapped(messageRemoveObservers, threadId, messageId);
+      notifyMapped(verboseConversationObservers, threadId);
+    });
+
+    application.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadId), null);
+    application.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getVerboseUriForThread(threadId), null);
+  }
+
   public void notifyConversationListListeners() {
     executor.execute(() -> {
       for (Observer listener : conversationListObservers) {
@@ -105,8 +249,21 @@ public final class DatabaseObserver {
     application.getContentResolver().notifyChange(DatabaseContentProviders.ConversationList.CONTENT_URI, null);
   }
 
-  private <K> void registerMapped(@NonNull Map<K, Set<Observer>> map, @NonNull K key, @NonNull Observer listener) {
-    Set<Observer> listeners = map.get(key);
+  private @NonNull Observer registerCoalescing(@NonNull Observer listener, long intervalMs) {
+    CoalescingObserver existing = coalescingObservers.get(listener);
+
+    if (existing != null) {
+      return existing;
+    }
+
+    CoalescingObserver coalescing = new CoalescingObserver(listener, intervalMs);
+    coalescingObservers.put(listener, coalescing);
+
+    return coalescing;
+  }
+
+  private <K, V> void registerMapped(@NonNull Map<K, Set<V>> map, @NonNull K key, @NonNull V listener) {
+    Set<V> listeners = map.get(key);
 
     if (listeners == null) {
       listeners = new HashSet<>();
@@ -116,8 +273,8 @@ public final class DatabaseObserver {
     map.put(key, listeners);
   }
 
-  private <K> void unregisterMapped(@NonNull Map<K, Set<Observer>> map, @NonNull Observer listener) {
-    for (Map.Entry<K, Set<Observer>> entry : map.entrySet()) {
+  private <K, V> void unregisterMapped(@NonNull Map<K, Set<V>> map, @NonNull V listener) {
+    for (Map.Entry<K, Set<V>> entry : map.entrySet()) {
       entry.getValue().remove(listener);
     }
   }
@@ -132,6 +289,69 @@ public final class DatabaseObserver {
     }
   }
 
+  private static void notifyMessageMapped(@NonNull Map<Long, Set<MessageObserver>> map, long threadId, @NonNull MessageId messageId) {
+    Set<MessageObserver> listeners = map.get(threadId);
+
+    if (listeners != null) {
+      for (MessageObserver listener : listeners) {
+        listener.onMessageChanged(messageId);
+      }
+    }
+  }
+
+  /**
+   * Wraps an observer so that it's notified at most once per interval. Only ever touched on the
+   * serial executor, so it needs no locking of its own.
+   */
+  private final class CoalescingObserver implements Observer {
+    private final Observer delegate;
+    private final long     intervalMs;
+
+    private long    lastDelivered;
+    private boolean pending;
+    private boolean cancelled;
+
+    private CoalescingObserver(@NonNull Observer delegate, long intervalMs) {
+      this.delegate   = delegate;
+      this.intervalMs = intervalMs;
+    }
+
+    @Override
+    public void onChanged() {
+      rawCoalescedNotifications.incrementAndGet();
+
+      if (pending || cancelled) {
+        return;
+      }
+
+      long elapsed = System.currentTimeMillis() - lastDelivered;
+
+      if (elapsed >= intervalMs) {
+        deliver();
+      } else {
+        pending = true;
+        scheduler.schedule(() -> executor.execute(this::deliverPending), intervalMs - elapsed, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private void deliverPending() {
+      if (pending && !cancelled) {
+        pending = false;
+        deliver();
+      }
+    }
+
+    private void deliver() {
+      lastDelivered = System.currentTimeMillis();
+      deliveredCoalescedNotifications.incrementAndGet();
+      delegate.onChanged();
+    }
+
+    private void cancel() {
+      cancelled = true;
+    }
+  }
+
   public interface Observer {
     /**
      * Called when the relevant data changes. Executed on a serial executor, so don't do any
@@ -139,4 +359,12 @@ public final class DatabaseObserver {
      */
     void onChanged();
   }
+
+  public interface MessageObserver {
+    /**
+     * Called when the specified message changes. Executed on a serial executor, so don't do any
+     * long-running tasks!
+     */
+    void onMessageChanged(@NonNull MessageId messageId);
+  }
 }
@@ -0,0 +1,141 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.thoughtcrime.securesms.util.CursorUtil;
+import org.thoughtcrime.securesms.util.SqlUtil;
+import org.whispersystems.libsignal.util.Pair;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The backing datastore for {@link org.thoughtcrime.securesms.util.EarlyMessageCache}. Holds
+ * serialized content that arrived before the message it refers to, keyed by the sender and sent
+ * timestamp of that message, so that it isn't lost if the process dies before the message shows up.
+ */
+public class EarlyMessageDatabase extends Database {
+
+  public static final String TABLE_NAME = "early_message";
+
+  private static final String ID             = "_id";
+  private static final String SENDER_ID      = "sender_id";
+  private static final String SENT_TIMESTAMP = "sent_timestamp";
+  private static final String CONTENT        = "content";
+  private static final String DATE_RECEIVED  = "date_received";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + "(" + ID             + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                                                                                 SENDER_ID      + " INTEGER NOT NULL, " +
+                                                                                 SENT_TIMESTAMP + " INTEGER NOT NULL, " +
+                                                                                 CONTENT        + " BLOB NOT NULL, " +
+                                                                                 DATE_RECEIVED  + " INTEGER NOT NULL)";
+
+  public static final String[] CREATE_INDEXES = new String[] {
+    "CREATE INDEX IF NOT EXISTS early_message_sender_timestamp_index ON " + TABLE_NAME + " (" + SENDER_ID + ", " + SENT_TIMESTAMP + ");"
+  };
+
+  private static final String KEY_WHERE = SENDER_ID + " = ? AND " + SENT_TIMESTAMP + " = ?";
+
+  public EarlyMessageDatabase(@NonNull Context context, @NonNull SQLCipherOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  public void insert(@NonNull RecipientId sender, long sentTimestamp, @NonNull byte[] content) {
+    ContentValues values = new ContentValues(4);
+    values.put(SENDER_ID, sender.toLong());
+    values.put(SENT_TIMESTAMP, sentTimestamp);
+    values.put(CONTENT, content);
+    values.put(DATE_RECEIVED, System.currentTimeMillis());
+
+    databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
+  }
+
+  /**
+   * Deletes and returns all content stored for the provided message, oldest first.
+   */
+  public @NonNull List<byte[]> remove(@NonNull RecipientId sender, long sentTimestamp) {
+    SQLiteDatabase db      = databaseHelper.getWritableDatabase();
+    String[]       args    = SqlUtil.buildArgs(sender, sentTimestamp);
+    List<byte[]>   content = new LinkedList<>();
+
+    db.beginTransaction();
+    try {
+      try (Cursor cursor = db.query(TABLE_NAME, new String[] { CONTENT }, KEY_WHERE, args, null, null, ID + " ASC")) {
+        while (cursor != null && cursor.moveToNext()) {
+          content.add(CursorUtil.requireBlob(cursor, CONTENT));
+        }
+      }
+
+      db.delete(TABLE_NAME, KEY_WHERE, args);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    return content;
+  }
+
+  public void delete(@NonNull RecipientId sender, long sentTimestamp) {
+    databaseHelper.getWritableDatabase().delete(TABLE_NAME, KEY_WHERE, SqlUtil.buildArgs(sender, sentTimestamp));
+  }
+
+  /**
+   * @return The sender and sent timestamp of every stored row. A message with multiple pieces of
+   *         early content will appear once for each of them.
+   */
+  public @NonNull List<Pair<RecipientId, Long>> getAllKeys() {
+    List<Pair<RecipientId, Long>> keys = new LinkedList<>();
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] { SENDER_ID, SENT_TIMESTAMP }, null, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        keys.add(new Pair<>(RecipientId.from(CursorUtil.requireLong(cursor, SENDER_ID)), CursorUtil.requireLong(cursor, SENT_TIMESTAMP)));
+      }
+    }
+
+    return keys;
+  }
+
+  /**
+   * Deletes the oldest rows.
+   *
+   * @param count The number of rows to delete.
+   * @return The sender and sent timestamp of every row that was deleted.
+   */
+  public @NonNull List<Pair<RecipientId, Long>> deleteOldest(int count) {
+    SQLiteDatabase                db      = databaseHelper.getWritableDatabase();
+    List<Pair<RecipientId, Long>> deleted = new LinkedList<>();
+
+    if (count <= 0) {
+      return deleted;
+    }
+
+    db.beginTransaction();
+    try {
+      String[] projection = new String[] { ID, SENDER_ID, SENT_TIMESTAMP };
+      long     maxId      = -1;
+
+      try (Cursor cursor = db.query(TABLE_NAME, projection, null, null, null, null, ID + " ASC", String.valueOf(count))) {
+        while (cursor != null && cursor.moveToNext()) {
+          maxId = CursorUtil.requireLong(cursor, ID);
+          deleted.add(new Pair<>(RecipientId.from(CursorUtil.requireLong(cursor, SENDER_ID)), CursorUtil.requireLong(cursor, SENT_TIMESTAMP)));
+        }
+      }
+
+      if (maxId >= 0) {
+        db.delete(TABLE_NAME, ID + " <= ?", SqlUtil.buildArgs(maxId));
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    return deleted;
+  }
+}
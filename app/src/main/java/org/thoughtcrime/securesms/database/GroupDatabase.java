@@ -57,6 +57,8 @@ public final class GroupDatabase extends Database {
 
   private static final String TAG = Log.tag(GroupDatabase.class);
 
+  private static final int MAX_BULK_QUERY_SIZE = 500;
+
           static final String TABLE_NAME            = "groups";
   private static final String ID                    = "_id";
           static final String GROUP_ID              = "group_id";
@@ -129,6 +131,30 @@ public final class GroupDatabase extends Database {
     }
   }
 
+  /**
+   * @return The groups for the provided recipients, keyed by recipient. Recipients that aren't
+   *         groups, or whose group can't be found, are left out.
+   */
+  public @NonNull Map<RecipientId, GroupRecord> getGroups(@NonNull Collection<RecipientId> recipientIds) {
+    Map<RecipientId, GroupRecord> results = new HashMap<>(recipientIds.size());
+
+    for (List<RecipientId> chunk : Util.chunk(new ArrayList<>(recipientIds), MAX_BULK_QUERY_SIZE)) {
+      SqlUtil.Query query = SqlUtil.buildCollectionQuery(RECIPIENT_ID, chunk);
+
+      try (Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, null, query.getWhere(), query.getWhereArgs(), null, null, null)) {
+        while (cursor != null && cursor.moveToNext()) {
+          Optional<GroupRecord> record = getGroup(cursor);
+
+          if (record.isPresent()) {
+            results.put(record.get().getRecipientId(), record.get());
+          }
+        }
+      }
+    }
+
+    return results;
+  }
+
   public Optional<GroupRecord> getGroup(@NonNull GroupId groupId) {
     try (Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, null, GROUP_ID + " = ?",
                                                                     new String[] {groupId.toString()},
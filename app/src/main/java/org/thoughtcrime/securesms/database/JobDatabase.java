@@ -268,6 +268,23 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabase {
     }
   }
 
+  /**
+   * Runs the provided writes inside of a single transaction. Nested calls to the other write
+   * methods on this class will join it rather than starting their own.
+   */
+  public synchronized void runInTransaction(@NonNull Runnable writes) {
+    SQLiteDatabase db = getWritableDatabase();
+
+    db.beginTransaction();
+
+    try {
+      writes.run();
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
   public synchronized @NonNull List<ConstraintSpec> getAllConstraintSpecs() {
     List<ConstraintSpec> constraints = new LinkedList<>();
 
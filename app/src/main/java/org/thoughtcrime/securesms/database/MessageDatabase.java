@@ -20,6 +20,7 @@ import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatch;
 import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatchList;
 import org.thoughtcrime.securesms.database.documents.NetworkFailure;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.ReactionRecord;
 import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
@@ -237,6 +238,55 @@ public abstract class MessageDatabase extends Database implements MmsSmsColumns
     }
   }
 
+  /**
+   * @return The most recent received date of any message in the thread that could be its snippet,
+   *         other than the excluded one, or -1 if there aren't any.
+   */
+  final long getLatestSnippetDateReceivedForThread(long threadId, long excludedMessageId) {
+    SQLiteDatabase db         = databaseHelper.getReadableDatabase();
+    String[]       projection = new String[] { getDateReceivedColumnName() };
+    String         query      = MmsSmsColumns.THREAD_ID + " = ? AND " + MmsSmsColumns.ID + " != ?";
+    String[]       args       = SqlUtil.buildArgs(threadId, excludedMessageId);
+    String         eligible   = getSnippetEligibleClause();
+
+    if (eligible != null) {
+      query += " AND " + eligible;
+    }
+    String         order      = getDateReceivedColumnName() + " DESC";
+
+    try (Cursor cursor = db.query(getTableName(), projection, query, args, null, null, order, "1")) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getLong(0);
+      } else {
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * @return A clause that only matches messages that can be used as a thread's snippet, or null if
+   *         any message can be. Must agree with {@link MmsSmsDatabase#getConversationSnippet(long)}.
+   */
+  protected @Nullable String getSnippetEligibleClause() {
+    return null;
+  }
+
+  /**
+   * @return The received date of the message, or -1 if it doesn't exist.
+   */
+  final long getDateReceivedForMessage(long messageId) {
+    SQLiteDatabase db         = databaseHelper.getReadableDatabase();
+    String[]       projection = new String[] { getDateReceivedColumnName() };
+
+    try (Cursor cursor = db.query(getTableName(), projection, ID_WHERE, SqlUtil.buildArgs(messageId), null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getLong(0);
+      } else {
+        return -1;
+      }
+    }
+  }
+
   private int getMessageCountForRecipientsAndType(String typeClause) {
 
     SQLiteDatabase db           = databaseHelper.getReadableDatabase();
@@ -719,12 +769,14 @@ public abstract class MessageDatabase extends Database implements MmsSmsColumns
   }
 
   static class ThreadUpdate {
-    private final long    threadId;
-    private final boolean verbose;
+    private final long      threadId;
+    private final boolean   verbose;
+    private final MessageId messageId;
 
-    ThreadUpdate(long threadId, boolean verbose) {
-      this.threadId = threadId;
-      this.verbose  = verbose;
+    ThreadUpdate(long threadId, boolean verbose, @NonNull MessageId messageId) {
+      this.threadId  = threadId;
+      this.verbose   = verbose;
+      this.messageId = messageId;
     }
 
     public long getThreadId() {
@@ -735,18 +787,23 @@ public abstract class MessageDatabase extends Database implements MmsSmsColumns
       return verbose;
     }
 
+    public @NonNull MessageId getMessageId() {
+      return messageId;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (this == o) return true;
       if (o == null || getClass() != o.getClass()) return false;
       ThreadUpdate that = (ThreadUpdate) o;
       return threadId == that.threadId &&
-             verbose  == that.verbose;
+             verbose  == that.verbose  &&
+             messageId.equals(that.messageId);
     }
 
     @Override
     public int hashCode() {
-      return Objects.hash(threadId, verbose);
+      return Objects.hash(threadId, verbose, messageId);
     }
   }
 
@@ -47,6 +47,7 @@ import org.thoughtcrime.securesms.database.documents.NetworkFailureList;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.Mention;
+import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.NotificationMmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.Quote;
@@ -645,7 +646,7 @@ public class MmsDatabase extends MessageDatabase {
 
             DatabaseFactory.getGroupReceiptDatabase(context).update(ourRecipientId, id, status, timestamp);
 
-            threadUpdates.add(new ThreadUpdate(threadId, !isFirstIncrement));
+            threadUpdates.add(new ThreadUpdate(threadId, !isFirstIncrement, new MessageId(id, true)));
           }
         }
       }
@@ -1300,10 +1301,9 @@ public class MmsDatabase extends MessageDatabase {
 
     if (!Types.isExpirationTimerUpdate(mailbox)) {
       DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, 1);
-      DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     }
 
-    notifyConversationListeners(threadId);
+    notifyMessageInsertObservers(threadId, new MessageId(messageId, true));
 
     return Optional.of(new InsertResult(messageId, threadId));
   }
@@ -1470,6 +1470,8 @@ public class MmsDatabase extends MessageDatabase {
     MentionUtil.UpdatedBodyAndMentions updatedBodyAndMentions = MentionUtil.updateBodyAndMentionsWithPlaceholders(message.getBody(), message.getMentions());
     long messageId = insertMediaMessage(threadId, updatedBodyAndMentions.getBodyAsString(), message.getAttachments(), quoteAttachments, message.getSharedContacts(), message.getLinkPreviews(), updatedBodyAndMentions.getMentions(), contentValues, insertListener);
 
+    notifyConversationListeners(threadId);
+
     if (message.getRecipient().isGroup()) {
       OutgoingGroupUpdateMessage outgoingGroupUpdateMessage = (message instanceof OutgoingGroupUpdateMessage) ? (OutgoingGroupUpdateMessage) message : null;
 
@@ -1528,9 +1530,11 @@ public class MmsDatabase extends MessageDatabase {
     contentValues.put(PART_COUNT, allAttachments.size());
     contentValues.put(MENTIONS_SELF, mentionsSelf ? 1 : 0);
 
+    long messageId = -1;
+
     db.beginTransaction();
     try {
-      long messageId = db.insert(TABLE_NAME, null, contentValues);
+      messageId = db.insert(TABLE_NAME, null, contentValues);
 
       mentionDatabase.insert(threadId, messageId, mentions);
 
@@ -1571,8 +1575,7 @@ public class MmsDatabase extends MessageDatabase {
         insertListener.onComplete();
       }
 
-      notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
-      DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID), true);
+      DatabaseFactory.getThreadDatabase(context).updateForInsertedMessage(contentValues.getAsLong(THREAD_ID), new MessageId(messageId, true), true);
     }
   }
 
@@ -1590,10 +1593,11 @@ public class MmsDatabase extends MessageDatabase {
     MentionDatabase mentionDatabase = DatabaseFactory.getMentionDatabase(context);
     mentionDatabase.deleteMentionsForMessage(messageId);
 
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    long           dateReceived = getDateReceivedForMessage(messageId);
+    SQLiteDatabase database     = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-    notifyConversationListeners(threadId);
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).updateForDeletedMessage(threadId, new MessageId(messageId, true), dateReceived);
+    notifyMessageRemoveObservers(threadId, new MessageId(messageId, true));
     notifyStickerListeners();
     notifyStickerPackListeners();
     return threadDeleted;
@@ -30,18 +30,22 @@ import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.database.MessageDatabase.SyncMessageId;
 import org.thoughtcrime.securesms.database.MessageDatabase.ThreadUpdate;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.util.CursorUtil;
+import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libsignal.util.Pair;
 
 import java.io.Closeable;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class MmsSmsDatabase extends Database {
@@ -53,6 +57,12 @@ public class MmsSmsDatabase extends Database {
   public static final String MMS_TRANSPORT = "mms";
   public static final String SMS_TRANSPORT = "sms";
 
+  /**
+   * Conversation order, with a tie-breaker so that the order is total. This allows us to seek
+   * relative to a specific message (see {@link #getConversationPage(long, long, MessageId, boolean, int)}).
+   */
+  private static final String CONVERSATION_ORDER = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + TRANSPORT + " DESC, " + MmsSmsColumns.ID + " DESC";
+
   private static final String[] PROJECTION = {MmsSmsColumns.ID,
                                               MmsSmsColumns.UNIQUE_ROW_ID,
                                               SmsDatabase.BODY,
@@ -181,16 +191,108 @@ public class MmsSmsDatabase extends Database {
 
 
   public Cursor getConversation(long threadId, long offset, long limit) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
     String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
     String limitStr  = limit > 0 || offset > 0 ? offset + ", " + limit : null;
 
-    Cursor cursor = queryTables(PROJECTION, selection, order, limitStr);
+    Cursor cursor = queryTables(PROJECTION, selection, CONVERSATION_ORDER, limitStr);
     setNotifyConversationListeners(cursor, threadId);
 
     return cursor;
   }
 
+  /**
+   * A seek-based alternative to {@link #getConversation(long, long, long)}. Rather than skipping
+   * over an offset's worth of rows, this finds a page relative to an anchor message using the
+   * (thread_id, date_received) indexes, so a page costs the same no matter how deep into the
+   * conversation it is.
+   *
+   * We first find the ids of the page with a lightweight query over just the index columns, and
+   * then fetch the full rows (with all of their joins) for only those ids.
+   *
+   * @param older If true, returns up to {@code limit} messages immediately after the anchor in
+   *              conversation order (i.e. older ones). Otherwise, returns up to {@code limit}
+   *              messages immediately before it (i.e. newer ones). Either way, the results are in
+   *              conversation order, and the anchor itself is never included.
+   */
+  public Cursor getConversationPage(long threadId, long anchorDateReceived, @NonNull MessageId anchorId, boolean older, int limit) {
+    String direction = older ? "DESC" : "ASC";
+    String smsQuery  = "SELECT " + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
+                              "'" + SMS_TRANSPORT + "' AS " + TRANSPORT + ", " +
+                              MmsSmsColumns.ID + " " +
+                       "FROM " + SmsDatabase.TABLE_NAME + " " +
+                       "WHERE " + buildSeekSelection(SMS_TRANSPORT, SmsDatabase.DATE_RECEIVED, threadId, anchorDateReceived, anchorId, older) + " " +
+                       "ORDER BY " + SmsDatabase.DATE_RECEIVED + " " + direction + ", " + MmsSmsColumns.ID + " " + direction + " " +
+                       "LIMIT " + limit;
+    String mmsQuery  = "SELECT " + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
+                              "'" + MMS_TRANSPORT + "' AS " + TRANSPORT + ", " +
+                              MmsSmsColumns.ID + " " +
+                       "FROM " + MmsDatabase.TABLE_NAME + " " +
+                       "WHERE " + buildSeekSelection(MMS_TRANSPORT, MmsDatabase.DATE_RECEIVED, threadId, anchorDateReceived, anchorId, older) + " " +
+                       "ORDER BY " + MmsDatabase.DATE_RECEIVED + " " + direction + ", " + MmsSmsColumns.ID + " " + direction + " " +
+                       "LIMIT " + limit;
+    String query     = "SELECT * FROM (" + smsQuery + ") UNION ALL SELECT * FROM (" + mmsQuery + ") " +
+                       "ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " " + direction + ", " + TRANSPORT + " " + direction + ", " + MmsSmsColumns.ID + " " + direction + " " +
+                       "LIMIT " + limit;
+
+    List<Long> smsIds = new LinkedList<>();
+    List<Long> mmsIds = new LinkedList<>();
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, null)) {
+      while (cursor.moveToNext()) {
+        long id = CursorUtil.requireLong(cursor, MmsSmsColumns.ID);
+
+        if (MMS_TRANSPORT.equals(CursorUtil.requireString(cursor, TRANSPORT))) {
+          mmsIds.add(id);
+        } else {
+          smsIds.add(id);
+        }
+      }
+    }
+
+    String smsSelection = smsIds.isEmpty() ? "0" : SmsDatabase.TABLE_NAME + "." + MmsSmsColumns.ID + " IN (" + Util.join(smsIds, ",") + ")";
+    String mmsSelection = mmsIds.isEmpty() ? "0" : MmsDatabase.TABLE_NAME + "." + MmsSmsColumns.ID + " IN (" + Util.join(mmsIds, ",") + ")";
+
+    Cursor cursor = queryTables(PROJECTION, smsSelection, mmsSelection, CONVERSATION_ORDER, null);
+    setNotifyConversationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  /**
+   * Builds the selection for one of the tables in {@link #getConversationPage(long, long, MessageId, boolean, int)}.
+   * Rows are ordered by (date_received, transport, id), so for rows that share the anchor's
+   * received date, we have to break the tie by transport and then by id.
+   *
+   * The OR below can't be used to bound a range scan, so it's preceded by an inclusive range on the
+   * received date that SQLite can use to seek straight to the anchor in the (thread_id, date_received)
+   * index.
+   */
+  private static @NonNull String buildSeekSelection(@NonNull String transport,
+                                                    @NonNull String dateReceivedColumn,
+                                                    long threadId,
+                                                    long anchorDateReceived,
+                                                    @NonNull MessageId anchorId,
+                                                    boolean older)
+  {
+    String anchorTransport = anchorId.isMms() ? MMS_TRANSPORT : SMS_TRANSPORT;
+    String comparison      = older ? " < " : " > ";
+    String bound           = older ? " <= " : " >= ";
+    String tieBreak;
+
+    if (transport.equals(anchorTransport)) {
+      tieBreak = MmsSmsColumns.ID + comparison + anchorId.getId();
+    } else {
+      boolean greaterThanAnchor = transport.compareTo(anchorTransport) > 0;
+      tieBreak = greaterThanAnchor != older ? "1" : "0";
+    }
+
+    return MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " +
+           dateReceivedColumn + bound + anchorDateReceived + " AND (" +
+             dateReceivedColumn + comparison + anchorDateReceived + " OR (" +
+             dateReceivedColumn + " = " + anchorDateReceived + " AND " + tieBreak +
+           "))";
+  }
+
   public Cursor getConversation(long threadId) {
     return getConversation(threadId, 0, 0);
   }
@@ -212,6 +314,19 @@ public class MmsSmsDatabase extends Database {
     return  queryTables(PROJECTION, selection, order, "1");
   }
 
+  /**
+   * @param excluded A message to ignore, e.g. one that has just been inserted.
+   * @return The received date of the message that {@link #getConversationSnippet(long)} would
+   *         return, or -1 if there isn't one.
+   */
+  long getLatestSnippetDateReceived(long threadId, @Nullable MessageId excluded) {
+    long excludedSmsId = excluded != null && !excluded.isMms() ? excluded.getId() : -1;
+    long excludedMmsId = excluded != null && excluded.isMms()  ? excluded.getId() : -1;
+
+    return Math.max(DatabaseFactory.getSmsDatabase(context).getLatestSnippetDateReceivedForThread(threadId, excludedSmsId),
+                    DatabaseFactory.getMmsDatabase(context).getLatestSnippetDateReceivedForThread(threadId, excludedMmsId));
+  }
+
   public Cursor getUnread() {
     String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
     String selection       = MmsSmsColumns.NOTIFIED + " = 0 AND (" + MmsSmsColumns.READ + " = 0 OR " + MmsSmsColumns.REACTIONS_UNREAD + " = 1)";
@@ -364,8 +479,8 @@ public class MmsSmsDatabase extends Database {
     try {
       threadUpdates = incrementReceiptCountInternal(syncMessageId, timestamp, receiptType);
 
-      for (ThreadUpdate threadUpdate : threadUpdates) {
-        threadDatabase.update(threadUpdate.getThreadId(), false);
+      for (Map.Entry<Long, Set<MessageId>> thread : getMessageIdsByThread(threadUpdates).entrySet()) {
+        threadDatabase.updateForReceipts(thread.getKey(), thread.getValue());
       }
 
       db.setTransactionSuccessful();
@@ -376,7 +491,7 @@ public class MmsSmsDatabase extends Database {
         if (threadUpdate.isVerbose()) {
           notifyVerboseConversationListeners(threadUpdate.getThreadId());
         } else {
-          notifyConversationListeners(threadUpdate.getThreadId());
+          notifyMessageUpdateObservers(threadUpdate.getThreadId(), threadUpdate.getMessageId());
         }
       }
     }
@@ -407,8 +522,8 @@ public class MmsSmsDatabase extends Database {
         }
       }
 
-      for (ThreadUpdate update : threadUpdates) {
-        threadDatabase.update(update.getThreadId(), false);
+      for (Map.Entry<Long, Set<MessageId>> thread : getMessageIdsByThread(threadUpdates).entrySet()) {
+        threadDatabase.updateForReceipts(thread.getKey(), thread.getValue());
       }
 
       db.setTransactionSuccessful();
@@ -419,7 +534,7 @@ public class MmsSmsDatabase extends Database {
         if (threadUpdate.isVerbose()) {
           notifyVerboseConversationListeners(threadUpdate.getThreadId());
         } else {
-          notifyConversationListeners(threadUpdate.getThreadId());
+          notifyMessageUpdateObservers(threadUpdate.getThreadId(), threadUpdate.getMessageId());
         }
       }
     }
@@ -428,6 +543,23 @@ public class MmsSmsDatabase extends Database {
   }
 
 
+  private static @NonNull Map<Long, Set<MessageId>> getMessageIdsByThread(@NonNull Set<ThreadUpdate> threadUpdates) {
+    Map<Long, Set<MessageId>> messageIdsByThread = new HashMap<>();
+
+    for (ThreadUpdate threadUpdate : threadUpdates) {
+      Set<MessageId> messageIds = messageIdsByThread.get(threadUpdate.getThreadId());
+
+      if (messageIds == null) {
+        messageIds = new HashSet<>();
+        messageIdsByThread.put(threadUpdate.getThreadId(), messageIds);
+      }
+
+      messageIds.add(threadUpdate.getMessageId());
+    }
+
+    return messageIdsByThread;
+  }
+
   /**
    * Doesn't do any transactions or updates, so we can re-use the method safely.
    */
@@ -543,6 +675,10 @@ public class MmsSmsDatabase extends Database {
   }
 
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
+    return queryTables(projection, selection, selection, order, limit);
+  }
+
+  private Cursor queryTables(String[] projection, String smsSelection, String mmsSelection, String order, String limit) {
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MmsSmsColumns.ID,
@@ -727,9 +863,9 @@ public class MmsSmsDatabase extends Database {
     smsColumnsPresent.add(MmsSmsColumns.NOTIFIED_TIMESTAMP);
 
     @SuppressWarnings("deprecation")
-    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, selection, null, MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID, null);
+    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, mmsSelection, null, MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID, null);
     @SuppressWarnings("deprecation")
-    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, selection, null, null, null);
+    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, smsSelection, null, null, null);
 
     SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
     String unionQuery = unionQueryBuilder.buildUnionQuery(new String[] {smsSubQuery, mmsSubQuery}, order, limit);
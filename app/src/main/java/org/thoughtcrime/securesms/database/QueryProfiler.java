@@ -0,0 +1,348 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import net.sqlcipher.Cursor;
+
+import org.signal.core.util.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Collects timings for the statements run through {@link SQLiteDatabase} so that the slowest ones
+ * can be found from a debug log.
+ * <p>
+ * Statements are grouped by template, which is their SQL with any literals replaced by
+ * placeholders, so that the same query with different IDs inlined counts as one and nothing
+ * identifying ends up in the log. The first time a template takes longer than
+ * {@link #SLOW_THRESHOLD_NS}, its query plan is captured so we can see if it's scanning a table.
+ * <p>
+ * This is off unless enabled, since forcing cursors to be filled to time them changes when that
+ * work happens.
+ */
+public final class QueryProfiler {
+
+  private static final String TAG = Log.tag(QueryProfiler.class);
+
+  private static final QueryProfiler INSTANCE = new QueryProfiler();
+
+  @VisibleForTesting
+  static final long SLOW_THRESHOLD_NS = TimeUnit.MILLISECONDS.toNanos(20);
+
+  private static final int MAX_TEMPLATES       = 500;
+  private static final int MAX_TEMPLATE_LENGTH = 500;
+  private static final int BUCKET_COUNT        = 12;
+
+  private static final String   OTHER_TEMPLATE         = "(other)";
+  private static final String[] EXPLAINABLE_STATEMENTS = { "SELECT", "WITH", "INSERT", "REPLACE", "UPDATE", "DELETE" };
+
+  private static final Pattern STRING_LITERAL  = Pattern.compile("'(?:[^']|'')*'");
+  private static final Pattern NUMBER_LITERAL  = Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?(?![\\w.])");
+  private static final Pattern PLACEHOLDER_RUN = Pattern.compile("\\?(?:\\s*,\\s*\\?)+");
+  private static final Pattern WHITESPACE      = Pattern.compile("\\s+");
+
+  private final ConcurrentHashMap<String, Stats> statsByTemplate;
+
+  private volatile boolean enabled;
+
+  public static @NonNull QueryProfiler getInstance() {
+    return INSTANCE;
+  }
+
+  @VisibleForTesting
+  QueryProfiler() {
+    this.statsByTemplate = new ConcurrentHashMap<>();
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void setEnabled(boolean enabled) {
+    if (this.enabled != enabled) {
+      Log.i(TAG, "Query profiling " + (enabled ? "enabled" : "disabled"));
+    }
+
+    this.enabled = enabled;
+  }
+
+  /**
+   * @param rows The number of rows returned or changed, or -1 if unknown.
+   * @param plan Used to look up the query plan if this is the first time this statement has been
+   *             slow. May be null for statements that don't have one worth looking at.
+   */
+  public void record(@NonNull String sql, long durationNanos, int rows, @Nullable PlanProvider plan) {
+    Stats stats = getStats(toTemplate(sql));
+
+    if (stats.record(durationNanos, rows) && plan != null) {
+      stats.setPlan(capturePlan(plan));
+    }
+  }
+
+  public void clear() {
+    statsByTemplate.clear();
+  }
+
+  /**
+   * @return A description of the worst offenders by total time spent, with their latency
+   *         histograms and any query plans we've captured.
+   */
+  public @NonNull String getReport(int limit) {
+    if (!enabled && statsByTemplate.isEmpty()) {
+      return "Disabled";
+    }
+
+    List<Stats.Snapshot> snapshots = new ArrayList<>(statsByTemplate.size());
+
+    for (Stats stats : statsByTemplate.values()) {
+      snapshots.add(stats.snapshot());
+    }
+
+    if (snapshots.isEmpty()) {
+      return "No statements recorded";
+    }
+
+    Collections.sort(snapshots, (lhs, rhs) -> Long.compare(rhs.totalNanos, lhs.totalNanos));
+
+    StringBuilder out = new StringBuilder();
+
+    out.append("Templates: ").append(snapshots.size())
+       .append(", slow threshold: ").append(TimeUnit.NANOSECONDS.toMillis(SLOW_THRESHOLD_NS)).append(" ms\n\n");
+
+    for (int i = 0; i < Math.min(limit, snapshots.size()); i++) {
+      Stats.Snapshot snapshot = snapshots.get(i);
+
+      out.append(i + 1).append(". ").append(snapshot.template).append('\n');
+      out.append(String.format(Locale.US, "   count: %d, total: %.1f ms, mean: %.2f ms, max: %.1f ms, slow: %d\n",
+                               snapshot.count,
+                               snapshot.totalNanos / 1_000_000.0,
+                               snapshot.totalNanos / 1_000_000.0 / snapshot.count,
+                               snapshot.maxNanos / 1_000_000.0,
+                               snapshot.slowCount));
+
+      if (snapshot.rowCount > 0) {
+        out.append(String.format(Locale.US, "   rows: %.1f avg, %d max\n", snapshot.totalRows / (double) snapshot.rowCount, snapshot.maxRows));
+      }
+
+      out.append("   ms: ").append(describeHistogram(snapshot.histogram)).append('\n');
+
+      if (snapshot.plan != null) {
+        for (String step : snapshot.plan) {
+          out.append("   plan: ").append(step).append(isFullScan(step) ? "  <-- FULL SCAN" : "").append('\n');
+        }
+      }
+
+      out.append('\n');
+    }
+
+    return out.toString();
+  }
+
+  /**
+   * Runs EXPLAIN QUERY PLAN for the statement on the connection it was run on.
+   */
+  public static @NonNull List<String> explain(@NonNull net.sqlcipher.database.SQLiteDatabase db, @NonNull String sql, @Nullable Object[] args) {
+    List<String> plan = new ArrayList<>();
+
+    try (Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args)) {
+      while (cursor.moveToNext()) {
+        plan.add(cursor.getString(cursor.getColumnCount() - 1));
+      }
+    }
+
+    return plan;
+  }
+
+  /**
+   * @return True if the statement is one that SQLite can give us a query plan for.
+   */
+  public static boolean canExplain(@NonNull String sql) {
+    String trimmed = sql.trim();
+
+    for (String keyword : EXPLAINABLE_STATEMENTS) {
+      if (trimmed.regionMatches(true, 0, keyword, 0, keyword.length())) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  @VisibleForTesting
+  static @NonNull String toTemplate(@NonNull String sql) {
+    String template = STRING_LITERAL.matcher(sql).replaceAll("?");
+    template = NUMBER_LITERAL.matcher(template).replaceAll("?");
+    template = PLACEHOLDER_RUN.matcher(template).replaceAll("?, ...");
+    template = WHITESPACE.matcher(template).replaceAll(" ").trim();
+
+    if (template.length() > MAX_TEMPLATE_LENGTH) {
+      template = template.substring(0, MAX_TEMPLATE_LENGTH) + "...";
+    }
+
+    return template;
+  }
+
+  @VisibleForTesting
+  static boolean isFullScan(@NonNull String step) {
+    return step.startsWith("SCAN ") && !step.contains(" INDEX ") && !step.contains("CONSTANT ROW");
+  }
+
+  /**
+   * Buckets are powers of two in milliseconds, with the last one catching everything longer.
+   */
+  @VisibleForTesting
+  static int getBucket(long durationNanos) {
+    long millis = TimeUnit.NANOSECONDS.toMillis(durationNanos);
+    int  bucket = 0;
+
+    while (bucket < BUCKET_COUNT - 1 && millis >= (1L << bucket)) {
+      bucket++;
+    }
+
+    return bucket;
+  }
+
+  private static @NonNull String describeHistogram(@NonNull long[] histogram) {
+    StringBuilder out = new StringBuilder();
+
+    for (int i = 0; i < histogram.length; i++) {
+      if (histogram[i] == 0) {
+        continue;
+      }
+
+      if (out.length() > 0) {
+        out.append(", ");
+      }
+
+      if (i == histogram.length - 1) {
+        out.append(">=").append(1L << (i - 1));
+      } else {
+        out.append('<').append(1L << i);
+      }
+
+      out.append(": ").append(histogram[i]);
+    }
+
+    return out.toString();
+  }
+
+  private @NonNull Stats getStats(@NonNull String template) {
+    Stats stats = statsByTemplate.get(template);
+
+    if (stats != null) {
+      return stats;
+    }
+
+    if (statsByTemplate.size() >= MAX_TEMPLATES) {
+      template = OTHER_TEMPLATE;
+    }
+
+    Stats created  = new Stats(template);
+    Stats existing = statsByTemplate.putIfAbsent(template, created);
+
+    return existing != null ? existing : created;
+  }
+
+  private static @NonNull List<String> capturePlan(@NonNull PlanProvider plan) {
+    try {
+      return plan.getPlan();
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Failed to capture a query plan.", e);
+      return Collections.singletonList("(unavailable: " + e.getClass().getSimpleName() + ")");
+    }
+  }
+
+  public interface PlanProvider {
+    @NonNull List<String> getPlan();
+  }
+
+  private static final class Stats {
+    private final String template;
+    private final long[] histogram;
+
+    private long         count;
+    private long         totalNanos;
+    private long         maxNanos;
+    private long         slowCount;
+    private long         rowCount;
+    private long         totalRows;
+    private long         maxRows;
+    private boolean      planRequested;
+    private List<String> plan;
+
+    private Stats(@NonNull String template) {
+      this.template  = template;
+      this.histogram = new long[BUCKET_COUNT];
+    }
+
+    /**
+     * @return True if this was slow and we don't have a plan for it yet, in which case the caller
+     *         should get one.
+     */
+    private synchronized boolean record(long durationNanos, int rows) {
+      count++;
+      totalNanos += durationNanos;
+      maxNanos    = Math.max(maxNanos, durationNanos);
+      histogram[getBucket(durationNanos)]++;
+
+      if (rows >= 0) {
+        rowCount++;
+        totalRows += rows;
+        maxRows    = Math.max(maxRows, rows);
+      }
+
+      if (durationNanos >= SLOW_THRESHOLD_NS) {
+        slowCount++;
+
+        if (!planRequested && !OTHER_TEMPLATE.equals(template)) {
+          planRequested = true;
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    private synchronized void setPlan(@NonNull List<String> plan) {
+      this.plan = plan;
+    }
+
+    private synchronized @NonNull Snapshot snapshot() {
+      return new Snapshot(this);
+    }
+
+    private static final class Snapshot {
+      private final String       template;
+      private final long[]       histogram;
+      private final long         count;
+      private final long         totalNanos;
+      private final long         maxNanos;
+      private final long         slowCount;
+      private final long         rowCount;
+      private final long         totalRows;
+      private final long         maxRows;
+      private final List<String> plan;
+
+      private Snapshot(@NonNull Stats stats) {
+        this.template   = stats.template;
+        this.histogram  = stats.histogram.clone();
+        this.count      = stats.count;
+        this.totalNanos = stats.totalNanos;
+        this.maxNanos   = stats.maxNanos;
+        this.slowCount  = stats.slowCount;
+        this.rowCount   = stats.rowCount;
+        this.totalRows  = stats.totalRows;
+        this.maxRows    = stats.maxRows;
+        this.plan       = stats.plan;
+      }
+    }
+  }
+}
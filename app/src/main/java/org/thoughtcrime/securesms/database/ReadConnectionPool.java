@@ -0,0 +1,84 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteDatabaseHook;
+
+import org.signal.core.util.logging.Log;
+
+/**
+ * A bounded set of read-only connections to a database that's in write-ahead-log mode, so that
+ * reads can run alongside the single writer connection instead of queueing up behind it.
+ * <p>
+ * Connections are opened lazily as they're needed. Each one is safe to share between threads, so
+ * rather than being checked out and handed back, callers are given whichever looks least busy.
+ */
+public final class ReadConnectionPool {
+
+  private static final String TAG = Log.tag(ReadConnectionPool.class);
+
+  private final String             path;
+  private final String             password;
+  private final SQLiteDatabaseHook hook;
+  private final SQLiteDatabase[]   connections;
+
+  private int     next;
+  private boolean disabled;
+
+  public ReadConnectionPool(@NonNull String path, @NonNull String password, @NonNull SQLiteDatabaseHook hook, int size) {
+    this.path        = path;
+    this.password    = password;
+    this.hook        = hook;
+    this.connections = new SQLiteDatabase[size];
+  }
+
+  /**
+   * @return A read-only connection, or null if one couldn't be opened, in which case the caller
+   *         should read from the writer instead.
+   */
+  public synchronized @Nullable SQLiteDatabase get() {
+    if (disabled) {
+      return null;
+    }
+
+    for (int i = 0; i < connections.length; i++) {
+      SQLiteDatabase connection = connections[i];
+
+      if (connection == null) {
+        connections[i] = open();
+        return connections[i];
+      }
+
+      if (!connection.isDbLockedByOtherThreads()) {
+        return connection;
+      }
+    }
+
+    next = (next + 1) % connections.length;
+    return connections[next];
+  }
+
+  /**
+   * Closes any open connections. New ones will be opened if the pool is used again.
+   */
+  public synchronized void close() {
+    for (int i = 0; i < connections.length; i++) {
+      if (connections[i] != null) {
+        connections[i].close();
+        connections[i] = null;
+      }
+    }
+  }
+
+  private @Nullable SQLiteDatabase open() {
+    try {
+      return SQLiteDatabase.openDatabase(path, password, null, SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS, hook);
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Failed to open a read connection! Falling back to the writer for all reads.", e);
+      disabled = true;
+      return null;
+    }
+  }
+}
@@ -154,6 +154,8 @@ public class RecipientDatabase extends Database {
     static final int GROUPS_V1_MIGRATION = 1;
   }
 
+  private static final int MAX_BULK_QUERY_SIZE = 500;
+
   private static final String[] RECIPIENT_PROJECTION = new String[] {
       ID, UUID, USERNAME, PHONE, EMAIL, GROUP_ID, GROUP_TYPE,
       BLOCKED, MESSAGE_RINGTONE, CALL_RINGTONE, MESSAGE_VIBRATE, CALL_VIBRATE, MUTE_UNTIL, COLOR, SEEN_INVITE_REMINDER, DEFAULT_SUBSCRIPTION_ID, MESSAGE_EXPIRATION_TIME, REGISTERED,
@@ -576,6 +578,57 @@ public class RecipientDatabase extends Database {
     return getOrInsertByColumn(PHONE, e164).recipientId;
   }
 
+  /**
+   * Bulk version of {@link #getOrInsertFromE164(String)}. Looks up the numbers a chunk at a time and
+   * inserts whichever are missing, all in one transaction.
+   *
+   * @return A mapping of (E164, RecipientId) for every provided number.
+   */
+  public @NonNull Map<String, RecipientId> getOrInsertFromE164s(@NonNull Collection<String> e164s) {
+    SQLiteDatabase           db      = databaseHelper.getWritableDatabase();
+    Map<String, RecipientId> results = new HashMap<>(e164s.size());
+
+    db.beginTransaction();
+    try {
+      for (List<String> chunk : Util.chunk(new ArrayList<>(e164s), MAX_BULK_QUERY_SIZE)) {
+        SqlUtil.Query query = SqlUtil.buildCollectionQuery(PHONE, chunk);
+
+        try (Cursor cursor = db.query(TABLE_NAME, new String[] { ID, PHONE }, query.getWhere(), query.getWhereArgs(), null, null, null)) {
+          while (cursor != null && cursor.moveToNext()) {
+            results.put(CursorUtil.requireString(cursor, PHONE), RecipientId.from(CursorUtil.requireLong(cursor, ID)));
+          }
+        }
+      }
+
+      for (String e164 : e164s) {
+        if (results.containsKey(e164)) {
+          continue;
+        }
+
+        if (TextUtils.isEmpty(e164)) {
+          throw new AssertionError(PHONE + " cannot be empty.");
+        }
+
+        ContentValues values = new ContentValues(1);
+        values.put(PHONE, e164);
+
+        long id = db.insert(TABLE_NAME, null, values);
+
+        if (id < 0) {
+          throw new AssertionError("Failed to insert recipient!");
+        }
+
+        results.put(e164, RecipientId.from(id));
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    return results;
+  }
+
   public @NonNull RecipientId getOrInsertFromEmail(@NonNull String email) {
     return getOrInsertByColumn(EMAIL, email).recipientId;
   }
@@ -710,6 +763,29 @@ public class RecipientDatabase extends Database {
     }
   }
 
+  /**
+   * Loads many recipients with as few queries as possible. Unlike {@link #getRecipientSettings(RecipientId)},
+   * this does not look at remapped records, so any recipient that can't be found is simply left out
+   * of the result.
+   */
+  public @NonNull Map<RecipientId, RecipientSettings> getRecipientSettings(@NonNull Collection<RecipientId> ids) {
+    SQLiteDatabase                      database = databaseHelper.getReadableDatabase();
+    Map<RecipientId, RecipientSettings> results  = new HashMap<>(ids.size());
+
+    for (List<RecipientId> chunk : Util.chunk(new ArrayList<>(ids), MAX_BULK_QUERY_SIZE)) {
+      SqlUtil.Query query = SqlUtil.buildCollectionQuery(ID, chunk);
+
+      try (Cursor cursor = database.query(TABLE_NAME, RECIPIENT_PROJECTION, query.getWhere(), query.getWhereArgs(), null, null, null)) {
+        while (cursor != null && cursor.moveToNext()) {
+          RecipientSettings settings = getRecipientSettings(context, cursor);
+          results.put(settings.getId(), settings);
+        }
+      }
+    }
+
+    return results;
+  }
+
   public @NonNull DirtyState getDirtyState(@NonNull RecipientId recipientId) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
 
@@ -2051,6 +2127,24 @@ public class RecipientDatabase extends Database {
     return results;
   }
 
+  /**
+   * @return The phone number of every recipient we currently believe to be registered.
+   */
+  public @NonNull Set<String> getRegisteredPhoneNumbers() {
+    SQLiteDatabase db      = databaseHelper.getReadableDatabase();
+    Set<String>    results = new HashSet<>();
+    String         query   = REGISTERED + " = ? AND " + PHONE + " NOT NULL";
+    String[]       args    = SqlUtil.buildArgs(RegisteredState.REGISTERED.getId());
+
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] { PHONE }, query, args, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getString(cursor.getColumnIndexOrThrow(PHONE)));
+      }
+    }
+
+    return results;
+  }
+
   /**
    * @return True if setting the UUID resulted in changed recipientId, otherwise false.
    */
@@ -3,8 +3,12 @@ package org.thoughtcrime.securesms.database;
 
 import android.content.ContentValues;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import net.sqlcipher.Cursor;
 import net.sqlcipher.SQLException;
+import net.sqlcipher.database.SQLiteQueryBuilder;
 import net.sqlcipher.database.SQLiteQueryStats;
 import net.sqlcipher.database.SQLiteStatement;
 import net.sqlcipher.database.SQLiteTransactionListener;
@@ -12,7 +16,9 @@ import net.sqlcipher.database.SQLiteTransactionListener;
 import org.signal.core.util.tracing.Tracer;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
@@ -35,12 +41,42 @@ public class SQLiteDatabase {
   private static final String KEY_THREAD = "thread";
   private static final String NAME_LOCK  = "LOCK";
 
+  private static final ThreadLocal<TransactionState> TRANSACTION_STATE = new ThreadLocal<TransactionState>() {
+    @Override
+    protected TransactionState initialValue() {
+      return new TransactionState();
+    }
+  };
+
   private final net.sqlcipher.database.SQLiteDatabase wrapped;
+  private final ReadConnectionPool                    readPool;
   private final Tracer                                tracer;
+  private final QueryProfiler                         profiler;
 
   public SQLiteDatabase(net.sqlcipher.database.SQLiteDatabase wrapped) {
-    this.wrapped = wrapped;
-    this.tracer  = Tracer.getInstance();
+    this(wrapped, null);
+  }
+
+  /**
+   * @param readPool If present, queries are spread across its connections rather than run on the
+   *                 wrapped writer. Everything else, including queries made while this thread is
+   *                 in a transaction and needs to see its own uncommitted changes, still goes to
+   *                 the writer.
+   */
+  public SQLiteDatabase(net.sqlcipher.database.SQLiteDatabase wrapped, @Nullable ReadConnectionPool readPool) {
+    this.wrapped  = wrapped;
+    this.readPool = readPool;
+    this.tracer   = Tracer.getInstance();
+    this.profiler = QueryProfiler.getInstance();
+  }
+
+  private net.sqlcipher.database.SQLiteDatabase getReader() {
+    if (readPool == null || wrapped.isDbLockedByCurrentThread()) {
+      return wrapped;
+    }
+
+    net.sqlcipher.database.SQLiteDatabase reader = readPool.get();
+    return reader != null ? reader : wrapped;
   }
 
   private void traceLockStart() {
@@ -103,10 +139,174 @@ public class SQLiteDatabase {
     return wrapped;
   }
 
+  /**
+   * Runs the task once this thread's transaction has ended, or right away if it isn't in one.
+   * Meant for change notifications: whoever is listening may re-query from a read connection,
+   * which can't see anything that hasn't been committed yet.
+   *
+   * Only transactions started through this wrapper count. One opened directly on the
+   * {@link #getSqlCipherDatabase() underlying database} never comes back through
+   * {@link #endTransaction()}, so the task runs right away instead of waiting on it forever.
+   */
+  public void runPostTransaction(@NonNull Runnable task) {
+    TransactionState state = TRANSACTION_STATE.get();
+
+    if (state.isOpen()) {
+      state.pending.add(new PendingTask(task, false));
+    } else {
+      task.run();
+    }
+  }
+
+  /**
+   * Like {@link #runPostTransaction(Runnable)}, but the task is dropped if the transaction is rolled
+   * back. Meant for enqueueing jobs that act on rows written in the transaction, which must neither
+   * run before those rows are visible nor run at all if they never will be.
+   */
+  public void runOnCommit(@NonNull Runnable task) {
+    TransactionState state = TRANSACTION_STATE.get();
+
+    if (state.isOpen()) {
+      state.pending.add(new PendingTask(task, true));
+    } else {
+      task.run();
+    }
+  }
+
+  private static void onTransactionStarted() {
+    TRANSACTION_STATE.get().successful.add(false);
+  }
+
+  private static void onTransactionSuccessful() {
+    List<Boolean> successful = TRANSACTION_STATE.get().successful;
+
+    if (!successful.isEmpty()) {
+      successful.set(successful.size() - 1, true);
+    }
+  }
+
+  private static void onTransactionEnded() {
+    TransactionState state = TRANSACTION_STATE.get();
+
+    if (!state.isOpen()) {
+      return;
+    }
+
+    if (!state.successful.remove(state.successful.size() - 1)) {
+      state.rolledBack = true;
+    }
+
+    if (state.isOpen()) {
+      return;
+    }
+
+    List<PendingTask> tasks     = new ArrayList<>(state.pending);
+    boolean           committed = !state.rolledBack;
+
+    state.pending.clear();
+    state.rolledBack = false;
+
+    for (PendingTask task : tasks) {
+      if (committed || !task.onlyOnCommit) {
+        task.task.run();
+      }
+    }
+  }
+
+  private Cursor profileQuery(Returnable<String> sql, Object[] args, Query query) {
+    net.sqlcipher.database.SQLiteDatabase db = getReader();
+
+    if (!profiler.isEnabled()) {
+      return query.run(db);
+    }
+
+    long   start     = System.nanoTime();
+    Cursor cursor    = query.run(db);
+    int    rows      = cursor.getCount();
+    long   end       = System.nanoTime();
+    String statement = sql.run();
+
+    profiler.record(statement, end - start, rows, () -> QueryProfiler.explain(db, statement, args));
+
+    return cursor;
+  }
+
+  private long profileInsert(String table, Returnable<Long> insert) {
+    if (!profiler.isEnabled()) {
+      return insert.run();
+    }
+
+    long start = System.nanoTime();
+    long id    = insert.run();
+
+    profiler.record("INSERT INTO " + table, System.nanoTime() - start, id != -1 ? 1 : 0, null);
+
+    return id;
+  }
+
+  private int profileChange(String operation, String table, String whereClause, String[] whereArgs, Returnable<Integer> change) {
+    if (!profiler.isEnabled()) {
+      return change.run();
+    }
+
+    long start = System.nanoTime();
+    int  rows  = change.run();
+
+    if (whereClause != null) {
+      profiler.record(operation + " " + table + " WHERE " + whereClause, System.nanoTime() - start, rows, () -> QueryProfiler.explain(wrapped, "SELECT rowid FROM " + table + " WHERE " + whereClause, whereArgs));
+    } else {
+      profiler.record(operation + " " + table, System.nanoTime() - start, rows, null);
+    }
+
+    return rows;
+  }
+
+  private void profileExec(String sql, Object[] bindArgs, Runnable exec) {
+    if (!profiler.isEnabled()) {
+      exec.run();
+      return;
+    }
+
+    long start = System.nanoTime();
+    exec.run();
+
+    profiler.record(sql, System.nanoTime() - start, -1, QueryProfiler.canExplain(sql) ? () -> QueryProfiler.explain(wrapped, sql, bindArgs) : null);
+  }
+
   private interface Returnable<E> {
     E run();
   }
 
+  private interface Query {
+    Cursor run(net.sqlcipher.database.SQLiteDatabase db);
+  }
+
+  /**
+   * The wrapper transactions this thread has open, innermost last, and whether each was marked
+   * successful. As with nested transactions on the underlying database, the whole thing is rolled
+   * back if any of them wasn't.
+   */
+  private static final class TransactionState {
+    private final List<Boolean>     successful = new ArrayList<>();
+    private final List<PendingTask> pending    = new ArrayList<>();
+
+    private boolean rolledBack;
+
+    boolean isOpen() {
+      return !successful.isEmpty();
+    }
+  }
+
+  private static final class PendingTask {
+    private final Runnable task;
+    private final boolean  onlyOnCommit;
+
+    private PendingTask(@NonNull Runnable task, boolean onlyOnCommit) {
+      this.task         = task;
+      this.onlyOnCommit = onlyOnCommit;
+    }
+  }
+
 
   // =======================================================
   // Traced
@@ -115,91 +315,97 @@ public class SQLiteDatabase {
   public void beginTransaction() {
     traceLockStart();
     trace("beginTransaction()", wrapped::beginTransaction);
+    onTransactionStarted();
   }
 
   public void endTransaction() {
-    trace("endTransaction()", wrapped::endTransaction);
-    traceLockEnd();
+    try {
+      trace("endTransaction()", wrapped::endTransaction);
+      traceLockEnd();
+    } finally {
+      onTransactionEnded();
+    }
   }
 
   public void setTransactionSuccessful() {
     trace("setTransactionSuccessful()", wrapped::setTransactionSuccessful);
+    onTransactionSuccessful();
   }
 
   public Cursor query(boolean distinct, String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
-    return traceSql("query(9)", table, selection, false, () -> wrapped.query(distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit));
+    return traceSql("query(9)", table, selection, false, () -> profileQuery(() -> SQLiteQueryBuilder.buildQueryString(distinct, table, columns, selection, groupBy, having, orderBy, limit), selectionArgs, db -> db.query(distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit)));
   }
 
   public Cursor queryWithFactory(net.sqlcipher.database.SQLiteDatabase.CursorFactory cursorFactory, boolean distinct, String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
-    return traceSql("queryWithFactory()", table, selection, false, () -> wrapped.queryWithFactory(cursorFactory, distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit));
+    return traceSql("queryWithFactory()", table, selection, false, () -> profileQuery(() -> SQLiteQueryBuilder.buildQueryString(distinct, table, columns, selection, groupBy, having, orderBy, limit), selectionArgs, db -> db.queryWithFactory(cursorFactory, distinct, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit)));
   }
 
   public Cursor query(String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy) {
-    return traceSql("query(7)", table, selection, false, () -> wrapped.query(table, columns, selection, selectionArgs, groupBy, having, orderBy));
+    return traceSql("query(7)", table, selection, false, () -> profileQuery(() -> SQLiteQueryBuilder.buildQueryString(false, table, columns, selection, groupBy, having, orderBy, null), selectionArgs, db -> db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy)));
   }
 
   public Cursor query(String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
-    return traceSql("query(8)", table, selection, false, () -> wrapped.query(table, columns, selection, selectionArgs, groupBy, having, orderBy, limit));
+    return traceSql("query(8)", table, selection, false, () -> profileQuery(() -> SQLiteQueryBuilder.buildQueryString(false, table, columns, selection, groupBy, having, orderBy, limit), selectionArgs, db -> db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy, limit)));
   }
 
   public Cursor rawQuery(String sql, String[] selectionArgs) {
-    return traceSql("rawQuery(2a)", sql, false, () -> wrapped.rawQuery(sql, selectionArgs));
+    return traceSql("rawQuery(2a)", sql, false, () -> profileQuery(() -> sql, selectionArgs, db -> db.rawQuery(sql, selectionArgs)));
   }
 
   public Cursor rawQuery(String sql, Object[] args) {
-    return traceSql("rawQuery(2b)", sql, false,() -> wrapped.rawQuery(sql, args));
+    return traceSql("rawQuery(2b)", sql, false, () -> profileQuery(() -> sql, args, db -> db.rawQuery(sql, args)));
   }
 
   public Cursor rawQueryWithFactory(net.sqlcipher.database.SQLiteDatabase.CursorFactory cursorFactory, String sql, String[] selectionArgs, String editTable) {
-    return traceSql("rawQueryWithFactory()", sql, false, () -> wrapped.rawQueryWithFactory(cursorFactory, sql, selectionArgs, editTable));
+    return traceSql("rawQueryWithFactory()", sql, false, () -> profileQuery(() -> sql, selectionArgs, db -> db.rawQueryWithFactory(cursorFactory, sql, selectionArgs, editTable)));
   }
 
   public Cursor rawQuery(String sql, String[] selectionArgs, int initialRead, int maxRead) {
-    return traceSql("rawQuery(4)", sql, false, () -> rawQuery(sql, selectionArgs, initialRead, maxRead));
+    return traceSql("rawQuery(4)", sql, false, () -> profileQuery(() -> sql, selectionArgs, db -> db.rawQuery(sql, selectionArgs, initialRead, maxRead)));
   }
 
   public long insert(String table, String nullColumnHack, ContentValues values) {
-    return traceSql("insert()", table, null, true, () -> wrapped.insert(table, nullColumnHack, values));
+    return traceSql("insert()", table, null, true, () -> profileInsert(table, () -> wrapped.insert(table, nullColumnHack, values)));
   }
 
   public long insertOrThrow(String table, String nullColumnHack, ContentValues values) throws SQLException {
-    return traceSql("insertOrThrow()", table, null, true, () -> wrapped.insertOrThrow(table, nullColumnHack, values));
+    return traceSql("insertOrThrow()", table, null, true, () -> profileInsert(table, () -> wrapped.insertOrThrow(table, nullColumnHack, values)));
   }
 
   public long replace(String table, String nullColumnHack, ContentValues initialValues) {
-    return traceSql("replace()", table, null, true,() -> wrapped.replace(table, nullColumnHack, initialValues));
+    return traceSql("replace()", table, null, true, () -> profileInsert(table, () -> wrapped.replace(table, nullColumnHack, initialValues)));
   }
 
   public long replaceOrThrow(String table, String nullColumnHack, ContentValues initialValues) throws SQLException {
-    return traceSql("replaceOrThrow()", table, null, true, () -> wrapped.replaceOrThrow(table, nullColumnHack, initialValues));
+    return traceSql("replaceOrThrow()", table, null, true, () -> profileInsert(table, () -> wrapped.replaceOrThrow(table, nullColumnHack, initialValues)));
   }
 
   public long insertWithOnConflict(String table, String nullColumnHack, ContentValues initialValues, int conflictAlgorithm) {
-    return traceSql("insertWithOnConflict()", table, null, true, () -> wrapped.insertWithOnConflict(table, nullColumnHack, initialValues, conflictAlgorithm));
+    return traceSql("insertWithOnConflict()", table, null, true, () -> profileInsert(table, () -> wrapped.insertWithOnConflict(table, nullColumnHack, initialValues, conflictAlgorithm)));
   }
 
   public int delete(String table, String whereClause, String[] whereArgs) {
-    return traceSql("delete()", table, whereClause, true, () -> wrapped.delete(table, whereClause, whereArgs));
+    return traceSql("delete()", table, whereClause, true, () -> profileChange("DELETE FROM", table, whereClause, whereArgs, () -> wrapped.delete(table, whereClause, whereArgs)));
   }
 
   public int update(String table, ContentValues values, String whereClause, String[] whereArgs) {
-    return traceSql("update()", table, whereClause, true, () -> wrapped.update(table, values, whereClause, whereArgs));
+    return traceSql("update()", table, whereClause, true, () -> profileChange("UPDATE", table, whereClause, whereArgs, () -> wrapped.update(table, values, whereClause, whereArgs)));
   }
 
   public int updateWithOnConflict(String table, ContentValues values, String whereClause, String[] whereArgs, int conflictAlgorithm) {
-    return traceSql("updateWithOnConflict()", table, whereClause, true, () -> wrapped.updateWithOnConflict(table, values, whereClause, whereArgs, conflictAlgorithm));
+    return traceSql("updateWithOnConflict()", table, whereClause, true, () -> profileChange("UPDATE", table, whereClause, whereArgs, () -> wrapped.updateWithOnConflict(table, values, whereClause, whereArgs, conflictAlgorithm)));
   }
 
   public void execSQL(String sql) throws SQLException {
-    traceSql("execSQL(1)", sql, true, () -> wrapped.execSQL(sql));
+    traceSql("execSQL(1)", sql, true, () -> profileExec(sql, null, () -> wrapped.execSQL(sql)));
   }
 
   public void rawExecSQL(String sql) {
-    traceSql("rawExecSQL()", sql, true, () -> wrapped.rawExecSQL(sql));
+    traceSql("rawExecSQL()", sql, true, () -> profileExec(sql, null, () -> wrapped.rawExecSQL(sql)));
   }
 
   public void execSQL(String sql, Object[] bindArgs) throws SQLException {
-    traceSql("execSQL(2)", sql, true, () -> wrapped.execSQL(sql, bindArgs));
+    traceSql("execSQL(2)", sql, true, () -> profileExec(sql, bindArgs, () -> wrapped.execSQL(sql, bindArgs)));
   }
 
 
@@ -225,14 +431,17 @@ public class SQLiteDatabase {
 
   public void beginTransactionWithListener(SQLiteTransactionListener transactionListener) {
     wrapped.beginTransactionWithListener(transactionListener);
+    onTransactionStarted();
   }
 
   public void beginTransactionNonExclusive() {
     wrapped.beginTransactionNonExclusive();
+    onTransactionStarted();
   }
 
   public void beginTransactionWithListenerNonExclusive(SQLiteTransactionListener transactionListener) {
     wrapped.beginTransactionWithListenerNonExclusive(transactionListener);
+    onTransactionStarted();
   }
 
   public boolean inTransaction() {
@@ -36,6 +36,7 @@ import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatchList;
 import org.thoughtcrime.securesms.database.documents.NetworkFailure;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.database.model.GroupCallUpdateDetailsUtil;
+import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.ReactionRecord;
 import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
@@ -136,6 +137,8 @@ public class SmsDatabase extends MessageDatabase {
     "CREATE INDEX IF NOT EXISTS sms_reactions_unread_index ON " + TABLE_NAME + " (" + REACTIONS_UNREAD + ");"
   };
 
+  private static final long THREAD_SUMMARY_EXCLUDED_BITS = Types.END_SESSION_BIT | Types.KEY_EXCHANGE_IDENTITY_UPDATE_BIT | Types.KEY_EXCHANGE_IDENTITY_VERIFIED_BIT;
+
   private static final String[] MESSAGE_PROJECTION = new String[] {
       ID, THREAD_ID, RECIPIENT_ID, ADDRESS_DEVICE_ID, PERSON,
       DATE_RECEIVED + " AS " + NORMALIZED_DATE_RECEIVED,
@@ -232,23 +235,38 @@ public class SmsDatabase extends MessageDatabase {
 
   @Override
   public int getMessageCountForThreadSummary(long threadId) {
-    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return hasMessagesForThreadSummary(threadId, -1) ? getMessageCountForThread(threadId) : 0;
+  }
 
-    String[] cols  = { "COUNT(*)" };
-    String   query = THREAD_ID + " = ? AND (NOT " + TYPE + " & ? AND TYPE != ?)";
-    long     type  = Types.END_SESSION_BIT | Types.KEY_EXCHANGE_IDENTITY_UPDATE_BIT | Types.KEY_EXCHANGE_IDENTITY_VERIFIED_BIT;
-    String[] args  = SqlUtil.buildArgs(threadId, type, Types.PROFILE_CHANGE_TYPE);
+  /**
+   * SMS only count towards the thread summary if at least one of them is something other than a
+   * session or identity change. This tells you whether that's the case, ignoring the excluded message.
+   */
+  boolean hasMessagesForThreadSummary(long threadId, long excludedMessageId) {
+    SQLiteDatabase db    = databaseHelper.getReadableDatabase();
+    String[]       cols  = { ID };
+    String         query = THREAD_ID + " = ? AND " + ID + " != ? AND (NOT " + TYPE + " & ? AND TYPE != ?)";
+    String[]       args  = SqlUtil.buildArgs(threadId, excludedMessageId, THREAD_SUMMARY_EXCLUDED_BITS, Types.PROFILE_CHANGE_TYPE);
 
-    try (Cursor cursor = db.query(TABLE_NAME, cols, query, args, null, null, null)) {
-      if (cursor != null && cursor.moveToFirst()) {
-        int count = cursor.getInt(0);
-        if (count > 0) {
-          return getMessageCountForThread(threadId);
-        }
-      }
+    try (Cursor cursor = db.query(TABLE_NAME, cols, query, args, null, null, null, "1")) {
+      return cursor != null && cursor.moveToFirst();
     }
+  }
 
-    return 0;
+  static boolean isCountedForThreadSummary(long type) {
+    return (type & THREAD_SUMMARY_EXCLUDED_BITS) == 0 && type != Types.PROFILE_CHANGE_TYPE;
+  }
+
+  /**
+   * Profile changes and GV1 migration events are never used as a thread's snippet.
+   */
+  static boolean isSnippetEligible(long type) {
+    return type != Types.PROFILE_CHANGE_TYPE && type != Types.GV1_MIGRATION_TYPE;
+  }
+
+  @Override
+  protected @Nullable String getSnippetEligibleClause() {
+    return TYPE + " NOT IN (" + Types.PROFILE_CHANGE_TYPE + ", " + Types.GV1_MIGRATION_TYPE + ")";
   }
 
   @Override
@@ -491,12 +509,14 @@ public class SmsDatabase extends MessageDatabase {
             String  columnName       = receiptType.getColumnName();
             boolean isFirstIncrement = cursor.getLong(cursor.getColumnIndexOrThrow(columnName)) == 0;
 
+            long    id               = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+
             database.execSQL("UPDATE " + TABLE_NAME +
                              " SET " + columnName + " = " + columnName + " + 1 WHERE " +
                              ID + " = ?",
-                             new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
+                             new String[] {String.valueOf(id)});
 
-            threadUpdates.add(new ThreadUpdate(threadId, !isFirstIncrement));
+            threadUpdates.add(new ThreadUpdate(threadId, !isFirstIncrement, new MessageId(id, false)));
           }
         }
       }
@@ -866,7 +886,7 @@ public class SmsDatabase extends MessageDatabase {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long messageId    = db.insert(TABLE_NAME, null, values);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForInsertedMessage(threadId, new MessageId(messageId, false), true);
     if (unread) {
       DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, 1);
     }
@@ -931,8 +951,9 @@ public class SmsDatabase extends MessageDatabase {
               values.put(THREAD_ID, threadId);
               values.put(BODY, body);
 
-              db.insert(TABLE_NAME, null, values);
+              long messageId = db.insert(TABLE_NAME, null, values);
 
+              threadDatabase.updateForInsertedMessage(threadId, new MessageId(messageId, false), false, false);
               notifyConversationListeners(threadId);
             });
 
@@ -982,7 +1003,9 @@ public class SmsDatabase extends MessageDatabase {
       values.put(BODY, membershipChange.serialize());
     }
 
-    databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
+    long messageId = databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
+
+    DatabaseFactory.getThreadDatabase(context).updateForInsertedMessage(threadId, new MessageId(messageId, false), false, false);
   }
 
   @Override
@@ -1072,14 +1095,14 @@ public class SmsDatabase extends MessageDatabase {
       }
 
       if (!silent) {
-        DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+        DatabaseFactory.getThreadDatabase(context).updateForInsertedMessage(threadId, new MessageId(messageId, false), true);
       }
 
       if (message.getSubscriptionId() != -1) {
         DatabaseFactory.getRecipientDatabase(context).setDefaultSubscriptionId(recipient.getId(), message.getSubscriptionId());
       }
 
-      notifyConversationListeners(threadId);
+      notifyMessageInsertObservers(threadId, new MessageId(messageId, false));
 
       if (!silent) {
         ApplicationDependencies.getJobManager().add(new TrimThreadJob(threadId));
@@ -1115,7 +1138,7 @@ public class SmsDatabase extends MessageDatabase {
     long messageId = db.insert(TABLE_NAME, null, values);
 
     DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, 1);
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForInsertedMessage(threadId, new MessageId(messageId, false), true);
 
     notifyConversationListeners(threadId);
 
@@ -1161,7 +1184,7 @@ public class SmsDatabase extends MessageDatabase {
     }
 
     if (!message.isIdentityVerified() && !message.isIdentityDefault()) {
-      DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+      DatabaseFactory.getThreadDatabase(context).updateForInsertedMessage(threadId, new MessageId(messageId, false), true);
       DatabaseFactory.getThreadDatabase(context).setLastSeen(threadId);
     }
 
@@ -1213,14 +1236,15 @@ public class SmsDatabase extends MessageDatabase {
   public boolean deleteMessage(long messageId) {
     Log.d(TAG, "deleteMessage(" + messageId + ")");
 
-    SQLiteDatabase db       = databaseHelper.getWritableDatabase();
-    long           threadId = getThreadIdForMessage(messageId);
+    SQLiteDatabase db           = databaseHelper.getWritableDatabase();
+    long           threadId     = getThreadIdForMessage(messageId);
+    long           dateReceived = getDateReceivedForMessage(messageId);
 
     db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
 
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false, true);
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).updateForDeletedMessage(threadId, new MessageId(messageId, false), dateReceived);
 
-    notifyConversationListeners(threadId);
+    notifyMessageRemoveObservers(threadId, new MessageId(messageId, false));
     return threadDeleted;
   }
 
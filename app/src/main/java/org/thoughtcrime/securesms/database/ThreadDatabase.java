@@ -25,6 +25,7 @@ import android.net.Uri;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.annimon.stream.Stream;
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -37,11 +38,13 @@ import org.thoughtcrime.securesms.database.MessageDatabase.MarkedMessageInfo;
 import org.thoughtcrime.securesms.database.RecipientDatabase.RecipientSettings;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
+import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.MmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
 import org.thoughtcrime.securesms.groups.BadGroupIdException;
 import org.thoughtcrime.securesms.groups.GroupId;
+import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.mms.Slide;
 import org.thoughtcrime.securesms.mms.SlideDeck;
 import org.thoughtcrime.securesms.mms.StickerSlide;
@@ -220,6 +223,30 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  private void updateThread(long threadId, long count, @NonNull MessageRecord record, boolean unarchive) {
+    updateThread(threadId, count, ThreadBodyUtil.getFormattedBodyFor(context, record), getAttachmentUriFor(record),
+                 getContentTypeFor(record), getExtrasFor(record),
+                 record.getTimestamp(), record.getDeliveryStatus(), record.getDeliveryReceiptCount(),
+                 record.getType(), unarchive, record.getExpiresIn(), record.getReadReceiptCount());
+  }
+
+  private void updateMessageCount(long threadId, long count, boolean unarchive) {
+    ContentValues contentValues = new ContentValues();
+    contentValues.put(MESSAGE_COUNT, count);
+
+    if (unarchive) {
+      contentValues.put(ARCHIVED, 0);
+    }
+
+    if (count != getConversationMessageCount(threadId)) {
+      contentValues.put(LAST_SCROLLED, 0);
+    }
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.update(TABLE_NAME, contentValues, ID_WHERE, SqlUtil.buildArgs(threadId));
+    notifyConversationListListeners();
+  }
+
   public void updateSnippet(long threadId, String snippet, @Nullable Uri attachment, long date, long type, boolean unarchive) {
     if (isSilentType(type)) {
       return;
@@ -1264,10 +1291,7 @@ public class ThreadDatabase extends Database {
       MessageRecord record;
 
       if (reader != null && (record = reader.getNext()) != null) {
-        updateThread(threadId, count, ThreadBodyUtil.getFormattedBodyFor(context, record), getAttachmentUriFor(record),
-                     getContentTypeFor(record), getExtrasFor(record),
-                     record.getTimestamp(), record.getDeliveryStatus(), record.getDeliveryReceiptCount(),
-                     record.getType(), unarchive, record.getExpiresIn(), record.getReadReceiptCount());
+        updateThread(threadId, count, record, unarchive);
         notifyConversationListListeners();
         return false;
       } else {
@@ -1280,6 +1304,231 @@ public class ThreadDatabase extends Database {
     }
   }
 
+  /**
+   * Brings the thread summary up to date after a single message has been inserted into it.
+   * <p>
+   * Unlike {@link #update(long, boolean)}, this doesn't recount the whole conversation or search it
+   * for its latest message. The new message is applied as a delta on top of the existing summary,
+   * and we only fall back to a full recompute when that delta can't be worked out cheaply, e.g. the
+   * message arrived out of order.
+   */
+  public void updateForInsertedMessage(long threadId, @NonNull MessageId messageId, boolean unarchive) {
+    updateForInsertedMessage(threadId, messageId, unarchive, true);
+  }
+
+  /**
+   * @param allowDeletion Whether the thread may be deleted if, after the insert, nothing in it counts
+   *                      towards the summary. Events like profile changes are inserted into threads
+   *                      that may not have anything else in them yet, and mustn't take them away.
+   */
+  public void updateForInsertedMessage(long threadId, @NonNull MessageId messageId, boolean unarchive, boolean allowDeletion) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      if (!applyInsertedMessage(threadId, messageId, unarchive)) {
+        update(threadId, unarchive, allowDeletion);
+      } else if (SignalStore.internalValues().verifyThreadSummaries()) {
+        verifyThreadSummary(threadId, unarchive);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Brings the thread summary up to date after a single message has been deleted from it. Only
+   * deleting what may have been the snippet requires a full recompute.
+   *
+   * @param dateReceived The received date of the deleted message.
+   * @return True if the thread was deleted because nothing is left in it.
+   */
+  public boolean updateForDeletedMessage(long threadId, @NonNull MessageId messageId, long dateReceived) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    boolean        threadDeleted;
+
+    db.beginTransaction();
+    try {
+      if (!applyDeletedMessage(threadId, messageId, dateReceived)) {
+        threadDeleted = update(threadId, false, true);
+      } else {
+        threadDeleted = false;
+
+        if (SignalStore.internalValues().verifyThreadSummaries()) {
+          verifyThreadSummary(threadId, false);
+        }
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    return threadDeleted;
+  }
+
+  /**
+   * Brings the thread summary up to date after receipts were applied to some of its messages.
+   * <p>
+   * Receipts don't change what's in a thread, so there's nothing to recount. The only part of the
+   * summary they can affect is the snippet's receipt counts, so we look up the snippet and only
+   * rewrite the summary if one of the messages was it.
+   */
+  public void updateForReceipts(long threadId, @NonNull Collection<MessageId> messageIds) {
+    MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
+    int            count          = getConversationMessageCount(threadId);
+
+    if (count == 0) {
+      update(threadId, false);
+      return;
+    }
+
+    try (MmsSmsDatabase.Reader reader = mmsSmsDatabase.readerFor(mmsSmsDatabase.getConversationSnippet(threadId))) {
+      MessageRecord record = reader.getNext();
+
+      if (record == null) {
+        update(threadId, false);
+      } else if (messageIds.contains(new MessageId(record.getId(), record.isMms()))) {
+        updateThread(threadId, count, record, false);
+
+        if (SignalStore.internalValues().verifyThreadSummaries()) {
+          verifyThreadSummary(threadId, false);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return False if the insert couldn't be applied incrementally and a full recompute is needed.
+   */
+  private boolean applyInsertedMessage(long threadId, @NonNull MessageId messageId, boolean unarchive) {
+    MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
+    SmsDatabase    smsDatabase    = DatabaseFactory.getSmsDatabase(context);
+    int            count          = getConversationMessageCount(threadId);
+    MessageRecord  record;
+
+    if (count == 0) {
+      return false;
+    }
+
+    try {
+      record = messageId.isMms() ? DatabaseFactory.getMmsDatabase(context).getMessageRecord(messageId.getId())
+                                 : smsDatabase.getMessageRecord(messageId.getId());
+    } catch (NoSuchMessageException e) {
+      return false;
+    }
+
+    int countDelta = 1;
+
+    // SMS only count towards the summary once there's at least one that isn't a session or identity
+    // change, at which point they all count.
+    if (!messageId.isMms() && !smsDatabase.hasMessagesForThreadSummary(threadId, messageId.getId())) {
+      if (SmsDatabase.isCountedForThreadSummary(record.getType())) {
+        return false;
+      }
+      countDelta = 0;
+    }
+
+    if (!messageId.isMms() && !SmsDatabase.isSnippetEligible(record.getType())) {
+      updateMessageCount(threadId, count + countDelta, unarchive);
+      return true;
+    }
+
+    if (!isNewerThanSnippet(record.getDateReceived(), mmsSmsDatabase.getLatestSnippetDateReceived(threadId, messageId))) {
+      return false;
+    }
+
+    updateThread(threadId, count + countDelta, record, unarchive);
+    return true;
+  }
+
+  /**
+   * @return False if the delete couldn't be applied incrementally and a full recompute is needed.
+   */
+  private boolean applyDeletedMessage(long threadId, @NonNull MessageId messageId, long dateReceived) {
+    int count = getConversationMessageCount(threadId);
+
+    if (count <= 1) {
+      return false;
+    }
+
+    if (!isOlderThanSnippet(dateReceived, DatabaseFactory.getMmsSmsDatabase(context).getLatestSnippetDateReceived(threadId, null))) {
+      return false;
+    }
+
+    if (!messageId.isMms() && !DatabaseFactory.getSmsDatabase(context).hasMessagesForThreadSummary(threadId, -1)) {
+      return false;
+    }
+
+    updateMessageCount(threadId, count - 1, false);
+    return true;
+  }
+
+  /**
+   * An inserted message only becomes the snippet without a recompute if it's strictly newer than
+   * the current snippet. Ties are left to the recompute, which orders them the same way the
+   * snippet query does.
+   *
+   * @param latestSnippetDateReceived The received date of the latest message that could be the
+   *                                  snippet, ignoring the inserted one, or -1 if there isn't one.
+   */
+  @VisibleForTesting
+  static boolean isNewerThanSnippet(long dateReceived, long latestSnippetDateReceived) {
+    return dateReceived > latestSnippetDateReceived;
+  }
+
+  /**
+   * A deleted message can only be left out of a recompute if it can't have been the snippet, which
+   * means something that could be the snippet is still in the thread and strictly newer than it.
+   * Messages that are never the snippet, like profile changes, don't count, since the snippet may be
+   * older than them.
+   *
+   * @param latestSnippetDateReceived The received date of the latest remaining message that could
+   *                                  be the snippet, or -1 if there isn't one.
+   */
+  @VisibleForTesting
+  static boolean isOlderThanSnippet(long dateReceived, long latestSnippetDateReceived) {
+    return dateReceived >= 0 && dateReceived < latestSnippetDateReceived;
+  }
+
+  /**
+   * Recomputes the summary from scratch and complains if it doesn't match what we arrived at
+   * incrementally. Either way, the recomputed summary is what's left behind.
+   */
+  private void verifyThreadSummary(long threadId, boolean unarchive) {
+    ThreadSummary incremental = getThreadSummary(threadId);
+
+    update(threadId, unarchive, false);
+
+    ThreadSummary recomputed = getThreadSummary(threadId);
+
+    if (!Objects.equals(incremental, recomputed)) {
+      Log.w(TAG, "Incremental summary for thread " + threadId + " does not match! Incremental: " + incremental + ", Recomputed: " + recomputed);
+    }
+  }
+
+  private @Nullable ThreadSummary getThreadSummary(long threadId) {
+    SQLiteDatabase db         = databaseHelper.getReadableDatabase();
+    String[]       projection = new String[] { MESSAGE_COUNT, DATE, SNIPPET, SNIPPET_TYPE, STATUS, DELIVERY_RECEIPT_COUNT, READ_RECEIPT_COUNT, EXPIRES_IN };
+
+    try (Cursor cursor = db.query(TABLE_NAME, projection, ID_WHERE, SqlUtil.buildArgs(threadId), null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return new ThreadSummary(CursorUtil.requireInt(cursor, MESSAGE_COUNT),
+                                 CursorUtil.requireLong(cursor, DATE),
+                                 CursorUtil.requireString(cursor, SNIPPET),
+                                 CursorUtil.requireLong(cursor, SNIPPET_TYPE),
+                                 CursorUtil.requireInt(cursor, STATUS),
+                                 CursorUtil.requireInt(cursor, DELIVERY_RECEIPT_COUNT),
+                                 CursorUtil.requireInt(cursor, READ_RECEIPT_COUNT),
+                                 CursorUtil.requireLong(cursor, EXPIRES_IN));
+      }
+    }
+
+    return null;
+  }
+
   public @NonNull ThreadRecord getThreadRecordFor(@NonNull Recipient recipient) {
     return Objects.requireNonNull(getThreadRecord(getThreadIdFor(recipient)));
   }
@@ -1759,6 +2008,61 @@ public class ThreadDatabase extends Database {
     }
   }
 
+  private static final class ThreadSummary {
+    private final int    count;
+    private final long   date;
+    private final String snippet;
+    private final long   snippetType;
+    private final int    status;
+    private final int    deliveryReceiptCount;
+    private final int    readReceiptCount;
+    private final long   expiresIn;
+
+    private ThreadSummary(int count, long date, @Nullable String snippet, long snippetType, int status, int deliveryReceiptCount, int readReceiptCount, long expiresIn) {
+      this.count                = count;
+      this.date                 = date;
+      this.snippet              = snippet;
+      this.snippetType          = snippetType;
+      this.status               = status;
+      this.deliveryReceiptCount = deliveryReceiptCount;
+      this.readReceiptCount     = readReceiptCount;
+      this.expiresIn            = expiresIn;
+    }
+
+    @Override
+    public boolean equals(@Nullable Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      ThreadSummary that = (ThreadSummary) o;
+      return count                == that.count                &&
+             date                 == that.date                 &&
+             snippetType          == that.snippetType          &&
+             status               == that.status               &&
+             deliveryReceiptCount == that.deliveryReceiptCount &&
+             readReceiptCount     == that.readReceiptCount     &&
+             expiresIn            == that.expiresIn            &&
+             Objects.equals(snippet, that.snippet);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(count, date, snippet, snippetType, status, deliveryReceiptCount, readReceiptCount, expiresIn);
+    }
+
+    @Override
+    public @NonNull String toString() {
+      // Leave the snippet itself out of the logs
+      return "{count: " + count +
+             ", date: " + date +
+             ", snippetLength: " + (snippet != null ? snippet.length() : -1) +
+             ", snippetType: " + snippetType +
+             ", status: " + status +
+             ", deliveryReceiptCount: " + deliveryReceiptCount +
+             ", readReceiptCount: " + readReceiptCount +
+             ", expiresIn: " + expiresIn + "}";
+    }
+  }
+
   static final class MergeResult {
     final long    threadId;
     final long    previousThreadId;
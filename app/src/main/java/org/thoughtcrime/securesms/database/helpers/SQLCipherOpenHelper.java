@@ -26,7 +26,9 @@ import org.thoughtcrime.securesms.contacts.avatars.ContactColorsLegacy;
 import org.thoughtcrime.securesms.crypto.DatabaseSecret;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.ContactDiscoveryDatabase;
 import org.thoughtcrime.securesms.database.DraftDatabase;
+import org.thoughtcrime.securesms.database.EarlyMessageDatabase;
 import org.thoughtcrime.securesms.database.GroupDatabase;
 import org.thoughtcrime.securesms.database.GroupReceiptDatabase;
 import org.thoughtcrime.securesms.database.IdentityDatabase;
@@ -37,6 +39,7 @@ import org.thoughtcrime.securesms.database.MentionDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.database.OneTimePreKeyDatabase;
 import org.thoughtcrime.securesms.database.PushDatabase;
+import org.thoughtcrime.securesms.database.ReadConnectionPool;
 import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.database.RemappedRecordsDatabase;
 import org.thoughtcrime.securesms.database.SearchDatabase;
@@ -172,18 +175,26 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
   private static final int WALLPAPER                        = 88;
   private static final int ABOUT                            = 89;
   private static final int SPLIT_SYSTEM_NAMES               = 90;
+  private static final int EARLY_MESSAGE_CACHE              = 91;
+  private static final int CONTACT_DISCOVERY_CACHE          = 92;
 
-  private static final int    DATABASE_VERSION = 90;
+  private static final int    DATABASE_VERSION = 92;
   private static final String DATABASE_NAME    = "signal.db";
 
-  private final Context        context;
-  private final DatabaseSecret databaseSecret;
+  private static final int READ_POOL_SIZE = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  private final Context            context;
+  private final DatabaseSecret     databaseSecret;
+  private final ReadConnectionPool readPool;
+
+  private volatile boolean writeAheadLoggingEnabled;
 
   public SQLCipherOpenHelper(@NonNull Context context, @NonNull DatabaseSecret databaseSecret) {
     super(context, DATABASE_NAME, null, DATABASE_VERSION, new SqlCipherDatabaseHook());
 
     this.context        = context.getApplicationContext();
     this.databaseSecret = databaseSecret;
+    this.readPool       = new ReadConnectionPool(context.getDatabasePath(DATABASE_NAME).getPath(), databaseSecret.asString(), new SqlCipherDatabaseHook(), READ_POOL_SIZE);
   }
 
   @Override
@@ -204,6 +215,8 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
     db.execSQL(StickerDatabase.CREATE_TABLE);
     db.execSQL(StorageKeyDatabase.CREATE_TABLE);
     db.execSQL(MentionDatabase.CREATE_TABLE);
+    db.execSQL(EarlyMessageDatabase.CREATE_TABLE);
+    db.execSQL(ContactDiscoveryDatabase.CREATE_TABLE);
     executeStatements(db, SearchDatabase.CREATE_TABLE);
     executeStatements(db, RemappedRecordsDatabase.CREATE_TABLE);
 
@@ -218,6 +231,7 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
     executeStatements(db, StickerDatabase.CREATE_INDEXES);
     executeStatements(db, StorageKeyDatabase.CREATE_INDEXES);
     executeStatements(db, MentionDatabase.CREATE_INDEXES);
+    executeStatements(db, EarlyMessageDatabase.CREATE_INDEXES);
 
     if (context.getDatabasePath(ClassicOpenHelper.NAME).exists()) {
       ClassicOpenHelper                      legacyHelper = new ClassicOpenHelper(context);
@@ -1265,6 +1279,23 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
         db.execSQL("UPDATE recipient SET system_given_name = system_display_name");
       }
 
+      if (oldVersion < EARLY_MESSAGE_CACHE) {
+        db.execSQL("CREATE TABLE early_message (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                                               "sender_id INTEGER NOT NULL, " +
+                                               "sent_timestamp INTEGER NOT NULL, " +
+                                               "content BLOB NOT NULL, " +
+                                               "date_received INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS early_message_sender_timestamp_index ON early_message (sender_id, sent_timestamp)");
+      }
+
+      if (oldVersion < CONTACT_DISCOVERY_CACHE) {
+        db.execSQL("CREATE TABLE contact_discovery (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                                                   "e164 TEXT UNIQUE NOT NULL, " +
+                                                   "uuid TEXT DEFAULT NULL, " +
+                                                   "registered INTEGER NOT NULL, " +
+                                                   "last_checked INTEGER NOT NULL)");
+      }
+
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
@@ -1277,8 +1308,28 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper implements SignalDatab
     Log.i(TAG, "Upgrade complete. Took " + (System.currentTimeMillis() - startTime) + " ms.");
   }
 
+  @Override
+  public void onOpen(SQLiteDatabase db) {
+    if (!db.isReadOnly()) {
+      writeAheadLoggingEnabled = db.enableWriteAheadLogging();
+      Log.i(TAG, "Write-ahead logging enabled: " + writeAheadLoggingEnabled);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    readPool.close();
+    super.close();
+  }
+
+  /**
+   * Reads made through the returned database run on a pool of read-only connections, so that they
+   * don't have to wait on whatever is being written. Writes, and reads made from within a
+   * transaction, go to the same connection as {@link #getWritableDatabase()}.
+   */
   public org.thoughtcrime.securesms.database.SQLiteDatabase getReadableDatabase() {
-    return new org.thoughtcrime.securesms.database.SQLiteDatabase(getReadableDatabase(databaseSecret.asString()));
+    SQLiteDatabase writer = getWritableDatabase(databaseSecret.asString());
+    return new org.thoughtcrime.securesms.database.SQLiteDatabase(writer, writeAheadLoggingEnabled ? readPool : null);
   }
 
   public org.thoughtcrime.securesms.database.SQLiteDatabase getWritableDatabase() {
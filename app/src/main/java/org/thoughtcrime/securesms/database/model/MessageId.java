@@ -0,0 +1,44 @@
+package org.thoughtcrime.securesms.database.model;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Uniquely identifies a message across the sms and mms tables, since ids alone may collide.
+ */
+public final class MessageId {
+  private final long    id;
+  private final boolean mms;
+
+  public MessageId(long id, boolean mms) {
+    this.id  = id;
+    this.mms = mms;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public boolean isMms() {
+    return mms;
+  }
+
+  @Override
+  public boolean equals(@Nullable Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    MessageId messageId = (MessageId) o;
+    return id  == messageId.id &&
+           mms == messageId.mms;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (id ^ (id >>> 32)) * 31 + (mms ? 1 : 0);
+  }
+
+  @Override
+  public @NonNull String toString() {
+    return "MessageId::" + id + "::" + (mms ? "mms" : "sms");
+  }
+}
@@ -24,6 +24,8 @@ import org.thoughtcrime.securesms.mms.MmsException;
 import org.thoughtcrime.securesms.transport.RetryLaterException;
 import org.thoughtcrime.securesms.util.AttachmentUtil;
 import org.thoughtcrime.securesms.util.Base64;
+import org.thoughtcrime.securesms.util.ByteUnit;
+import org.thoughtcrime.securesms.util.FeatureFlags;
 import org.thoughtcrime.securesms.util.Hex;
 import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libsignal.InvalidMessageException;
@@ -48,6 +50,8 @@ public final class AttachmentDownloadJob extends BaseJob {
   private static final int    MAX_ATTACHMENT_SIZE = 150 * 1024  * 1024;
   private static final String TAG                  = Log.tag(AttachmentDownloadJob.class);
 
+  private static final long MIN_SEGMENTED_DOWNLOAD_SIZE = ByteUnit.MEGABYTES.toBytes(2);
+
   private static final String KEY_MESSAGE_ID    = "message_id";
   private static final String KEY_PART_ROW_ID   = "part_row_id";
   private static final String KEY_PAR_UNIQUE_ID = "part_unique_id";
@@ -169,7 +173,8 @@ public final class AttachmentDownloadJob extends BaseJob {
     try {
       SignalServiceMessageReceiver   messageReceiver = ApplicationDependencies.getSignalServiceMessageReceiver();
       SignalServiceAttachmentPointer pointer         = createAttachmentPointer(attachment);
-      InputStream                    stream          = messageReceiver.retrieveAttachment(pointer, attachmentFile, MAX_ATTACHMENT_SIZE, (total, progress) -> EventBus.getDefault().postSticky(new PartProgressEvent(attachment, PartProgressEvent.Type.NETWORK, total, progress)));
+      int                            maxSegments     = attachment.getSize() >= MIN_SEGMENTED_DOWNLOAD_SIZE ? FeatureFlags.attachmentDownloadSegments() : 1;
+      InputStream                    stream          = messageReceiver.retrieveStreamingAttachment(pointer, attachmentFile, MAX_ATTACHMENT_SIZE, maxSegments, (total, progress) -> EventBus.getDefault().postSticky(new PartProgressEvent(attachment, PartProgressEvent.Type.NETWORK, total, progress)));
 
       database.insertAttachmentsForPlaceholder(messageId, attachmentId, stream);
     } catch (RangeException e) {
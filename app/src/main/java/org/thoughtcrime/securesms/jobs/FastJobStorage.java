@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.jobs;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.annimon.stream.Collectors;
 import com.annimon.stream.Stream;
@@ -21,27 +22,64 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.TreeSet;
+
+/**
+ * An in-memory cache of the {@link JobDatabase}, with indexes that let us find the next eligible
+ * jobs without scanning everything.
+ *
+ * Jobs are kept by id, and each queue keeps its jobs ordered by creation time (ties are broken by
+ * insertion order). Only the first job of each queue, plus any job without a queue, can ever be
+ * eligible to run, so those are also kept in a single ordered set of candidates. That means
+ * finding pending jobs is proportional to the number of queues, rather than the number of jobs.
+ *
+ * Optionally, running state changes, retries and deletes can be written behind. The in-memory
+ * state is always updated immediately and remains the source of truth, while the database writes
+ * are collected into a single transaction. See {@link JobDatabaseWriteBehind} for what that means
+ * for durability.
+ */
 public class FastJobStorage implements JobStorage {
 
   private static final String TAG = Log.tag(FastJobStorage.class);
 
-  private final JobDatabase jobDatabase;
+  private final JobDatabase            jobDatabase;
+  private final JobDatabaseWriteBehind writeBehind;
 
-  private final List<JobSpec>                     jobs;
+  private final Map<String, JobSpec>              jobsById;
+  private final Map<String, Long>                 insertionOrderById;
+  private final Map<String, TreeSet<JobSpec>>     jobsByQueue;
+  private final TreeSet<JobSpec>                  candidates;
   private final Map<String, List<ConstraintSpec>> constraintsByJobId;
   private final Map<String, List<DependencySpec>> dependenciesByJobId;
 
+  private long insertionCount;
+
   public FastJobStorage(@NonNull JobDatabase jobDatabase) {
+    this(jobDatabase, null);
+  }
+
+  /**
+   * @param writeBehindWindowMs How long to collect job state changes before writing them to the
+   *                            database. A value of 0 or less writes every change immediately.
+   */
+  public FastJobStorage(@NonNull JobDatabase jobDatabase, long writeBehindWindowMs) {
+    this(jobDatabase, writeBehindWindowMs > 0 ? new JobDatabaseWriteBehind(jobDatabase, writeBehindWindowMs) : null);
+  }
+
+  @VisibleForTesting
+  FastJobStorage(@NonNull JobDatabase jobDatabase, @Nullable JobDatabaseWriteBehind writeBehind) {
     this.jobDatabase         = jobDatabase;
-    this.jobs                = new ArrayList<>();
+    this.writeBehind         = writeBehind;
+    this.jobsById            = new LinkedHashMap<>();
+    this.insertionOrderById  = new HashMap<>();
+    this.jobsByQueue         = new HashMap<>();
+    this.candidates          = new TreeSet<>(this::compareCreatedOrder);
     this.constraintsByJobId  = new HashMap<>();
     this.dependenciesByJobId = new HashMap<>();
   }
@@ -52,7 +90,9 @@ public class FastJobStorage implements JobStorage {
     List<ConstraintSpec> constraintSpecs = jobDatabase.getAllConstraintSpecs();
     List<DependencySpec> dependencySpecs = jobDatabase.getAllDependencySpecs();
 
-    jobs.addAll(jobSpecs);
+    for (JobSpec jobSpec : jobSpecs) {
+      addJob(jobSpec);
+    }
 
     for (ConstraintSpec constraintSpec: constraintSpecs) {
       List<ConstraintSpec> jobConstraints = Util.getOrDefault(constraintsByJobId, constraintSpec.getJobSpecId(), new LinkedList<>());
@@ -75,7 +115,7 @@ public class FastJobStorage implements JobStorage {
     }
 
     for (FullSpec fullSpec : fullSpecs) {
-      jobs.add(fullSpec.getJobSpec());
+      addJob(fullSpec.getJobSpec());
       constraintsByJobId.put(fullSpec.getJobSpec().getId(), fullSpec.getConstraintSpecs());
       dependenciesByJobId.put(fullSpec.getJobSpec().getId(), fullSpec.getDependencySpecs());
     }
@@ -83,17 +123,12 @@ public class FastJobStorage implements JobStorage {
 
   @Override
   public synchronized @Nullable JobSpec getJobSpec(@NonNull String id) {
-    for (JobSpec jobSpec : jobs) {
-      if (jobSpec.getId().equals(id)) {
-        return jobSpec;
-      }
-    }
-    return null;
+    return jobsById.get(id);
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getAllJobSpecs() {
-    return new ArrayList<>(jobs);
+    return new ArrayList<>(jobsById.values());
   }
 
   @Override
@@ -105,108 +140,90 @@ public class FastJobStorage implements JobStorage {
     } else if (migrationJob.isPresent()) {
       return Collections.emptyList();
     } else {
-      return Stream.of(jobs)
-                   .groupBy(jobSpec -> {
-                     String queueKey = jobSpec.getQueueKey();
-                     if (queueKey != null) {
-                       return queueKey;
-                     } else {
-                       return jobSpec.getId();
-                     }
-                   })
-                   .map(byQueueKey ->
-                     Stream.of(byQueueKey.getValue()).sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                           .findFirst()
-                           .orElse(null)
-                   )
-                   .withoutNulls()
-                   .filter(j -> {
-                     List<DependencySpec> dependencies = dependenciesByJobId.get(j.getId());
-                     return dependencies == null || dependencies.isEmpty();
-                   })
-                   .filterNot(JobSpec::isRunning)
-                   .filter(j -> j.getNextRunAttemptTime() <= currentTime)
-                   .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                   .toList();
+      List<JobSpec> pending = new LinkedList<>();
+
+      for (JobSpec candidate : candidates) {
+        List<DependencySpec> dependencies = dependenciesByJobId.get(candidate.getId());
+
+        if ((dependencies == null || dependencies.isEmpty()) &&
+            !candidate.isRunning()                           &&
+            candidate.getNextRunAttemptTime() <= currentTime)
+        {
+          pending.add(candidate);
+        }
+      }
+
+      return pending;
     }
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getJobsInQueue(@NonNull String queue) {
-    return Stream.of(jobs)
-                 .filter(j -> queue.equals(j.getQueueKey()))
-                 .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                 .toList();
+    TreeSet<JobSpec> queued = jobsByQueue.get(queue);
+    return queued != null ? new ArrayList<>(queued) : new LinkedList<>();
   }
 
   private Optional<JobSpec> getMigrationJob() {
-    return Optional.fromNullable(Stream.of(jobs)
-                                       .filter(j -> Job.Parameters.MIGRATION_QUEUE_KEY.equals(j.getQueueKey()))
-                                       .filter(this::firstInQueue)
-                                       .findFirst()
-                                       .orElse(null));
-  }
-
-  private boolean firstInQueue(@NonNull JobSpec job) {
-    if (job.getQueueKey() == null) {
-      return true;
-    }
-
-    return Stream.of(jobs)
-                 .filter(j -> Util.equals(j.getQueueKey(), job.getQueueKey()))
-                 .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                 .toList()
-                 .get(0)
-                 .equals(job);
+    TreeSet<JobSpec> migrationQueue = jobsByQueue.get(Job.Parameters.MIGRATION_QUEUE_KEY);
+    return migrationQueue != null ? Optional.of(migrationQueue.first()) : Optional.absent();
   }
 
   @Override
   public synchronized int getJobCountForFactory(@NonNull String factoryKey) {
-    return (int) Stream.of(jobs)
+    return (int) Stream.of(jobsById.values())
                        .filter(j -> j.getFactoryKey().equals(factoryKey))
                        .count();
   }
 
   @Override
   public synchronized int getJobCountForFactoryAndQueue(@NonNull String factoryKey, @NonNull String queueKey) {
-    return (int) Stream.of(jobs)
-                       .filter(j -> factoryKey.equals(j.getFactoryKey()) &&
-                                    queueKey.equals(j.getQueueKey()))
+    TreeSet<JobSpec> queued = jobsByQueue.get(queueKey);
+
+    if (queued == null) {
+      return 0;
+    }
+
+    return (int) Stream.of(queued)
+                       .filter(j -> factoryKey.equals(j.getFactoryKey()))
                        .count();
   }
 
   @Override
-  public boolean areQueuesEmpty(@NonNull Set<String> queueKeys) {
-    return Stream.of(jobs)
-                 .noneMatch(j -> j.getQueueKey() != null && queueKeys.contains(j.getQueueKey()));
+  public synchronized boolean areQueuesEmpty(@NonNull Set<String> queueKeys) {
+    for (String queueKey : queueKeys) {
+      if (jobsByQueue.containsKey(queueKey)) {
+        return false;
+      }
+    }
+
+    return true;
   }
 
   @Override
   public synchronized void updateJobRunningState(@NonNull String id, boolean isRunning) {
     JobSpec job = getJobById(id);
     if (job == null || !job.isMemoryOnly()) {
-      jobDatabase.updateJobRunningState(id, isRunning);
+      if (writeBehind != null) {
+        writeBehind.updateJobRunningState(id, isRunning);
+      } else {
+        jobDatabase.updateJobRunningState(id, isRunning);
+      }
     }
 
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      if (existing.getId().equals(id)) {
-        JobSpec updated = new JobSpec(existing.getId(),
-                                      existing.getFactoryKey(),
-                                      existing.getQueueKey(),
-                                      existing.getCreateTime(),
-                                      existing.getNextRunAttemptTime(),
-                                      existing.getRunAttempt(),
-                                      existing.getMaxAttempts(),
-                                      existing.getLifespan(),
-                                      existing.getSerializedData(),
-                                      existing.getSerializedInputData(),
-                                      isRunning,
-                                      existing.isMemoryOnly());
-        iter.set(updated);
-      }
+    if (job != null) {
+      JobSpec updated = new JobSpec(job.getId(),
+                                    job.getFactoryKey(),
+                                    job.getQueueKey(),
+                                    job.getCreateTime(),
+                                    job.getNextRunAttemptTime(),
+                                    job.getRunAttempt(),
+                                    job.getMaxAttempts(),
+                                    job.getLifespan(),
+                                    job.getSerializedData(),
+                                    job.getSerializedInputData(),
+                                    isRunning,
+                                    job.isMemoryOnly());
+      replaceJob(job, updated);
     }
   }
 
@@ -214,57 +231,54 @@ public class FastJobStorage implements JobStorage {
   public synchronized void updateJobAfterRetry(@NonNull String id, boolean isRunning, int runAttempt, long nextRunAttemptTime, @NonNull String serializedData) {
     JobSpec job = getJobById(id);
     if (job == null || !job.isMemoryOnly()) {
-      jobDatabase.updateJobAfterRetry(id, isRunning, runAttempt, nextRunAttemptTime, serializedData);
+      if (writeBehind != null) {
+        writeBehind.updateJobAfterRetry(id, isRunning, runAttempt, nextRunAttemptTime, serializedData);
+      } else {
+        jobDatabase.updateJobAfterRetry(id, isRunning, runAttempt, nextRunAttemptTime, serializedData);
+      }
     }
 
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      if (existing.getId().equals(id)) {
-        JobSpec updated = new JobSpec(existing.getId(),
-                                      existing.getFactoryKey(),
-                                      existing.getQueueKey(),
-                                      existing.getCreateTime(),
-                                      nextRunAttemptTime,
-                                      runAttempt,
-                                      existing.getMaxAttempts(),
-                                      existing.getLifespan(),
-                                      serializedData,
-                                      existing.getSerializedInputData(),
-                                      isRunning,
-                                      existing.isMemoryOnly());
-        iter.set(updated);
-      }
+    if (job != null) {
+      JobSpec updated = new JobSpec(job.getId(),
+                                    job.getFactoryKey(),
+                                    job.getQueueKey(),
+                                    job.getCreateTime(),
+                                    nextRunAttemptTime,
+                                    runAttempt,
+                                    job.getMaxAttempts(),
+                                    job.getLifespan(),
+                                    serializedData,
+                                    job.getSerializedInputData(),
+                                    isRunning,
+                                    job.isMemoryOnly());
+      replaceJob(job, updated);
     }
   }
 
   @Override
   public synchronized void updateAllJobsToBePending() {
+    flushWriteBehind();
     jobDatabase.updateAllJobsToBePending();
 
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      JobSpec updated  = new JobSpec(existing.getId(),
-                                     existing.getFactoryKey(),
-                                     existing.getQueueKey(),
-                                     existing.getCreateTime(),
-                                     existing.getNextRunAttemptTime(),
-                                     existing.getRunAttempt(),
-                                     existing.getMaxAttempts(),
-                                     existing.getLifespan(),
-                                     existing.getSerializedData(),
-                                     existing.getSerializedInputData(),
-                                     false,
-                                     existing.isMemoryOnly());
-      iter.set(updated);
+    for (JobSpec existing : new ArrayList<>(jobsById.values())) {
+      JobSpec updated = new JobSpec(existing.getId(),
+                                    existing.getFactoryKey(),
+                                    existing.getQueueKey(),
+                                    existing.getCreateTime(),
+                                    existing.getNextRunAttemptTime(),
+                                    existing.getRunAttempt(),
+                                    existing.getMaxAttempts(),
+                                    existing.getLifespan(),
+                                    existing.getSerializedData(),
+                                    existing.getSerializedInputData(),
+                                    false,
+                                    existing.isMemoryOnly());
+      replaceJob(existing, updated);
     }
   }
 
   @Override
-  public void updateJobs(@NonNull List<JobSpec> jobSpecs) {
+  public synchronized void updateJobs(@NonNull List<JobSpec> jobSpecs) {
     List<JobSpec> durable = new ArrayList<>(jobSpecs.size());
     for (JobSpec update : jobSpecs) {
       JobSpec found = getJobById(update.getId());
@@ -274,18 +288,15 @@ public class FastJobStorage implements JobStorage {
     }
 
     if (durable.size() > 0) {
+      flushWriteBehind();
       jobDatabase.updateJobs(durable);
     }
 
-    Map<String, JobSpec>  updates = Stream.of(jobSpecs).collect(Collectors.toMap(JobSpec::getId));
-    ListIterator<JobSpec> iter    = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      JobSpec update   = updates.get(existing.getId());
+    for (JobSpec update : jobSpecs) {
+      JobSpec existing = jobsById.get(update.getId());
 
-      if (update != null) {
-        iter.set(update);
+      if (existing != null) {
+        replaceJob(existing, update);
       }
     }
   }
@@ -306,15 +317,18 @@ public class FastJobStorage implements JobStorage {
     }
 
     if (durableIds.size() > 0) {
-      jobDatabase.deleteJobs(durableIds);
+      if (writeBehind != null) {
+        writeBehind.deleteJobs(durableIds);
+      } else {
+        jobDatabase.deleteJobs(durableIds);
+      }
     }
 
-    Set<String> deleteIds = new HashSet<>(jobIds);
+    for (String jobId : jobIds) {
+      JobSpec job = jobsById.get(jobId);
 
-    Iterator<JobSpec> jobIter = jobs.iterator();
-    while (jobIter.hasNext()) {
-      if (deleteIds.contains(jobIter.next().getId())) {
-        jobIter.remove();
+      if (job != null) {
+        removeJob(job);
       }
     }
 
@@ -384,13 +398,106 @@ public class FastJobStorage implements JobStorage {
                  .toList();
   }
 
+  /**
+   * @return The number of database transactions avoided by writing job state changes behind, or 0
+   *         if write-behind is disabled.
+   */
+  public long getWriteBehindTransactionsSaved() {
+    return writeBehind != null ? writeBehind.getTransactionsSaved() : 0;
+  }
+
+  /**
+   * Makes sure any written-behind changes are in the database before we write something that could
+   * otherwise be overwritten by them. Inserts don't need this, since they're always for new jobs.
+   */
+  private void flushWriteBehind() {
+    if (writeBehind != null) {
+      writeBehind.flush();
+    }
+  }
+
   private JobSpec getJobById(@NonNull String id) {
-    for (JobSpec job : jobs) {
-      if (job.getId().equals(id)) {
-        return job;
-      }
+    JobSpec job = jobsById.get(id);
+
+    if (job == null) {
+      Log.w(TAG, "Was looking for job with ID JOB::" + id + ", but it doesn't exist in memory!");
     }
-    Log.w(TAG, "Was looking for job with ID JOB::" + id + ", but it doesn't exist in memory!");
-    return null;
+
+    return job;
+  }
+
+  private void addJob(@NonNull JobSpec job) {
+    jobsById.put(job.getId(), job);
+    insertionOrderById.put(job.getId(), insertionCount++);
+    addToIndexes(job);
+  }
+
+  private void removeJob(@NonNull JobSpec job) {
+    removeFromIndexes(job);
+    jobsById.remove(job.getId());
+    insertionOrderById.remove(job.getId());
+  }
+
+  /**
+   * Swaps in an updated version of a job, keeping its place in line.
+   */
+  private void replaceJob(@NonNull JobSpec existing, @NonNull JobSpec updated) {
+    removeFromIndexes(existing);
+    jobsById.put(updated.getId(), updated);
+    addToIndexes(updated);
+  }
+
+  private void addToIndexes(@NonNull JobSpec job) {
+    if (job.getQueueKey() == null) {
+      candidates.add(job);
+      return;
+    }
+
+    TreeSet<JobSpec> queued = jobsByQueue.get(job.getQueueKey());
+
+    if (queued == null) {
+      queued = new TreeSet<>(this::compareCreatedOrder);
+      jobsByQueue.put(job.getQueueKey(), queued);
+    }
+
+    if (!queued.isEmpty()) {
+      candidates.remove(queued.first());
+    }
+
+    queued.add(job);
+    candidates.add(queued.first());
+  }
+
+  private void removeFromIndexes(@NonNull JobSpec job) {
+    if (job.getQueueKey() == null) {
+      candidates.remove(job);
+      return;
+    }
+
+    TreeSet<JobSpec> queued = jobsByQueue.get(job.getQueueKey());
+
+    if (queued == null) {
+      return;
+    }
+
+    candidates.remove(queued.first());
+    queued.remove(job);
+
+    if (queued.isEmpty()) {
+      jobsByQueue.remove(job.getQueueKey());
+    } else {
+      candidates.add(queued.first());
+    }
+  }
+
+  private int compareCreatedOrder(@NonNull JobSpec j1, @NonNull JobSpec j2) {
+    int createTimeComparison = Long.compare(j1.getCreateTime(), j2.getCreateTime());
+
+    if (createTimeComparison != 0) {
+      return createTimeComparison;
+    }
+
+    return Long.compare(Util.getOrDefault(insertionOrderById, j1.getId(), Long.MAX_VALUE),
+                        Util.getOrDefault(insertionOrderById, j2.getId(), Long.MAX_VALUE));
   }
 }
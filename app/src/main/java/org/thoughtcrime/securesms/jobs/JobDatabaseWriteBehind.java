@@ -0,0 +1,192 @@
+package org.thoughtcrime.securesms.jobs;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.JobDatabase;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers job state changes destined for the {@link JobDatabase} and writes them out together in a
+ * single transaction after a short window. Multiple changes to the same job are collapsed into the
+ * last one, and a delete replaces anything that came before it.
+ *
+ * This is only used for writes that are safe to lose in a crash:
+ * - Running state is reset for every job by {@link FastJobStorage#updateAllJobsToBePending()} on
+ *   the next launch anyway.
+ * - A lost retry update just means the job is retried with its previous attempt count.
+ * - A lost delete means the job is run again, which is the same at-least-once guarantee jobs
+ *   already have if the process dies mid-run.
+ *
+ * Inserts and full job updates are not buffered. Callers should {@link #flush()} before writing
+ * those directly so that a buffered change can never land on top of a newer one.
+ */
+class JobDatabaseWriteBehind {
+
+  private static final String TAG = Log.tag(JobDatabaseWriteBehind.class);
+
+  private static final long LOG_INTERVAL = 100;
+
+  private final JobDatabase              jobDatabase;
+  private final ScheduledExecutorService executor;
+  private final long                     windowMs;
+  private final Object                   flushLock;
+
+  private Map<String, PendingWrite> pending;
+  private boolean                   flushScheduled;
+  private long                      requestedWrites;
+  private long                      transactions;
+
+  JobDatabaseWriteBehind(@NonNull JobDatabase jobDatabase, long windowMs) {
+    this(jobDatabase, Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "signal-JobDatabaseWriteBehind")), windowMs);
+  }
+
+  @VisibleForTesting
+  JobDatabaseWriteBehind(@NonNull JobDatabase jobDatabase, @NonNull ScheduledExecutorService executor, long windowMs) {
+    this.jobDatabase = jobDatabase;
+    this.executor    = executor;
+    this.windowMs    = windowMs;
+    this.flushLock   = new Object();
+    this.pending     = new LinkedHashMap<>();
+  }
+
+  synchronized void updateJobRunningState(@NonNull String id, boolean isRunning) {
+    PendingWrite existing = pending.get(id);
+
+    if (existing != null && existing.deleted) {
+      return;
+    }
+
+    if (existing != null && existing.retried) {
+      existing.isRunning = isRunning;
+    } else {
+      pending.put(id, PendingWrite.runningState(isRunning));
+    }
+
+    onWriteRequested();
+  }
+
+  synchronized void updateJobAfterRetry(@NonNull String id, boolean isRunning, int runAttempt, long nextRunAttemptTime, @NonNull String serializedData) {
+    PendingWrite existing = pending.get(id);
+
+    if (existing != null && existing.deleted) {
+      return;
+    }
+
+    pending.put(id, PendingWrite.retry(isRunning, runAttempt, nextRunAttemptTime, serializedData));
+    onWriteRequested();
+  }
+
+  synchronized void deleteJobs(@NonNull List<String> ids) {
+    for (String id : ids) {
+      pending.put(id, PendingWrite.delete());
+    }
+
+    onWriteRequested();
+  }
+
+  /**
+   * Writes everything that is currently buffered. Blocks until any flush that is already in
+   * progress has finished, so once this returns the database reflects every buffered change.
+   */
+  void flush() {
+    synchronized (flushLock) {
+      Map<String, PendingWrite> writes;
+
+      synchronized (this) {
+        if (pending.isEmpty()) {
+          return;
+        }
+
+        writes         = pending;
+        pending        = new LinkedHashMap<>();
+        flushScheduled = false;
+      }
+
+      List<String> deletes = new ArrayList<>();
+
+      jobDatabase.runInTransaction(() -> {
+        for (Map.Entry<String, PendingWrite> entry : writes.entrySet()) {
+          PendingWrite write = entry.getValue();
+
+          if (write.deleted) {
+            deletes.add(entry.getKey());
+          } else if (write.retried) {
+            jobDatabase.updateJobAfterRetry(entry.getKey(), write.isRunning, write.runAttempt, write.nextRunAttemptTime, write.serializedData);
+          } else {
+            jobDatabase.updateJobRunningState(entry.getKey(), write.isRunning);
+          }
+        }
+
+        if (deletes.size() > 0) {
+          jobDatabase.deleteJobs(deletes);
+        }
+      });
+
+      synchronized (this) {
+        transactions++;
+
+        if (transactions % LOG_INTERVAL == 0) {
+          Log.d(TAG, "Saved " + (requestedWrites - transactions) + " transactions across " + transactions + " batched writes.");
+        }
+      }
+    }
+  }
+
+  /**
+   * @return The number of transactions that would have been performed without batching, minus the
+   *         number that actually were.
+   */
+  synchronized long getTransactionsSaved() {
+    return requestedWrites - transactions;
+  }
+
+  private void onWriteRequested() {
+    requestedWrites++;
+
+    if (!flushScheduled) {
+      flushScheduled = true;
+      executor.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static final class PendingWrite {
+    private final boolean deleted;
+    private final boolean retried;
+    private final int     runAttempt;
+    private final long    nextRunAttemptTime;
+    private final String  serializedData;
+
+    private boolean isRunning;
+
+    private PendingWrite(boolean deleted, boolean retried, boolean isRunning, int runAttempt, long nextRunAttemptTime, @Nullable String serializedData) {
+      this.deleted            = deleted;
+      this.retried            = retried;
+      this.isRunning          = isRunning;
+      this.runAttempt         = runAttempt;
+      this.nextRunAttemptTime = nextRunAttemptTime;
+      this.serializedData     = serializedData;
+    }
+
+    static PendingWrite runningState(boolean isRunning) {
+      return new PendingWrite(false, false, isRunning, 0, 0, null);
+    }
+
+    static PendingWrite retry(boolean isRunning, int runAttempt, long nextRunAttemptTime, @NonNull String serializedData) {
+      return new PendingWrite(false, true, isRunning, runAttempt, nextRunAttemptTime, serializedData);
+    }
+
+    static PendingWrite delete() {
+      return new PendingWrite(true, false, false, 0, 0, null);
+    }
+  }
+}
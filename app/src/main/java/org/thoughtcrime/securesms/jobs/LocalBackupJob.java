@@ -4,12 +4,14 @@ package org.thoughtcrime.securesms.jobs;
 import android.Manifest;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.backup.BackupFileIOError;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
 import org.thoughtcrime.securesms.backup.FullBackupExporter;
+import org.thoughtcrime.securesms.backup.IncrementalBackupBase;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
@@ -30,6 +32,7 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 public final class LocalBackupJob extends BaseJob {
 
@@ -42,6 +45,8 @@ public final class LocalBackupJob extends BaseJob {
   public static final String TEMP_BACKUP_FILE_PREFIX = ".backup";
   public static final String TEMP_BACKUP_FILE_SUFFIX = ".tmp";
 
+  private static final long FULL_BACKUP_INTERVAL = TimeUnit.DAYS.toMillis(7);
+
   public static void enqueue(boolean force) {
     JobManager         jobManager = ApplicationDependencies.getJobManager();
     Parameters.Builder parameters = new Parameters.Builder()
@@ -108,20 +113,33 @@ public final class LocalBackupJob extends BaseJob {
         throw new IOException("Backup password is null");
       }
 
-      File tempFile = File.createTempFile(TEMP_BACKUP_FILE_PREFIX, TEMP_BACKUP_FILE_SUFFIX, backupDirectory);
+      File                  tempFile = File.createTempFile(TEMP_BACKUP_FILE_PREFIX, TEMP_BACKUP_FILE_SUFFIX, backupDirectory);
+      IncrementalBackupBase base     = getUsableBase(backupDirectory);
 
       try {
-        FullBackupExporter.export(context,
-                                  AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
-                                  DatabaseFactory.getBackupDatabase(context),
-                                  tempFile,
-                                  backupPassword,
-                                  this::isCanceled);
+        long                            startTime = System.currentTimeMillis();
+        FullBackupExporter.ExportResult result    = FullBackupExporter.export(context,
+                                                                              AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
+                                                                              DatabaseFactory.getBackupDatabase(context),
+                                                                              tempFile,
+                                                                              backupPassword,
+                                                                              base,
+                                                                              this::isCanceled);
+
+        Log.i(TAG, "Wrote " + (base != null ? "an incremental" : "a full") + " backup of " + tempFile.length() + " bytes in " + (System.currentTimeMillis() - startTime) + " ms.");
 
         if (!tempFile.renameTo(backupFile)) {
           Log.w(TAG, "Failed to rename temp file");
           throw new IOException("Renaming temporary backup file failed!");
         }
+
+        if (base == null) {
+          try {
+            IncrementalBackupBase.write(context, new IncrementalBackupBase(fileName, System.currentTimeMillis(), result.getIv(), result.getAttachments()));
+          } catch (IOException e) {
+            Log.w(TAG, "Failed to save the backup base. The next backup will be a full one.", e);
+          }
+        }
       } catch (FullBackupExporter.BackupCanceledException e) {
         Log.w(TAG, "Backup cancelled");
         throw e;
@@ -142,6 +160,31 @@ public final class LocalBackupJob extends BaseJob {
     }
   }
 
+  /**
+   * @return The full backup that this backup can be written as an increment on top of, or null if
+   *         it's time for a new full backup.
+   */
+  private @Nullable IncrementalBackupBase getUsableBase(@NonNull File backupDirectory) {
+    IncrementalBackupBase base = IncrementalBackupBase.read(context);
+
+    if (base == null) {
+      Log.i(TAG, "No previous full backup. Writing a full backup.");
+      return null;
+    }
+
+    if (!new File(backupDirectory, base.getFileName()).exists()) {
+      Log.i(TAG, "The previous full backup is gone. Writing a full backup.");
+      return null;
+    }
+
+    if (System.currentTimeMillis() - base.getTimestamp() > FULL_BACKUP_INTERVAL || base.getTimestamp() > System.currentTimeMillis()) {
+      Log.i(TAG, "The previous full backup is too old. Writing a full backup.");
+      return null;
+    }
+
+    return base;
+  }
+
   private static void deleteOldTemporaryBackups(@NonNull File backupDirectory) {
     for (File file : backupDirectory.listFiles()) {
       if (file.isFile()) {
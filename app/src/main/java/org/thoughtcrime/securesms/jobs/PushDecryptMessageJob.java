@@ -115,7 +115,7 @@ public final class PushDecryptMessageJob extends BaseJob {
 
   @Override
   public void onRun() throws RetryLaterException {
-    if (needsMigration()) {
+    if (needsMigration(context)) {
       Log.w(TAG, "Migration is still needed.");
       postMigrationNotification();
       throw new RetryLaterException();
@@ -146,7 +146,10 @@ public final class PushDecryptMessageJob extends BaseJob {
   public void onFailure() {
   }
 
-  private boolean needsMigration() {
+  /**
+   * @return True if messages can't be decrypted yet because a migration still needs to happen.
+   */
+  public static boolean needsMigration(@NonNull Context context) {
     return !IdentityKeyUtil.hasIdentityKey(context) || TextSecurePreferences.getNeedsSqlCipherMigration(context);
   }
 
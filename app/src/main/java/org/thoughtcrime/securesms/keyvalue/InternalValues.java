@@ -17,6 +17,7 @@ public final class InternalValues extends SignalStoreValues {
   public static final String GV2_DISABLE_AUTOMIGRATE_NOTIFICATION = "internal.gv2.disable_automigrate_notification";
   public static final String RECIPIENT_DETAILS                    = "internal.recipient_details";
   public static final String FORCE_CENSORSHIP                     = "internal.force_censorship";
+  public static final String VERIFY_THREAD_SUMMARIES              = "internal.verify_thread_summaries";
 
   InternalValues(KeyValueStore store) {
     super(store);
@@ -80,6 +81,13 @@ public final class InternalValues extends SignalStoreValues {
     return FeatureFlags.internalUser() && getBoolean(FORCE_CENSORSHIP, false);
   }
 
+  /**
+   * Recompute thread summaries from scratch after every incremental update and log any mismatch.
+   */
+  public synchronized boolean verifyThreadSummaries() {
+    return FeatureFlags.internalUser() && getBoolean(VERIFY_THREAD_SUMMARIES, false);
+  }
+
   /**
    * Disable initiating a GV1->GV2 auto-migration. You can still recognize a group has been
    * auto-migrated.
@@ -0,0 +1,22 @@
+package org.thoughtcrime.securesms.logsubmit;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.database.QueryProfiler;
+
+public class LogSectionQueryProfile implements LogSection {
+
+  private static final int LIMIT = 25;
+
+  @Override
+  public @NonNull String getTitle() {
+    return "QUERY PROFILE";
+  }
+
+  @Override
+  public @NonNull CharSequence getContent(@NonNull Context context) {
+    return QueryProfiler.getInstance().getReport(LIMIT);
+  }
+}
@@ -14,6 +14,7 @@ import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 
 import org.thoughtcrime.securesms.BuildConfig;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.util.AppSignatureUtil;
 import org.thoughtcrime.securesms.util.ByteUnit;
 import org.thoughtcrime.securesms.util.CensorshipUtil;
@@ -65,6 +66,8 @@ public class LogSectionSystemInfo implements LogSection {
     builder.append("Linked Devices: ").append(TextSecurePreferences.isMultiDevice(context)).append("\n");
     builder.append("First Version : ").append(TextSecurePreferences.getFirstInstallVersion(context)).append("\n");
     builder.append("Days Installed: ").append(VersionTracker.getDaysSinceFirstInstalled(context)).append("\n");
+    builder.append("RecipientCache: ").append(ApplicationDependencies.getRecipientCache().getStats()).append("\n");
+    builder.append("DB Observers  : ").append(getCoalescedNotificationStats()).append("\n");
     builder.append("App           : ");
     try {
       builder.append(pm.getApplicationLabel(pm.getApplicationInfo(context.getPackageName(), 0)))
@@ -84,6 +87,13 @@ public class LogSectionSystemInfo implements LogSection {
     return builder;
   }
 
+  private static @NonNull String getCoalescedNotificationStats() {
+    long raw       = ApplicationDependencies.getDatabaseObserver().getRawCoalescedNotificationCount();
+    long delivered = ApplicationDependencies.getDatabaseObserver().getDeliveredCoalescedNotificationCount();
+
+    return delivered + " delivered of " + raw + " raw notifications";
+  }
+
   private static @NonNull String getMemoryUsage() {
     Runtime info        = Runtime.getRuntime();
     long    totalMemory = info.totalMemory();
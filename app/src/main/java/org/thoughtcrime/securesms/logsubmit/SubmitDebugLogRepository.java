@@ -65,6 +65,7 @@ public class SubmitDebugLogRepository {
     add(new LogSectionKeyPreferences());
     add(new LogSectionPermissions());
     add(new LogSectionTrace());
+    add(new LogSectionQueryProfile());
     add(new LogSectionThreads());
     add(new LogSectionBlockedThreads());
     add(new LogSectionLogcat());
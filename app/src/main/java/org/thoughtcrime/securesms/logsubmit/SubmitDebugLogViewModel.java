@@ -25,15 +25,16 @@ public class SubmitDebugLogViewModel extends ViewModel {
   private final MutableLiveData<Mode>               mode;
 
   private List<LogLine> sourceLines;
-  private byte[]        trace;
+
+  private volatile byte[] trace;
 
   private SubmitDebugLogViewModel() {
     this.repo  = new SubmitDebugLogRepository();
     this.lines = new DefaultValueLiveData<>(Collections.emptyList());
     this.mode  = new MutableLiveData<>();
-    this.trace = Tracer.getInstance().serialize();
 
     repo.getLogLines(result -> {
+      trace       = Tracer.getInstance().serialize();
       sourceLines = result;
       mode.postValue(Mode.NORMAL);
       lines.postValue(sourceLines);
@@ -0,0 +1,107 @@
+package org.thoughtcrime.securesms.messages;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MessageDatabase.SyncMessageId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Collects server delivery receipts and applies them to the database in bulk.
+ *
+ * A single outgoing message in a large group results in a delivery receipt from every member,
+ * typically all arriving back-to-back. Applying each one in its own transaction means a lookup in
+ * both message tables, a thread update and a round of notifications per receipt. Instead, receipts
+ * are held until {@link #flush()} is called and then applied together in a single transaction,
+ * which updates each affected thread once and notifies each affected message once.
+ *
+ * Held receipts are lost if we die, so callers must flush before acknowledging the envelopes the
+ * receipts came from.
+ */
+final class DeliveryReceiptAccumulator {
+
+  private static final String TAG = Log.tag(DeliveryReceiptAccumulator.class);
+
+  private final Writer              writer;
+  private final List<SyncMessageId> pending;
+
+  private long transactionCount;
+  private long receiptCount;
+
+  DeliveryReceiptAccumulator(@NonNull Context context) {
+    this(new DatabaseWriter(context.getApplicationContext()));
+  }
+
+  @VisibleForTesting
+  DeliveryReceiptAccumulator(@NonNull Writer writer) {
+    this.writer  = writer;
+    this.pending = new ArrayList<>();
+  }
+
+  /**
+   * Queues up a receipt to be applied on the next {@link #flush()}. Callers flush after every batch
+   * of envelopes they read, which bounds how many can build up.
+   */
+  synchronized void add(@NonNull SyncMessageId id) {
+    pending.add(id);
+  }
+
+  /**
+   * Applies all pending receipts.
+   */
+  @WorkerThread
+  void flush() {
+    List<SyncMessageId> batch;
+
+    synchronized (this) {
+      if (pending.isEmpty()) {
+        return;
+      }
+
+      batch = new ArrayList<>(pending);
+      pending.clear();
+    }
+
+    writer.write(batch, System.currentTimeMillis());
+
+    long  transactions;
+    float average;
+
+    synchronized (this) {
+      transactionCount++;
+      receiptCount += batch.size();
+
+      transactions = transactionCount;
+      average      = (float) receiptCount / transactionCount;
+    }
+
+    Log.i(TAG, String.format(Locale.US, "Applied %d delivery receipt(s) in one transaction. Average: %.1f receipts/transaction over %d transaction(s).", batch.size(), average, transactions));
+  }
+
+  @VisibleForTesting
+  interface Writer {
+    void write(@NonNull List<SyncMessageId> ids, long timestamp);
+  }
+
+  private static final class DatabaseWriter implements Writer {
+
+    private final Context context;
+
+    private DatabaseWriter(@NonNull Context context) {
+      this.context = context;
+    }
+
+    @Override
+    public void write(@NonNull List<SyncMessageId> ids, long timestamp) {
+      DatabaseFactory.getMmsSmsDatabase(context).incrementDeliveryReceiptCounts(ids, timestamp);
+    }
+  }
+}
@@ -239,10 +239,10 @@ public class IncomingMessageObserver {
           while (isConnectionNecessary()) {
             try {
               Log.d(TAG, "Reading message...");
-              Optional<SignalServiceEnvelope> result = localPipe.readOrEmpty(REQUEST_TIMEOUT_MINUTES, TimeUnit.MINUTES, envelope -> {
-                Log.i(TAG, "Retrieved envelope! " + envelope.getTimestamp());
+              Optional<List<SignalServiceEnvelope>> result = localPipe.readBatchOrEmpty(REQUEST_TIMEOUT_MINUTES, TimeUnit.MINUTES, IncomingMessageProcessor.MAX_WEBSOCKET_BATCH_SIZE, envelopes -> {
+                Log.i(TAG, "Retrieved " + envelopes.size() + " envelope(s)!");
                 try (Processor processor = ApplicationDependencies.getIncomingMessageProcessor().acquire()) {
-                  processor.processEnvelope(envelope);
+                  processor.processEnvelopesIndividually(envelopes);
                 }
               });
 
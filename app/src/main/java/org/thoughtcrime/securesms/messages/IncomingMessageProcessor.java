@@ -8,12 +8,11 @@ import androidx.annotation.Nullable;
 
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.crypto.DatabaseSessionLock;
-import org.thoughtcrime.securesms.crypto.IdentityKeyUtil;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.GroupDatabase;
 import org.thoughtcrime.securesms.database.MessageDatabase.SyncMessageId;
-import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.database.PushDatabase;
+import org.thoughtcrime.securesms.database.SQLiteDatabase;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.groups.BadGroupIdException;
 import org.thoughtcrime.securesms.groups.GroupChangeBusyException;
@@ -22,6 +21,7 @@ import org.thoughtcrime.securesms.jobmanager.Job;
 import org.thoughtcrime.securesms.jobmanager.JobManager;
 import org.thoughtcrime.securesms.jobs.PushDecryptMessageJob;
 import org.thoughtcrime.securesms.jobs.PushProcessMessageJob;
+import org.thoughtcrime.securesms.messages.MessageContentProcessor.MessageState;
 import org.thoughtcrime.securesms.messages.MessageDecryptionUtil.DecryptionResult;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
@@ -29,13 +29,16 @@ import org.thoughtcrime.securesms.util.FeatureFlags;
 import org.thoughtcrime.securesms.util.GroupUtil;
 import org.thoughtcrime.securesms.util.SetUtil;
 import org.thoughtcrime.securesms.util.Stopwatch;
-import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.whispersystems.signalservice.api.SignalSessionLock;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 import org.whispersystems.signalservice.api.messages.SignalServiceGroupContext;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -46,12 +49,19 @@ public class IncomingMessageProcessor {
 
   private static final String TAG = Log.tag(IncomingMessageProcessor.class);
 
-  private final Application   context;
-  private final ReentrantLock lock;
+  /**
+   * The most envelopes to read off the websocket and process as one batch.
+   */
+  public static final int MAX_WEBSOCKET_BATCH_SIZE = 100;
+
+  private final Application                context;
+  private final ReentrantLock              lock;
+  private final DeliveryReceiptAccumulator receiptAccumulator;
 
   public IncomingMessageProcessor(@NonNull Application context) {
-    this.context = context;
-    this.lock    = new ReentrantLock();
+    this.context            = context;
+    this.lock               = new ReentrantLock();
+    this.receiptAccumulator = new DeliveryReceiptAccumulator(context);
   }
 
   /**
@@ -69,14 +79,12 @@ public class IncomingMessageProcessor {
 
   public class Processor implements Closeable {
 
-    private final Context           context;
-    private final MmsSmsDatabase    mmsSmsDatabase;
-    private final JobManager        jobManager;
+    private final Context    context;
+    private final JobManager jobManager;
 
     private Processor(@NonNull Context context) {
-      this.context           = context;
-      this.mmsSmsDatabase    = DatabaseFactory.getMmsSmsDatabase(context);
-      this.jobManager        = ApplicationDependencies.getJobManager();
+      this.context    = context;
+      this.jobManager = ApplicationDependencies.getJobManager();
     }
 
     /**
@@ -84,6 +92,30 @@ public class IncomingMessageProcessor {
      *         one was created. Otherwise null.
      */
     public @Nullable String processEnvelope(@NonNull SignalServiceEnvelope envelope) {
+      try {
+        return processEnvelopeWithoutFlush(envelope);
+      } finally {
+        receiptAccumulator.flush();
+      }
+    }
+
+    /**
+     * Processes each envelope the same way {@link #processEnvelope(SignalServiceEnvelope)} does,
+     * except that delivery receipts are only applied once all of them have been handled, in a single
+     * transaction. Meant for a batch read off the websocket, which mustn't be acknowledged until
+     * this returns.
+     */
+    public void processEnvelopesIndividually(@NonNull List<SignalServiceEnvelope> envelopes) {
+      try {
+        for (SignalServiceEnvelope envelope : envelopes) {
+          processEnvelopeWithoutFlush(envelope);
+        }
+      } finally {
+        receiptAccumulator.flush();
+      }
+    }
+
+    private @Nullable String processEnvelopeWithoutFlush(@NonNull SignalServiceEnvelope envelope) {
       if (envelope.hasSource()) {
         Recipient.externalHighTrustPush(context, envelope.getSourceAddress());
       }
@@ -99,10 +131,113 @@ public class IncomingMessageProcessor {
       }
     }
 
+    /**
+     * Processes a batch of envelopes as a single unit of work. Rather than scheduling a
+     * {@link PushDecryptMessageJob} for each envelope, the whole batch is decrypted under a single
+     * acquisition of the session lock and inside a single database transaction, so that the
+     * protocol store updates for the batch are committed together. Decrypted content is then handed
+     * off to {@link PushProcessMessageJob}s as usual.
+     *
+     * If decryption can't happen right now, or decrypting the batch fails unexpectedly, this falls
+     * back to scheduling a {@link PushDecryptMessageJob} for each envelope, same as
+     * {@link #processEnvelope(SignalServiceEnvelope)}. That way a single bad envelope can only fail
+     * its own job, rather than rolling back and redelivering the whole batch forever.
+     *
+     * @return The number of envelopes that resulted in a job being scheduled.
+     */
+    public int processEnvelopes(@NonNull List<SignalServiceEnvelope> envelopes) {
+      List<SignalServiceEnvelope> messages = new ArrayList<>(envelopes.size());
+
+      for (SignalServiceEnvelope envelope : envelopes) {
+        if (envelope.hasSource()) {
+          Recipient.externalHighTrustPush(context, envelope.getSourceAddress());
+        }
+
+        if (envelope.isReceipt()) {
+          processReceipt(envelope);
+        } else if (envelope.isPreKeySignalMessage() || envelope.isSignalMessage() || envelope.isUnidentifiedSender()) {
+          messages.add(envelope);
+        } else {
+          Log.w(TAG, "Received envelope of unknown type: " + envelope.getType());
+        }
+      }
+
+      receiptAccumulator.flush();
+
+      if (messages.isEmpty()) {
+        return 0;
+      }
+
+      try {
+        return processMessagesBatched(messages);
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Failed to decrypt a batch of " + messages.size() + " message(s). Falling back to decrypting them one at a time.", e);
+        return processMessagesDeferred(messages);
+      }
+    }
+
+    private int processMessagesBatched(@NonNull List<SignalServiceEnvelope> envelopes) {
+      SQLiteDatabase db        = DatabaseFactory.getInstance(context).getWritableDatabase();
+      List<Job>      jobs      = new LinkedList<>();
+      int            processed = 0;
+      long           startTime = System.currentTimeMillis();
+      long           lockTime;
+
+      try (SignalSessionLock.Lock unused = DatabaseSessionLock.INSTANCE.acquire()) {
+        if (needsToEnqueueDecryption()) {
+          Log.d(TAG, "Need to enqueue decryption. Deferring " + envelopes.size() + " message(s).");
+          return processMessagesDeferred(envelopes);
+        }
+
+        long lockStartTime = System.currentTimeMillis();
+
+        db.beginTransaction();
+        try {
+          for (SignalServiceEnvelope envelope : envelopes) {
+            DecryptionResult result = MessageDecryptionUtil.decrypt(context, envelope);
+
+            if (result.getContent() != null || (result.getException() != null && result.getState() != MessageState.NOOP)) {
+              jobs.add(new PushProcessMessageJob(result.getState(), result.getContent(), result.getException(), -1, envelope.getTimestamp()));
+              processed++;
+            }
+
+            jobs.addAll(result.getJobs());
+          }
+
+          // Enqueue before committing. If we die in between, the envelopes haven't been acknowledged
+          // and will be redelivered, and duplicates are dropped during processing. The other way
+          // around, we could lose messages whose session state had already advanced.
+          for (Job job : jobs) {
+            jobManager.add(job);
+          }
+
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+
+        lockTime = System.currentTimeMillis() - lockStartTime;
+      }
+
+      long  totalTime = System.currentTimeMillis() - startTime;
+      float rate      = totalTime > 0 ? envelopes.size() * 1000f / totalTime : envelopes.size() * 1000f;
+
+      Log.i(TAG, String.format(Locale.US, "Decrypted a batch of %d message(s) in %d ms (%.1f messages/sec). Held the session lock for %d ms.", envelopes.size(), totalTime, rate, lockTime));
+
+      return processed;
+    }
+
     private @Nullable String processMessage(@NonNull SignalServiceEnvelope envelope) {
       return processMessageDeferred(envelope);
     }
 
+    private int processMessagesDeferred(@NonNull List<SignalServiceEnvelope> envelopes) {
+      for (SignalServiceEnvelope envelope : envelopes) {
+        processMessageDeferred(envelope);
+      }
+      return envelopes.size();
+    }
+
     private @Nullable String processMessageDeferred(@NonNull SignalServiceEnvelope envelope) {
       Job job = new PushDecryptMessageJob(context, envelope);
       jobManager.add(job);
@@ -167,14 +302,12 @@ public class IncomingMessageProcessor {
 
     private void processReceipt(@NonNull SignalServiceEnvelope envelope) {
       Log.i(TAG, "Received server receipt for " + envelope.getTimestamp());
-      mmsSmsDatabase.incrementDeliveryReceiptCount(new SyncMessageId(Recipient.externalHighTrustPush(context, envelope.getSourceAddress()).getId(), envelope.getTimestamp()),
-                                                   System.currentTimeMillis());
+      receiptAccumulator.add(new SyncMessageId(Recipient.externalHighTrustPush(context, envelope.getSourceAddress()).getId(), envelope.getTimestamp()));
     }
 
     private boolean needsToEnqueueDecryption() {
       return !jobManager.areQueuesEmpty(SetUtil.newHashSet(Job.Parameters.MIGRATION_QUEUE_KEY, PushDecryptMessageJob.QUEUE)) ||
-             !IdentityKeyUtil.hasIdentityKey(context)                                                                        ||
-             TextSecurePreferences.getNeedsSqlCipherMigration(context);
+             PushDecryptMessageJob.needsMigration(context);
     }
 
     private boolean needsToEnqueueProcessing(@NonNull DecryptionResult result) {
@@ -50,6 +50,7 @@ import org.thoughtcrime.securesms.groups.GroupManager;
 import org.thoughtcrime.securesms.groups.GroupNotAMemberException;
 import org.thoughtcrime.securesms.groups.GroupV1MessageProcessor;
 import org.thoughtcrime.securesms.groups.GroupsV1MigrationUtil;
+import org.thoughtcrime.securesms.jobmanager.Job;
 import org.thoughtcrime.securesms.jobmanager.JobManager;
 import org.thoughtcrime.securesms.jobs.AttachmentDownloadJob;
 import org.thoughtcrime.securesms.jobs.AutomaticSessionResetJob;
@@ -1002,11 +1003,11 @@ public final class MessageContentProcessor {
       forceStickerDownloadIfNecessary(insertResult.get().getMessageId(), stickerAttachments);
 
       for (DatabaseAttachment attachment : attachments) {
-        ApplicationDependencies.getJobManager().add(new AttachmentDownloadJob(insertResult.get().getMessageId(), attachment.getAttachmentId(), false));
+        enqueueOnCommit(new AttachmentDownloadJob(insertResult.get().getMessageId(), attachment.getAttachmentId(), false));
       }
 
       ApplicationDependencies.getMessageNotifier().updateNotification(context, insertResult.get().getThreadId());
-      ApplicationDependencies.getJobManager().add(new TrimThreadJob(insertResult.get().getThreadId()));
+      enqueueOnCommit(new TrimThreadJob(insertResult.get().getThreadId()));
 
       if (message.isViewOnce()) {
         ApplicationContext.getInstance(context).getViewOnceMessageManager().scheduleIfNecessary();
@@ -1091,7 +1092,7 @@ public final class MessageContentProcessor {
       forceStickerDownloadIfNecessary(messageId, stickerAttachments);
 
       for (DatabaseAttachment attachment : attachments) {
-        ApplicationDependencies.getJobManager().add(new AttachmentDownloadJob(messageId, attachment.getAttachmentId(), false));
+        enqueueOnCommit(new AttachmentDownloadJob(messageId, attachment.getAttachmentId(), false));
       }
 
       if (message.getMessage().getExpiresInSeconds() > 0) {
@@ -1788,11 +1789,20 @@ public final class MessageContentProcessor {
         downloadJob.doWork();
       } catch (Exception e) {
         warn("Failed to download sticker inline. Scheduling.");
-        ApplicationDependencies.getJobManager().add(downloadJob);
+        enqueueOnCommit(downloadJob);
       }
     }
   }
 
+  /**
+   * Jobs that act on a message we just stored must wait for it to be committed. This may be called
+   * inside a transaction, and the job could otherwise run, on another thread, before the message
+   * can be seen there.
+   */
+  private void enqueueOnCommit(@NonNull Job job) {
+    DatabaseFactory.runOnCommit(context, () -> ApplicationDependencies.getJobManager().add(job));
+  }
+
   private static boolean isUnidentified(@NonNull SentTranscriptMessage message, @NonNull Recipient recipient) {
     boolean unidentified = false;
 
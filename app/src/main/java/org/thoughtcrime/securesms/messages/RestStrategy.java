@@ -26,6 +26,8 @@ public class RestStrategy extends MessageRetrievalStrategy {
 
   private static final String TAG = Log.tag(RestStrategy.class);
 
+  private static final int DECRYPT_BATCH_SIZE = 25;
+
   @WorkerThread
   @Override
   public boolean execute(long timeout) {
@@ -36,13 +38,13 @@ public class RestStrategy extends MessageRetrievalStrategy {
     try (IncomingMessageProcessor.Processor processor = ApplicationDependencies.getIncomingMessageProcessor().acquire()) {
       jobManager.addListener(job -> job.getParameters().getQueue() != null && job.getParameters().getQueue().startsWith(PushProcessMessageJob.QUEUE_PREFIX), queueListener);
 
-      int jobCount = enqueuePushDecryptJobs(processor, startTime, timeout);
+      int jobCount = enqueueMessageJobs(processor, startTime, timeout);
 
       if (jobCount == 0) {
-        Log.d(TAG, "No PushDecryptMessageJobs were enqueued.");
+        Log.d(TAG, "No jobs were enqueued.");
         return true;
       } else {
-        Log.d(TAG, jobCount + " PushDecryptMessageJob(s) were enqueued.");
+        Log.d(TAG, jobCount + " job(s) were enqueued.");
       }
 
       long        timeRemainingMs = blockUntilQueueDrained(PushDecryptMessageJob.QUEUE, TimeUnit.SECONDS.toMillis(10));
@@ -74,7 +76,7 @@ public class RestStrategy extends MessageRetrievalStrategy {
     }
   }
 
-  private static int enqueuePushDecryptJobs(IncomingMessageProcessor.Processor processor, long startTime, long timeout)
+  private static int enqueueMessageJobs(IncomingMessageProcessor.Processor processor, long startTime, long timeout)
       throws IOException
   {
     SignalServiceMessageReceiver receiver = ApplicationDependencies.getSignalServiceMessageReceiver();
@@ -82,14 +84,10 @@ public class RestStrategy extends MessageRetrievalStrategy {
 
     receiver.setSoTimeoutMillis(timeout);
 
-    receiver.retrieveMessages(envelope -> {
-      Log.i(TAG, "Retrieved an envelope." + timeSuffix(startTime));
-      String jobId = processor.processEnvelope(envelope);
-
-      if (jobId != null) {
-        jobCount.incrementAndGet();
-      }
-      Log.i(TAG, "Successfully processed an envelope." + timeSuffix(startTime));
+    receiver.retrieveMessagesInBatches(DECRYPT_BATCH_SIZE, envelopes -> {
+      Log.i(TAG, "Retrieved " + envelopes.size() + " envelope(s)." + timeSuffix(startTime));
+      jobCount.addAndGet(processor.processEnvelopes(envelopes));
+      Log.i(TAG, "Successfully processed " + envelopes.size() + " envelope(s)." + timeSuffix(startTime));
     });
 
     return jobCount.get();
@@ -14,6 +14,7 @@ import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -63,10 +64,10 @@ class WebsocketStrategy extends MessageRetrievalStrategy {
     try {
       while (shouldContinue()) {
         try {
-          Optional<SignalServiceEnvelope> result = pipe.readOrEmpty(timeout, TimeUnit.MILLISECONDS, envelope -> {
-            Log.i(TAG, "Retrieved envelope! " + envelope.getTimestamp() + timeSuffix(startTime));
+          Optional<List<SignalServiceEnvelope>> result = pipe.readBatchOrEmpty(timeout, TimeUnit.MILLISECONDS, IncomingMessageProcessor.MAX_WEBSOCKET_BATCH_SIZE, envelopes -> {
+            Log.i(TAG, "Retrieved " + envelopes.size() + " envelope(s)!" + timeSuffix(startTime));
             try (IncomingMessageProcessor.Processor processor = ApplicationDependencies.getIncomingMessageProcessor().acquire()) {
-              processor.processEnvelope(envelope);
+              processor.processEnvelopesIndividually(envelopes);
             }
           });
 
@@ -43,6 +43,7 @@ public class InternalOptionsPreferenceFragment extends CorrectedPreferenceFragme
     initializeSwitchPreference(preferenceDataStore, InternalValues.GV2_DISABLE_AUTOMIGRATE_INITIATION, SignalStore.internalValues().disableGv1AutoMigrateInitiation());
     initializeSwitchPreference(preferenceDataStore, InternalValues.GV2_DISABLE_AUTOMIGRATE_NOTIFICATION, SignalStore.internalValues().disableGv1AutoMigrateNotification());
     initializeSwitchPreference(preferenceDataStore, InternalValues.FORCE_CENSORSHIP, SignalStore.internalValues().forcedCensorship());
+    initializeSwitchPreference(preferenceDataStore, InternalValues.VERIFY_THREAD_SUMMARIES, SignalStore.internalValues().verifyThreadSummaries());
 
     findPreference("pref_refresh_attributes").setOnPreferenceClickListener(preference -> {
       ApplicationDependencies.getJobManager()
@@ -3,6 +3,7 @@ package org.thoughtcrime.securesms.recipients;
 import android.content.Context;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 import androidx.lifecycle.LifecycleOwner;
 import androidx.lifecycle.LiveData;
@@ -18,10 +19,18 @@ import org.thoughtcrime.securesms.database.GroupDatabase;
 import org.thoughtcrime.securesms.database.GroupDatabase.GroupRecord;
 import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.database.RecipientDatabase.RecipientSettings;
+import org.thoughtcrime.securesms.util.SetUtil;
 import org.thoughtcrime.securesms.util.livedata.LiveDataUtil;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
@@ -189,33 +198,144 @@ public final class LiveRecipient {
     return observableLiveDataResolved;
   }
 
+  /**
+   * Resolves many recipients at once. Rather than loading each recipient (and each member of each
+   * group) with its own query, everything is loaded with a handful of bulk queries.
+   *
+   * Any recipient that can't be resolved this way (e.g. one that's been remapped, or a group with a
+   * member that can't be found) is left unresolved, so that the caller can fall back to resolving it
+   * on its own.
+   */
+  @WorkerThread
+  static void resolveAll(@NonNull Context context, @NonNull Collection<LiveRecipient> liveRecipients) {
+    Map<RecipientId, LiveRecipient> unresolved = new LinkedHashMap<>();
+
+    for (LiveRecipient live : liveRecipients) {
+      Recipient current = live.get();
+
+      if (current.isResolving() && !current.getId().isUnknown()) {
+        unresolved.put(current.getId(), live);
+      }
+    }
+
+    if (unresolved.isEmpty()) {
+      return;
+    }
+
+    RecipientDatabase                   recipientDatabase = DatabaseFactory.getRecipientDatabase(context);
+    Map<RecipientId, RecipientSettings> settings          = recipientDatabase.getRecipientSettings(unresolved.keySet());
+    List<RecipientId>                   groupIds          = Stream.of(settings.values()).filter(s -> s.getGroupId() != null).map(RecipientSettings::getId).toList();
+    Map<RecipientId, GroupRecord>       groups            = groupIds.isEmpty() ? Collections.emptyMap() : DatabaseFactory.getGroupDatabase(context).getGroups(groupIds);
+    Set<RecipientId>                    memberIds         = new LinkedHashSet<>();
+
+    for (GroupRecord group : groups.values()) {
+      memberIds.addAll(Stream.of(group.getMembers()).filterNot(RecipientId::isUnknown).toList());
+    }
+
+    Map<RecipientId, RecipientSettings> memberSettings   = new HashMap<>(settings);
+    Set<RecipientId>                    missingMemberIds = SetUtil.difference(memberIds, settings.keySet());
+
+    if (!missingMemberIds.isEmpty()) {
+      memberSettings.putAll(recipientDatabase.getRecipientSettings(missingMemberIds));
+    }
+
+    Map<RecipientId, Recipient> members = new HashMap<>();
+
+    for (RecipientId memberId : memberIds) {
+      RecipientSettings memberSetting = memberSettings.get(memberId);
+
+      if (memberSetting != null) {
+        members.put(memberId, createIndividual(context, memberSetting));
+      }
+    }
+
+    for (Map.Entry<RecipientId, LiveRecipient> entry : unresolved.entrySet()) {
+      RecipientSettings setting = settings.get(entry.getKey());
+
+      if (setting == null) {
+        continue;
+      }
+
+      Recipient recipient;
+
+      if (setting.getGroupId() != null) {
+        GroupRecord       group          = groups.get(entry.getKey());
+        List<RecipientId> groupMemberIds = group != null ? Stream.of(group.getMembers()).filterNot(RecipientId::isUnknown).toList() : null;
+
+        if (groupMemberIds != null && !members.keySet().containsAll(groupMemberIds)) {
+          continue;
+        }
+
+        recipient = createGroup(setting, Optional.fromNullable(group), groupMemberIds != null ? Stream.of(groupMemberIds).map(members::get).toList() : null);
+      } else {
+        recipient = members.containsKey(entry.getKey()) ? members.get(entry.getKey()) : createIndividual(context, setting);
+      }
+
+      entry.getValue().set(recipient);
+    }
+
+    for (Recipient member : members.values()) {
+      if (!unresolved.containsKey(member.getId()) && member.live().get().isResolving()) {
+        member.live().set(member);
+      }
+    }
+  }
+
   private @NonNull Recipient fetchAndCacheRecipientFromDisk(@NonNull RecipientId id) {
     RecipientSettings settings = recipientDatabase.getRecipientSettings(id);
-    RecipientDetails  details  = settings.getGroupId() != null ? getGroupRecipientDetails(settings)
-                                                               : RecipientDetails.forIndividual(context, settings);
 
-    Recipient recipient = new Recipient(id, details, true);
+    if (settings.getGroupId() != null) {
+      Optional<GroupRecord> groupRecord = groupDatabase.getGroup(settings.getId());
+      List<Recipient>       members     = groupRecord.isPresent() ? fetchAndCacheRecipientsFromDisk(groupRecord.get().getMembers()) : null;
+
+      return createGroup(settings, groupRecord, members);
+    } else {
+      return createIndividual(context, settings);
+    }
+  }
+
+  /**
+   * Loads the provided individual recipients with a single query where possible, falling back to
+   * loading them one at a time for any that can't be found (e.g. ones that have been remapped).
+   */
+  private @NonNull List<Recipient> fetchAndCacheRecipientsFromDisk(@NonNull List<RecipientId> ids) {
+    List<RecipientId>                   filtered = Stream.of(ids).filterNot(RecipientId::isUnknown).toList();
+    Map<RecipientId, RecipientSettings> settings = filtered.isEmpty() ? Collections.emptyMap() : recipientDatabase.getRecipientSettings(filtered);
+    List<Recipient>                     results  = new ArrayList<>(filtered.size());
+
+    for (RecipientId id : filtered) {
+      RecipientSettings setting = settings.get(id);
+      results.add(setting != null && setting.getGroupId() == null ? createIndividual(context, setting) : fetchAndCacheRecipientFromDisk(id));
+    }
+
+    return results;
+  }
+
+  private static @NonNull Recipient createIndividual(@NonNull Context context, @NonNull RecipientSettings settings) {
+    Recipient recipient = new Recipient(settings.getId(), RecipientDetails.forIndividual(context, settings), true);
     RecipientIdCache.INSTANCE.put(recipient);
     return recipient;
   }
 
-  @WorkerThread
-  private @NonNull RecipientDetails getGroupRecipientDetails(@NonNull RecipientSettings settings) {
-    Optional<GroupRecord> groupRecord = groupDatabase.getGroup(settings.getId());
+  private static @NonNull Recipient createGroup(@NonNull RecipientSettings settings, @NonNull Optional<GroupRecord> groupRecord, @Nullable List<Recipient> members) {
+    RecipientDetails details;
 
     if (groupRecord.isPresent()) {
-      String          title    = groupRecord.get().getTitle();
-      List<Recipient> members  = Stream.of(groupRecord.get().getMembers()).filterNot(RecipientId::isUnknown).map(this::fetchAndCacheRecipientFromDisk).toList();
-      Optional<Long>  avatarId = Optional.absent();
+      String         title    = groupRecord.get().getTitle();
+      Optional<Long> avatarId = Optional.absent();
 
       if (groupRecord.get().hasAvatar()) {
         avatarId = Optional.of(groupRecord.get().getAvatarId());
       }
 
-      return new RecipientDetails(title, null,  avatarId, false, false, settings, members);
+      details = new RecipientDetails(title, null,  avatarId, false, false, settings, members);
+    } else {
+      details = new RecipientDetails(null, null, Optional.absent(), false, false, settings, null);
     }
 
-    return new RecipientDetails(null, null, Optional.absent(), false, false, settings, null);
+    Recipient recipient = new Recipient(settings.getId(), details, true);
+    RecipientIdCache.INSTANCE.put(recipient);
+    return recipient;
   }
 
   synchronized void set(@NonNull Recipient recipient) {
@@ -15,16 +15,21 @@ import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.database.RecipientDatabase.MissingRecipientException;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
-import org.thoughtcrime.securesms.util.LRUCache;
+import org.thoughtcrime.securesms.util.ShardedLruCache;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.util.concurrent.FilteredExecutor;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public final class LiveRecipientCache {
 
@@ -33,52 +38,58 @@ public final class LiveRecipientCache {
   private static final int CACHE_MAX      = 1000;
   private static final int CACHE_WARM_MAX = 500;
 
-  private final Context                         context;
-  private final RecipientDatabase               recipientDatabase;
-  private final Map<RecipientId, LiveRecipient> recipients;
-  private final LiveRecipient                   unknown;
-  private final Executor                        executor;
-  private final SQLiteDatabase                  db;
+  private static final long RESOLVE_BATCH_WINDOW_MS = 5;
+
+  private final Context                                     context;
+  private final RecipientDatabase                           recipientDatabase;
+  private final ShardedLruCache<RecipientId, LiveRecipient> recipients;
+  private final LiveRecipient                               unknown;
+  private final Executor                                    executor;
+  private final SQLiteDatabase                              db;
+  private final ScheduledExecutorService                    resolveScheduler;
+  private final Map<RecipientId, PendingResolve>            pendingResolves;
 
   private volatile RecipientId localRecipientId;
 
   private boolean warmedUp;
+  private boolean resolveScheduled;
 
   @SuppressLint("UseSparseArrays")
   public LiveRecipientCache(@NonNull Context context) {
     this.context           = context.getApplicationContext();
     this.recipientDatabase = DatabaseFactory.getRecipientDatabase(context);
-    this.recipients        = new LRUCache<>(CACHE_MAX);
+    this.recipients        = new ShardedLruCache<>(CACHE_MAX);
     this.unknown           = new LiveRecipient(context, Recipient.UNKNOWN);
     this.db                = DatabaseFactory.getInstance(context).getRawDatabase();
     this.executor          = new FilteredExecutor(SignalExecutors.BOUNDED, () -> !db.isDbLockedByCurrentThread());
+    this.resolveScheduler  = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "signal-LiveRecipientCache"));
+    this.pendingResolves   = new LinkedHashMap<>();
   }
 
+  /**
+   * Doesn't block if the recipient is already cached. Otherwise, callers racing to create the same
+   * recipient will all get back the same {@link LiveRecipient}.
+   */
   @AnyThread
-  synchronized @NonNull LiveRecipient getLive(@NonNull RecipientId id) {
+  @NonNull LiveRecipient getLive(@NonNull RecipientId id) {
     if (id.isUnknown()) return unknown;
 
     LiveRecipient live = recipients.get(id);
 
-    if (live == null) {
-      final LiveRecipient newLive = new LiveRecipient(context, new Recipient(id));
-
-      recipients.put(id, newLive);
-
-      MissingRecipientException prettyStackTraceError = new MissingRecipientException(newLive.getId());
+    if (live != null) {
+      return live;
+    }
 
-      executor.execute(() -> {
-        try {
-          newLive.resolve();
-        } catch (MissingRecipientException e) {
-          throw prettyStackTraceError;
-        }
-      });
+    LiveRecipient newLive  = new LiveRecipient(context, new Recipient(id));
+    LiveRecipient existing = recipients.putIfAbsent(id, newLive);
 
-      live = newLive;
+    if (existing != null) {
+      return existing;
     }
 
-    return live;
+    enqueueResolve(Collections.singletonList(newLive));
+
+    return newLive;
   }
 
   /**
@@ -89,29 +100,35 @@ public final class LiveRecipientCache {
    */
   @AnyThread
   public synchronized void addToCache(@NonNull Collection<Recipient> newRecipients) {
+    List<LiveRecipient> needsResolve = new ArrayList<>();
+
     for (Recipient recipient : newRecipients) {
-      LiveRecipient live         = recipients.get(recipient.getId());
-      boolean       needsResolve = false;
+      LiveRecipient live = recipients.get(recipient.getId());
 
       if (live == null) {
-        live = new LiveRecipient(context, recipient);
-        recipients.put(recipient.getId(), live);
-        needsResolve = recipient.isResolving();
-      } else if (live.get().isResolving() || !recipient.isResolving()) {
-        live.set(recipient);
-        needsResolve = recipient.isResolving();
-      }
+        LiveRecipient newLive = new LiveRecipient(context, recipient);
 
-      if (needsResolve) {
-        MissingRecipientException prettyStackTraceError = new MissingRecipientException(recipient.getId());
-        executor.execute(() -> {
-          try {
-            recipient.resolve();
-          } catch (MissingRecipientException e) {
-            throw prettyStackTraceError;
+        live = recipients.putIfAbsent(recipient.getId(), newLive);
+
+        if (live == null) {
+          if (recipient.isResolving()) {
+            needsResolve.add(newLive);
           }
-        });
+          continue;
+        }
       }
+
+      if (live.get().isResolving() || !recipient.isResolving()) {
+        live.set(recipient);
+
+        if (recipient.isResolving()) {
+          needsResolve.add(live);
+        }
+      }
+    }
+
+    if (needsResolve.size() > 0) {
+      enqueueResolve(needsResolve);
     }
   }
 
@@ -169,7 +186,106 @@ public final class LiveRecipientCache {
   }
 
   @AnyThread
-  public synchronized void clear() {
+  public void clear() {
     recipients.clear();
   }
+
+  /**
+   * Resolves the provided recipients in the background. Rather than resolving each one as its own
+   * task, requests are collected for a short window and then resolved together in bulk, so that
+   * something like binding a freshly-opened conversation list only costs a handful of queries.
+   */
+  private void enqueueResolve(@NonNull Collection<LiveRecipient> liveRecipients) {
+    List<PendingResolve> requests = new ArrayList<>(liveRecipients.size());
+
+    for (LiveRecipient live : liveRecipients) {
+      requests.add(new PendingResolve(live, new MissingRecipientException(live.getId())));
+    }
+
+    if (db.isDbLockedByCurrentThread()) {
+      resolve(requests);
+      return;
+    }
+
+    synchronized (pendingResolves) {
+      for (PendingResolve request : requests) {
+        pendingResolves.put(request.live.getId(), request);
+      }
+
+      if (resolveScheduled) {
+        return;
+      }
+
+      resolveScheduled = true;
+    }
+
+    resolveScheduler.schedule(() -> executor.execute(this::resolvePending), RESOLVE_BATCH_WINDOW_MS, TimeUnit.MILLISECONDS);
+  }
+
+  private void resolvePending() {
+    List<PendingResolve> batch;
+
+    synchronized (pendingResolves) {
+      batch            = new ArrayList<>(pendingResolves.values());
+      resolveScheduled = false;
+      pendingResolves.clear();
+    }
+
+    resolve(batch);
+  }
+
+  /**
+   * Resolves the requests in bulk, and then resolves anything that couldn't be resolved in bulk one
+   * at a time. A recipient that can't be found therefore only fails itself, and it fails with the
+   * stack trace of whoever asked for it, rather than that of the background thread.
+   */
+  private void resolve(@NonNull List<PendingResolve> requests) {
+    List<LiveRecipient> liveRecipients = new ArrayList<>(requests.size());
+
+    for (PendingResolve request : requests) {
+      liveRecipients.add(request.live);
+    }
+
+    try {
+      LiveRecipient.resolveAll(context, liveRecipients);
+    } catch (MissingRecipientException e) {
+      Log.w(TAG, "Failed to resolve " + liveRecipients.size() + " recipient(s) in bulk. Resolving them one at a time.", e);
+    }
+
+    MissingRecipientException prettyStackTraceError = null;
+
+    for (PendingResolve request : requests) {
+      try {
+        request.live.resolve();
+      } catch (MissingRecipientException e) {
+        Log.w(TAG, "Failed to resolve " + request.live.getId(), e);
+
+        if (prettyStackTraceError == null) {
+          prettyStackTraceError = request.prettyStackTraceError;
+        }
+      }
+    }
+
+    if (prettyStackTraceError != null) {
+      throw prettyStackTraceError;
+    }
+  }
+
+  /**
+   * @return A human-readable summary of the cache's size and hit rate.
+   */
+  @AnyThread
+  public @NonNull String getStats() {
+    return recipients.getStats();
+  }
+
+  private static final class PendingResolve {
+    private final LiveRecipient             live;
+    private final MissingRecipientException prettyStackTraceError;
+
+    private PendingResolve(@NonNull LiveRecipient live, @NonNull MissingRecipientException prettyStackTraceError) {
+      this.live                  = live;
+      this.prettyStackTraceError = prettyStackTraceError;
+    }
+  }
 }
@@ -10,6 +10,7 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.provider.DocumentsContract;
 import android.text.Editable;
 import android.text.Spanned;
 import android.text.TextWatcher;
@@ -61,6 +62,7 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
 
   private static final String TAG                            = Log.tag(RestoreBackupFragment.class);
   private static final short  OPEN_DOCUMENT_TREE_RESULT_CODE = 13782;
+  private static final short  OPEN_BASE_BACKUP_RESULT_CODE   = 13783;
 
   private TextView               restoreBackupSize;
   private TextView               restoreBackupTime;
@@ -68,6 +70,9 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
   private CircularProgressButton restoreButton;
   private View                   skipRestoreButton;
 
+  private BackupUtil.BackupInfo pendingBackup;
+  private String                pendingPassphrase;
+
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container,
                            Bundle savedInstanceState) {
@@ -140,6 +145,16 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
 
       Navigation.findNavController(requireView())
                 .navigate(RestoreBackupFragmentDirections.actionBackupRestored());
+    } else if (requestCode == OPEN_BASE_BACKUP_RESULT_CODE && resultCode == Activity.RESULT_OK && data != null && data.getData() != null && pendingBackup != null) {
+      Log.i(TAG, "User chose a base backup. Retrying the restore.");
+
+      setSpinning(restoreButton);
+      skipRestoreButton.setVisibility(View.INVISIBLE);
+
+      restoreAsynchronously(requireContext(), pendingBackup, data.getData(), pendingPassphrase);
+
+      pendingBackup     = null;
+      pendingPassphrase = null;
     }
   }
 
@@ -223,7 +238,7 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
 
                      String passphrase = prompt.getText().toString();
 
-                     restoreAsynchronously(context, backup, passphrase);
+                     restoreAsynchronously(context, backup, null, passphrase);
                    })
                    .setNegativeButton(android.R.string.cancel, null)
                    .show();
@@ -234,9 +249,12 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
   @SuppressLint("StaticFieldLeak")
   private void restoreAsynchronously(@NonNull Context context,
                                      @NonNull BackupUtil.BackupInfo backup,
+                                     @Nullable Uri baseBackupUri,
                                      @NonNull String passphrase)
   {
     new AsyncTask<Void, Void, BackupImportResult>() {
+      private String unavailableBaseBackup;
+
       @Override
       protected BackupImportResult doInBackground(Void... voids) {
         try {
@@ -249,6 +267,7 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
                                         AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
                                         database,
                                         backup.getUri(),
+                                        baseBackupUri,
                                         passphrase);
 
           DatabaseFactory.upgradeRestored(context, database);
@@ -263,6 +282,13 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
         } catch (FullBackupImporter.DatabaseDowngradeException e) {
           Log.w(TAG, "Failed due to the backup being from a newer version of Signal.", e);
           return BackupImportResult.FAILURE_VERSION_DOWNGRADE;
+        } catch (FullBackupImporter.UnsupportedBackupVersionException e) {
+          Log.w(TAG, "Failed due to the backup format being from a newer version of Signal.", e);
+          return BackupImportResult.FAILURE_VERSION_DOWNGRADE;
+        } catch (FullBackupImporter.BaseBackupUnavailableException e) {
+          Log.w(TAG, "Failed due to the base of the incremental backup being unavailable.", e);
+          unavailableBaseBackup = e.getBaseBackup();
+          return BackupImportResult.FAILURE_BASE_BACKUP_UNAVAILABLE;
         } catch (IOException e) {
           Log.w(TAG, e);
           return BackupImportResult.FAILURE_UNKNOWN;
@@ -283,6 +309,9 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
           case FAILURE_VERSION_DOWNGRADE:
             Toast.makeText(context, R.string.RegistrationActivity_backup_failure_downgrade, Toast.LENGTH_LONG).show();
             break;
+          case FAILURE_BASE_BACKUP_UNAVAILABLE:
+            displayChooseBaseBackupDialog(context, backup, passphrase, unavailableBaseBackup);
+            break;
           case FAILURE_UNKNOWN:
             Toast.makeText(context, R.string.RegistrationActivity_incorrect_backup_passphrase, Toast.LENGTH_LONG).show();
             break;
@@ -359,9 +388,42 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
                    .show();
   }
 
+  /**
+   * Incremental backups need the full backup they were written on top of. If it isn't where we
+   * looked, we let the user point us to it.
+   */
+  private void displayChooseBaseBackupDialog(@NonNull Context context,
+                                             @NonNull BackupUtil.BackupInfo backup,
+                                             @NonNull String passphrase,
+                                             @NonNull String baseBackup)
+  {
+    new AlertDialog.Builder(context)
+                   .setTitle(R.string.RestoreBackupFragment__backup_incomplete)
+                   .setMessage(context.getString(R.string.RestoreBackupFragment__this_backup_also_needs_s, baseBackup))
+                   .setPositiveButton(R.string.RestoreBackupFragment__choose_file, (dialog, which) -> {
+                     pendingBackup     = backup;
+                     pendingPassphrase = passphrase;
+
+                     Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+
+                     intent.setType("application/octet-stream");
+                     intent.addCategory(Intent.CATEGORY_OPENABLE);
+                     intent.putExtra(Intent.EXTRA_LOCAL_ONLY, true);
+
+                     if (Build.VERSION.SDK_INT >= 26) {
+                       intent.putExtra(DocumentsContract.EXTRA_INITIAL_URI, SignalStore.settings().getLatestSignalBackupDirectory());
+                     }
+
+                     startActivityForResult(intent, OPEN_BASE_BACKUP_RESULT_CODE);
+                   })
+                   .setNegativeButton(android.R.string.cancel, null)
+                   .show();
+  }
+
   private enum BackupImportResult {
     SUCCESS,
     FAILURE_VERSION_DOWNGRADE,
+    FAILURE_BASE_BACKUP_UNAVAILABLE,
     FAILURE_UNKNOWN
   }
 
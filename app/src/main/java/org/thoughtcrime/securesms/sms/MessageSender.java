@@ -194,6 +194,8 @@ public class MessageSender {
     List<Long>                 messageIds             = new ArrayList<>(messages.size());
     List<String>               messageDependsOnIds    = new ArrayList<>(preUploadJobIds);
 
+    // Jobs are only enqueued once the transaction commits. They may run on another thread, which
+    // reads from a connection that can't see these messages until then.
     mmsDatabase.beginTransaction();
     try {
       OutgoingSecureMediaMessage primaryMessage   = messages.get(0);
@@ -231,7 +233,7 @@ public class MessageSender {
 
         for (int i = 0; i < attachmentCopies.size(); i++) {
           Job copyJob = new AttachmentCopyJob(preUploadAttachmentIds.get(i), attachmentCopies.get(i));
-          jobManager.add(copyJob, preUploadJobIds);
+          DatabaseFactory.runOnCommit(context, () -> jobManager.add(copyJob, preUploadJobIds));
           messageDependsOnIds.add(copyJob.getId());
         }
       }
@@ -242,11 +244,11 @@ public class MessageSender {
         Recipient                  recipient = message.getRecipient();
 
         if (isLocalSelfSend(context, recipient, false)) {
-          sendLocalMediaSelf(context, messageId);
+          DatabaseFactory.runOnCommit(context, () -> sendLocalMediaSelf(context, messageId));
         } else if (isGroupPushSend(recipient)) {
-          jobManager.add(new PushGroupSendJob(messageId, recipient.getId(), null, true), messageDependsOnIds, recipient.getId().toQueueKey());
+          DatabaseFactory.runOnCommit(context, () -> jobManager.add(new PushGroupSendJob(messageId, recipient.getId(), null, true), messageDependsOnIds, recipient.getId().toQueueKey()));
         } else {
-          jobManager.add(new PushMediaSendJob(messageId, recipient), messageDependsOnIds, recipient.getId().toQueueKey());
+          DatabaseFactory.runOnCommit(context, () -> jobManager.add(new PushMediaSendJob(messageId, recipient), messageDependsOnIds, recipient.getId().toQueueKey()));
         }
       }
 
@@ -11,11 +11,14 @@ import android.text.TextUtils;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
 import androidx.documentfile.provider.DocumentFile;
 
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
+import org.thoughtcrime.securesms.backup.FullBackupImporter;
+import org.thoughtcrime.securesms.backup.IncrementalBackupBase;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
@@ -23,13 +26,16 @@ import org.thoughtcrime.securesms.permissions.Permissions;
 import org.whispersystems.libsignal.util.ByteUtil;
 
 import java.io.File;
+import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.Set;
 
 public class BackupUtil {
 
@@ -37,6 +43,8 @@ public class BackupUtil {
 
   public static final int PASSPHRASE_LENGTH = 30;
 
+  private static final int BACKUPS_TO_KEEP = 2;
+
   public static @NonNull String getLastBackupTime(@NonNull Context context, @NonNull Locale locale) {
     try {
       BackupInfo backup = getLatestBackup();
@@ -91,18 +99,82 @@ public class BackupUtil {
     Log.i(TAG, "Deleting older backups");
 
     try {
-      List<BackupInfo> backups = getAllBackupsNewestFirst();
+      Context context    = ApplicationDependencies.getApplication();
+      String  passphrase = BackupPassphrase.get(context);
 
-      for (int i = 2; i < backups.size(); i++) {
-        backups.get(i).delete();
+      for (BackupInfo backup : getBackupsToDelete(getAllBackupsNewestFirst(), b -> getBaseBackupName(context, b, passphrase))) {
+        backup.delete();
       }
     } catch (NoExternalStorageException e) {
       Log.w(TAG, e);
     }
   }
 
+  /**
+   * Everything but the newest {@link #BACKUPS_TO_KEEP} backups, except for the full backups that
+   * the ones we keep were written on top of. Without them, the incremental ones can't be restored.
+   */
+  @VisibleForTesting
+  static @NonNull List<BackupInfo> getBackupsToDelete(@NonNull List<BackupInfo> backupsNewestFirst, @NonNull BaseBackupLookup lookup) {
+    Set<String>      bases    = new HashSet<>();
+    List<BackupInfo> toDelete = new ArrayList<>();
+
+    for (int i = 0; i < Math.min(BACKUPS_TO_KEEP, backupsNewestFirst.size()); i++) {
+      String base = lookup.getBaseBackupName(backupsNewestFirst.get(i));
+
+      if (base != null) {
+        bases.add(base);
+      }
+    }
+
+    for (int i = BACKUPS_TO_KEEP; i < backupsNewestFirst.size(); i++) {
+      BackupInfo backup = backupsNewestFirst.get(i);
+      String     base   = getBaseOf(backup, bases);
+
+      if (base != null) {
+        Log.i(TAG, "Keeping " + base + ", since newer backups depend on it.");
+      } else {
+        toDelete.add(backup);
+      }
+    }
+
+    return toDelete;
+  }
+
+  /**
+   * @return The entry in bases that names the backup, if any. Depending on the type of Uri, the last
+   *         path segment can be more than just the file name.
+   */
+  private static @Nullable String getBaseOf(@NonNull BackupInfo backup, @NonNull Set<String> bases) {
+    String name = backup.getUri().getLastPathSegment();
+
+    if (name != null) {
+      for (String base : bases) {
+        if (name.endsWith(base)) {
+          return base;
+        }
+      }
+    }
+
+    return null;
+  }
+
+  private static @Nullable String getBaseBackupName(@NonNull Context context, @NonNull BackupInfo backup, @Nullable String passphrase) {
+    if (passphrase == null) {
+      return null;
+    }
+
+    try {
+      return FullBackupImporter.getBaseBackupName(context, backup.getUri(), passphrase);
+    } catch (IOException | SecurityException e) {
+      Log.w(TAG, "Couldn't read the backup. Assuming it doesn't depend on another one.", e);
+      return null;
+    }
+  }
+
   public static void disableBackups(@NonNull Context context) {
     BackupPassphrase.set(context, null);
+    IncrementalBackupBase.clear(context);
     TextSecurePreferences.setBackupEnabled(context, false);
     BackupUtil.deleteAllBackups();
 
@@ -276,12 +348,18 @@ public class BackupUtil {
     }
   }
 
+  @VisibleForTesting
+  interface BaseBackupLookup {
+    @Nullable String getBaseBackupName(@NonNull BackupInfo backup);
+  }
+
   public static class BackupInfo {
 
     private final long timestamp;
     private final long size;
     private final Uri  uri;
 
+    @VisibleForTesting
     BackupInfo(long timestamp, long size, Uri uri) {
       this.timestamp = timestamp;
       this.size      = size;
@@ -1,39 +1,97 @@
 package org.thoughtcrime.securesms.util;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
 
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.EarlyMessageDatabase;
 import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.whispersystems.libsignal.util.Pair;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.messages.SignalServiceContent;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 /**
  * Sometimes a message that is referencing another message can arrive out of order. In these cases,
- * we want to temporarily hold on (i.e. keep a memory cache) to these messages and apply them after
- * we receive the referenced message.
+ * we want to temporarily hold on to these messages and apply them after we receive the referenced
+ * message.
+ *
+ * Everything we hold on to is written to the {@link EarlyMessageDatabase}, so it survives process
+ * death. On top of that, we keep:
+ * - An index of every message we have early content for, so that the common case of a message with
+ *   nothing waiting on it never has to touch the database.
+ * - A small memory cache of the content itself, so that the common case of content arriving just
+ *   slightly out of order doesn't have to be read back from disk.
  */
 public final class EarlyMessageCache {
 
-  private final LRUCache<MessageId, List<SignalServiceContent>> cache = new LRUCache<>(100);
+  private static final String TAG = Log.tag(EarlyMessageCache.class);
+
+  private static final int MEMORY_CACHE_SIZE = 100;
+  private static final int MAX_DISK_ENTRIES  = 1000;
+  private static final int DISK_TRIM_SLACK   = 100;
+
+  private final EarlyMessageDatabase                       database;
+  private final Map<MessageId, List<SignalServiceContent>> memoryCache;
+
+  private Map<MessageId, Integer> index;
+  private int                     diskEntries;
+
+  private long memoryHits;
+  private long diskHits;
+  private long misses;
+  private long memoryEvictions;
+  private long diskEvictions;
+
+  public EarlyMessageCache(@NonNull EarlyMessageDatabase database) {
+    this.database    = database;
+    this.memoryCache = new LinkedHashMap<MessageId, List<SignalServiceContent>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<MessageId, List<SignalServiceContent>> eldest) {
+        if (size() > MEMORY_CACHE_SIZE) {
+          memoryEvictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
 
   /**
    * @param targetSender        The sender of the message this message depends on.
    * @param targetSentTimestamp The sent timestamp of the message this message depends on.
    */
-  public void store(@NonNull RecipientId targetSender, long targetSentTimestamp, @NonNull SignalServiceContent content) {
-    MessageId                  messageId   = new MessageId(targetSender, targetSentTimestamp);
-    List<SignalServiceContent> contentList = cache.get(messageId);
+  @WorkerThread
+  public synchronized void store(@NonNull RecipientId targetSender, long targetSentTimestamp, @NonNull SignalServiceContent content) {
+    ensureIndexLoaded();
+
+    MessageId messageId = new MessageId(targetSender, targetSentTimestamp);
+    int       count     = Util.getOrDefault(index, messageId, 0);
+
+    database.insert(targetSender, targetSentTimestamp, content.serialize());
 
-    if (contentList == null) {
+    index.put(messageId, count + 1);
+    diskEntries++;
+
+    List<SignalServiceContent> contentList = memoryCache.get(messageId);
+
+    if (contentList != null) {
+      contentList.add(content);
+    } else if (count == 0) {
       contentList = new LinkedList<>();
+      contentList.add(content);
+      memoryCache.put(messageId, contentList);
     }
 
-    contentList.add(content);
-
-    cache.put(messageId, contentList);
+    if (diskEntries > MAX_DISK_ENTRIES + DISK_TRIM_SLACK) {
+      trimDisk();
+    }
   }
 
   /**
@@ -41,8 +99,123 @@ public final class EarlyMessageCache {
    * @param sender        The sender of the message in question.
    * @param sentTimestamp The sent timestamp of the message in question.
    */
-  public Optional<List<SignalServiceContent>> retrieve(@NonNull RecipientId sender, long sentTimestamp) {
-    return Optional.fromNullable(cache.remove(new MessageId(sender, sentTimestamp)));
+  @WorkerThread
+  public synchronized Optional<List<SignalServiceContent>> retrieve(@NonNull RecipientId sender, long sentTimestamp) {
+    ensureIndexLoaded();
+
+    MessageId messageId = new MessageId(sender, sentTimestamp);
+    Integer   count     = index.remove(messageId);
+
+    if (count == null) {
+      misses++;
+      return Optional.absent();
+    }
+
+    diskEntries -= count;
+
+    List<SignalServiceContent> contentList = memoryCache.remove(messageId);
+
+    if (contentList != null) {
+      database.delete(sender, sentTimestamp);
+      memoryHits++;
+    } else {
+      contentList = new LinkedList<>();
+
+      for (byte[] serialized : database.remove(sender, sentTimestamp)) {
+        contentList.add(SignalServiceContent.deserialize(serialized));
+      }
+
+      diskHits++;
+    }
+
+    Log.d(TAG, "Retrieved early content. " + getStats());
+
+    return Optional.of(contentList);
+  }
+
+  public synchronized long getMemoryHitCount() {
+    return memoryHits;
+  }
+
+  public synchronized long getDiskHitCount() {
+    return diskHits;
+  }
+
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /**
+   * @return The number of times content was pushed out of the memory cache. This content is still
+   *         available on disk.
+   */
+  public synchronized long getMemoryEvictionCount() {
+    return memoryEvictions;
+  }
+
+  /**
+   * @return The number of pieces of content that were dropped because we were holding on to too
+   *         many. This content is lost.
+   */
+  public synchronized long getDiskEvictionCount() {
+    return diskEvictions;
+  }
+
+  private void ensureIndexLoaded() {
+    if (index != null) {
+      return;
+    }
+
+    index = new HashMap<>();
+
+    for (Pair<RecipientId, Long> key : database.getAllKeys()) {
+      MessageId messageId = new MessageId(key.first(), key.second());
+      index.put(messageId, Util.getOrDefault(index, messageId, 0) + 1);
+    }
+
+    diskEntries = 0;
+
+    for (int count : index.values()) {
+      diskEntries += count;
+    }
+
+    if (diskEntries > 0) {
+      Log.i(TAG, "Loaded " + diskEntries + " early content(s) from disk for " + index.size() + " message(s).");
+    }
+  }
+
+  /**
+   * Drops the oldest content from disk. Any message that loses content this way is also dropped
+   * from the memory cache, so a later retrieve reads back exactly what's left on disk.
+   */
+  private void trimDisk() {
+    List<Pair<RecipientId, Long>> deleted = database.deleteOldest(diskEntries - MAX_DISK_ENTRIES);
+
+    for (Pair<RecipientId, Long> key : deleted) {
+      MessageId messageId = new MessageId(key.first(), key.second());
+      Integer   count     = index.get(messageId);
+
+      memoryCache.remove(messageId);
+
+      if (count == null) {
+        continue;
+      }
+
+      if (count > 1) {
+        index.put(messageId, count - 1);
+      } else {
+        index.remove(messageId);
+      }
+    }
+
+    diskEntries   -= deleted.size();
+    diskEvictions += deleted.size();
+
+    Log.w(TAG, "Dropped " + deleted.size() + " early content(s) to stay under the size limit. " + getStats());
+  }
+
+  private @NonNull String getStats() {
+    return "[memoryHits: " + memoryHits + ", diskHits: " + diskHits + ", misses: " + misses + ", memoryEvictions: " + memoryEvictions + ", diskEvictions: " + diskEvictions + "]";
   }
 
   private static final class MessageId {
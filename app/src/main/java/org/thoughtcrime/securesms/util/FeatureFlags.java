@@ -12,6 +12,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.BuildConfig;
+import org.thoughtcrime.securesms.database.QueryProfiler;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.groups.SelectionLimits;
 import org.thoughtcrime.securesms.jobs.RemoteConfigRefreshJob;
@@ -74,6 +75,10 @@ public final class FeatureFlags {
   private static final String ANIMATED_STICKER_MIN_TOTAL_MEMORY = "android.animatedStickerMinTotalMemory";
   private static final String MESSAGE_PROCESSOR_ALARM_INTERVAL  = "android.messageProcessor.alarmIntervalMins";
   private static final String MESSAGE_PROCESSOR_DELAY           = "android.messageProcessor.foregroundDelayMs";
+  private static final String JOB_STORAGE_WRITE_BEHIND          = "android.jobStorage.writeBehindMs";
+  private static final String QUERY_PROFILER                    = "android.queryProfiler";
+  private static final String ATTACHMENT_DOWNLOAD_SEGMENTS      = "android.attachmentDownloadSegments";
+  private static final String CDS_CACHE_MAX_AGE                 = "android.cds.cacheMaxAge.hours";
 
   /**
    * We will only store remote values for flags in this set. If you want a flag to be controllable
@@ -103,7 +108,11 @@ public final class FeatureFlags {
       ANIMATED_STICKER_MIN_MEMORY,
       ANIMATED_STICKER_MIN_TOTAL_MEMORY,
       MESSAGE_PROCESSOR_ALARM_INTERVAL,
-      MESSAGE_PROCESSOR_DELAY
+      MESSAGE_PROCESSOR_DELAY,
+      JOB_STORAGE_WRITE_BEHIND,
+      QUERY_PROFILER,
+      ATTACHMENT_DOWNLOAD_SEGMENTS,
+      CDS_CACHE_MAX_AGE
   );
 
   @VisibleForTesting
@@ -145,7 +154,10 @@ public final class FeatureFlags {
       ANIMATED_STICKER_MIN_MEMORY,
       ANIMATED_STICKER_MIN_TOTAL_MEMORY,
       MESSAGE_PROCESSOR_ALARM_INTERVAL,
-      MESSAGE_PROCESSOR_DELAY
+      MESSAGE_PROCESSOR_DELAY,
+      QUERY_PROFILER,
+      ATTACHMENT_DOWNLOAD_SEGMENTS,
+      CDS_CACHE_MAX_AGE
   );
 
   /**
@@ -169,6 +181,7 @@ public final class FeatureFlags {
    */
   private static final Map<String, OnFlagChange> FLAG_CHANGE_LISTENERS = new HashMap<String, OnFlagChange>() {{
     put(MESSAGE_PROCESSOR_ALARM_INTERVAL, change -> MessageProcessReceiver.startOrUpdateAlarm(ApplicationDependencies.getApplication()));
+    put(QUERY_PROFILER, change -> QueryProfiler.getInstance().setEnabled(queryProfiler()));
   }};
 
   private static final Map<String, Object> REMOTE_VALUES = new TreeMap<>();
@@ -469,6 +482,36 @@ public final class FeatureFlags {
     return getInteger(MESSAGE_PROCESSOR_DELAY, 300);
   }
 
+  /**
+   * How long job state changes are collected before being written to the job database in a single
+   * transaction. 0 means every change is written immediately.
+   */
+  public static long getJobStorageWriteBehindWindow() {
+    return getInteger(JOB_STORAGE_WRITE_BEHIND, 0);
+  }
+
+  /**
+   * Whether to collect per-statement database timings and query plans for the debug log.
+   */
+  public static boolean queryProfiler() {
+    return getBoolean(QUERY_PROFILER, false);
+  }
+
+  /**
+   * How many byte ranges a large attachment is downloaded in at once. 1 downloads it in one piece.
+   */
+  public static int attachmentDownloadSegments() {
+    return Math.max(1, Math.min(8, getInteger(ATTACHMENT_DOWNLOAD_SEGMENTS, 1)));
+  }
+
+  /**
+   * How long, in hours, a routine CDS refresh can reuse what it last learned about a number before
+   * asking about it again. 0 asks about every number on every refresh.
+   */
+  public static int cdsCacheMaxAgeHours() {
+    return Math.max(0, getInteger(CDS_CACHE_MAX_AGE, 0));
+  }
+
   private enum VersionFlag {
     /** The flag is no set */
     OFF,
@@ -0,0 +1,195 @@
+package org.thoughtcrime.securesms.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps an {@link InputStream} and reads from it on a background thread, up to a fixed number of
+ * buffers ahead of the consumer.
+ *
+ * Useful when producing the data is expensive (e.g. decrypting a file) and so is consuming it
+ * (e.g. re-encrypting it into a backup), so that the two can happen on separate cores instead of
+ * taking turns.
+ */
+public final class ReadAheadInputStream extends InputStream {
+
+  private static final long POLL_INTERVAL_MS = 100;
+
+  private final InputStream           source;
+  private final BlockingQueue<Chunk>  filled;
+  private final BlockingQueue<byte[]> empty;
+
+  private volatile boolean closed;
+
+  private Chunk   current;
+  private int     position;
+  private boolean finished;
+
+  /**
+   * @param bufferSize  The size of each buffer read from the source.
+   * @param bufferCount The maximum number of buffers that may be read ahead of the consumer.
+   */
+  public ReadAheadInputStream(@NonNull InputStream source, @NonNull Executor executor, int bufferSize, int bufferCount) {
+    // One extra buffer for the consumer to hold on to, and one extra slot for the end of the stream.
+    this.source = source;
+    this.filled = new ArrayBlockingQueue<>(bufferCount + 2);
+    this.empty  = new ArrayBlockingQueue<>(bufferCount + 1);
+
+    for (int i = 0; i < bufferCount + 1; i++) {
+      empty.add(new byte[bufferSize]);
+    }
+
+    executor.execute(this::fill);
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    int    read   = read(buffer, 0, 1);
+
+    return read == -1 ? -1 : buffer[0] & 0xFF;
+  }
+
+  @Override
+  public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+
+    if (!advanceIfNecessary()) {
+      return -1;
+    }
+
+    int count = Math.min(length, current.length - position);
+
+    System.arraycopy(current.data, position, buffer, offset, count);
+    position += count;
+
+    return count;
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+
+    // Unblock the background thread if it's waiting on us to free up a buffer.
+    filled.clear();
+    empty.offer(new byte[0]);
+  }
+
+  /**
+   * @return False if the end of the stream has been reached.
+   */
+  private boolean advanceIfNecessary() throws IOException {
+    if (finished) {
+      return false;
+    }
+
+    if (current != null && position < current.length) {
+      return true;
+    }
+
+    if (current != null) {
+      empty.offer(current.data);
+      current = null;
+    }
+
+    Chunk next;
+
+    try {
+      next = filled.take();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+
+    if (next.error != null) {
+      finished = true;
+      throw next.error;
+    }
+
+    if (next.data == null) {
+      finished = true;
+      return false;
+    }
+
+    current  = next;
+    position = 0;
+
+    return true;
+  }
+
+  private void fill() {
+    try {
+      while (!closed) {
+        byte[] buffer = empty.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        if (buffer == null || closed) {
+          continue;
+        }
+
+        int read = readFully(buffer);
+
+        if (read > 0) {
+          publish(new Chunk(buffer, read, null));
+        }
+
+        if (read < buffer.length) {
+          publish(new Chunk(null, 0, null));
+          return;
+        }
+      }
+    } catch (IOException e) {
+      filled.offer(new Chunk(null, 0, e));
+    } catch (InterruptedException e) {
+      filled.offer(new Chunk(null, 0, new InterruptedIOException()));
+    } finally {
+      try {
+        source.close();
+      } catch (IOException ignored) {
+        // Nothing more we can do
+      }
+    }
+  }
+
+  private void publish(@NonNull Chunk chunk) throws InterruptedException {
+    while (!closed && !filled.offer(chunk, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+      // Keep waiting for the consumer to catch up
+    }
+  }
+
+  private int readFully(@NonNull byte[] buffer) throws IOException {
+    int total = 0;
+
+    while (total < buffer.length) {
+      int read = source.read(buffer, total, buffer.length - total);
+
+      if (read == -1) {
+        break;
+      }
+
+      total += read;
+    }
+
+    return total;
+  }
+
+  private static final class Chunk {
+    private final byte[]      data;
+    private final int         length;
+    private final IOException error;
+
+    private Chunk(@Nullable byte[] data, int length, @Nullable IOException error) {
+      this.data   = data;
+      this.length = length;
+      this.error  = error;
+    }
+  }
+}
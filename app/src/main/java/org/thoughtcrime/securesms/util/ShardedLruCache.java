@@ -0,0 +1,242 @@
+package org.thoughtcrime.securesms.util;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe, size-bounded cache with lock-free reads.
+ *
+ * Unlike {@link LRUCache}, a read doesn't have to reorder anything, so it never takes a lock. The
+ * keys are spread across a number of shards, each with their own lock, which is only held while
+ * inserting or evicting. Eviction is an approximation of LRU (the CLOCK, or "second chance",
+ * algorithm): a read just marks an entry as referenced, and when a shard is over capacity, entries
+ * that have been referenced since the last pass are spared once before being evicted.
+ *
+ * For a given key, there will only ever be one value in the cache at a time, so callers racing to
+ * insert the same key via {@link #putIfAbsent(Object, Object)} will all end up with the same value.
+ */
+public final class ShardedLruCache<K, V> {
+
+  private static final int DEFAULT_SHARD_COUNT = 16;
+
+  private final Shard<K, V>[] shards;
+  private final int           shardMask;
+
+  public ShardedLruCache(int maxSize) {
+    this(maxSize, DEFAULT_SHARD_COUNT);
+  }
+
+  /**
+   * @param shardCount Must be a power of two.
+   */
+  @SuppressWarnings("unchecked")
+  public ShardedLruCache(int maxSize, int shardCount) {
+    if (Integer.bitCount(shardCount) != 1) {
+      throw new IllegalArgumentException("Shard count must be a power of two!");
+    }
+
+    int shardSize = Math.max(1, (maxSize + shardCount - 1) / shardCount);
+
+    this.shards    = new Shard[shardCount];
+    this.shardMask = shardCount - 1;
+
+    for (int i = 0; i < shardCount; i++) {
+      shards[i] = new Shard<>(shardSize);
+    }
+  }
+
+  /**
+   * Never blocks.
+   */
+  @AnyThread
+  public @Nullable V get(@NonNull K key) {
+    Shard<K, V> shard = shardFor(key);
+    Node<K, V>  node  = shard.map.get(key);
+
+    if (node == null) {
+      shard.misses.incrementAndGet();
+      return null;
+    }
+
+    node.markReferenced();
+    shard.hits.incrementAndGet();
+
+    return node.value;
+  }
+
+  /**
+   * Inserts the value if there isn't already one for the key.
+   *
+   * @return The existing value if there was one, otherwise null, meaning the provided value was
+   *         inserted.
+   */
+  @AnyThread
+  public @Nullable V putIfAbsent(@NonNull K key, @NonNull V value) {
+    Shard<K, V> shard = shardFor(key);
+
+    synchronized (shard) {
+      Node<K, V> existing = shard.map.get(key);
+
+      if (existing != null) {
+        existing.markReferenced();
+        return existing.value;
+      }
+
+      shard.insert(new Node<>(key, value));
+    }
+
+    return null;
+  }
+
+  /**
+   * Inserts the value, replacing any existing one for the key.
+   */
+  @AnyThread
+  public void put(@NonNull K key, @NonNull V value) {
+    Shard<K, V> shard = shardFor(key);
+
+    synchronized (shard) {
+      Node<K, V> existing = shard.map.get(key);
+
+      if (existing != null) {
+        existing.value = value;
+        existing.markReferenced();
+      } else {
+        shard.insert(new Node<>(key, value));
+      }
+    }
+  }
+
+  @AnyThread
+  public void clear() {
+    for (Shard<K, V> shard : shards) {
+      synchronized (shard) {
+        shard.map.clear();
+        shard.clock.clear();
+      }
+    }
+  }
+
+  @AnyThread
+  public int size() {
+    int size = 0;
+
+    for (Shard<K, V> shard : shards) {
+      size += shard.map.size();
+    }
+
+    return size;
+  }
+
+  public long getHitCount() {
+    long hits = 0;
+
+    for (Shard<K, V> shard : shards) {
+      hits += shard.hits.get();
+    }
+
+    return hits;
+  }
+
+  public long getMissCount() {
+    long misses = 0;
+
+    for (Shard<K, V> shard : shards) {
+      misses += shard.misses.get();
+    }
+
+    return misses;
+  }
+
+  public long getEvictionCount() {
+    long evictions = 0;
+
+    for (Shard<K, V> shard : shards) {
+      evictions += shard.evictions.get();
+    }
+
+    return evictions;
+  }
+
+  /**
+   * @return A human-readable summary of the cache's size and hit rate.
+   */
+  public @NonNull String getStats() {
+    long  hits    = getHitCount();
+    long  misses  = getMissCount();
+    float hitRate = hits + misses > 0 ? (float) hits / (hits + misses) * 100f : 0f;
+
+    return String.format(Locale.ENGLISH, "%d entries, %.2f%% hit rate (%d hits, %d misses), %d evictions", size(), hitRate, hits, misses, getEvictionCount());
+  }
+
+  private @NonNull Shard<K, V> shardFor(@NonNull K key) {
+    int hash = key.hashCode();
+    return shards[(hash ^ (hash >>> 16)) & shardMask];
+  }
+
+  private static final class Shard<K, V> {
+    private final ConcurrentMap<K, Node<K, V>> map;
+    private final Queue<Node<K, V>>            clock;
+    private final int                          maxSize;
+    private final AtomicLong                   hits;
+    private final AtomicLong                   misses;
+    private final AtomicLong                   evictions;
+
+    private Shard(int maxSize) {
+      this.map       = new ConcurrentHashMap<>();
+      this.clock     = new ArrayDeque<>();
+      this.maxSize   = maxSize;
+      this.hits      = new AtomicLong();
+      this.misses    = new AtomicLong();
+      this.evictions = new AtomicLong();
+    }
+
+    /**
+     * Must be called while holding this shard's lock.
+     */
+    private void insert(@NonNull Node<K, V> node) {
+      while (map.size() >= maxSize) {
+        Node<K, V> candidate = clock.remove();
+
+        if (candidate.referenced) {
+          candidate.referenced = false;
+          clock.add(candidate);
+        } else {
+          map.remove(candidate.key);
+          evictions.incrementAndGet();
+        }
+      }
+
+      map.put(node.key, node);
+      clock.add(node);
+    }
+  }
+
+  private static final class Node<K, V> {
+    private final K key;
+
+    private volatile V       value;
+    private volatile boolean referenced;
+
+    private Node(@NonNull K key, @NonNull V value) {
+      this.key   = key;
+      this.value = value;
+    }
+
+    private void markReferenced() {
+      // Only write if needed, so that hot entries being read on many threads don't keep
+      // invalidating each other's cache line.
+      if (!referenced) {
+        referenced = true;
+      }
+    }
+  }
+}
@@ -0,0 +1,318 @@
+package org.thoughtcrime.securesms.backup;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.protobuf.ByteString;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.signal.core.util.Conversions;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.backup.BackupProtos.BackupFrame;
+import org.thoughtcrime.securesms.backup.FullBackupExporter.BackupFrameOutputStream;
+import org.thoughtcrime.securesms.backup.FullBackupImporter.BackupRecordInputStream;
+import org.thoughtcrime.securesms.backup.IncrementalBackupBase.AttachmentKey;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class IncrementalBackupTest {
+
+  private static final String PASSPHRASE       = "123451234512345123451234512345";
+  private static final String BASE_BACKUP      = "signal-2020-01-01-00-00-00.backup";
+  private static final int    DATABASE_VERSION = 100;
+
+  private static final AttachmentId FIRST  = new AttachmentId(1, 10);
+  private static final AttachmentId SECOND = new AttachmentId(2, 20);
+  private static final AttachmentId THIRD  = new AttachmentId(3, 30);
+
+  @Before
+  public void setUp() {
+    Log.initialize(new EmptyLogger());
+  }
+
+  @Test
+  public void getPreamble_full_onlyHasDatabaseVersion() {
+    List<BackupFrame> preamble = FullBackupExporter.getPreamble(DATABASE_VERSION, null);
+
+    assertEquals(1, preamble.size());
+    assertEquals(DATABASE_VERSION, preamble.get(0).getVersion().getVersion());
+  }
+
+  @Test
+  public void getPreamble_incremental_hidesDatabaseVersionFromOlderReaders() {
+    IncrementalBackupBase base     = new IncrementalBackupBase(BASE_BACKUP, 1, iv(1), Collections.emptySet());
+    List<BackupFrame>     preamble = FullBackupExporter.getPreamble(DATABASE_VERSION, base);
+
+    assertEquals(2, preamble.size());
+    assertEquals(FullBackupBase.INCREMENTAL_DATABASE_VERSION, preamble.get(0).getVersion().getVersion());
+
+    BackupProtos.IncrementalBackup incremental = preamble.get(1).getIncremental();
+
+    assertEquals(BASE_BACKUP, incremental.getBaseBackup());
+    assertArrayEquals(iv(1), incremental.getBaseIv().toByteArray());
+    assertEquals(DATABASE_VERSION, incremental.getDatabaseVersion());
+  }
+
+  /**
+   * Releases from before incremental backups check the first version frame against their own
+   * database version, and refuse the backup inside the restore transaction if it's newer. That only
+   * protects them if the sentinel is the first frame they read.
+   */
+  @Test
+  public void incremental_firstFrameIsRefusedByOlderReaders() throws IOException {
+    IncrementalBackupBase   base        = new IncrementalBackupBase(BASE_BACKUP, 1, iv(1), Collections.emptySet());
+    byte[]                  backup      = new BackupWriter().preamble(base).attachment(FIRST, bytes(1, 100)).end();
+    BackupRecordInputStream inputStream = new BackupRecordInputStream(new ByteArrayInputStream(backup), PASSPHRASE);
+    BackupFrame             first       = inputStream.readFrame();
+
+    assertTrue(first.hasVersion());
+    assertEquals(Integer.MAX_VALUE, first.getVersion().getVersion());
+  }
+
+  @Test
+  public void readBaseBackupName_incremental() throws IOException {
+    IncrementalBackupBase base   = new IncrementalBackupBase(BASE_BACKUP, 1, iv(1), Collections.emptySet());
+    byte[]                backup = new BackupWriter().preamble(base).end();
+
+    assertEquals(BASE_BACKUP, FullBackupImporter.readBaseBackupName(new ByteArrayInputStream(backup), PASSPHRASE));
+  }
+
+  @Test
+  public void readBaseBackupName_full() throws IOException {
+    byte[] backup = new BackupWriter().preamble(null).attachment(FIRST, bytes(1, 100)).end();
+
+    assertNull(FullBackupImporter.readBaseBackupName(new ByteArrayInputStream(backup), PASSPHRASE));
+  }
+
+  @Test
+  public void header_hasCurrentVersion() throws IOException {
+    byte[] backup = new BackupWriter().end();
+    byte[] header = new byte[Conversions.byteArrayToInt(backup)];
+
+    System.arraycopy(backup, 4, header, 0, header.length);
+
+    assertEquals(FullBackupBase.BACKUP_VERSION, BackupFrame.parseFrom(header).getHeader().getVersion());
+  }
+
+  @Test
+  public void header_newerVersion_isRefused() throws IOException {
+    byte[] header = BackupFrame.newBuilder()
+                               .setHeader(BackupProtos.Header.newBuilder()
+                                                             .setIv(ByteString.copyFrom(iv(1)))
+                                                             .setSalt(ByteString.copyFrom(new byte[32]))
+                                                             .setVersion(FullBackupBase.BACKUP_VERSION + 1))
+                               .build()
+                               .toByteArray();
+
+    ByteArrayOutputStream backup = new ByteArrayOutputStream();
+    backup.write(Conversions.intToByteArray(header.length));
+    backup.write(header);
+
+    try {
+      new BackupRecordInputStream(new ByteArrayInputStream(backup.toByteArray()), PASSPHRASE);
+      fail();
+    } catch (FullBackupImporter.UnsupportedBackupVersionException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void headerIv_matchesWhatWasWritten() throws IOException {
+    BackupWriter writer = new BackupWriter();
+    byte[]       backup = writer.end();
+
+    BackupRecordInputStream inputStream = new BackupRecordInputStream(new ByteArrayInputStream(backup), PASSPHRASE);
+
+    assertArrayEquals(writer.getIv(), inputStream.getIv());
+  }
+
+  @Test
+  public void importAttachmentsFromBase_onlyRestoresNeededAttachments() throws IOException {
+    byte[] first  = bytes(1, 100);
+    byte[] second = bytes(2, 20000);
+    byte[] third  = bytes(3, 300);
+
+    byte[] backup = new BackupWriter().preamble(null)
+                                      .attachment(FIRST, first)
+                                      .sticker(1, bytes(4, 50))
+                                      .attachment(SECOND, second)
+                                      .avatar("5", bytes(5, 60))
+                                      .attachment(THIRD, third)
+                                      .end();
+
+    Set<AttachmentId>         needed   = new HashSet<>(Arrays.asList(FIRST, THIRD));
+    Map<AttachmentId, byte[]> restored = new HashMap<>();
+
+    int count = FullBackupImporter.importAttachmentsFromBase(openBase(backup), needed, restorer(restored), 0);
+
+    assertEquals(2, count);
+    assertTrue(needed.isEmpty());
+    assertEquals(2, restored.size());
+    assertArrayEquals(first, restored.get(FIRST));
+    assertArrayEquals(third, restored.get(THIRD));
+    assertFalse(restored.containsKey(SECOND));
+  }
+
+  @Test
+  public void importAttachmentsFromBase_missingAttachment_isLeftInNeeded() throws IOException {
+    byte[] backup = new BackupWriter().preamble(null)
+                                      .attachment(FIRST, bytes(1, 100))
+                                      .end();
+
+    Set<AttachmentId>         needed   = new HashSet<>(Collections.singletonList(SECOND));
+    Map<AttachmentId, byte[]> restored = new HashMap<>();
+
+    FullBackupImporter.importAttachmentsFromBase(openBase(backup), needed, restorer(restored), 0);
+
+    assertEquals(Collections.singleton(SECOND), needed);
+    assertTrue(restored.isEmpty());
+  }
+
+  @Test
+  public void incrementalBackupBase_roundTrip() throws IOException {
+    Set<AttachmentKey> attachments = new HashSet<>();
+    attachments.add(new AttachmentKey(FIRST, 100, "hash"));
+    attachments.add(new AttachmentKey(SECOND, 200, null));
+
+    IncrementalBackupBase base = new IncrementalBackupBase(BASE_BACKUP, 1234, iv(7), attachments);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      IncrementalBackupBase.write(out, base);
+    }
+
+    IncrementalBackupBase read = IncrementalBackupBase.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+    assertNotNull(read);
+    assertEquals(BASE_BACKUP, read.getFileName());
+    assertEquals(1234, read.getTimestamp());
+    assertArrayEquals(iv(7), read.getIv());
+    assertEquals(attachments, read.getAttachments());
+  }
+
+  @Test
+  public void attachmentKey_differentData_isNotEqual() {
+    AttachmentKey key = new AttachmentKey(FIRST, 100, "hash");
+
+    assertEquals(key, new AttachmentKey(new AttachmentId(1, 10), 100, "hash"));
+    assertNotEquals(key, new AttachmentKey(FIRST, 101, "hash"));
+    assertNotEquals(key, new AttachmentKey(FIRST, 100, "other"));
+    assertNotEquals(key, new AttachmentKey(FIRST, 100, null));
+  }
+
+  private static @NonNull BackupRecordInputStream openBase(@NonNull byte[] backup) throws IOException {
+    BackupRecordInputStream inputStream = new BackupRecordInputStream(new ByteArrayInputStream(backup), PASSPHRASE);
+
+    assertTrue(inputStream.readFrame().hasVersion());
+
+    return inputStream;
+  }
+
+  private static @NonNull FullBackupImporter.AttachmentRestorer restorer(@NonNull Map<AttachmentId, byte[]> restored) {
+    return (attachment, inputStream) -> {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      inputStream.readAttachmentTo(out, attachment.getLength());
+      restored.put(new AttachmentId(attachment.getRowId(), attachment.getAttachmentId()), out.toByteArray());
+    };
+  }
+
+  private static @NonNull byte[] iv(int seed) {
+    return bytes(seed, 16);
+  }
+
+  private static @NonNull byte[] bytes(int seed, int length) {
+    byte[] bytes = new byte[length];
+
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) (seed + i);
+    }
+
+    return bytes;
+  }
+
+  private static final class BackupWriter {
+
+    private final ByteArrayOutputStream   bytes;
+    private final BackupFrameOutputStream out;
+
+    private BackupWriter() throws IOException {
+      this.bytes = new ByteArrayOutputStream();
+      this.out   = new BackupFrameOutputStream(bytes, PASSPHRASE);
+    }
+
+    BackupWriter preamble(@Nullable IncrementalBackupBase base) throws IOException {
+      for (BackupFrame frame : FullBackupExporter.getPreamble(DATABASE_VERSION, base)) {
+        out.writeFrame(frame.toByteArray());
+      }
+      return this;
+    }
+
+    BackupWriter attachment(@NonNull AttachmentId attachmentId, @NonNull byte[] data) throws IOException {
+      return stream(BackupFrame.newBuilder()
+                               .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                     .setRowId(attachmentId.getRowId())
+                                                                     .setAttachmentId(attachmentId.getUniqueId())
+                                                                     .setLength(data.length))
+                               .build(), data);
+    }
+
+    BackupWriter sticker(long rowId, @NonNull byte[] data) throws IOException {
+      return stream(BackupFrame.newBuilder()
+                               .setSticker(BackupProtos.Sticker.newBuilder().setRowId(rowId).setLength(data.length))
+                               .build(), data);
+    }
+
+    BackupWriter avatar(@NonNull String recipientId, @NonNull byte[] data) throws IOException {
+      return stream(BackupFrame.newBuilder()
+                               .setAvatar(BackupProtos.Avatar.newBuilder().setRecipientId(recipientId).setLength(data.length))
+                               .build(), data);
+    }
+
+    byte[] end() throws IOException {
+      out.writeFrame(BackupFrame.newBuilder().setEnd(true).build().toByteArray());
+      out.close();
+      return bytes.toByteArray();
+    }
+
+    byte[] getIv() {
+      return out.getIv();
+    }
+
+    private BackupWriter stream(@NonNull BackupFrame frame, @NonNull byte[] data) throws IOException {
+      out.writeFrame(frame.toByteArray());
+      out.writeStream(new ByteArrayInputStream(data));
+      return this;
+    }
+  }
+}
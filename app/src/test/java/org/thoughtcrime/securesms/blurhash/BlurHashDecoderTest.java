@@ -0,0 +1,192 @@
+package org.thoughtcrime.securesms.blurhash;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class BlurHashDecoderTest {
+
+  private static final String[] HASHES = {
+      "LEHV6nWB2yk8pyo0adR*.7kCMdnj",
+      "LGF5]+Yk^6#M@-5c,1J5@[or[Q6.",
+      "L6PZfSi_.AyE_3t7t7R**0o#DgR4",
+      "LKO2?U%2Tw=w]~RBVZRi};RPxuwH"
+  };
+
+  /** The sizes {@link BlurHashResourceDecoder} ends up decoding at for typical conversation thumbnails. */
+  private static final int[][] THUMBNAIL_SIZES = {
+      { 20, 15 },
+      { 15, 20 },
+      { 20, 20 },
+      { 20, 11 }
+  };
+
+  @Test
+  public void decodePixels_invalidHash() {
+    assertNull(BlurHashDecoder.decodePixels(null, 20, 20, 1));
+    assertNull(BlurHashDecoder.decodePixels("LEHV6", 20, 20, 1));
+    assertNull(BlurHashDecoder.decodePixels("LEHV6nWB2yk8pyo0adR*.7kCMdn", 20, 20, 1));
+  }
+
+  @Test
+  public void decodePixels_matchesDirectCalculation() {
+    for (String hash : HASHES) {
+      for (int[] size : THUMBNAIL_SIZES) {
+        int[] expected = decodeDirectly(hash, size[0], size[1]);
+        int[] actual   = BlurHashDecoder.decodePixels(hash, size[0], size[1], 1);
+
+        assertEquals(expected.length, actual.length);
+
+        for (int i = 0; i < expected.length; i++) {
+          assertEquals(0xff, actual[i] >>> 24);
+          assertChannelsClose(expected[i], actual[i]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void lookupsRGB_matchesDirectCalculation() {
+    Random random = new Random(1);
+
+    for (int i = 0; i < 256; i++) {
+      double linear = BlurHashUtil.sRGBToLinear(i);
+
+      assertEquals(BlurHashUtil.linearTosRGB(linear), BlurHashUtil.lookupsRGB(linear));
+      assertEquals(BlurHashUtil.linearTosRGB(Math.nextUp(linear)), BlurHashUtil.lookupsRGB(Math.nextUp(linear)));
+      assertEquals(BlurHashUtil.linearTosRGB(Math.nextDown(linear)), BlurHashUtil.lookupsRGB(Math.nextDown(linear)));
+      assertEquals(linear, BlurHashUtil.lookupLinear(i), 0);
+    }
+
+    for (int i = 0; i < 100_000; i++) {
+      double value = random.nextDouble() * 1.2 - 0.1;
+      assertEquals(BlurHashUtil.linearTosRGB(value), BlurHashUtil.lookupsRGB(value));
+    }
+  }
+
+  @Test
+  public void encode_matchesDirectCalculation() {
+    Random random = new Random(2);
+
+    for (int[] size : new int[][] { { 1, 1 }, { 32, 24 }, { 64, 48 }, { 47, 63 } }) {
+      int   width  = size[0];
+      int   height = size[1];
+      int[] pixels = new int[width * height];
+
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          int r = x * 255 / width;
+          int g = y * 255 / height;
+          int b = random.nextInt(256);
+
+          pixels[y * width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+        }
+      }
+
+      assertEquals(encodeDirectly(pixels, width, height, 4, 3), BlurHashEncoder.encode(pixels, width, height, 4, 3));
+    }
+  }
+
+  private static void assertChannelsClose(int expected, int actual) {
+    for (int shift = 0; shift <= 16; shift += 8) {
+      int difference = Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff));
+      assertTrue("Expected " + Integer.toHexString(expected) + " but was " + Integer.toHexString(actual), difference <= 1);
+    }
+  }
+
+  /**
+   * Straightforward decode, evaluating every basis function at every pixel.
+   */
+  private static int[] decodeDirectly(String blurHash, int width, int height) {
+    int    numCompEnc = Base83.decode(blurHash, 0, 1);
+    int    numCompX   = (numCompEnc % 9) + 1;
+    int    numCompY   = (numCompEnc / 9) + 1;
+    double maxAc      = (Base83.decode(blurHash, 1, 2) + 1) / 166f;
+
+    double[][] colors = new double[numCompX * numCompY][];
+    for (int i = 0; i < colors.length; i++) {
+      if (i == 0) {
+        int value = Base83.decode(blurHash, 2, 6);
+        colors[i] = new double[] { BlurHashUtil.sRGBToLinear(value >> 16), BlurHashUtil.sRGBToLinear((value >> 8) & 255), BlurHashUtil.sRGBToLinear(value & 255) };
+      } else {
+        int value = Base83.decode(blurHash, 4 + i * 2, 6 + i * 2);
+        colors[i] = new double[] { BlurHashUtil.signPow((value / (19 * 19) - 9) / 9.0f, 2f) * maxAc,
+                                   BlurHashUtil.signPow(((value / 19) % 19 - 9) / 9.0f, 2f) * maxAc,
+                                   BlurHashUtil.signPow((value % 19 - 9) / 9.0f, 2f) * maxAc };
+      }
+    }
+
+    int[] pixels = new int[width * height];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        double r = 0;
+        double g = 0;
+        double b = 0;
+
+        for (int j = 0; j < numCompY; j++) {
+          for (int i = 0; i < numCompX; i++) {
+            double   basis = Math.cos(Math.PI * x * i / width) * Math.cos(Math.PI * y * j / height);
+            double[] color = colors[j * numCompX + i];
+            r += color[0] * basis;
+            g += color[1] * basis;
+            b += color[2] * basis;
+          }
+        }
+
+        pixels[y * width + x] = 0xff000000 | (int) (BlurHashUtil.linearTosRGB(r) << 16) | (int) (BlurHashUtil.linearTosRGB(g) << 8) | (int) BlurHashUtil.linearTosRGB(b);
+      }
+    }
+
+    return pixels;
+  }
+
+  /**
+   * Straightforward encode, evaluating every basis function at every pixel.
+   */
+  private static String encodeDirectly(int[] pixels, int width, int height, int componentX, int componentY) {
+    double[][] factors = new double[componentX * componentY][3];
+
+    for (int j = 0; j < componentY; j++) {
+      for (int i = 0; i < componentX; i++) {
+        double normalisation = i == 0 && j == 0 ? 1 : 2;
+        double r = 0, g = 0, b = 0;
+
+        for (int x = 0; x < width; x++) {
+          for (int y = 0; y < height; y++) {
+            double basis = normalisation * Math.cos((Math.PI * i * x) / width) * Math.cos((Math.PI * j * y) / height);
+            int    pixel = pixels[y * width + x];
+            r += basis * BlurHashUtil.sRGBToLinear((pixel >> 16) & 0xff);
+            g += basis * BlurHashUtil.sRGBToLinear((pixel >> 8) & 0xff);
+            b += basis * BlurHashUtil.sRGBToLinear(pixel & 0xff);
+          }
+        }
+
+        double scale = 1.0 / (width * height);
+        factors[j * componentX + i] = new double[] { r * scale, g * scale, b * scale };
+      }
+    }
+
+    char[] hash = new char[4 + 2 * factors.length];
+    Base83.encode(componentX - 1 + (componentY - 1) * 9, 1, hash, 0);
+
+    double quantisedMaximumValue = Math.floor(Math.max(0, Math.min(82, Math.floor(BlurHashUtil.max(factors, 1, factors.length) * 166 - 0.5))));
+    double maximumValue          = (quantisedMaximumValue + 1) / 166;
+    Base83.encode(Math.round(quantisedMaximumValue), 1, hash, 1);
+
+    double[] dc = factors[0];
+    Base83.encode((BlurHashUtil.linearTosRGB(dc[0]) << 16) + (BlurHashUtil.linearTosRGB(dc[1]) << 8) + BlurHashUtil.linearTosRGB(dc[2]), 4, hash, 2);
+
+    for (int i = 1; i < factors.length; i++) {
+      double quantR = Math.floor(Math.max(0, Math.min(18, Math.floor(BlurHashUtil.signPow(factors[i][0] / maximumValue, 0.5) * 9 + 9.5))));
+      double quantG = Math.floor(Math.max(0, Math.min(18, Math.floor(BlurHashUtil.signPow(factors[i][1] / maximumValue, 0.5) * 9 + 9.5))));
+      double quantB = Math.floor(Math.max(0, Math.min(18, Math.floor(BlurHashUtil.signPow(factors[i][2] / maximumValue, 0.5) * 9 + 9.5))));
+      Base83.encode(Math.round(quantR * 19 * 19 + quantG * 19 + quantB), 2, hash, 6 + 2 * (i - 1));
+    }
+
+    return new String(hash);
+  }
+}
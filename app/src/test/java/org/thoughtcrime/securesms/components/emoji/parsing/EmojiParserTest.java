@@ -0,0 +1,139 @@
+package org.thoughtcrime.securesms.components.emoji.parsing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public final class EmojiParserTest {
+
+  private static final String GRINNING    = "😀";
+  private static final String HEART       = "❤️";
+  private static final String THUMBS_UP   = "👍";
+  private static final String MEDIUM_SKIN = "🏽";
+  private static final String FAMILY      = "👨‍👩‍👧";
+  private static final String MAN         = "👨";
+
+  private EmojiTree     tree;
+  private EmojiDrawInfo grinning;
+  private EmojiDrawInfo heart;
+  private EmojiDrawInfo thumbsUp;
+  private EmojiDrawInfo family;
+  private EmojiDrawInfo man;
+
+  @Before
+  public void setUp() {
+    tree     = new EmojiTree();
+    grinning = drawInfo(0);
+    heart    = drawInfo(1);
+    thumbsUp = drawInfo(2);
+    family   = drawInfo(3);
+    man      = drawInfo(4);
+
+    tree.add(GRINNING, grinning);
+    tree.add(HEART, heart);
+    tree.add(THUMBS_UP, thumbsUp);
+    tree.add(FAMILY, family);
+    tree.add(MAN, man);
+  }
+
+  @Test
+  public void findCandidates_null() {
+    EmojiParser.CandidateList candidates = new EmojiParser(tree).findCandidates(null);
+
+    assertEquals(0, candidates.size());
+    assertFalse(candidates.allEmojis);
+  }
+
+  @Test
+  public void findCandidates_noEmoji() {
+    EmojiParser.CandidateList candidates = new EmojiParser(tree).findCandidates("Hello there, 123");
+
+    assertEquals(0, candidates.size());
+    assertFalse(candidates.allEmojis);
+  }
+
+  @Test
+  public void findCandidates_mixedText() {
+    String                    text       = "Hi " + GRINNING + " there";
+    EmojiParser.CandidateList candidates = new EmojiParser(tree).findCandidates(text);
+
+    assertEquals(1, candidates.size());
+    assertCandidate(candidates.list.get(0), 3, 5, grinning);
+    assertFalse(candidates.allEmojis);
+  }
+
+  @Test
+  public void findCandidates_onlyEmojiAndSpaces() {
+    String                    text       = GRINNING + " " + THUMBS_UP;
+    EmojiParser.CandidateList candidates = new EmojiParser(tree).findCandidates(text);
+
+    assertEquals(2, candidates.size());
+    assertCandidate(candidates.list.get(0), 0, 2, grinning);
+    assertCandidate(candidates.list.get(1), 3, 5, thumbsUp);
+    assertTrue(candidates.allEmojis);
+  }
+
+  @Test
+  public void findCandidates_prefersLongestMatch() {
+    List<EmojiParser.Candidate> candidates = new EmojiParser(tree).findCandidates(FAMILY + MAN).list;
+
+    assertEquals(2, candidates.size());
+    assertCandidate(candidates.get(0), 0, FAMILY.length(), family);
+    assertCandidate(candidates.get(1), FAMILY.length(), FAMILY.length() + 2, man);
+  }
+
+  @Test
+  public void findCandidates_partialSequenceFallsBackToShorterMatch() {
+    String                      text       = MAN + "‍👩";
+    List<EmojiParser.Candidate> candidates = new EmojiParser(tree).findCandidates(text).list;
+
+    assertEquals(1, candidates.size());
+    assertCandidate(candidates.get(0), 0, 2, man);
+  }
+
+  @Test
+  public void findCandidates_missingVariationSelector() {
+    List<EmojiParser.Candidate> candidates = new EmojiParser(tree).findCandidates("I ❤ you").list;
+
+    assertEquals(1, candidates.size());
+    assertCandidate(candidates.get(0), 2, 3, heart);
+  }
+
+  @Test
+  public void findCandidates_includesSkinTone() {
+    List<EmojiParser.Candidate> candidates = new EmojiParser(tree).findCandidates(THUMBS_UP + MEDIUM_SKIN + "!").list;
+
+    assertEquals(1, candidates.size());
+    assertCandidate(candidates.get(0), 0, 4, thumbsUp);
+  }
+
+  @Test
+  public void isEmoji_matchesGetEmoji() {
+    assertEquals(EmojiTree.Matches.EXACTLY, tree.isEmoji(HEART, 0, 2));
+    assertEquals(EmojiTree.Matches.EXACTLY, tree.isEmoji(HEART, 0, 1));
+    assertEquals(EmojiTree.Matches.POSSIBLY, tree.isEmoji(FAMILY, 0, 3));
+    assertEquals(EmojiTree.Matches.IMPOSSIBLE, tree.isEmoji("a", 0, 1));
+
+    assertSame(heart, tree.getEmoji(HEART, 0, 1));
+    assertSame(family, tree.getEmoji(FAMILY, 0, FAMILY.length()));
+    assertNull(tree.getEmoji(FAMILY, 0, 3));
+  }
+
+  private static void assertCandidate(EmojiParser.Candidate candidate, int start, int end, EmojiDrawInfo drawInfo) {
+    assertEquals(start, candidate.getStartIndex());
+    assertEquals(end, candidate.getEndIndex());
+    assertSame(drawInfo, candidate.getDrawInfo());
+  }
+
+  private static EmojiDrawInfo drawInfo(int index) {
+    return new EmojiDrawInfo(mock(EmojiPageBitmap.class), index);
+  }
+}
@@ -0,0 +1,288 @@
+package org.thoughtcrime.securesms.contacts.sync;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.contacts.sync.DirectoryHelper.DirectoryResult;
+import org.thoughtcrime.securesms.database.ContactDiscoveryDatabase.CachedResult;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class ContactDiscoveryDeltaTest {
+
+  private static final long NOW     = TimeUnit.DAYS.toMillis(1000);
+  private static final long MAX_AGE = TimeUnit.DAYS.toMillis(7);
+
+  private static final String A = "+16105550001";
+  private static final String B = "+16105550002";
+  private static final String C = "+16105550003";
+  private static final String D = "+16105550004";
+
+  private static final UUID UUID_A = UUID.randomUUID();
+  private static final UUID UUID_C = UUID.randomUUID();
+  private static final UUID UUID_D = UUID.randomUUID();
+
+  @Test
+  public void refresh_noCache_looksUpEverything() throws IOException {
+    LocalDirectory directory = new LocalDirectory();
+    directory.register(A, UUID_A);
+    directory.register(C, UUID_C);
+
+    ContactDiscoveryDelta.Result result = refresh(setOf(A, B), setOf(C), Collections.emptySet(), Collections.emptyMap(), directory);
+
+    assertEquals(setOf(A, B, C), directory.lastQuery);
+    assertEquals(3, result.getQueriedCount());
+    assertEquals(mapOf(A, UUID_A, C, UUID_C), result.getDirectoryResult().getRegisteredNumbers());
+
+    assertEquals(3, result.getUpdates().size());
+    assertCached(result.getUpdates().get(A), UUID_A, true);
+    assertCached(result.getUpdates().get(B), null, false);
+    assertCached(result.getUpdates().get(C), UUID_C, true);
+    assertTrue(result.getRemoved().isEmpty());
+  }
+
+  @Test
+  public void refresh_onlyLooksUpNewAndStaleNumbers() throws IOException {
+    LocalDirectory directory = new LocalDirectory();
+    directory.register(C, UUID_C);
+    directory.register(D, UUID_D);
+
+    Map<String, CachedResult> cache = new HashMap<>();
+    cache.put(A, new CachedResult(UUID_A, true, NOW - 1000));
+    cache.put(B, new CachedResult(null, false, NOW - 1000));
+    cache.put(C, new CachedResult(null, false, NOW - MAX_AGE));
+
+    ContactDiscoveryDelta.Result result = refresh(setOf(A, B, C), setOf(D), setOf(A), cache, directory);
+
+    assertEquals(setOf(C, D), directory.lastQuery);
+    assertEquals(2, result.getQueriedCount());
+    assertEquals(mapOf(A, UUID_A, C, UUID_C, D, UUID_D), result.getDirectoryResult().getRegisteredNumbers());
+
+    assertEquals(setOf(C, D), result.getUpdates().keySet());
+    assertCached(result.getUpdates().get(C), UUID_C, true);
+    assertCached(result.getUpdates().get(D), UUID_D, true);
+  }
+
+  @Test
+  public void refresh_allFresh_noLookup() throws IOException {
+    Map<String, CachedResult> cache = new HashMap<>();
+    cache.put(A, new CachedResult(UUID_A, true, NOW));
+    cache.put(B, new CachedResult(null, false, NOW));
+
+    ContactDiscoveryDelta.Result result = ContactDiscoveryDelta.refresh(setOf(A), setOf(B), setOf(A), cache, NOW, MAX_AGE, (numbers, stored) -> {
+      fail("Shouldn't look anything up!");
+      return null;
+    });
+
+    assertEquals(0, result.getQueriedCount());
+    assertEquals(mapOf(A, UUID_A), result.getDirectoryResult().getRegisteredNumbers());
+    assertTrue(result.getUpdates().isEmpty());
+  }
+
+  @Test
+  public void refresh_localStateDisagrees_looksUpAgain() throws IOException {
+    LocalDirectory directory = new LocalDirectory();
+    directory.register(B, UUID.randomUUID());
+
+    Map<String, CachedResult> cache = new HashMap<>();
+    cache.put(A, new CachedResult(UUID_A, true, NOW));
+    cache.put(B, new CachedResult(null, false, NOW));
+    cache.put(C, new CachedResult(null, false, NOW));
+
+    refresh(setOf(A, B), setOf(C), setOf(B, C), cache, directory);
+
+    assertEquals(setOf(A, B), directory.lastQuery);
+  }
+
+  @Test
+  public void refresh_clockMovedBackwards_looksUpAgain() throws IOException {
+    LocalDirectory            directory = new LocalDirectory();
+    Map<String, CachedResult> cache     = Collections.singletonMap(A, new CachedResult(null, false, NOW + 1000));
+
+    refresh(setOf(A), setOf(A), Collections.emptySet(), cache, directory);
+
+    assertEquals(setOf(A), directory.lastQuery);
+  }
+
+  @Test
+  public void refresh_forgetsNumbersWeNoLongerHave() throws IOException {
+    Map<String, CachedResult> cache = new HashMap<>();
+    cache.put(A, new CachedResult(null, false, NOW));
+    cache.put(B, new CachedResult(null, false, NOW));
+
+    ContactDiscoveryDelta.Result result = refresh(setOf(A), Collections.emptySet(), Collections.emptySet(), cache, new LocalDirectory());
+
+    assertEquals(setOf(B), result.getRemoved());
+  }
+
+  @Test
+  public void refresh_doesNotCacheRewrittenOrIgnoredNumbers() throws IOException {
+    DirectoryResult answer = new DirectoryResult(mapOf(D, UUID_D), Collections.singletonMap(A, D), setOf(B));
+
+    ContactDiscoveryDelta.Result result = refresh(setOf(A, B, C), Collections.emptySet(), Collections.emptySet(), Collections.emptyMap(), (numbers, stored) -> answer);
+
+    assertEquals(setOf(C, D), result.getUpdates().keySet());
+    assertCached(result.getUpdates().get(C), null, false);
+    assertCached(result.getUpdates().get(D), UUID_D, true);
+    assertEquals(Collections.singletonMap(A, D), result.getDirectoryResult().getNumberRewrites());
+    assertEquals(setOf(B), result.getDirectoryResult().getIgnoredNumbers());
+  }
+
+  @Test
+  public void refresh_passesAllStoredNumbers() throws IOException {
+    LocalDirectory            directory = new LocalDirectory();
+    Map<String, CachedResult> cache     = Collections.singletonMap(A, new CachedResult(null, false, NOW));
+
+    refresh(setOf(A, B), setOf(C), Collections.emptySet(), cache, directory);
+
+    assertEquals(setOf(B, C), directory.lastQuery);
+    assertEquals(setOf(A, B), directory.lastStored);
+  }
+
+  @Test
+  public void refresh_largeAddressBook_onlyLooksUpWhatChanged() throws IOException {
+    LocalDirectory            directory = new LocalDirectory();
+    Set<String>               numbers   = new HashSet<>();
+    Set<String>               local     = new HashSet<>();
+    Map<String, CachedResult> cache     = new HashMap<>();
+
+    for (int i = 0; i < 5000; i++) {
+      String number = String.format(Locale.US, "+1610555%04d", i);
+
+      numbers.add(number);
+
+      if (i % 5 == 0) {
+        directory.register(number, UUID.randomUUID());
+      }
+    }
+
+    long now = NOW;
+
+    refreshAndSave(numbers, local, cache, directory, now, 5000);
+
+    for (int i = 0; i < 50; i++) {
+      numbers.add(String.format(Locale.US, "+1484555%04d", i));
+    }
+
+    now += TimeUnit.DAYS.toMillis(2);
+    refreshAndSave(numbers, local, cache, directory, now, 50);
+
+    now += TimeUnit.DAYS.toMillis(2);
+    refreshAndSave(numbers, local, cache, directory, now, 0);
+
+    now += MAX_AGE;
+    refreshAndSave(numbers, local, cache, directory, now, 5050);
+  }
+
+  private static void refreshAndSave(@NonNull Set<String> numbers,
+                                     @NonNull Set<String> local,
+                                     @NonNull Map<String, CachedResult> cache,
+                                     @NonNull LocalDirectory directory,
+                                     long now,
+                                     int expectedQueries)
+      throws IOException
+  {
+    ContactDiscoveryDelta.Result result = ContactDiscoveryDelta.refresh(numbers, numbers, local, cache, now, MAX_AGE, directory);
+
+    cache.putAll(result.getUpdates());
+    cache.keySet().removeAll(result.getRemoved());
+
+    local.clear();
+    local.addAll(result.getDirectoryResult().getRegisteredNumbers().keySet());
+
+    assertEquals(expectedQueries, result.getQueriedCount());
+    assertEquals(expectedQueries, directory.lastQuery == null ? 0 : directory.lastQuery.size());
+    assertEquals(directory.getRegisteredCount(numbers), result.getDirectoryResult().getRegisteredNumbers().size());
+    assertEquals(numbers.size(), cache.size());
+
+    directory.lastQuery = null;
+  }
+
+  private static ContactDiscoveryDelta.Result refresh(@NonNull Set<String> databaseNumbers,
+                                                      @NonNull Set<String> systemNumbers,
+                                                      @NonNull Set<String> registeredNumbers,
+                                                      @NonNull Map<String, CachedResult> cache,
+                                                      @NonNull ContactDiscoveryDelta.DirectoryLookup lookup)
+      throws IOException
+  {
+    return ContactDiscoveryDelta.refresh(databaseNumbers, systemNumbers, registeredNumbers, cache, NOW, MAX_AGE, lookup);
+  }
+
+  private static void assertCached(CachedResult result, UUID uuid, boolean registered) {
+    assertEquals(uuid, result.getUuid());
+    assertEquals(registered, result.isRegistered());
+    assertEquals(NOW, result.getLastChecked());
+  }
+
+  @SafeVarargs
+  private static <E> Set<E> setOf(E... values) {
+    return new HashSet<>(Arrays.asList(values));
+  }
+
+  private static Map<String, UUID> mapOf(Object... keysAndValues) {
+    Map<String, UUID> map = new HashMap<>();
+
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      map.put((String) keysAndValues[i], (UUID) keysAndValues[i + 1]);
+    }
+
+    return map;
+  }
+
+  /**
+   * A stand-in for CDS that knows which numbers are registered and remembers what it was last
+   * asked about.
+   */
+  private static final class LocalDirectory implements ContactDiscoveryDelta.DirectoryLookup {
+
+    private final Map<String, UUID> registered = new HashMap<>();
+
+    private Set<String> lastQuery;
+    private Set<String> lastStored;
+
+    void register(@NonNull String number, @NonNull UUID uuid) {
+      registered.put(number, uuid);
+    }
+
+    int getRegisteredCount(@NonNull Set<String> numbers) {
+      int count = 0;
+
+      for (String number : numbers) {
+        if (registered.containsKey(number)) {
+          count++;
+        }
+      }
+
+      return count;
+    }
+
+    @Override
+    public @NonNull DirectoryResult getDirectoryResult(@NonNull Set<String> numbers, @NonNull Set<String> storedNumbers) {
+      Map<String, UUID> results = new HashMap<>();
+
+      for (String number : numbers) {
+        if (registered.containsKey(number)) {
+          results.put(number, registered.get(number));
+        }
+      }
+
+      lastQuery  = new HashSet<>(numbers);
+      lastStored = new HashSet<>(storedNumbers);
+
+      return new DirectoryResult(results, Collections.emptyMap(), Collections.emptySet());
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class DatabaseObserverTest_coalescing {
+
+  private static final long INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+  private ScheduledExecutorService  scheduler;
+  private DatabaseObserver          observer;
+  private AtomicInteger             delivered;
+  private DatabaseObserver.Observer listener;
+
+  @Before
+  public void setUp() {
+    scheduler = mock(ScheduledExecutorService.class);
+    observer  = new DatabaseObserver(ApplicationProvider.getApplicationContext(), Runnable::run, scheduler);
+    delivered = new AtomicInteger();
+    listener  = delivered::incrementAndGet;
+
+    observer.registerCoalescedConversationListObserver(INTERVAL_MS, listener);
+  }
+
+  @Test
+  public void firstChange_isDeliveredImmediately() {
+    observer.notifyConversationListListeners();
+
+    assertEquals(1, delivered.get());
+    verify(scheduler, never()).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+  }
+
+  @Test
+  public void burst_isMergedIntoOneTrailingNotification() {
+    observer.notifyConversationListListeners();
+    observer.notifyConversationListListeners();
+    observer.notifyConversationListListeners();
+    observer.notifyConversationListListeners();
+
+    assertEquals(1, delivered.get());
+
+    runScheduled();
+
+    assertEquals(2, delivered.get());
+    assertEquals(4, observer.getRawCoalescedNotificationCount());
+    assertEquals(2, observer.getDeliveredCoalescedNotificationCount());
+  }
+
+  @Test
+  public void changeAfterTrailingNotification_isCoalescedAgain() {
+    observer.notifyConversationListListeners();
+    observer.notifyConversationListListeners();
+    runScheduled();
+
+    observer.notifyConversationListListeners();
+
+    assertEquals(2, delivered.get());
+    verify(scheduler, times(2)).schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void unregister_cancelsPendingNotification() {
+    observer.notifyConversationListListeners();
+    observer.notifyConversationListListeners();
+
+    observer.unregisterObserver(listener);
+    runScheduled();
+
+    assertEquals(1, delivered.get());
+
+    observer.notifyConversationListListeners();
+
+    assertEquals(1, delivered.get());
+  }
+
+  private void runScheduled() {
+    ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+
+    verify(scheduler).schedule(captor.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+    captor.getValue().run();
+  }
+}
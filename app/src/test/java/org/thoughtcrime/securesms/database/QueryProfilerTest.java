@@ -0,0 +1,120 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class QueryProfilerTest {
+
+  private QueryProfiler profiler;
+
+  @Before
+  public void setUp() {
+    profiler = new QueryProfiler();
+    profiler.setEnabled(true);
+  }
+
+  @Test
+  public void toTemplate_replacesLiterals() {
+    assertEquals("SELECT * FROM sms WHERE thread_id = ? AND body = ?",
+                 QueryProfiler.toTemplate("SELECT * FROM sms WHERE thread_id = 1234 AND body = 'it''s me'"));
+  }
+
+  @Test
+  public void toTemplate_collapsesInLists() {
+    assertEquals("DELETE FROM mms WHERE _id IN (?, ...)",
+                 QueryProfiler.toTemplate("DELETE FROM mms WHERE _id IN (1, 2,3 ,  4)"));
+    assertEquals("DELETE FROM mms WHERE _id IN (?, ...)",
+                 QueryProfiler.toTemplate("DELETE FROM mms WHERE _id IN (?, ?, ?)"));
+  }
+
+  @Test
+  public void toTemplate_leavesIdentifiersAlone() {
+    assertEquals("SELECT mms.date_sent, t1.x FROM mms LIMIT ?",
+                 QueryProfiler.toTemplate("SELECT mms.date_sent, t1.x\n  FROM   mms LIMIT 50"));
+  }
+
+  @Test
+  public void getBucket_powersOfTwo() {
+    assertEquals(0, QueryProfiler.getBucket(TimeUnit.MICROSECONDS.toNanos(999)));
+    assertEquals(1, QueryProfiler.getBucket(TimeUnit.MILLISECONDS.toNanos(1)));
+    assertEquals(2, QueryProfiler.getBucket(TimeUnit.MILLISECONDS.toNanos(3)));
+    assertEquals(5, QueryProfiler.getBucket(TimeUnit.MILLISECONDS.toNanos(20)));
+    assertEquals(11, QueryProfiler.getBucket(TimeUnit.SECONDS.toNanos(10)));
+  }
+
+  @Test
+  public void isFullScan() {
+    assertTrue(QueryProfiler.isFullScan("SCAN TABLE recipient"));
+    assertTrue(QueryProfiler.isFullScan("SCAN recipient"));
+    assertFalse(QueryProfiler.isFullScan("SCAN TABLE sms USING INDEX sms_thread_date_index"));
+    assertFalse(QueryProfiler.isFullScan("SEARCH TABLE sms USING INDEX sms_thread_id_index (thread_id=?)"));
+    assertFalse(QueryProfiler.isFullScan("SCAN CONSTANT ROW"));
+  }
+
+  @Test
+  public void canExplain() {
+    assertTrue(QueryProfiler.canExplain("  select * from sms"));
+    assertTrue(QueryProfiler.canExplain("UPDATE sms SET read = 1"));
+    assertFalse(QueryProfiler.canExplain("PRAGMA foreign_keys = ON"));
+    assertFalse(QueryProfiler.canExplain("CREATE INDEX foo ON sms (date)"));
+  }
+
+  @Test
+  public void record_capturesPlanOnceWhenSlow() {
+    AtomicInteger planRequests = new AtomicInteger();
+    QueryProfiler.PlanProvider plan = () -> {
+      planRequests.incrementAndGet();
+      return Arrays.asList("SCAN TABLE recipient");
+    };
+
+    profiler.record("SELECT * FROM recipient WHERE phone = '+14151234567'", TimeUnit.MILLISECONDS.toNanos(1), 1, plan);
+    assertEquals(0, planRequests.get());
+
+    profiler.record("SELECT * FROM recipient WHERE phone = '+14157654321'", QueryProfiler.SLOW_THRESHOLD_NS, 1, plan);
+    profiler.record("SELECT * FROM recipient WHERE phone = '+14150000000'", QueryProfiler.SLOW_THRESHOLD_NS * 2, 1, plan);
+    assertEquals(1, planRequests.get());
+
+    String report = profiler.getReport(10);
+
+    assertTrue(report, report.contains("SELECT * FROM recipient WHERE phone = ?"));
+    assertTrue(report, report.contains("count: 3"));
+    assertTrue(report, report.contains("slow: 2"));
+    assertTrue(report, report.contains("plan: SCAN TABLE recipient  <-- FULL SCAN"));
+    assertFalse(report, report.contains("1415"));
+  }
+
+  @Test
+  public void record_failedPlanIsReported() {
+    profiler.record("SELECT * FROM sms", QueryProfiler.SLOW_THRESHOLD_NS, 10, () -> { throw new IllegalStateException(); });
+
+    assertTrue(profiler.getReport(10).contains("plan: (unavailable: IllegalStateException)"));
+  }
+
+  @Test
+  public void getReport_ordersByTotalTimeAndLimits() {
+    profiler.record("SELECT * FROM a", TimeUnit.MILLISECONDS.toNanos(5), 1, null);
+    profiler.record("SELECT * FROM b", TimeUnit.MILLISECONDS.toNanos(50), 1, null);
+    profiler.record("SELECT * FROM c", TimeUnit.MILLISECONDS.toNanos(3), 1, null);
+    profiler.record("SELECT * FROM c", TimeUnit.MILLISECONDS.toNanos(3), 1, null);
+
+    String report = profiler.getReport(2);
+
+    assertTrue(report, report.indexOf("1. SELECT * FROM b") < report.indexOf("2. SELECT * FROM c"));
+    assertFalse(report, report.contains("SELECT * FROM a"));
+  }
+
+  @Test
+  public void getReport_disabled() {
+    profiler.setEnabled(false);
+
+    assertEquals("Disabled", profiler.getReport(10));
+  }
+}
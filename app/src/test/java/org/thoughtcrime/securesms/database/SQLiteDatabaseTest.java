@@ -0,0 +1,123 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class SQLiteDatabaseTest {
+
+  private net.sqlcipher.database.SQLiteDatabase wrapped;
+  private SQLiteDatabase                        db;
+  private List<String>                          ran;
+
+  @Before
+  public void setUp() {
+    wrapped = mock(net.sqlcipher.database.SQLiteDatabase.class);
+    db      = new SQLiteDatabase(wrapped);
+    ran     = new ArrayList<>();
+  }
+
+  @Test
+  public void runPostTransaction_noTransaction_runsImmediately() {
+    db.runPostTransaction(() -> ran.add("post"));
+    db.runOnCommit(() -> ran.add("commit"));
+
+    assertEquals(Arrays.asList("post", "commit"), ran);
+  }
+
+  @Test
+  public void runPostTransaction_waitsForOutermostTransaction() {
+    db.beginTransaction();
+    db.beginTransaction();
+    db.runPostTransaction(() -> ran.add("post"));
+    db.runOnCommit(() -> ran.add("commit"));
+    db.setTransactionSuccessful();
+    db.endTransaction();
+
+    assertTrue(ran.isEmpty());
+
+    db.setTransactionSuccessful();
+    db.endTransaction();
+
+    assertEquals(Arrays.asList("post", "commit"), ran);
+  }
+
+  @Test
+  public void runOnCommit_rolledBack_isDropped() {
+    db.beginTransaction();
+    db.runPostTransaction(() -> ran.add("post"));
+    db.runOnCommit(() -> ran.add("commit"));
+    db.endTransaction();
+
+    assertEquals(Arrays.asList("post"), ran);
+  }
+
+  @Test
+  public void runOnCommit_innerTransactionRolledBack_isDropped() {
+    db.beginTransaction();
+    db.runOnCommit(() -> ran.add("outer"));
+
+    db.beginTransaction();
+    db.runOnCommit(() -> ran.add("inner"));
+    db.endTransaction();
+
+    db.setTransactionSuccessful();
+    db.endTransaction();
+
+    assertTrue(ran.isEmpty());
+  }
+
+  @Test
+  public void runOnCommit_afterRollback_nextTransactionStillCommits() {
+    db.beginTransaction();
+    db.endTransaction();
+
+    db.beginTransaction();
+    db.runOnCommit(() -> ran.add("commit"));
+    db.setTransactionSuccessful();
+    db.endTransaction();
+
+    assertEquals(Arrays.asList("commit"), ran);
+  }
+
+  @Test
+  public void runPostTransaction_inTransactionOnUnderlyingDatabase_runsImmediately() {
+    when(wrapped.isDbLockedByCurrentThread()).thenReturn(true);
+    when(wrapped.inTransaction()).thenReturn(true);
+
+    db.runPostTransaction(() -> ran.add("post"));
+    db.runOnCommit(() -> ran.add("commit"));
+
+    assertEquals(Arrays.asList("post", "commit"), ran);
+  }
+
+  @Test
+  public void runPostTransaction_transactionFromAnotherWrapper_isShared() {
+    SQLiteDatabase other = new SQLiteDatabase(wrapped);
+
+    other.beginTransaction();
+    db.runOnCommit(() -> ran.add("commit"));
+
+    assertTrue(ran.isEmpty());
+
+    other.setTransactionSuccessful();
+    other.endTransaction();
+
+    assertEquals(Arrays.asList("commit"), ran);
+  }
+}
@@ -0,0 +1,75 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.database.MmsSmsColumns.Types;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class ThreadDatabaseTest_incrementalUpdates {
+
+  private static final long NONE = -1;
+
+  @Test
+  public void insert_newerThanSnippet_isApplied() {
+    assertTrue(ThreadDatabase.isNewerThanSnippet(200, 100));
+  }
+
+  @Test
+  public void insert_intoThreadWithNothingSnippetEligible_isApplied() {
+    assertTrue(ThreadDatabase.isNewerThanSnippet(200, NONE));
+  }
+
+  @Test
+  public void insert_olderThanSnippet_isRecomputed() {
+    assertFalse(ThreadDatabase.isNewerThanSnippet(100, 200));
+  }
+
+  @Test
+  public void insert_sameDateAsSnippet_isRecomputed() {
+    assertFalse(ThreadDatabase.isNewerThanSnippet(200, 200));
+  }
+
+  @Test
+  public void delete_olderThanSnippet_isApplied() {
+    assertTrue(ThreadDatabase.isOlderThanSnippet(100, 200));
+  }
+
+  /**
+   * Thread has a text message at 100, the snippet at 200, and a profile change at 300. Deleting the
+   * snippet leaves the text message at 100 as the latest thing that could be the snippet, so the
+   * delete has to be recomputed, even though the profile change is newer than what was deleted.
+   */
+  @Test
+  public void delete_snippetOlderThanProfileChange_isRecomputed() {
+    assertFalse(ThreadDatabase.isOlderThanSnippet(200, 100));
+  }
+
+  @Test
+  public void delete_lastSnippetEligibleMessage_isRecomputed() {
+    assertFalse(ThreadDatabase.isOlderThanSnippet(200, NONE));
+  }
+
+  @Test
+  public void delete_sameDateAsSnippet_isRecomputed() {
+    assertFalse(ThreadDatabase.isOlderThanSnippet(200, 200));
+  }
+
+  @Test
+  public void delete_unknownDate_isRecomputed() {
+    assertFalse(ThreadDatabase.isOlderThanSnippet(NONE, 200));
+  }
+
+  @Test
+  public void snippetEligible_excludesProfileChangesAndGv1Migrations() {
+    assertFalse(SmsDatabase.isSnippetEligible(Types.PROFILE_CHANGE_TYPE));
+    assertFalse(SmsDatabase.isSnippetEligible(Types.GV1_MIGRATION_TYPE));
+  }
+
+  @Test
+  public void snippetEligible_includesRegularMessages() {
+    assertTrue(SmsDatabase.isSnippetEligible(Types.BASE_INBOX_TYPE));
+    assertTrue(SmsDatabase.isSnippetEligible(Types.BASE_SENT_TYPE | Types.SECURE_MESSAGE_BIT | Types.PUSH_MESSAGE_BIT));
+    assertTrue(SmsDatabase.isSnippetEligible(Types.BASE_INBOX_TYPE | Types.END_SESSION_BIT));
+  }
+}
@@ -5,6 +5,7 @@ import androidx.annotation.NonNull;
 import com.annimon.stream.Stream;
 
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.thoughtcrime.securesms.database.JobDatabase;
 import org.thoughtcrime.securesms.jobmanager.Data;
 import org.thoughtcrime.securesms.jobmanager.Job;
@@ -17,12 +18,21 @@ import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -348,6 +358,71 @@ public class FastJobStorageTest {
     assertEquals("1", jobs.get(0).getId());
   }
 
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_nextItemInQueueAfterDelete() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", "q", 0, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+    subject.deleteJob("1");
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_updatedItemKeepsPlaceInQueue() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", "q", 0, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+    subject.updateJobRunningState("1", true);
+    subject.updateJobRunningState("1", false);
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("1", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_firstItemOfEachQueueInCreatedOrder() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", "q1", 2, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", "q2", 1, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec3 = new FullSpec(new JobSpec("3", "f3", "q1", 3, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec4 = new FullSpec(new JobSpec("4", "f4", null, 0, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2, fullSpec3, fullSpec4)));
+    subject.init();
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(3, jobs.size());
+    assertEquals("4", jobs.get(0).getId());
+    assertEquals("2", jobs.get(1).getId());
+    assertEquals("1", jobs.get(2).getId());
+  }
+
   @Test
   public void getPendingJobsWithNoDependenciesInCreatedOrder_migrationJobTakesPrecedence() {
     FullSpec plainSpec     = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
@@ -587,12 +662,106 @@ public class FastJobStorageTest {
     assertTrue(subject.areQueuesEmpty(setOf("q4", "q5")));
   }
 
+  @Test
+  public void writeBehind_changesNotWrittenUntilFlushed() {
+    JobDatabase            database    = noopDatabase();
+    JobDatabaseWriteBehind writeBehind = new JobDatabaseWriteBehind(database, mock(ScheduledExecutorService.class), 1000);
+    FastJobStorage         subject     = new FastJobStorage(database, writeBehind);
+
+    subject.insertJobs(DataSet1.FULL_SPECS);
+    subject.updateJobRunningState("id1", true);
+    subject.deleteJob("id1");
+
+    verify(database).insertJobs(DataSet1.FULL_SPECS);
+    verify(database, never()).updateJobRunningState(anyString(), anyBoolean());
+    verify(database, never()).deleteJobs(anyList());
+    assertNull(subject.getJobSpec("id1"));
+  }
+
+  @Test
+  public void writeBehind_flushWritesOnceInSingleTransaction() {
+    JobDatabase            database    = noopDatabase();
+    JobDatabaseWriteBehind writeBehind = new JobDatabaseWriteBehind(database, mock(ScheduledExecutorService.class), 1000);
+    FastJobStorage         subject     = new FastJobStorage(database, writeBehind);
+
+    subject.insertJobs(DataSet1.FULL_SPECS);
+    subject.updateJobRunningState("id1", true);
+    subject.updateJobAfterRetry("id1", false, 1, 10, EMPTY_DATA);
+    subject.deleteJob("id1");
+    subject.updateJobRunningState("id2", true);
+    subject.updateJobRunningState("id3", true);
+    subject.updateJobAfterRetry("id3", false, 1, 10, EMPTY_DATA);
+
+    writeBehind.flush();
+
+    verify(database, times(1)).runInTransaction(any());
+    verify(database).deleteJobs(Collections.singletonList("id1"));
+    verify(database).updateJobRunningState("id2", true);
+    verify(database).updateJobAfterRetry("id3", false, 1, 10, EMPTY_DATA);
+    verify(database, never()).updateJobRunningState("id1", true);
+    verify(database, never()).updateJobRunningState("id3", true);
+    assertEquals(5, subject.getWriteBehindTransactionsSaved());
+  }
+
+  @Test
+  public void writeBehind_updateJobs_flushesPendingChangesFirst() {
+    JobDatabase            database    = noopDatabase();
+    JobDatabaseWriteBehind writeBehind = new JobDatabaseWriteBehind(database, mock(ScheduledExecutorService.class), 1000);
+    FastJobStorage         subject     = new FastJobStorage(database, writeBehind);
+    JobSpec                update      = new JobSpec("id1", "f1", "q1", 1, 2, 3, 4, 5, EMPTY_DATA, EMPTY_DATA, false, false);
+
+    subject.insertJobs(DataSet1.FULL_SPECS);
+    subject.updateJobRunningState("id1", true);
+    subject.updateJobs(Collections.singletonList(update));
+
+    InOrder inOrder = inOrder(database);
+    inOrder.verify(database).updateJobRunningState("id1", true);
+    inOrder.verify(database).updateJobs(Collections.singletonList(update));
+  }
+
+  @Test
+  public void writeBehind_crashBeforeFlush_jobsRunAgainAfterRestart() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", "q", 1, 1, 0, 1, 1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", "q", 2, 1, 0, 1, 1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+    JobDatabase            database    = fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2));
+    JobDatabaseWriteBehind writeBehind = new JobDatabaseWriteBehind(database, mock(ScheduledExecutorService.class), 1000);
+    FastJobStorage         subject     = new FastJobStorage(database, writeBehind);
+
+    subject.init();
+    subject.updateJobRunningState("1", true);
+    subject.deleteJob("1");
+    subject.updateJobRunningState("2", true);
+    subject.updateJobAfterRetry("2", false, 1, 10, EMPTY_DATA);
+
+    assertEquals(Collections.singletonList("2"), Stream.of(subject.getAllJobSpecs()).map(JobSpec::getId).toList());
+
+    // The process dies before the write-behind window closes, so the database never sees any of
+    // the above. On the next launch the jobs are read back from the database as they were.
+    FastJobStorage restarted = new FastJobStorage(database, new JobDatabaseWriteBehind(database, mock(ScheduledExecutorService.class), 1000));
+
+    restarted.init();
+    restarted.updateAllJobsToBePending();
+
+    List<JobSpec> pending = restarted.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, pending.size());
+    assertEquals("1", pending.get(0).getId());
+    assertFalse(pending.get(0).isRunning());
+    assertEquals(0, restarted.getJobSpec("2").getRunAttempt());
+  }
+
   private JobDatabase noopDatabase() {
     JobDatabase database = mock(JobDatabase.class);
 
     when(database.getAllJobSpecs()).thenReturn(Collections.emptyList());
     when(database.getAllConstraintSpecs()).thenReturn(Collections.emptyList());
     when(database.getAllDependencySpecs()).thenReturn(Collections.emptyList());
+    runTransactionsInline(database);
 
     return database;
   }
@@ -603,10 +772,18 @@ public class FastJobStorageTest {
     when(database.getAllJobSpecs()).thenReturn(Stream.of(fullSpecs).map(FullSpec::getJobSpec).toList());
     when(database.getAllConstraintSpecs()).thenReturn(Stream.of(fullSpecs).map(FullSpec::getConstraintSpecs).flatMap(Stream::of).toList());
     when(database.getAllDependencySpecs()).thenReturn(Stream.of(fullSpecs).map(FullSpec::getDependencySpecs).flatMap(Stream::of).toList());
+    runTransactionsInline(database);
 
     return database;
   }
 
+  private static void runTransactionsInline(@NonNull JobDatabase database) {
+    doAnswer(invocation -> {
+      ((Runnable) invocation.getArgument(0)).run();
+      return null;
+    }).when(database).runInTransaction(any());
+  }
+
   private static final class DataSet1 {
     static final JobSpec        JOB_1        = new JobSpec("id1", "f1", "q1", 1, 2, 3, 4, 5, EMPTY_DATA, null, false, false);
     static final JobSpec        JOB_2        = new JobSpec("id2", "f2", "q2", 1, 2, 3, 4, 5, EMPTY_DATA, null, false, false);
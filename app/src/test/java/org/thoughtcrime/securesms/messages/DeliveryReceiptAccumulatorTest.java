@@ -0,0 +1,93 @@
+package org.thoughtcrime.securesms.messages;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.MessageDatabase.SyncMessageId;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class DeliveryReceiptAccumulatorTest {
+
+  private RecordingWriter            writer;
+  private DeliveryReceiptAccumulator accumulator;
+
+  @Before
+  public void setUp() {
+    Log.initialize(new EmptyLogger());
+
+    writer      = new RecordingWriter();
+    accumulator = new DeliveryReceiptAccumulator(writer);
+  }
+
+  @Test
+  public void add_doesNotWriteUntilFlushed() {
+    accumulator.add(receipt(1, 100));
+    accumulator.add(receipt(2, 100));
+
+    assertTrue(writer.batches.isEmpty());
+  }
+
+  @Test
+  public void flush_writesEverythingInOneBatch() {
+    SyncMessageId first  = receipt(1, 100);
+    SyncMessageId second = receipt(2, 100);
+    SyncMessageId third  = receipt(1, 200);
+
+    accumulator.add(first);
+    accumulator.add(second);
+    accumulator.add(third);
+    accumulator.flush();
+
+    assertEquals(1, writer.batches.size());
+    assertEquals(3, writer.batches.get(0).size());
+    assertSame(first, writer.batches.get(0).get(0));
+    assertSame(second, writer.batches.get(0).get(1));
+    assertSame(third, writer.batches.get(0).get(2));
+  }
+
+  @Test
+  public void flush_nothingPending_doesNotWrite() {
+    accumulator.flush();
+
+    assertTrue(writer.batches.isEmpty());
+  }
+
+  @Test
+  public void flush_onlyWritesReceiptsOnce() {
+    accumulator.add(receipt(1, 100));
+    accumulator.flush();
+    accumulator.flush();
+
+    accumulator.add(receipt(2, 100));
+    accumulator.flush();
+
+    assertEquals(2, writer.batches.size());
+    assertEquals(1, writer.batches.get(0).size());
+    assertEquals(1, writer.batches.get(1).size());
+    assertEquals(RecipientId.from(2), writer.batches.get(1).get(0).getRecipientId());
+  }
+
+  private static @NonNull SyncMessageId receipt(long recipientId, long timestamp) {
+    return new SyncMessageId(RecipientId.from(recipientId), timestamp);
+  }
+
+  private static final class RecordingWriter implements DeliveryReceiptAccumulator.Writer {
+
+    private final List<List<SyncMessageId>> batches = new ArrayList<>();
+
+    @Override
+    public void write(@NonNull List<SyncMessageId> ids, long timestamp) {
+      batches.add(new ArrayList<>(ids));
+    }
+  }
+}
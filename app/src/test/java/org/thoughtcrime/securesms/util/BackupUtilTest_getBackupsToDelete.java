@@ -0,0 +1,117 @@
+package org.thoughtcrime.securesms.util;
+
+import android.app.Application;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class BackupUtilTest_getBackupsToDelete {
+
+  private final Map<String, String> bases = new HashMap<>();
+
+  @Before
+  public void setUp() {
+    Log.initialize(new EmptyLogger());
+  }
+
+  @Test
+  public void fullBackups_keepsNewestTwo() {
+    BackupUtil.BackupInfo first  = backup(1);
+    BackupUtil.BackupInfo second = backup(2);
+    BackupUtil.BackupInfo third  = backup(3);
+    BackupUtil.BackupInfo fourth = backup(4);
+
+    assertEquals(Arrays.asList(second, first), getBackupsToDelete(fourth, third, second, first));
+  }
+
+  @Test
+  public void fewerThanTwo_deletesNothing() {
+    assertTrue(getBackupsToDelete(backup(1)).isEmpty());
+  }
+
+  @Test
+  public void keptIncremental_keepsItsBase() {
+    BackupUtil.BackupInfo older = backup(1);
+    BackupUtil.BackupInfo base  = backup(2);
+    BackupUtil.BackupInfo first = incremental(3, base);
+    BackupUtil.BackupInfo last  = incremental(4, base);
+
+    assertEquals(Collections.singletonList(older), getBackupsToDelete(last, first, base, older));
+  }
+
+  @Test
+  public void newFullBackup_keepsBaseOfPreviousChainWhileItsIncrementalIsKept() {
+    BackupUtil.BackupInfo oldest      = backup(1);
+    BackupUtil.BackupInfo oldBase     = backup(2);
+    BackupUtil.BackupInfo incremental = incremental(3, oldBase);
+    BackupUtil.BackupInfo newBase     = backup(4);
+
+    assertEquals(Collections.singletonList(oldest), getBackupsToDelete(newBase, incremental, oldBase, oldest));
+  }
+
+  @Test
+  public void previousChainNoLongerKept_isDeleted() {
+    BackupUtil.BackupInfo oldBase        = backup(1);
+    BackupUtil.BackupInfo oldIncremental = incremental(2, oldBase);
+    BackupUtil.BackupInfo newBase        = backup(3);
+    BackupUtil.BackupInfo newIncremental = incremental(4, newBase);
+
+    assertEquals(Arrays.asList(oldIncremental, oldBase), getBackupsToDelete(newIncremental, newBase, oldIncremental, oldBase));
+  }
+
+  @Test
+  public void documentUri_matchesOnFileName() {
+    BackupUtil.BackupInfo older = backup(1);
+    BackupUtil.BackupInfo base  = new BackupUtil.BackupInfo(2, 0, Uri.parse("content://com.android.externalstorage.documents/tree/primary%3ASignal/document/primary%3ASignal%2F" + name(2)));
+    BackupUtil.BackupInfo first = incremental(3, base);
+    BackupUtil.BackupInfo last  = incremental(4, base);
+
+    assertEquals(Collections.singletonList(older), getBackupsToDelete(last, first, base, older));
+  }
+
+  private @NonNull List<BackupUtil.BackupInfo> getBackupsToDelete(@NonNull BackupUtil.BackupInfo... newestFirst) {
+    return BackupUtil.getBackupsToDelete(Arrays.asList(newestFirst), backup -> bases.get(backup.getUri().getLastPathSegment()));
+  }
+
+  private @NonNull BackupUtil.BackupInfo incremental(int index, @NonNull BackupUtil.BackupInfo base) {
+    BackupUtil.BackupInfo backup = backup(index);
+
+    bases.put(name(index), fileName(base));
+
+    return backup;
+  }
+
+  private static @NonNull BackupUtil.BackupInfo backup(int index) {
+    return new BackupUtil.BackupInfo(index, 0, Uri.fromFile(new File("/backups", name(index))));
+  }
+
+  private static @Nullable String fileName(@NonNull BackupUtil.BackupInfo backup) {
+    String lastPathSegment = backup.getUri().getLastPathSegment();
+    return lastPathSegment != null ? new File(lastPathSegment).getName() : null;
+  }
+
+  private static @NonNull String name(int index) {
+    return String.format("signal-2020-01-0%d-00-00-00.backup", index);
+  }
+}
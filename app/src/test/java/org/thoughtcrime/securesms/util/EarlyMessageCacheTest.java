@@ -0,0 +1,285 @@
+package org.thoughtcrime.securesms.util;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.EarlyMessageDatabase;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+import org.whispersystems.libsignal.util.Pair;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.messages.SignalServiceContent;
+import org.whispersystems.signalservice.api.messages.SignalServiceMetadata;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos;
+import org.whispersystems.signalservice.internal.serialize.SignalServiceAddressProtobufSerializer;
+import org.whispersystems.signalservice.internal.serialize.SignalServiceMetadataProtobufSerializer;
+import org.whispersystems.signalservice.internal.serialize.protos.SignalServiceContentProto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class EarlyMessageCacheTest {
+
+  private static final SignalServiceAddress LOCAL_ADDRESS = new SignalServiceAddress(UUID.randomUUID(), "+15555550100");
+  private static final SignalServiceAddress SENDER        = new SignalServiceAddress(UUID.randomUUID(), "+15555550101");
+
+  private static final RecipientId TARGET_SENDER = RecipientId.from(1);
+  private static final RecipientId OTHER_SENDER  = RecipientId.from(2);
+
+  private FakeEarlyMessageDatabase database;
+  private EarlyMessageCache        cache;
+
+  @Before
+  public void setUp() {
+    Log.initialize(new EmptyLogger());
+
+    database = new FakeEarlyMessageDatabase();
+    cache    = new EarlyMessageCache(database);
+  }
+
+  @Test
+  public void retrieve_nothingStored_isMiss() {
+    assertFalse(cache.retrieve(TARGET_SENDER, 1).isPresent());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void retrieve_recentlyStored_isMemoryHitAndClearsTable() throws Exception {
+    cache.store(TARGET_SENDER, 1, content(10));
+
+    assertEquals(1, database.size());
+    assertEquals(Arrays.asList(10L), timestamps(cache.retrieve(TARGET_SENDER, 1)));
+    assertEquals(1, cache.getMemoryHitCount());
+    assertEquals(0, database.size());
+    assertFalse(cache.retrieve(TARGET_SENDER, 1).isPresent());
+  }
+
+  @Test
+  public void retrieve_multipleContent_isReturnedInStoredOrder() throws Exception {
+    cache.store(TARGET_SENDER, 1, content(10));
+    cache.store(OTHER_SENDER, 1, content(20));
+    cache.store(TARGET_SENDER, 1, content(11));
+    cache.store(TARGET_SENDER, 1, content(12));
+
+    assertEquals(Arrays.asList(10L, 11L, 12L), timestamps(cache.retrieve(TARGET_SENDER, 1)));
+    assertEquals(Arrays.asList(20L), timestamps(cache.retrieve(OTHER_SENDER, 1)));
+  }
+
+  @Test
+  public void retrieve_evictedFromMemory_isReadFromTable() throws Exception {
+    for (int i = 1; i <= 101; i++) {
+      cache.store(TARGET_SENDER, i, content(i * 10));
+    }
+
+    assertEquals(1, cache.getMemoryEvictionCount());
+    assertEquals(Arrays.asList(10L), timestamps(cache.retrieve(TARGET_SENDER, 1)));
+    assertEquals(1, cache.getDiskHitCount());
+    assertEquals(Arrays.asList(1010L), timestamps(cache.retrieve(TARGET_SENDER, 101)));
+    assertEquals(1, cache.getMemoryHitCount());
+    assertEquals(99, database.size());
+  }
+
+  @Test
+  public void store_overLimit_trimsOldestRowsFromTable() throws Exception {
+    for (int i = 1; i <= 1100; i++) {
+      cache.store(TARGET_SENDER, i, content(i));
+    }
+
+    assertEquals(1100, database.size());
+    assertEquals(0, cache.getDiskEvictionCount());
+
+    cache.store(TARGET_SENDER, 1101, content(1101));
+
+    assertEquals(1000, database.size());
+    assertEquals(101, cache.getDiskEvictionCount());
+
+    for (int i = 1; i <= 101; i++) {
+      assertFalse(cache.retrieve(TARGET_SENDER, i).isPresent());
+    }
+
+    assertEquals(Arrays.asList(102L), timestamps(cache.retrieve(TARGET_SENDER, 102)));
+    assertEquals(1, cache.getDiskHitCount());
+  }
+
+  @Test
+  public void store_overLimit_dropsTrimmedMessageFromMemory() throws Exception {
+    List<Long> expected = new ArrayList<>();
+
+    cache.store(TARGET_SENDER, 1, content(0));
+
+    for (int i = 1; i <= 1100; i++) {
+      if (i % 50 == 0) {
+        cache.store(TARGET_SENDER, 1, content(i));
+        if (i > 100) expected.add((long) i);
+      } else {
+        cache.store(OTHER_SENDER, i, content(i));
+      }
+    }
+
+    assertEquals(1000, database.size());
+    assertEquals(101, cache.getDiskEvictionCount());
+
+    assertEquals(expected, timestamps(cache.retrieve(TARGET_SENDER, 1)));
+    assertEquals(0, cache.getMemoryHitCount());
+    assertEquals(1, cache.getDiskHitCount());
+    assertEquals(1000 - expected.size(), database.size());
+  }
+
+  @Test
+  public void retrieve_afterMemoryCleared_reloadsFromTable() throws Exception {
+    cache.store(TARGET_SENDER, 1, content(10));
+    cache.store(TARGET_SENDER, 1, content(11));
+    cache.store(OTHER_SENDER, 2, content(20));
+
+    EarlyMessageCache reloaded = new EarlyMessageCache(database);
+
+    assertEquals(Arrays.asList(10L, 11L), timestamps(reloaded.retrieve(TARGET_SENDER, 1)));
+    assertEquals(Arrays.asList(20L), timestamps(reloaded.retrieve(OTHER_SENDER, 2)));
+    assertFalse(reloaded.retrieve(OTHER_SENDER, 1).isPresent());
+    assertEquals(2, reloaded.getDiskHitCount());
+    assertEquals(0, reloaded.getMemoryHitCount());
+    assertEquals(0, database.size());
+  }
+
+  @Test
+  public void store_afterReload_trimsRowsLoadedFromTable() throws Exception {
+    for (int i = 1; i <= 1000; i++) {
+      cache.store(TARGET_SENDER, i, content(i));
+    }
+
+    EarlyMessageCache reloaded = new EarlyMessageCache(database);
+
+    for (int i = 1001; i <= 1101; i++) {
+      reloaded.store(TARGET_SENDER, i, content(i));
+    }
+
+    assertEquals(1000, database.size());
+    assertEquals(101, reloaded.getDiskEvictionCount());
+    assertFalse(reloaded.retrieve(TARGET_SENDER, 101).isPresent());
+    assertTrue(reloaded.retrieve(TARGET_SENDER, 102).isPresent());
+  }
+
+  private static @NonNull List<Long> timestamps(@NonNull Optional<List<SignalServiceContent>> content) {
+    List<Long> timestamps = new ArrayList<>();
+
+    for (SignalServiceContent item : content.get()) {
+      timestamps.add(item.getTimestamp());
+    }
+
+    return timestamps;
+  }
+
+  private static @NonNull SignalServiceContent content(long timestamp) throws Exception {
+    SignalServiceMetadata     metadata = new SignalServiceMetadata(SENDER, 1, timestamp, 0, 0, false);
+    SignalServiceContentProto proto    = SignalServiceContentProto.newBuilder()
+                                                                  .setLocalAddress(SignalServiceAddressProtobufSerializer.toProtobuf(LOCAL_ADDRESS))
+                                                                  .setMetadata(SignalServiceMetadataProtobufSerializer.toProtobuf(metadata))
+                                                                  .setContent(SignalServiceProtos.Content.newBuilder()
+                                                                                                         .setTypingMessage(SignalServiceProtos.TypingMessage.newBuilder()
+                                                                                                                                                            .setAction(SignalServiceProtos.TypingMessage.Action.STARTED)))
+                                                                  .build();
+
+    return SignalServiceContent.createFromProto(proto);
+  }
+
+  /**
+   * Keeps rows in insertion order, the same order the real table's autoincrement id gives them.
+   */
+  private static final class FakeEarlyMessageDatabase extends EarlyMessageDatabase {
+
+    private final List<Row> rows = new LinkedList<>();
+
+    FakeEarlyMessageDatabase() {
+      super(ApplicationProvider.getApplicationContext(), null);
+    }
+
+    @Override
+    public void insert(@NonNull RecipientId sender, long sentTimestamp, @NonNull byte[] content) {
+      rows.add(new Row(sender, sentTimestamp, content));
+    }
+
+    @Override
+    public @NonNull List<byte[]> remove(@NonNull RecipientId sender, long sentTimestamp) {
+      List<byte[]>  content  = new LinkedList<>();
+      Iterator<Row> iterator = rows.iterator();
+
+      while (iterator.hasNext()) {
+        Row row = iterator.next();
+
+        if (row.matches(sender, sentTimestamp)) {
+          content.add(row.content);
+          iterator.remove();
+        }
+      }
+
+      return content;
+    }
+
+    @Override
+    public void delete(@NonNull RecipientId sender, long sentTimestamp) {
+      remove(sender, sentTimestamp);
+    }
+
+    @Override
+    public @NonNull List<Pair<RecipientId, Long>> getAllKeys() {
+      List<Pair<RecipientId, Long>> keys = new LinkedList<>();
+
+      for (Row row : rows) {
+        keys.add(new Pair<>(row.sender, row.sentTimestamp));
+      }
+
+      return keys;
+    }
+
+    @Override
+    public @NonNull List<Pair<RecipientId, Long>> deleteOldest(int count) {
+      List<Pair<RecipientId, Long>> deleted = new LinkedList<>();
+
+      while (deleted.size() < count && !rows.isEmpty()) {
+        Row row = rows.remove(0);
+        deleted.add(new Pair<>(row.sender, row.sentTimestamp));
+      }
+
+      return deleted;
+    }
+
+    int size() {
+      return rows.size();
+    }
+  }
+
+  private static final class Row {
+    private final RecipientId sender;
+    private final long        sentTimestamp;
+    private final byte[]      content;
+
+    private Row(@NonNull RecipientId sender, long sentTimestamp, @NonNull byte[] content) {
+      this.sender        = sender;
+      this.sentTimestamp = sentTimestamp;
+      this.content       = content;
+    }
+
+    boolean matches(@NonNull RecipientId sender, long sentTimestamp) {
+      return this.sender.equals(sender) && this.sentTimestamp == sentTimestamp;
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package org.thoughtcrime.securesms.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class ReadAheadInputStreamTest {
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @Test
+  public void read_empty_returnsEndOfStream() throws IOException {
+    ReadAheadInputStream in = new ReadAheadInputStream(new ByteArrayInputStream(new byte[0]), executor, 16, 2);
+
+    assertEquals(-1, in.read());
+  }
+
+  @Test
+  public void read_exactMultipleOfBufferSize_returnsAllData() throws IOException {
+    byte[] data = randomBytes(64);
+
+    assertArrayEquals(data, readAll(new ReadAheadInputStream(new ByteArrayInputStream(data), executor, 16, 2)));
+  }
+
+  @Test
+  public void read_manyBuffers_returnsAllData() throws IOException {
+    byte[] data = randomBytes(100_003);
+
+    assertArrayEquals(data, readAll(new ReadAheadInputStream(new ByteArrayInputStream(data), executor, 1024, 3)));
+  }
+
+  @Test
+  public void read_singleBytes_returnsAllData() throws IOException {
+    byte[]               data = randomBytes(50);
+    ReadAheadInputStream in   = new ReadAheadInputStream(new ByteArrayInputStream(data), executor, 8, 2);
+
+    for (byte b : data) {
+      assertEquals(b & 0xFF, in.read());
+    }
+
+    assertEquals(-1, in.read());
+  }
+
+  @Test
+  public void read_sourceThrows_throwsAfterPrecedingData() throws IOException {
+    InputStream source = new InputStream() {
+      private int count;
+
+      @Override
+      public int read() throws IOException {
+        if (count++ < 10) return 1;
+        throw new IOException("Broken");
+      }
+    };
+
+    ReadAheadInputStream in = new ReadAheadInputStream(source, executor, 4, 2);
+
+    for (int i = 0; i < 8; i++) {
+      assertEquals(1, in.read());
+    }
+
+    try {
+      readAll(in);
+      fail();
+    } catch (IOException e) {
+      assertEquals("Broken", e.getMessage());
+    }
+  }
+
+  @Test
+  public void close_beforeFullyRead_closesSource() throws Exception {
+    boolean[]   closed = new boolean[1];
+    InputStream source = new ByteArrayInputStream(randomBytes(10_000)) {
+      @Override
+      public void close() {
+        synchronized (closed) {
+          closed[0] = true;
+          closed.notifyAll();
+        }
+      }
+    };
+
+    ReadAheadInputStream in = new ReadAheadInputStream(source, executor, 16, 2);
+    in.read();
+    in.close();
+
+    synchronized (closed) {
+      long deadline = System.currentTimeMillis() + 5000;
+      while (!closed[0] && System.currentTimeMillis() < deadline) {
+        closed.wait(100);
+      }
+    }
+
+    assertTrue(closed[0]);
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[777];
+    int                   read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+
+    return out.toByteArray();
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,162 @@
+package org.thoughtcrime.securesms.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class ShardedLruCacheTest {
+
+  @Test
+  public void get_empty_returnsNullAndCountsMiss() {
+    ShardedLruCache<Integer, String> cache = new ShardedLruCache<>(10);
+
+    assertNull(cache.get(1));
+    assertEquals(0, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void putIfAbsent_thenGet_returnsValueAndCountsHit() {
+    ShardedLruCache<Integer, String> cache = new ShardedLruCache<>(10);
+
+    assertNull(cache.putIfAbsent(1, "a"));
+    assertEquals("a", cache.get(1));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(0, cache.getMissCount());
+  }
+
+  @Test
+  public void putIfAbsent_existingKey_keepsOriginal() {
+    ShardedLruCache<Integer, String> cache = new ShardedLruCache<>(10);
+
+    cache.putIfAbsent(1, "a");
+
+    assertEquals("a", cache.putIfAbsent(1, "b"));
+    assertEquals("a", cache.get(1));
+  }
+
+  @Test
+  public void put_existingKey_replaces() {
+    ShardedLruCache<Integer, String> cache = new ShardedLruCache<>(10);
+
+    cache.put(1, "a");
+    cache.put(1, "b");
+
+    assertEquals("b", cache.get(1));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void put_overCapacity_evictsUnreferencedBeforeReferenced() {
+    ShardedLruCache<Integer, String> cache = new ShardedLruCache<>(3, 1);
+
+    cache.put(1, "a");
+    cache.put(2, "b");
+    cache.put(3, "c");
+
+    cache.get(1);
+
+    cache.put(4, "d");
+
+    assertEquals(3, cache.size());
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals("a", cache.get(1));
+    assertNull(cache.get(2));
+    assertEquals("c", cache.get(3));
+    assertEquals("d", cache.get(4));
+  }
+
+  @Test
+  public void put_overCapacity_allReferenced_stillEvicts() {
+    ShardedLruCache<Integer, String> cache = new ShardedLruCache<>(2, 1);
+
+    cache.put(1, "a");
+    cache.put(2, "b");
+    cache.get(1);
+    cache.get(2);
+
+    cache.put(3, "c");
+
+    assertEquals(2, cache.size());
+    assertEquals("c", cache.get(3));
+  }
+
+  @Test
+  public void clear_removesEverything() {
+    ShardedLruCache<Integer, String> cache = new ShardedLruCache<>(10);
+
+    cache.put(1, "a");
+    cache.put(2, "b");
+    cache.clear();
+
+    assertEquals(0, cache.size());
+    assertNull(cache.get(1));
+  }
+
+  @Test
+  public void manyThreads_racingToInsert_allSeeSameValue() throws InterruptedException {
+    final int threadCount = 8;
+    final int keyCount    = 5_000;
+
+    ShardedLruCache<Integer, Object> cache    = new ShardedLruCache<>(keyCount);
+    Object[][]                       seen     = new Object[threadCount][keyCount];
+    CountDownLatch                   start    = new CountDownLatch(1);
+    CountDownLatch                   finished = new CountDownLatch(threadCount);
+    AtomicReference<Throwable>       error    = new AtomicReference<>();
+    AtomicInteger                    inserts  = new AtomicInteger();
+
+    for (int t = 0; t < threadCount; t++) {
+      final int thread = t;
+
+      new Thread(() -> {
+        try {
+          start.await();
+
+          for (int i = 0; i < keyCount; i++) {
+            Object value = cache.get(i);
+
+            if (value == null) {
+              Object newValue = new Object();
+              Object existing = cache.putIfAbsent(i, newValue);
+
+              if (existing == null) {
+                inserts.incrementAndGet();
+                value = newValue;
+              } else {
+                value = existing;
+              }
+            }
+
+            seen[thread][i] = value;
+          }
+        } catch (Throwable e) {
+          error.set(e);
+        } finally {
+          finished.countDown();
+        }
+      }).start();
+    }
+
+    start.countDown();
+    assertTrue(finished.await(30, TimeUnit.SECONDS));
+    assertNull(error.get());
+
+    assertEquals(keyCount, inserts.get());
+
+    for (int i = 0; i < keyCount; i++) {
+      for (int t = 1; t < threadCount; t++) {
+        assertSame(seen[0][i], seen[t][i]);
+      }
+    }
+
+    assertEquals(threadCount * keyCount, cache.getHitCount() + cache.getMissCount());
+  }
+}
@@ -1,6 +1,7 @@
 package org.signal.core.util.logging;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.signal.core.util.Conversions;
 import org.signal.core.util.StreamUtil;
@@ -25,19 +26,24 @@ import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-class LogFile {
+/**
+ * A file of individually-encrypted entries. Each entry is written as its IV, followed by the length
+ * of its ciphertext, followed by the ciphertext itself, so a file can always be appended to.
+ */
+public class LogFile {
 
   public static class Writer {
 
     private final byte[]        ivBuffer         = new byte[16];
     private final GrowingBuffer ciphertextBuffer = new GrowingBuffer();
+    private final SecureRandom  random           = new SecureRandom();
 
     private final byte[]               secret;
     private final File                 file;
     private final Cipher               cipher;
     private final BufferedOutputStream outputStream;
 
-    Writer(@NonNull byte[] secret, @NonNull File file) throws IOException {
+    public Writer(@NonNull byte[] secret, @NonNull File file) throws IOException {
       this.secret       = secret;
       this.file         = file;
       this.outputStream = new BufferedOutputStream(new FileOutputStream(file, true));
@@ -50,9 +56,12 @@ class LogFile {
     }
 
     void writeEntry(@NonNull String entry) throws IOException {
-      new SecureRandom().nextBytes(ivBuffer);
+      writeEntry(entry.getBytes());
+    }
+
+    public void writeEntry(@NonNull byte[] plaintext) throws IOException {
+      random.nextBytes(ivBuffer);
 
-      byte[] plaintext = entry.getBytes();
       try {
         cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
 
@@ -70,16 +79,16 @@ class LogFile {
       }
     }
 
-    long getLogSize() {
+    public long getLogSize() {
       return file.length();
     }
 
-    void close() {
+    public void close() {
       StreamUtil.close(outputStream);
     }
   }
 
-  static class Reader {
+  public static class Reader {
 
     private final byte[]        ivBuffer         = new byte[16];
     private final byte[]        intBuffer        = new byte[4];
@@ -89,7 +98,7 @@ class LogFile {
     private final Cipher              cipher;
     private final BufferedInputStream inputStream;
 
-    Reader(@NonNull byte[] secret, @NonNull File file) throws IOException {
+    public Reader(@NonNull byte[] secret, @NonNull File file) throws IOException {
       this.secret      = secret;
       this.inputStream = new BufferedInputStream(new FileInputStream(file));
 
@@ -111,7 +120,19 @@ class LogFile {
       return builder.toString();
     }
 
+    public void close() {
+      StreamUtil.close(inputStream);
+    }
+
     private String readEntry() throws IOException {
+      byte[] plaintext = readEntryBytes();
+      return plaintext != null ? new String(plaintext) : null;
+    }
+
+    /**
+     * @return The plaintext of the next entry, or null if there are no more complete entries.
+     */
+    public @Nullable byte[] readEntryBytes() throws IOException {
       try {
         StreamUtil.readFully(inputStream, ivBuffer);
         StreamUtil.readFully(inputStream, intBuffer);
@@ -123,9 +144,7 @@ class LogFile {
 
         try {
           cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
-          byte[] plaintext = cipher.doFinal(ciphertext, 0, length);
-
-          return new String(plaintext);
+          return cipher.doFinal(ciphertext, 0, length);
         } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
           throw new AssertionError(e);
         }
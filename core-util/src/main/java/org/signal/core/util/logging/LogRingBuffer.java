@@ -0,0 +1,162 @@
+package org.signal.core.util.logging;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free queue of log lines with many producers and a single consumer. Slots are
+ * allocated up front and reused, so enqueueing a line only copies references and primitives into
+ * an existing slot.
+ *
+ * Each slot carries a sequence number that tells producers and the consumer whose turn it is, so
+ * a producer only has to claim a position with a CAS, and the consumer never has to lock at all.
+ * If the queue is full, the line is dropped and counted rather than blocking the caller.
+ */
+final class LogRingBuffer {
+
+  private final Entry[]         entries;
+  private final AtomicLongArray sequences;
+  private final int             capacity;
+  private final int             mask;
+  private final AtomicLong      producerPosition;
+  private final AtomicLong      dropped;
+
+  private volatile long consumerPosition;
+
+  /**
+   * @param capacity Must be a power of two.
+   */
+  LogRingBuffer(int capacity) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("Capacity must be a power of two!");
+    }
+
+    this.entries          = new Entry[capacity];
+    this.sequences        = new AtomicLongArray(capacity);
+    this.capacity         = capacity;
+    this.mask             = capacity - 1;
+    this.producerPosition = new AtomicLong(0);
+    this.dropped          = new AtomicLong(0);
+
+    for (int i = 0; i < capacity; i++) {
+      entries[i] = new Entry();
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Can be called from any thread.
+   *
+   * @return False if the queue was full and the line was dropped.
+   */
+  boolean offer(@NonNull String level, String tag, String message, Throwable throwable, long timestamp, long threadId, boolean mainThread) {
+    long position = producerPosition.get();
+
+    while (true) {
+      int  index    = (int) (position & mask);
+      long sequence = sequences.get(index);
+      long diff     = sequence - position;
+
+      if (diff == 0) {
+        if (producerPosition.compareAndSet(position, position + 1)) {
+          Entry entry = entries[index];
+
+          entry.level      = level;
+          entry.tag        = tag;
+          entry.message    = message;
+          entry.throwable  = throwable;
+          entry.timestamp  = timestamp;
+          entry.threadId   = threadId;
+          entry.mainThread = mainThread;
+
+          sequences.set(index, position + 1);
+          return true;
+        }
+
+        position = producerPosition.get();
+      } else if (diff < 0) {
+        dropped.incrementAndGet();
+        return false;
+      } else {
+        position = producerPosition.get();
+      }
+    }
+  }
+
+  /**
+   * Should only be called from the consumer. Hands up to maxCount lines to the visitor in the order
+   * they were enqueued, releasing each slot afterwards.
+   *
+   * @return The number of lines visited.
+   */
+  int drain(@NonNull Visitor visitor, int maxCount) {
+    long position = consumerPosition;
+    int  count    = 0;
+
+    while (count < maxCount) {
+      int index = (int) (position & mask);
+
+      if (sequences.get(index) != position + 1) {
+        break;
+      }
+
+      Entry entry = entries[index];
+      visitor.onEntry(entry);
+      entry.clear();
+
+      sequences.set(index, position + capacity);
+      position++;
+      count++;
+    }
+
+    consumerPosition = position;
+
+    return count;
+  }
+
+  /**
+   * @return The position the next line will be enqueued at. Once the consumer has drained past this
+   *         point, everything enqueued before this call has been consumed.
+   */
+  long getProducerPosition() {
+    return producerPosition.get();
+  }
+
+  long getConsumerPosition() {
+    return consumerPosition;
+  }
+
+  /**
+   * @return Approximately how many lines are waiting to be consumed.
+   */
+  int getDepth() {
+    return (int) Math.max(0, producerPosition.get() - consumerPosition);
+  }
+
+  long getDroppedCount() {
+    return dropped.get();
+  }
+
+  static final class Entry {
+    String    level;
+    String    tag;
+    String    message;
+    Throwable throwable;
+    long      timestamp;
+    long      threadId;
+    boolean   mainThread;
+
+    private void clear() {
+      level     = null;
+      tag       = null;
+      message   = null;
+      throwable = null;
+    }
+  }
+
+  interface Visitor {
+    void onEntry(@NonNull Entry entry);
+  }
+}
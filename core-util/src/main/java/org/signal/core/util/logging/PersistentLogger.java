@@ -16,14 +16,25 @@ import java.io.PrintStream;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
-
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes logs to encrypted files on disk.
+ *
+ * Logging threads only ever copy the raw fields of a line into a preallocated slot of a
+ * {@link LogRingBuffer}, which doesn't lock and doesn't allocate. A single writer thread drains the
+ * buffer in batches, formats the lines, and writes each batch as a single encrypted entry. If the
+ * writer falls far enough behind that the buffer fills up, lines are dropped (and a note is written
+ * to the log saying how many) rather than slowing down the rest of the app.
+ */
 @SuppressLint("LogNotSignal")
 public final class PersistentLogger extends Log.Logger {
 
@@ -40,29 +51,48 @@ public final class PersistentLogger extends Log.Logger {
   private static final String           FILENAME_PREFIX = "log-";
   private static final int              MAX_LOG_FILES   = 7;
   private static final int              MAX_LOG_SIZE    = 300 * 1024;
-  private static final SimpleDateFormat DATE_FORMAT     = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz", Locale.US);
-
-  private final Context  context;
-  private final Executor executor;
-  private final byte[]   secret;
-  private final String   logTag;
+  private static final int              BUFFER_SIZE     = 8192;
+  private static final int              MAX_BATCH_SIZE  = 256;
+  private static final long             IDLE_WAIT       = TimeUnit.SECONDS.toNanos(1);
+  private static final SimpleDateFormat DATE_FORMAT     = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+  private static final SimpleDateFormat ZONE_FORMAT     = new SimpleDateFormat("zzz", Locale.US);
+
+  private final Context            context;
+  private final byte[]             secret;
+  private final String             logTag;
+  private final LogRingBuffer      buffer;
+  private final Queue<PendingTask> tasks;
+  private final Thread             thread;
+  private final long               mainThreadId;
+
+  private volatile boolean idle;
+
+  // Only accessed from the writer thread.
+  private final StringBuilder     batch;
+  private final Map<Long, String> threadStrings;
+  private final Date              date;
 
   private LogFile.Writer writer;
-
-  private ThreadLocal<String> cachedThreadString;
+  private long           cachedSecond;
+  private String         cachedDateString;
+  private String         cachedZoneString;
+  private long           reportedDropped;
 
   public PersistentLogger(@NonNull Context context, @NonNull byte[] secret, @NonNull String logTag) {
-    this.context            = context.getApplicationContext();
-    this.secret             = secret;
-    this.logTag             = logTag;
-    this.cachedThreadString = new ThreadLocal<>();
-    this.executor           = Executors.newSingleThreadExecutor(r -> {
-      Thread thread = new Thread(r, "signal-PersistentLogger");
-      thread.setPriority(Thread.MIN_PRIORITY);
-      return thread;
-    });
-
-    executor.execute(this::initializeWriter);
+    this.context       = context.getApplicationContext();
+    this.secret        = secret;
+    this.logTag        = logTag;
+    this.buffer        = new LogRingBuffer(BUFFER_SIZE);
+    this.tasks         = new ConcurrentLinkedQueue<>();
+    this.mainThreadId  = Looper.getMainLooper().getThread().getId();
+    this.batch         = new StringBuilder();
+    this.threadStrings = new HashMap<>();
+    this.date          = new Date();
+    this.cachedSecond  = -1;
+    this.thread        = new Thread(this::run, "signal-PersistentLogger");
+
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
   }
 
   @Override
@@ -99,7 +129,7 @@ public final class PersistentLogger extends Log.Logger {
   public void blockUntilAllWritesFinished() {
     CountDownLatch latch = new CountDownLatch(1);
 
-    executor.execute(latch::countDown);
+    execute(latch::countDown);
 
     try {
       latch.await();
@@ -108,12 +138,26 @@ public final class PersistentLogger extends Log.Logger {
     }
   }
 
+  /**
+   * @return The number of lines that have been dropped because the writer couldn't keep up.
+   */
+  public long getDroppedLineCount() {
+    return buffer.getDroppedCount();
+  }
+
+  /**
+   * @return Approximately how many lines are waiting to be written.
+   */
+  public int getQueueDepth() {
+    return buffer.getDepth();
+  }
+
   @WorkerThread
   public @Nullable CharSequence getLogs() {
     CountDownLatch                latch = new CountDownLatch(1);
     AtomicReference<CharSequence> logs  = new AtomicReference<>();
 
-    executor.execute(() -> {
+    execute(() -> {
       StringBuilder builder = new StringBuilder();
 
       try {
@@ -156,42 +200,173 @@ public final class PersistentLogger extends Log.Logger {
 
   @AnyThread
   private void write(String level, String tag, String message, Throwable t) {
-    String threadString = cachedThreadString.get();
+    Thread current = Thread.currentThread();
 
-    if (cachedThreadString.get() == null) {
-      if (Looper.myLooper() == Looper.getMainLooper()) {
-        threadString = "main ";
-      } else {
-        threadString = String.format("%-5s", Thread.currentThread().getId());
-      }
+    if (buffer.offer(level, tag, message, t, System.currentTimeMillis(), current.getId(), current.getId() == mainThreadId)) {
+      wakeIfIdle();
+    }
+  }
+
+  /**
+   * Runs the task on the writer thread once every line that was enqueued before it has been
+   * written.
+   */
+  private void execute(@NonNull Runnable task) {
+    tasks.add(new PendingTask(buffer.getProducerPosition(), task));
+    LockSupport.unpark(thread);
+  }
 
-      cachedThreadString.set(threadString);
+  private void wakeIfIdle() {
+    if (idle) {
+      LockSupport.unpark(thread);
     }
+  }
 
-    final String finalThreadString = threadString;
+  @WorkerThread
+  private void run() {
+    initializeWriter();
 
-    executor.execute(() -> {
-      try {
-        if (writer == null) {
-          return;
-        }
+    //noinspection InfiniteLoopStatement
+    while (true) {
+      int written = writeBatch();
 
-        if (writer.getLogSize() >= MAX_LOG_SIZE) {
-          writer.close();
-          writer = new LogFile.Writer(secret, createNewLogFile());
-          trimLogFilesOverMax();
-        }
+      runReadyTasks();
+
+      if (written == 0) {
+        idle = true;
 
-        for (String entry : buildLogEntries(level, tag, message, t, finalThreadString)) {
-          writer.writeEntry(entry);
+        if (buffer.getDepth() == 0 && tasks.isEmpty()) {
+          LockSupport.parkNanos(this, IDLE_WAIT);
         }
 
-      } catch (IOException e) {
-        android.util.Log.w(TAG, "Failed to write line. Deleting all logs and starting over.");
-        deleteAllLogs();
-        initializeWriter();
+        idle = false;
       }
-    });
+    }
+  }
+
+  /**
+   * Runs every task whose preceding lines have all been written. Checking after every batch (rather
+   * than waiting for the buffer to be empty) means tasks can't be starved by a steady stream of logs.
+   */
+  @WorkerThread
+  private void runReadyTasks() {
+    PendingTask task;
+
+    while ((task = tasks.peek()) != null && task.position <= buffer.getConsumerPosition()) {
+      tasks.poll();
+      task.runnable.run();
+    }
+  }
+
+  /**
+   * Formats up to {@link #MAX_BATCH_SIZE} lines and writes them out as a single entry.
+   *
+   * @return The number of lines that were taken off of the buffer.
+   */
+  @WorkerThread
+  private int writeBatch() {
+    batch.setLength(0);
+
+    int count = buffer.drain(this::appendEntry, MAX_BATCH_SIZE);
+
+    long dropped = buffer.getDroppedCount();
+    if (dropped != reportedDropped) {
+      appendLine(LOG_W, TAG, "Dropped " + (dropped - reportedDropped) + " log lines because the logger couldn't keep up.", System.currentTimeMillis(), "     ");
+      reportedDropped = dropped;
+    }
+
+    if (batch.length() == 0) {
+      return count;
+    }
+
+    try {
+      if (writer == null) {
+        return count;
+      }
+
+      if (writer.getLogSize() >= MAX_LOG_SIZE) {
+        writer.close();
+        writer = new LogFile.Writer(secret, createNewLogFile());
+        trimLogFilesOverMax();
+      }
+
+      writer.writeEntry(batch.toString());
+    } catch (IOException e) {
+      android.util.Log.w(TAG, "Failed to write lines. Deleting all logs and starting over.");
+      deleteAllLogs();
+      initializeWriter();
+    }
+
+    return count;
+  }
+
+  @WorkerThread
+  private void appendEntry(@NonNull LogRingBuffer.Entry entry) {
+    String threadString = getThreadString(entry.threadId, entry.mainThread);
+
+    appendLine(entry.level, entry.tag, entry.message, entry.timestamp, threadString);
+
+    if (entry.throwable != null) {
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      entry.throwable.printStackTrace(new PrintStream(outputStream));
+
+      String   trace = new String(outputStream.toByteArray());
+      String[] lines = trace.split("\\n");
+
+      for (String line : lines) {
+        appendLine(entry.level, entry.tag, line, entry.timestamp, threadString);
+      }
+    }
+  }
+
+  /**
+   * Appends a line in the format: [logTag] [thread] yyyy-MM-dd HH:mm:ss.SSS zzz level tag: message
+   *
+   * Lines are separated by newlines within a batch. The reader adds the newline after each entry.
+   */
+  @WorkerThread
+  private void appendLine(String level, String tag, String message, long timestamp, String threadString) {
+    if (batch.length() > 0) {
+      batch.append('\n');
+    }
+
+    long second = timestamp / 1000;
+    int  millis = (int) (timestamp % 1000);
+
+    if (second != cachedSecond) {
+      date.setTime(second * 1000);
+      cachedDateString = DATE_FORMAT.format(date);
+      cachedZoneString = ZONE_FORMAT.format(date);
+      cachedSecond     = second;
+    }
+
+    batch.append('[').append(logTag).append("] [").append(threadString).append("] ")
+         .append(cachedDateString).append('.');
+
+    if (millis < 100) batch.append('0');
+    if (millis < 10)  batch.append('0');
+
+    batch.append(millis).append(' ')
+         .append(cachedZoneString).append(' ')
+         .append(level).append(' ')
+         .append(tag).append(": ")
+         .append(message);
+  }
+
+  @WorkerThread
+  private @NonNull String getThreadString(long threadId, boolean mainThread) {
+    if (mainThread) {
+      return "main ";
+    }
+
+    String threadString = threadStrings.get(threadId);
+
+    if (threadString == null) {
+      threadString = String.format(Locale.US, "%-5s", threadId);
+      threadStrings.put(threadId, threadString);
+    }
+
+    return threadString;
   }
 
   private void trimLogFilesOverMax() throws IOException {
@@ -245,28 +420,13 @@ public final class PersistentLogger extends Log.Logger {
     return logDir;
   }
 
-  private List<String> buildLogEntries(String level, String tag, String message, Throwable t, String threadString) {
-    List<String> entries = new LinkedList<>();
-    Date         date    = new Date();
-
-    entries.add(buildEntry(level, tag, message, date, threadString));
+  private static final class PendingTask {
+    private final long     position;
+    private final Runnable runnable;
 
-    if (t != null) {
-      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-      t.printStackTrace(new PrintStream(outputStream));
-
-      String   trace = new String(outputStream.toByteArray());
-      String[] lines = trace.split("\\n");
-
-      for (String line : lines) {
-        entries.add(buildEntry(level, tag, line, date, threadString));
-      }
+    private PendingTask(long position, @NonNull Runnable runnable) {
+      this.position = position;
+      this.runnable = runnable;
     }
-
-    return entries;
-  }
-
-  private String buildEntry(String level, String tag, String message, Date date, String threadString) {
-    return '[' + logTag + "] [" + threadString + "] " + DATE_FORMAT.format(date) + ' ' + level + ' ' + tag + ": " + message;
   }
 }
@@ -0,0 +1,128 @@
+package org.signal.core.util.tracing;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A fixed-size ring of trace events for a single thread, stored as parallel arrays of primitives so
+ * that recording an event never allocates.
+ *
+ * There is exactly one producer (the thread that owns the ring) and one consumer (the
+ * {@link TraceWriter}), so the only synchronization needed is the volatile head and tail. If the
+ * ring fills up before the writer gets to it, new events are dropped and counted rather than
+ * blocking the producer.
+ */
+final class TraceEventRing {
+
+  static final byte TYPE_SLICE_BEGIN = 1;
+  static final byte TYPE_SLICE_END   = 2;
+
+  static final int NO_STRING = -1;
+
+  private final Thread thread;
+  private final String threadName;
+  private final int    capacity;
+  private final int    mask;
+
+  private final byte[] types;
+  private final long[] timestamps;
+  private final long[] trackIds;
+  private final int[]  nameIds;
+  private final int[]  keyIds;
+  private final int[]  valueIds;
+
+  private volatile long head;
+  private volatile long tail;
+  private volatile long dropped;
+
+  /**
+   * @param capacity Must be a power of two.
+   */
+  TraceEventRing(@NonNull Thread thread, int capacity) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("Capacity must be a power of two!");
+    }
+
+    this.thread     = thread;
+    this.threadName = thread.getName();
+    this.capacity   = capacity;
+    this.mask       = capacity - 1;
+    this.types      = new byte[capacity];
+    this.timestamps = new long[capacity];
+    this.trackIds   = new long[capacity];
+    this.nameIds    = new int[capacity];
+    this.keyIds     = new int[capacity];
+    this.valueIds   = new int[capacity];
+  }
+
+  /**
+   * Should only ever be called from the thread that owns this ring.
+   *
+   * @return True if adding the event made the ring half full, meaning it would be a good time for
+   *         the writer to drain it.
+   */
+  boolean add(byte type, long timestamp, long trackId, int nameId, int keyId, int valueId) {
+    long currentHead = head;
+
+    if (currentHead - tail >= capacity) {
+      dropped++;
+      return false;
+    }
+
+    int index = (int) (currentHead & mask);
+
+    types[index]      = type;
+    timestamps[index] = timestamp;
+    trackIds[index]   = trackId;
+    nameIds[index]    = nameId;
+    keyIds[index]     = keyId;
+    valueIds[index]   = valueId;
+
+    head = currentHead + 1;
+
+    return currentHead + 1 - tail == capacity / 2;
+  }
+
+  /**
+   * Should only ever be called from the writer. Hands every event recorded so far to the visitor,
+   * then frees up their slots.
+   *
+   * @return The number of events visited.
+   */
+  int drain(@NonNull Visitor visitor) {
+    long currentHead = head;
+    long currentTail = tail;
+
+    for (long i = currentTail; i < currentHead; i++) {
+      int index = (int) (i & mask);
+      visitor.onEvent(types[index], timestamps[index], trackIds[index], nameIds[index], keyIds[index], valueIds[index]);
+    }
+
+    tail = currentHead;
+
+    return (int) (currentHead - currentTail);
+  }
+
+  boolean isEmpty() {
+    return head == tail;
+  }
+
+  boolean isThreadAlive() {
+    return thread.isAlive();
+  }
+
+  long getThreadId() {
+    return thread.getId();
+  }
+
+  @NonNull String getThreadName() {
+    return threadName;
+  }
+
+  long getDroppedCount() {
+    return dropped;
+  }
+
+  interface Visitor {
+    void onEvent(byte type, long timestamp, long trackId, int nameId, int keyId, int valueId);
+  }
+}
@@ -0,0 +1,79 @@
+package org.signal.core.util.tracing;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the strings used in trace events (method names, annotation keys and values) to small ids
+ * that can be stored in a {@link TraceEventRing}. Looking up a string that has already been seen
+ * does not allocate.
+ *
+ * The table is capped, since annotation values can be arbitrary. Once full, new strings all share a
+ * single placeholder id.
+ */
+final class TraceStringTable {
+
+  private static final int    MAX_STRINGS = 16_384;
+  private static final String OVERFLOW    = "(too many unique strings)";
+
+  private final Map<String, Integer> ids;
+
+  private volatile String[] strings;
+  private int              count;
+
+  TraceStringTable() {
+    this.ids     = new ConcurrentHashMap<>();
+    this.strings = new String[256];
+
+    intern(OVERFLOW);
+  }
+
+  int intern(@Nullable String value) {
+    if (value == null) {
+      return TraceEventRing.NO_STRING;
+    }
+
+    Integer id = ids.get(value);
+
+    if (id != null) {
+      return id;
+    }
+
+    return internSlow(value);
+  }
+
+  @Nullable String get(int id) {
+    String[] current = strings;
+    return id >= 0 && id < current.length ? current[id] : null;
+  }
+
+  private synchronized int internSlow(@NonNull String value) {
+    Integer existing = ids.get(value);
+
+    if (existing != null) {
+      return existing;
+    }
+
+    if (count >= MAX_STRINGS) {
+      return 0;
+    }
+
+    String[] current = strings;
+
+    if (count == current.length) {
+      current = Arrays.copyOf(current, current.length * 2);
+    }
+
+    int id = count++;
+
+    current[id] = value;
+    strings     = current;
+    ids.put(value, id);
+
+    return id;
+  }
+}
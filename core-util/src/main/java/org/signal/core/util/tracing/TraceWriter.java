@@ -0,0 +1,263 @@
+package org.signal.core.util.tracing;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import org.signal.core.util.logging.Log;
+import org.signal.core.util.logging.LogFile;
+import org.signal.core.util.tracing.TraceProtos.Trace;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Periodically drains every {@link TraceEventRing}, turns the events into Perfetto packets, and
+ * appends them to an encrypted file on disk.
+ *
+ * Each entry in the file is itself a serialized {@link Trace}. Since a Trace is just a repeated
+ * field of packets, concatenating the decrypted entries gives you a valid trace. Files are rotated
+ * once they hit {@link #MAX_FILE_SIZE}, and only the newest {@link #MAX_FILES} are kept. Every file
+ * describes the tracks it uses, so any one of them can be read on its own.
+ */
+final class TraceWriter implements TraceEventRing.Visitor {
+
+  private static final String TAG = Log.tag(TraceWriter.class);
+
+  private static final String FILENAME_PREFIX       = "trace-";
+  private static final long   MAX_FILE_SIZE         = 8 * 1024 * 1024;
+  private static final int    MAX_FILES             = 2;
+  private static final int    MAX_PACKETS_PER_ENTRY = 2_000;
+  private static final long   DRAIN_INTERVAL        = TimeUnit.SECONDS.toNanos(1);
+  private static final long   FLUSH_TIMEOUT         = TimeUnit.SECONDS.toMillis(5);
+
+  private final File                  directory;
+  private final byte[]                secret;
+  private final TraceStringTable      strings;
+  private final List<TraceEventRing>  rings;
+  private final Queue<CountDownLatch> flushRequests;
+  private final Set<Long>             describedTracks;
+  private final Thread                thread;
+
+  private LogFile.Writer writer;
+  private Trace.Builder  pending;
+  private int            pendingCount;
+  private TraceEventRing currentRing;
+
+  TraceWriter(@NonNull File directory, @NonNull byte[] secret, @NonNull TraceStringTable strings, @NonNull List<TraceEventRing> rings) {
+    this.directory       = directory;
+    this.secret          = secret;
+    this.strings         = strings;
+    this.rings           = new CopyOnWriteArrayList<>(rings);
+    this.flushRequests   = new ConcurrentLinkedQueue<>();
+    this.describedTracks = new HashSet<>();
+    this.pending         = Trace.newBuilder();
+    this.thread          = new Thread(this::run, "signal-TraceWriter");
+
+    thread.setPriority(Thread.MIN_PRIORITY);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  void addRing(@NonNull TraceEventRing ring) {
+    rings.add(ring);
+  }
+
+  /**
+   * Asks the writer to drain the rings soon, rather than waiting for its next scheduled pass.
+   */
+  void wake() {
+    LockSupport.unpark(thread);
+  }
+
+  /**
+   * Blocks until everything recorded so far has been written to disk, or until we give up waiting.
+   */
+  @WorkerThread
+  void flush() {
+    CountDownLatch latch = new CountDownLatch(1);
+
+    flushRequests.add(latch);
+    wake();
+
+    try {
+      if (!latch.await(FLUSH_TIMEOUT, TimeUnit.MILLISECONDS)) {
+        Log.w(TAG, "Timed out waiting for the trace to be flushed.");
+      }
+    } catch (InterruptedException e) {
+      Log.w(TAG, "Interrupted while waiting for the trace to be flushed.");
+    }
+  }
+
+  /**
+   * @return The decrypted contents of every trace file, oldest first, as a single trace.
+   */
+  @WorkerThread
+  @NonNull byte[] readAll() {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    File[]                files  = getSortedTraceFiles();
+
+    for (int i = files.length - 1; i >= 0; i--) {
+      LogFile.Reader reader = null;
+
+      try {
+        reader = new LogFile.Reader(secret, files[i]);
+
+        byte[] entry;
+        while ((entry = reader.readEntryBytes()) != null) {
+          output.write(entry);
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to read trace file at index " + i + ". Skipping.", e);
+      } finally {
+        if (reader != null) {
+          reader.close();
+        }
+      }
+    }
+
+    return output.toByteArray();
+  }
+
+  @Override
+  public void onEvent(byte type, long timestamp, long trackId, int nameId, int keyId, int valueId) {
+    if (describedTracks.add(trackId)) {
+      pending.addPacket(Tracer.forTrack(trackId, getTrackName(trackId)));
+      pendingCount++;
+    }
+
+    String name = getString(nameId);
+
+    if (type == TraceEventRing.TYPE_SLICE_BEGIN) {
+      String key = strings.get(keyId);
+      pending.addPacket(Tracer.forMethodStart(name, timestamp, trackId, key != null ? Collections.singletonMap(key, strings.get(valueId)) : null));
+    } else {
+      pending.addPacket(Tracer.forMethodEnd(name, timestamp, trackId));
+    }
+
+    pendingCount++;
+
+    if (pendingCount >= MAX_PACKETS_PER_ENTRY) {
+      writePending();
+    }
+  }
+
+  private void run() {
+    try {
+      if (!directory.exists() && !directory.mkdirs()) {
+        throw new IOException("Unable to create trace directory.");
+      }
+
+      writer = new LogFile.Writer(secret, createNewTraceFile());
+      trimTraceFilesOverMax();
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to initialize the trace writer. Traces will not be written to disk.", e);
+      return;
+    }
+
+    //noinspection InfiniteLoopStatement
+    while (true) {
+      LockSupport.parkNanos(this, DRAIN_INTERVAL);
+
+      drainRings();
+
+      CountDownLatch request;
+      while ((request = flushRequests.poll()) != null) {
+        request.countDown();
+      }
+    }
+  }
+
+  private void drainRings() {
+    for (TraceEventRing ring : rings) {
+      currentRing = ring;
+      ring.drain(this);
+
+      if (!ring.isThreadAlive() && ring.isEmpty()) {
+        rings.remove(ring);
+      }
+    }
+
+    currentRing = null;
+
+    if (pendingCount > 0) {
+      writePending();
+    }
+  }
+
+  private void writePending() {
+    pending.addPacket(Tracer.forSynchronization(Tracer.getInstance().getTimeNanos()));
+
+    try {
+      writer.writeEntry(pending.build().toByteArray());
+
+      if (writer.getLogSize() >= MAX_FILE_SIZE) {
+        writer.close();
+        writer = new LogFile.Writer(secret, createNewTraceFile());
+        describedTracks.clear();
+        trimTraceFilesOverMax();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write trace packets. Dropping them.", e);
+    }
+
+    pending      = Trace.newBuilder();
+    pendingCount = 0;
+  }
+
+  private @NonNull String getTrackName(long trackId) {
+    if (trackId == Tracer.TrackId.DB_LOCK) {
+      return Tracer.TrackId.DB_LOCK_NAME;
+    } else if (currentRing != null) {
+      return currentRing.getThreadName();
+    } else {
+      return String.valueOf(trackId);
+    }
+  }
+
+  private @NonNull String getString(int id) {
+    String value = strings.get(id);
+    return value != null ? value : "";
+  }
+
+  private @NonNull File createNewTraceFile() {
+    return new File(directory, FILENAME_PREFIX + System.currentTimeMillis());
+  }
+
+  private void trimTraceFilesOverMax() {
+    File[] files = getSortedTraceFiles();
+
+    for (int i = MAX_FILES; i < files.length; i++) {
+      if (!files[i].delete()) {
+        Log.w(TAG, "Failed to delete an old trace file.");
+      }
+    }
+  }
+
+  /**
+   * @return Trace files, newest first.
+   */
+  private @NonNull File[] getSortedTraceFiles() {
+    File[] files = directory.listFiles((dir, name) -> name.startsWith(FILENAME_PREFIX));
+
+    if (files == null) {
+      return new File[0];
+    }
+
+    Arrays.sort(files, (o1, o2) -> o2.getName().compareTo(o1.getName()));
+    return files;
+  }
+}
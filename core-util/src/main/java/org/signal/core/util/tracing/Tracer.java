@@ -12,8 +12,11 @@ import org.signal.core.util.tracing.TraceProtos.TracePacket;
 import org.signal.core.util.tracing.TraceProtos.TrackDescriptor;
 import org.signal.core.util.tracing.TraceProtos.TrackEvent;
 
+import java.io.File;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.UUID;
@@ -23,7 +26,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * A class to create Perfetto-compatible traces. Currently keeps the entire trace in memory to
+ * A class to create Perfetto-compatible traces. By default, keeps the entire trace in memory to
  * avoid weirdness with synchronizing to disk.
  *
  * Some general info on how the Perfetto format works:
@@ -40,6 +43,13 @@ import java.util.concurrent.atomic.AtomicInteger;
  *
  * Serializing is just a matter of throwing all the TracePackets we have into a proto.
  *
+ * Alternatively, tracing can be switched to streaming with {@link #enableStreaming()}. Each thread
+ * then records events into its own fixed-size {@link TraceEventRing} of primitives (with strings
+ * swapped out for ids from a {@link TraceStringTable}), so recording an event doesn't allocate.
+ * Once {@link #startWriting(File, byte[])} is called, a {@link TraceWriter} drains those rings in
+ * the background and appends them to an encrypted file, which lets us hold on to far more history
+ * than the in-memory buffer.
+ *
  * Note: This class aims to be largely-thread-safe, but prioritizes speed and memory efficiency
  * above all else. These methods are going to be called very quickly from every thread imaginable,
  * and we want to create as little overhead as possible. The idea being that it's ok if we don't,
@@ -52,7 +62,7 @@ public final class Tracer {
   public static final class TrackId {
     public static final long DB_LOCK        = -8675309;
 
-    private static final String DB_LOCK_NAME = "Database Lock";
+    static final String DB_LOCK_NAME = "Database Lock";
   }
 
   private static final Tracer INSTANCE = new Tracer();
@@ -60,21 +70,32 @@ public final class Tracer {
   private static final int    TRUSTED_SEQUENCE_ID      = 1;
   private static final byte[] SYNCHRONIZATION_MARKER   = toByteArray(UUID.fromString("82477a76-b28d-42ba-81dc-33326d57a079"));
   private static final long   SYNCHRONIZATION_INTERVAL = TimeUnit.SECONDS.toNanos(3);
+  private static final int    RING_CAPACITY            = 1024;
 
   private final Clock                  clock;
   private final Map<Long, TracePacket> threadPackets;
   private final Queue<TracePacket>     eventPackets;
   private final AtomicInteger          eventCount;
 
+  private final TraceStringTable            strings;
+  private final ThreadLocal<TraceEventRing> rings;
+  private final List<TraceEventRing>        unclaimedRings;
+
   private long lastSyncTime;
   private long maxBufferSize;
 
+  private volatile boolean     streaming;
+  private volatile TraceWriter writer;
+
   private Tracer() {
-    this.clock         = SystemClock::elapsedRealtimeNanos;
-    this.threadPackets = new ConcurrentHashMap<>();
-    this.eventPackets  = new ConcurrentLinkedQueue<>();
-    this.eventCount    = new AtomicInteger(0);
-    this.maxBufferSize = 3_500;
+    this.clock          = SystemClock::elapsedRealtimeNanos;
+    this.threadPackets  = new ConcurrentHashMap<>();
+    this.eventPackets   = new ConcurrentLinkedQueue<>();
+    this.eventCount     = new AtomicInteger(0);
+    this.maxBufferSize  = 3_500;
+    this.strings        = new TraceStringTable();
+    this.rings          = new ThreadLocal<>();
+    this.unclaimedRings = new ArrayList<>();
   }
 
   public static @NonNull Tracer getInstance() {
@@ -85,12 +106,45 @@ public final class Tracer {
     this.maxBufferSize = maxBufferSize;
   }
 
+  /**
+   * Switches to recording events into per-thread rings instead of the in-memory buffer. Events are
+   * held in the rings until {@link #startWriting(File, byte[])} is called, so this should be called
+   * as early as possible, and the writer started as soon as a secret is available.
+   */
+  public void enableStreaming() {
+    streaming = true;
+  }
+
+  /**
+   * Starts streaming recorded events to encrypted files in the provided directory. Has no effect
+   * unless {@link #enableStreaming()} has been called, or if the writer has already been started.
+   */
+  public synchronized void startWriting(@NonNull File directory, @NonNull byte[] secret) {
+    if (!streaming || writer != null) {
+      return;
+    }
+
+    TraceWriter traceWriter = new TraceWriter(directory, secret, strings, unclaimedRings);
+    unclaimedRings.clear();
+
+    writer = traceWriter;
+    traceWriter.start();
+  }
+
   public void start(@NonNull String methodName) {
-    start(methodName, Thread.currentThread().getId(), null);
+    if (streaming) {
+      record(TraceEventRing.TYPE_SLICE_BEGIN, methodName, Thread.currentThread().getId(), null, null);
+    } else {
+      start(methodName, Thread.currentThread().getId(), null);
+    }
   }
 
   public void start(@NonNull String methodName, long trackId) {
-    start(methodName, trackId, null);
+    if (streaming) {
+      record(TraceEventRing.TYPE_SLICE_BEGIN, methodName, trackId, null, null);
+    } else {
+      start(methodName, trackId, null);
+    }
   }
 
   public void start(@NonNull String methodName, @NonNull String key, @Nullable String value) {
@@ -98,14 +152,27 @@ public final class Tracer {
   }
 
   public void start(@NonNull String methodName, long trackId, @NonNull String key, @Nullable String value) {
-    start(methodName, trackId, Collections.singletonMap(key, value));
+    if (streaming) {
+      record(TraceEventRing.TYPE_SLICE_BEGIN, methodName, trackId, key, value);
+    } else {
+      start(methodName, trackId, Collections.singletonMap(key, value));
+    }
   }
 
   public void start(@NonNull String methodName, @Nullable Map<String, String> values) {
     start(methodName, Thread.currentThread().getId(), values);
   }
 
+  /**
+   * Note that when streaming, only the first of the provided values is kept.
+   */
   public void start(@NonNull String methodName, long trackId, @Nullable Map<String, String> values) {
+    if (streaming) {
+      Map.Entry<String, String> first = values != null && !values.isEmpty() ? values.entrySet().iterator().next() : null;
+      record(TraceEventRing.TYPE_SLICE_BEGIN, methodName, trackId, first != null ? first.getKey() : null, first != null ? first.getValue() : null);
+      return;
+    }
+
     long time = clock.getTimeNanos();
 
     if (time - lastSyncTime > SYNCHRONIZATION_INTERVAL) {
@@ -121,14 +188,33 @@ public final class Tracer {
   }
 
   public void end(@NonNull String methodName) {
-    addPacket(forMethodEnd(methodName, clock.getTimeNanos(), Thread.currentThread().getId()));
+    if (streaming) {
+      record(TraceEventRing.TYPE_SLICE_END, methodName, Thread.currentThread().getId(), null, null);
+    } else {
+      addPacket(forMethodEnd(methodName, clock.getTimeNanos(), Thread.currentThread().getId()));
+    }
   }
 
   public void end(@NonNull String methodName, long trackId) {
-    addPacket(forMethodEnd(methodName, clock.getTimeNanos(), trackId));
+    if (streaming) {
+      record(TraceEventRing.TYPE_SLICE_END, methodName, trackId, null, null);
+    } else {
+      addPacket(forMethodEnd(methodName, clock.getTimeNanos(), trackId));
+    }
   }
 
+  /**
+   * When streaming, this waits for everything recorded so far to be written, then reads back the
+   * files from disk, so it should not be called on the main thread.
+   */
   public @NonNull byte[] serialize() {
+    TraceWriter traceWriter = writer;
+
+    if (traceWriter != null) {
+      traceWriter.flush();
+      return traceWriter.readAll();
+    }
+
     Trace.Builder trace = Trace.newBuilder();
 
     for (TracePacket thread : threadPackets.values()) {
@@ -144,6 +230,42 @@ public final class Tracer {
     return trace.build().toByteArray();
   }
 
+  long getTimeNanos() {
+    return clock.getTimeNanos();
+  }
+
+  /**
+   * Records an event into the current thread's ring. Outside of creating the ring the first time a
+   * thread records something, and seeing a string for the first time, this doesn't allocate.
+   */
+  private void record(byte type, @NonNull String methodName, long trackId, @Nullable String key, @Nullable String value) {
+    long           time = clock.getTimeNanos();
+    TraceEventRing ring = rings.get();
+
+    if (ring == null) {
+      ring = new TraceEventRing(Thread.currentThread(), RING_CAPACITY);
+      rings.set(ring);
+      claimRing(ring);
+    }
+
+    boolean halfFull = ring.add(type, time, trackId, strings.intern(methodName), strings.intern(key), strings.intern(value));
+
+    if (halfFull) {
+      TraceWriter traceWriter = writer;
+      if (traceWriter != null) {
+        traceWriter.wake();
+      }
+    }
+  }
+
+  private synchronized void claimRing(@NonNull TraceEventRing ring) {
+    if (writer != null) {
+      writer.addRing(ring);
+    } else {
+      unclaimedRings.add(ring);
+    }
+  }
+
   /**
    * Attempts to add a packet to our list while keeping the size of our circular buffer in-check.
    * The tracking of the event count is not perfectly thread-safe, but doing it in a thread-safe
@@ -173,7 +295,7 @@ public final class Tracer {
     }
   }
 
-  private static TracePacket forTrack(long id, String name) {
+  static TracePacket forTrack(long id, String name) {
     return TracePacket.newBuilder()
                       .setTrustedPacketSequenceId(TRUSTED_SEQUENCE_ID)
                       .setTrackDescriptor(TrackDescriptor.newBuilder()
@@ -183,7 +305,7 @@ public final class Tracer {
 
   }
 
-  private static TracePacket forMethodStart(@NonNull String name, long time, long threadId, @Nullable Map<String, String> values) {
+  static TracePacket forMethodStart(@NonNull String name, long time, long threadId, @Nullable Map<String, String> values) {
     TrackEvent.Builder event = TrackEvent.newBuilder()
                                          .setTrackUuid(threadId)
                                          .setName(name)
@@ -209,7 +331,7 @@ public final class Tracer {
                                       .build();
   }
 
-  private static TracePacket forMethodEnd(@NonNull String name, long time, long threadId) {
+  static TracePacket forMethodEnd(@NonNull String name, long time, long threadId) {
     return TracePacket.newBuilder()
                       .setTrustedPacketSequenceId(TRUSTED_SEQUENCE_ID)
                       .setTimestamp(time)
@@ -220,7 +342,7 @@ public final class Tracer {
                       .build();
   }
 
-  private static TracePacket forSynchronization(long time) {
+  static TracePacket forSynchronization(long time) {
     return TracePacket.newBuilder()
                       .setTrustedPacketSequenceId(TRUSTED_SEQUENCE_ID)
                       .setTimestamp(time)
@@ -0,0 +1,118 @@
+package org.signal.core.util.logging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class LogRingBufferTest {
+
+  @Test
+  public void drain_empty() {
+    LogRingBuffer buffer = new LogRingBuffer(4);
+
+    assertEquals(0, buffer.drain(entry -> {}, 10));
+    assertEquals(0, buffer.getDepth());
+  }
+
+  @Test
+  public void drain_linesInOrder() {
+    LogRingBuffer buffer   = new LogRingBuffer(4);
+    List<String>  messages = new ArrayList<>();
+
+    buffer.offer("I", "Tag", "one", null, 1, 1, false);
+    buffer.offer("W", "Tag", "two", null, 2, 1, false);
+
+    assertEquals(2, buffer.getDepth());
+    assertEquals(2, buffer.drain(entry -> messages.add(entry.message), 10));
+    assertEquals(0, buffer.getDepth());
+    assertEquals("one", messages.get(0));
+    assertEquals("two", messages.get(1));
+  }
+
+  @Test
+  public void drain_respectsMaxCount() {
+    LogRingBuffer buffer = new LogRingBuffer(4);
+
+    buffer.offer("I", "Tag", "one", null, 1, 1, false);
+    buffer.offer("I", "Tag", "two", null, 2, 1, false);
+    buffer.offer("I", "Tag", "three", null, 3, 1, false);
+
+    assertEquals(2, buffer.drain(entry -> {}, 2));
+    assertEquals(1, buffer.getDepth());
+  }
+
+  @Test
+  public void drain_clearsReferences() {
+    LogRingBuffer             buffer  = new LogRingBuffer(2);
+    List<LogRingBuffer.Entry> entries = new ArrayList<>();
+
+    buffer.offer("I", "Tag", "one", new Exception(), 1, 1, false);
+    buffer.drain(entries::add, 10);
+
+    assertNull(entries.get(0).message);
+    assertNull(entries.get(0).throwable);
+  }
+
+  @Test
+  public void offer_whenFull_dropsLine() {
+    LogRingBuffer buffer   = new LogRingBuffer(2);
+    List<String>  messages = new ArrayList<>();
+
+    assertTrue(buffer.offer("I", "Tag", "one", null, 1, 1, false));
+    assertTrue(buffer.offer("I", "Tag", "two", null, 2, 1, false));
+    assertFalse(buffer.offer("I", "Tag", "three", null, 3, 1, false));
+
+    assertEquals(1, buffer.getDroppedCount());
+
+    buffer.drain(entry -> messages.add(entry.message), 10);
+    assertTrue(buffer.offer("I", "Tag", "four", null, 4, 1, false));
+    buffer.drain(entry -> messages.add(entry.message), 10);
+
+    assertEquals(3, messages.size());
+    assertEquals("four", messages.get(2));
+  }
+
+  @Test
+  public void offer_multipleProducers_noLinesLostOrDuplicated() throws InterruptedException {
+    int            producers   = 4;
+    int            perProducer = 10_000;
+    LogRingBuffer  buffer      = new LogRingBuffer(64);
+    CountDownLatch done        = new CountDownLatch(producers);
+    boolean[]      seen        = new boolean[producers * perProducer];
+
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+
+      new Thread(() -> {
+        for (int i = 0; i < perProducer; i++) {
+          while (!buffer.offer("I", "Tag", null, null, producer * perProducer + i, producer, false)) {
+            Thread.yield();
+          }
+        }
+        done.countDown();
+      }).start();
+    }
+
+    int[] received = new int[1];
+
+    while (received[0] < seen.length) {
+      buffer.drain(entry -> {
+        assertFalse(seen[(int) entry.timestamp]);
+        seen[(int) entry.timestamp] = true;
+        received[0]++;
+      }, 32);
+    }
+
+    done.await();
+
+    assertEquals(seen.length, received[0]);
+    assertEquals(0, buffer.getDepth());
+  }
+}
@@ -0,0 +1,98 @@
+package org.signal.core.util.tracing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class TraceEventRingTest {
+
+  @Test
+  public void drain_empty() {
+    TraceEventRing ring = new TraceEventRing(Thread.currentThread(), 4);
+
+    assertEquals(0, ring.drain(new RecordingVisitor()));
+    assertTrue(ring.isEmpty());
+  }
+
+  @Test
+  public void drain_eventsInOrder() {
+    TraceEventRing   ring    = new TraceEventRing(Thread.currentThread(), 4);
+    RecordingVisitor visitor = new RecordingVisitor();
+
+    ring.add(TraceEventRing.TYPE_SLICE_BEGIN, 10, 1, 5, 6, 7);
+    ring.add(TraceEventRing.TYPE_SLICE_END, 20, 1, 5, TraceEventRing.NO_STRING, TraceEventRing.NO_STRING);
+
+    assertEquals(2, ring.drain(visitor));
+    assertTrue(ring.isEmpty());
+    assertEquals(2, visitor.timestamps.size());
+    assertEquals(10, (long) visitor.timestamps.get(0));
+    assertEquals(20, (long) visitor.timestamps.get(1));
+    assertEquals(TraceEventRing.TYPE_SLICE_BEGIN, (byte) visitor.types.get(0));
+    assertEquals(TraceEventRing.TYPE_SLICE_END, (byte) visitor.types.get(1));
+  }
+
+  @Test
+  public void add_signalsWhenHalfFull() {
+    TraceEventRing ring = new TraceEventRing(Thread.currentThread(), 4);
+
+    assertFalse(ring.add(TraceEventRing.TYPE_SLICE_BEGIN, 1, 1, 1, 1, 1));
+    assertTrue(ring.add(TraceEventRing.TYPE_SLICE_BEGIN, 2, 1, 1, 1, 1));
+    assertFalse(ring.add(TraceEventRing.TYPE_SLICE_BEGIN, 3, 1, 1, 1, 1));
+  }
+
+  @Test
+  public void add_whenFull_dropsNewEvents() {
+    TraceEventRing   ring    = new TraceEventRing(Thread.currentThread(), 4);
+    RecordingVisitor visitor = new RecordingVisitor();
+
+    for (int i = 0; i < 6; i++) {
+      ring.add(TraceEventRing.TYPE_SLICE_BEGIN, i, 1, 1, 1, 1);
+    }
+
+    assertEquals(2, ring.getDroppedCount());
+    assertEquals(4, ring.drain(visitor));
+    assertEquals(3, (long) visitor.timestamps.get(3));
+  }
+
+  @Test
+  public void add_afterDrain_wrapsAround() {
+    TraceEventRing   ring    = new TraceEventRing(Thread.currentThread(), 4);
+    RecordingVisitor visitor = new RecordingVisitor();
+
+    for (int i = 0; i < 3; i++) {
+      ring.add(TraceEventRing.TYPE_SLICE_BEGIN, i, 1, 1, 1, 1);
+    }
+
+    ring.drain(visitor);
+
+    for (int i = 3; i < 7; i++) {
+      ring.add(TraceEventRing.TYPE_SLICE_BEGIN, i, 1, 1, 1, 1);
+    }
+
+    assertEquals(0, ring.getDroppedCount());
+    assertEquals(4, ring.drain(visitor));
+    assertEquals(7, visitor.timestamps.size());
+    assertEquals(6, (long) visitor.timestamps.get(6));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructor_capacityNotPowerOfTwo() {
+    new TraceEventRing(Thread.currentThread(), 3);
+  }
+
+  private static final class RecordingVisitor implements TraceEventRing.Visitor {
+    private final List<Byte> types      = new ArrayList<>();
+    private final List<Long> timestamps = new ArrayList<>();
+
+    @Override
+    public void onEvent(byte type, long timestamp, long trackId, int nameId, int keyId, int valueId) {
+      types.add(type);
+      timestamps.add(timestamp);
+    }
+  }
+}
@@ -14,6 +14,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.cert.X509Certificate;
 import java.util.concurrent.TimeUnit;
 
@@ -34,9 +37,12 @@ final class NetworkClientThread extends Thread {
   public static final int NETWORK_CLIENT_SSL_ESTABLISHED = 1003;
   public static final int NETWORK_CLIENT_STOPPED         = 1004;
 
-  private volatile SSLSocket client;
-  private volatile boolean   isRunning;
-  private volatile Boolean   isVerified;
+  private static final long REMOTE_DONE_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+  private volatile SSLSocket              client;
+  private volatile ParallelTransferSender transferSender;
+  private volatile boolean                isRunning;
+  private volatile Boolean                isVerified;
 
   private final Context    context;
   private final ClientTask clientTask;
@@ -92,10 +98,11 @@ final class NetworkClientThread extends Thread {
           Log.i(TAG, "Waiting for user to verify sas");
           awaitAuthenticationCodeVerification();
           Log.d(TAG, "Waiting for server to tell us they also verified");
-          outputStream.write(0x43);
+          outputStream.write(NetworkServerThread.VERIFIED_PARALLEL);
           outputStream.flush();
+          int result;
           try {
-            int result = inputStream.read();
+            result = inputStream.read();
             if (result == -1) {
               Log.w(TAG, "Something happened waiting for server to verify");
               throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("server disconnected while we waited");
@@ -106,15 +113,21 @@ final class NetworkClientThread extends Thread {
           }
 
           handler.sendEmptyMessage(NETWORK_CLIENT_CONNECTED);
-          clientTask.run(context, outputStream);
-          outputStream.flush();
 
-          Log.d(TAG, "Waiting for server to tell us they got everything");
-          try {
-            //noinspection ResultOfMethodCallIgnored
-            inputStream.read();
-          } catch (IOException e) {
-            Log.w(TAG, "Something happened confirming with server, mostly like bad SSL shutdown state, assuming success", e);
+          if (result == NetworkServerThread.VERIFIED_PARALLEL) {
+            runParallelTransfer(inputStream, x509.getEncoded());
+          } else {
+            Log.i(TAG, "Server doesn't support parallel transfers, using a single connection");
+            clientTask.run(context, outputStream);
+            outputStream.flush();
+
+            Log.d(TAG, "Waiting for server to tell us they got everything");
+            try {
+              //noinspection ResultOfMethodCallIgnored
+              inputStream.read();
+            } catch (IOException e) {
+              Log.w(TAG, "Something happened confirming with server, mostly like bad SSL shutdown state, assuming success", e);
+            }
           }
           success   = true;
           isRunning = false;
@@ -143,6 +156,64 @@ final class NetworkClientThread extends Thread {
     handler.sendEmptyMessage(NETWORK_CLIENT_STOPPED);
   }
 
+  /**
+   * Runs the {@link ClientTask} against a stream that's split across several connections to the
+   * server. The first is the one we've already verified, and the rest are opened as needed using
+   * the secret the server hands us over it.
+   */
+  private void runParallelTransfer(@NonNull InputStream inputStream, @NonNull byte[] certificate) throws IOException, InterruptedException {
+    byte[] token = new byte[ParallelTransfer.TOKEN_LENGTH];
+    StreamUtil.readFully(inputStream, token, token.length);
+
+    ParallelTransferSender sender = new ParallelTransferSender(() -> connectSecondary(certificate, token),
+                                                               ParallelTransfer.DEFAULT_STREAM_COUNT,
+                                                               ParallelTransfer.DEFAULT_CHUNK_SIZE);
+    transferSender = sender;
+
+    try {
+      sender.start(client);
+      clientTask.run(context, sender);
+      sender.close();
+
+      Log.d(TAG, "Waiting for server to tell us they got everything");
+      if (!sender.awaitRemoteDone(REMOTE_DONE_TIMEOUT)) {
+        Log.w(TAG, "Never heard back from server after sending everything, assuming success");
+      }
+    } finally {
+      sender.shutdown();
+      transferSender = null;
+    }
+  }
+
+  private @NonNull Socket connectSecondary(@NonNull byte[] certificate, @NonNull byte[] token) throws IOException {
+    SelfSignedIdentity.ApprovingTrustManager trustManager = new SelfSignedIdentity.ApprovingTrustManager();
+    SSLSocket                                socket       = null;
+
+    try {
+      socket = (SSLSocket) SelfSignedIdentity.getApprovingSocketFactory(trustManager).createSocket();
+      socket.bind(null);
+      socket.connect(new InetSocketAddress(serverHostAddress, port), 10000);
+      socket.startHandshake();
+
+      X509Certificate x509 = trustManager.getX509Certificate();
+      if (x509 == null || !MessageDigest.isEqual(certificate, x509.getEncoded())) {
+        throw new SSLHandshakeException("Secondary connection presented a different certificate");
+      }
+
+      OutputStream outputStream = socket.getOutputStream();
+      outputStream.write(token);
+      outputStream.flush();
+
+      return socket;
+    } catch (IOException e) {
+      StreamUtil.close(socket);
+      throw e;
+    } catch (GeneralSecurityException e) {
+      StreamUtil.close(socket);
+      throw new IOException(e);
+    }
+  }
+
   private void awaitAuthenticationCodeVerification() throws DeviceTransferAuthentication.DeviceTransferAuthenticationException {
     synchronized (verificationLock) {
       try {
@@ -170,6 +241,12 @@ final class NetworkClientThread extends Thread {
   public void shutdown() {
     isRunning = false;
     StreamUtil.close(client);
+
+    ParallelTransferSender sender = transferSender;
+    if (sender != null) {
+      sender.shutdown();
+    }
+
     interrupt();
   }
 
@@ -14,6 +14,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.Arrays;
 
 /**
@@ -31,6 +34,12 @@ final class NetworkServerThread extends Thread {
   public static final int NETWORK_CLIENT_DISCONNECTED    = 1004;
   public static final int NETWORK_CLIENT_SSL_ESTABLISHED = 1005;
 
+  /** Sent instead of the usual verification byte when a peer can split the transfer over several connections. */
+  static final int VERIFIED_PARALLEL = 0x50;
+
+  private static final int ACCEPT_POLL_INTERVAL        = 1000;
+  private static final int SECONDARY_HANDSHAKE_TIMEOUT = 10000;
+
   private volatile ServerSocket serverSocket;
   private volatile Socket       clientSocket;
   private volatile boolean      isRunning;
@@ -81,10 +90,11 @@ final class NetworkServerThread extends Thread {
           Log.i(TAG, "Waiting for user to verify sas");
           awaitAuthenticationCodeVerification();
           Log.d(TAG, "Waiting for client to tell us they also verified");
-          outputStream.write(0x43);
+          outputStream.write(VERIFIED_PARALLEL);
           outputStream.flush();
+          int result;
           try {
-            int result = inputStream.read();
+            result = inputStream.read();
             if (result == -1) {
               Log.w(TAG, "Something happened waiting for client to verify");
               throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("client disconnected while we waited");
@@ -95,10 +105,16 @@ final class NetworkServerThread extends Thread {
           }
 
           handler.sendEmptyMessage(NETWORK_CLIENT_CONNECTED);
-          serverTask.run(context, inputStream);
 
-          outputStream.write(0x53);
-          outputStream.flush();
+          if (result == VERIFIED_PARALLEL) {
+            runParallelTransfer(inputStream, outputStream);
+          } else {
+            Log.i(TAG, "Client doesn't support parallel transfers, using a single connection");
+            serverTask.run(context, inputStream);
+
+            outputStream.write(0x53);
+            outputStream.flush();
+          }
         } catch (IOException e) {
           if (isRunning) {
             Log.i(TAG, "Error connecting with client or server socket closed.", e);
@@ -121,6 +137,32 @@ final class NetworkServerThread extends Thread {
     handler.sendEmptyMessage(NETWORK_SERVER_STOPPED);
   }
 
+  /**
+   * Hands the client a secret it can use to open more connections, and runs the {@link ServerTask}
+   * on the stream reassembled from all of them.
+   */
+  private void runParallelTransfer(@NonNull InputStream inputStream, @NonNull OutputStream outputStream) throws IOException {
+    byte[] token = new byte[ParallelTransfer.TOKEN_LENGTH];
+    new SecureRandom().nextBytes(token);
+
+    outputStream.write(token);
+    outputStream.flush();
+
+    ParallelTransferInputStream transferStream = new ParallelTransferInputStream();
+    SecondaryConnectionAcceptor acceptor       = new SecondaryConnectionAcceptor(serverSocket, token, transferStream);
+
+    transferStream.addConnection(clientSocket);
+    acceptor.start();
+
+    try {
+      serverTask.run(context, transferStream);
+      transferStream.finish();
+    } finally {
+      acceptor.shutdown();
+      transferStream.close();
+    }
+  }
+
   private void awaitAuthenticationCodeVerification() throws DeviceTransferAuthentication.DeviceTransferAuthenticationException {
     synchronized (verificationLock) {
       try {
@@ -164,4 +206,78 @@ final class NetworkServerThread extends Thread {
     StreamUtil.close(serverSocket);
     interrupt();
   }
+
+  /**
+   * Accepts the additional connections a client opens during a parallel transfer. Each one has to
+   * present the secret we handed out over the verified connection before it's used.
+   */
+  private final class SecondaryConnectionAcceptor extends Thread {
+
+    private final ServerSocket                serverSocket;
+    private final byte[]                      token;
+    private final ParallelTransferInputStream transferStream;
+
+    private volatile boolean stopped;
+
+    private SecondaryConnectionAcceptor(@NonNull ServerSocket serverSocket,
+                                        @NonNull byte[] token,
+                                        @NonNull ParallelTransferInputStream transferStream)
+    {
+      super("secondary-connection-acceptor");
+      this.serverSocket   = serverSocket;
+      this.token          = token;
+      this.transferStream = transferStream;
+    }
+
+    @Override
+    public void run() {
+      try {
+        serverSocket.setSoTimeout(ACCEPT_POLL_INTERVAL);
+
+        while (!stopped && shouldKeepRunning()) {
+          Socket socket = null;
+          try {
+            socket = serverSocket.accept();
+            socket.setSoTimeout(SECONDARY_HANDSHAKE_TIMEOUT);
+
+            byte[] presented = new byte[token.length];
+            StreamUtil.readFully(socket.getInputStream(), presented, presented.length);
+
+            if (!MessageDigest.isEqual(token, presented)) {
+              throw new IOException("Secondary connection presented the wrong token");
+            }
+
+            socket.setSoTimeout(0);
+            transferStream.addConnection(socket);
+          } catch (SocketTimeoutException e) {
+            StreamUtil.close(socket);
+          } catch (IOException e) {
+            Log.w(TAG, "Failed to accept secondary connection", e);
+            StreamUtil.close(socket);
+
+            if (serverSocket.isClosed()) {
+              break;
+            }
+          }
+        }
+      } catch (IOException e) {
+        Log.w(TAG, e);
+      } finally {
+        try {
+          serverSocket.setSoTimeout(0);
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        }
+      }
+    }
+
+    private void shutdown() {
+      stopped = true;
+      try {
+        join();
+      } catch (InterruptedException e) {
+        Log.w(TAG, "Interrupted waiting for acceptor to stop", e);
+      }
+    }
+  }
 }
@@ -0,0 +1,35 @@
+package org.signal.devicetransfer;
+
+/**
+ * Constants for moving a single byte stream over several connections at once.
+ * <p>
+ * The stream is cut into fixed size chunks which are numbered in order and spread across however
+ * many connections happen to be up. Each chunk is framed as:
+ * <pre>
+ *   [int index][int length][length bytes]
+ * </pre>
+ * The end of the stream is signalled by a frame with the next index and a length of
+ * {@link #END_OF_STREAM}.
+ * <p>
+ * In the other direction, the receiver writes a cumulative checkpoint: the index of the first chunk
+ * it has not yet handed off, which implies it has everything before it. One is written as soon as a
+ * connection is added, which lets a sender that reconnects after a drop pick up where it left off
+ * instead of starting over, and again after each chunk is handed off. Once the receiver has finished
+ * with the stream it writes {@link #DONE}.
+ *
+ * @see ParallelTransferSender
+ * @see ParallelTransferInputStream
+ */
+final class ParallelTransfer {
+
+  static final int DEFAULT_STREAM_COUNT = 4;
+  static final int DEFAULT_CHUNK_SIZE   = 128 * 1024;
+
+  /** Length of the secret used to authenticate additional connections once the first is verified. */
+  static final int TOKEN_LENGTH = 32;
+
+  static final int END_OF_STREAM = -1;
+  static final int DONE          = -1;
+
+  private ParallelTransfer() {}
+}
@@ -0,0 +1,329 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+
+import org.signal.core.util.StreamUtil;
+import org.signal.core.util.logging.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reassembles a stream sent by a {@link ParallelTransferSender} from chunks arriving over any
+ * number of connections, in any order.
+ * <p>
+ * Connections can come and go for the duration of the transfer. Each new one is told how far along
+ * we are, so a sender that lost a connection only has to resend what was in flight on it.
+ */
+final class ParallelTransferInputStream extends InputStream {
+
+  private static final String TAG = Log.tag(ParallelTransferInputStream.class);
+
+  private static final long STALL_TIMEOUT_MS    = TimeUnit.SECONDS.toMillis(30);
+  private static final long POLL_INTERVAL_MS    = 1000;
+  private static final int  MAX_CHUNK_SIZE      = 4 * 1024 * 1024;
+  private static final int  MAX_BUFFERED_CHUNKS = 256;
+
+  private final Object              lock;
+  private final Map<Integer, Chunk> received;
+  private final List<Connection>    connections;
+
+  private int     nextIndex;
+  private int     endIndex;
+  private int     connectionCount;
+  private long    lastActivity;
+  private long    startTime;
+  private long    bytesRead;
+  private boolean finished;
+  private boolean closed;
+
+  private byte[] current;
+  private int    position;
+
+  ParallelTransferInputStream() {
+    this.lock         = new Object();
+    this.received     = new HashMap<>();
+    this.connections  = new ArrayList<>();
+    this.endIndex     = -1;
+    this.lastActivity = System.currentTimeMillis();
+  }
+
+  /**
+   * Starts reading chunks from the provided connection on a background thread.
+   */
+  @AnyThread
+  void addConnection(@NonNull Socket socket) throws IOException {
+    Connection connection = new Connection(socket);
+    int        checkpoint;
+
+    synchronized (lock) {
+      if (closed) {
+        throw new IOException("Stream is closed");
+      }
+
+      if (startTime == 0) {
+        startTime = System.currentTimeMillis();
+      }
+
+      connections.add(connection);
+      connectionCount++;
+      lastActivity = System.currentTimeMillis();
+      checkpoint   = getCheckpoint();
+    }
+
+    Log.i(TAG, "Adding connection " + connectionCount + ", starting from chunk " + checkpoint);
+
+    connection.write(checkpoint);
+    new Thread(connection::readChunks, "parallel-transfer-receive-" + connectionCount).start();
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    int    read   = read(buffer, 0, 1);
+
+    return read == -1 ? -1 : buffer[0] & 0xFF;
+  }
+
+  @Override
+  public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+
+    if ((current == null || position == current.length) && !advance()) {
+      return -1;
+    }
+
+    int count = Math.min(length, current.length - position);
+
+    System.arraycopy(current, position, buffer, offset, count);
+    position += count;
+
+    return count;
+  }
+
+  /**
+   * Tells the sender that we're done with the stream. Should be called once whatever was reading
+   * from this stream has finished with it, successfully or otherwise.
+   */
+  void finish() {
+    List<Connection> toNotify;
+    long             elapsed;
+    int              checkpoint;
+
+    synchronized (lock) {
+      finished   = true;
+      toNotify   = new ArrayList<>(connections);
+      elapsed    = Math.max(1, System.currentTimeMillis() - startTime);
+      checkpoint = getCheckpoint();
+    }
+
+    float megabytes = bytesRead / (1024f * 1024f);
+    Log.i(TAG, String.format(Locale.US, "Received %.1f MB over %d connection(s) in %d ms (%.1f MB/s).", megabytes, connectionCount, elapsed, megabytes / (elapsed / 1000f)));
+
+    // Acknowledgements can arrive on any connection, so make sure the last one isn't overtaken.
+    for (Connection connection : toNotify) {
+      connection.write(checkpoint);
+      connection.write(ParallelTransfer.DONE);
+    }
+  }
+
+  @Override
+  public void close() {
+    List<Connection> toClose;
+
+    synchronized (lock) {
+      closed  = true;
+      toClose = new ArrayList<>(connections);
+      connections.clear();
+      lock.notifyAll();
+    }
+
+    for (Connection connection : toClose) {
+      StreamUtil.close(connection.socket);
+    }
+  }
+
+  /**
+   * @return False if the end of the stream has been reached.
+   */
+  private boolean advance() throws IOException {
+    Chunk chunk;
+    int   checkpoint;
+
+    synchronized (lock) {
+      while (true) {
+        if (closed) {
+          throw new IOException("Stream is closed");
+        }
+
+        if (nextIndex == endIndex) {
+          return false;
+        }
+
+        chunk = received.remove(nextIndex);
+
+        if (chunk != null) {
+          break;
+        }
+
+        if (connections.isEmpty() && System.currentTimeMillis() - lastActivity > STALL_TIMEOUT_MS) {
+          throw new IOException("No connections left and none have come back.");
+        }
+
+        try {
+          lock.wait(POLL_INTERVAL_MS);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+      }
+
+      nextIndex++;
+      checkpoint = getCheckpoint();
+    }
+
+    chunk.connection.write(checkpoint);
+
+    current    = chunk.data;
+    position   = 0;
+    bytesRead += chunk.data.length;
+
+    return true;
+  }
+
+  /**
+   * @return The first chunk we still need. Once we've handed everything off and seen the end of
+   *         the stream, that includes the end marker itself.
+   */
+  private int getCheckpoint() {
+    return nextIndex == endIndex ? nextIndex + 1 : nextIndex;
+  }
+
+  private void onChunk(@NonNull Connection connection, int index, @NonNull byte[] data) throws IOException {
+    int checkpoint = -1;
+
+    synchronized (lock) {
+      lastActivity = System.currentTimeMillis();
+
+      if (index >= nextIndex + MAX_BUFFERED_CHUNKS) {
+        throw new IOException("Chunk " + index + " is too far ahead of " + nextIndex);
+      }
+
+      if (index < nextIndex || received.containsKey(index)) {
+        // The sender must have missed our acknowledgement, so remind it where we are.
+        checkpoint = getCheckpoint();
+      } else {
+        received.put(index, new Chunk(connection, data));
+        lock.notifyAll();
+      }
+    }
+
+    if (checkpoint != -1) {
+      connection.write(checkpoint);
+    }
+  }
+
+  private void onEndOfStream(@NonNull Connection connection, int index) {
+    int checkpoint;
+
+    synchronized (lock) {
+      lastActivity = System.currentTimeMillis();
+      endIndex     = index;
+      checkpoint   = getCheckpoint();
+      lock.notifyAll();
+    }
+
+    connection.write(checkpoint);
+  }
+
+  private void onConnectionLost(@NonNull Connection connection) {
+    synchronized (lock) {
+      connections.remove(connection);
+      lastActivity = System.currentTimeMillis();
+      lock.notifyAll();
+    }
+
+    StreamUtil.close(connection.socket);
+  }
+
+  private static final class Chunk {
+    private final Connection connection;
+    private final byte[]     data;
+
+    private Chunk(@NonNull Connection connection, @NonNull byte[] data) {
+      this.connection = connection;
+      this.data       = data;
+    }
+  }
+
+  private final class Connection {
+    private final Socket           socket;
+    private final DataOutputStream out;
+
+    private Connection(@NonNull Socket socket) throws IOException {
+      this.socket = socket;
+      this.out    = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64));
+
+      // Acknowledgements are tiny and the sender is waiting on them, so don't let them sit around.
+      socket.setTcpNoDelay(true);
+    }
+
+    private void readChunks() {
+      try {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        while (true) {
+          int index  = in.readInt();
+          int length = in.readInt();
+
+          if (length == ParallelTransfer.END_OF_STREAM) {
+            onEndOfStream(this, index);
+            continue;
+          }
+
+          if (length < 0 || length > MAX_CHUNK_SIZE) {
+            throw new IOException("Invalid chunk length: " + length);
+          }
+
+          byte[] data = new byte[length];
+          in.readFully(data);
+
+          onChunk(this, index, data);
+        }
+      } catch (IOException e) {
+        synchronized (lock) {
+          if (!closed && !finished) {
+            Log.w(TAG, "Lost a connection.", e);
+          }
+        }
+        onConnectionLost(this);
+      }
+    }
+
+    private void write(int value) {
+      synchronized (out) {
+        try {
+          out.writeInt(value);
+          out.flush();
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to write to connection.", e);
+          StreamUtil.close(socket);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,498 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.StreamUtil;
+import org.signal.core.util.ThreadUtil;
+import org.signal.core.util.logging.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * An {@link OutputStream} that cuts whatever is written to it into chunks and sends them over
+ * several connections at once, so that a transfer isn't bound by what a single TCP flow and TLS
+ * session can push. Counterpart to {@link ParallelTransferInputStream}.
+ * <p>
+ * Chunks are held on to until the receiver acknowledges them, up to a fixed window. If a connection
+ * drops, the chunks it had in flight are handed to the remaining connections and a replacement is
+ * opened, so only those chunks are sent again rather than the whole stream.
+ */
+final class ParallelTransferSender extends OutputStream {
+
+  private static final String TAG = Log.tag(ParallelTransferSender.class);
+
+  private static final int  WINDOW_PER_STREAM    = 4;
+  private static final int  MAX_CONNECT_ATTEMPTS = 3;
+  private static final long RECONNECT_DELAY_MS   = 1000;
+
+  private final ConnectionFactory       connectionFactory;
+  private final int                     streamCount;
+  private final int                     chunkSize;
+  private final int                     windowSize;
+  private final Object                  lock;
+  private final LinkedList<Chunk>       pending;
+  private final TreeMap<Integer, Chunk> unacknowledged;
+  private final List<Connection>        connections;
+
+  private byte[] buffer;
+  private int    bufferPosition;
+  private int    nextIndex;
+  private int    activeStreams;
+  private int    reconnects;
+  private long   bytesWritten;
+  private long   startTime;
+
+  private IOException failure;
+  private boolean     finished;
+  private boolean     remoteDone;
+  private boolean     shutdown;
+
+  ParallelTransferSender(@NonNull ConnectionFactory connectionFactory, int streamCount, int chunkSize) {
+    this.connectionFactory = connectionFactory;
+    this.streamCount       = streamCount;
+    this.chunkSize         = chunkSize;
+    this.windowSize        = streamCount * WINDOW_PER_STREAM;
+    this.lock              = new Object();
+    this.pending           = new LinkedList<>();
+    this.unacknowledged    = new TreeMap<>();
+    this.connections       = new ArrayList<>();
+  }
+
+  /**
+   * Starts sending. Each stream runs on its own thread, and every stream other than the first
+   * opens its connection through the {@link ConnectionFactory}.
+   *
+   * @param primary An already established connection to use for the first stream, if any.
+   */
+  void start(@Nullable Socket primary) {
+    synchronized (lock) {
+      startTime     = System.currentTimeMillis();
+      activeStreams = streamCount;
+    }
+
+    for (int i = 0; i < streamCount; i++) {
+      Socket initial = i == 0 ? primary : null;
+      new Thread(() -> runStream(initial), "parallel-transfer-send-" + i).start();
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(@NonNull byte[] data, int offset, int length) throws IOException {
+    while (length > 0) {
+      if (buffer == null) {
+        buffer = new byte[chunkSize];
+      }
+
+      int count = Math.min(length, chunkSize - bufferPosition);
+
+      System.arraycopy(data, offset, buffer, bufferPosition, count);
+      bufferPosition += count;
+      bytesWritten   += count;
+      offset         += count;
+      length         -= count;
+
+      if (bufferPosition == chunkSize) {
+        enqueueBuffer();
+      }
+    }
+  }
+
+  /**
+   * Does nothing. Chunks are sent as soon as they fill up, and the last partial chunk is sent on
+   * {@link #close()}. Sending partial chunks early would only produce more, smaller, frames.
+   */
+  @Override
+  public void flush() {
+  }
+
+  /**
+   * Sends whatever is left and blocks until the receiver has acknowledged everything.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (lock) {
+      if (finished) {
+        return;
+      }
+    }
+
+    enqueueBuffer();
+    enqueue(new Chunk(nextIndex++, null, ParallelTransfer.END_OF_STREAM));
+
+    long elapsed;
+
+    synchronized (lock) {
+      finished = true;
+      lock.notifyAll();
+
+      try {
+        while (!unacknowledged.isEmpty()) {
+          throwIfFailed();
+          lock.wait();
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+
+      elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+    }
+
+    float megabytes = bytesWritten / (1024f * 1024f);
+    Log.i(TAG, String.format(Locale.US, "Sent %.1f MB in %d chunk(s) over %d stream(s) in %d ms (%.1f MB/s). Reconnects: %d", megabytes, nextIndex, streamCount, elapsed, megabytes / (elapsed / 1000f), reconnects));
+  }
+
+  /**
+   * Waits for the receiver to say it's done with the stream, which only happens after
+   * {@link #close()} has returned successfully.
+   *
+   * @return True if the receiver said so, false if we gave up waiting or lost every connection first.
+   */
+  boolean awaitRemoteDone(long timeoutMs) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+
+    synchronized (lock) {
+      while (!remoteDone && !connections.isEmpty()) {
+        long remaining = deadline - System.currentTimeMillis();
+
+        if (remaining <= 0) {
+          break;
+        }
+
+        lock.wait(remaining);
+      }
+
+      return remoteDone;
+    }
+  }
+
+  /**
+   * Closes every connection and stops all streams. Anything waiting on the transfer fails.
+   */
+  @AnyThread
+  void shutdown() {
+    List<Connection> toClose;
+
+    synchronized (lock) {
+      shutdown = true;
+      toClose  = new ArrayList<>(connections);
+      lock.notifyAll();
+    }
+
+    for (Connection connection : toClose) {
+      StreamUtil.close(connection.socket);
+    }
+  }
+
+  long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  int getReconnectCount() {
+    synchronized (lock) {
+      return reconnects;
+    }
+  }
+
+  private void enqueueBuffer() throws IOException {
+    if (bufferPosition == 0) {
+      return;
+    }
+
+    enqueue(new Chunk(nextIndex++, buffer, bufferPosition));
+
+    buffer         = null;
+    bufferPosition = 0;
+  }
+
+  private void enqueue(@NonNull Chunk chunk) throws IOException {
+    synchronized (lock) {
+      try {
+        while (unacknowledged.size() >= windowSize) {
+          throwIfFailed();
+          lock.wait();
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+
+      throwIfFailed();
+
+      unacknowledged.put(chunk.index, chunk);
+      pending.addLast(chunk);
+      lock.notifyAll();
+    }
+  }
+
+  private void throwIfFailed() throws IOException {
+    if (failure != null) {
+      throw new IOException(failure);
+    } else if (shutdown) {
+      throw new IOException("Transfer was shut down");
+    } else if (remoteDone && !isComplete()) {
+      throw new IOException("Receiver finished before the transfer did");
+    }
+  }
+
+  private boolean isComplete() {
+    return finished && unacknowledged.isEmpty();
+  }
+
+  private boolean shouldStop() {
+    return isComplete() || shutdown || remoteDone || failure != null;
+  }
+
+  /**
+   * Keeps a single stream going, replacing its connection whenever it drops, until the transfer is
+   * complete or we fail to connect too many times in a row.
+   */
+  private void runStream(@Nullable Socket initial) {
+    Socket socket   = initial;
+    int    attempts = 0;
+
+    try {
+      while (true) {
+        if (socket == null) {
+          synchronized (lock) {
+            if (shouldStop()) {
+              return;
+            }
+          }
+
+          try {
+            socket = connectionFactory.connect();
+          } catch (IOException e) {
+            attempts++;
+            Log.w(TAG, "Failed to open a connection. Attempts: " + attempts, e);
+
+            if (attempts >= MAX_CONNECT_ATTEMPTS) {
+              return;
+            }
+
+            ThreadUtil.sleep(RECONNECT_DELAY_MS);
+            continue;
+          }
+        }
+
+        Connection connection = new Connection(socket);
+
+        if (connection.run()) {
+          return;
+        }
+
+        synchronized (lock) {
+          attempts = connection.madeProgress ? 0 : attempts + 1;
+
+          if (shouldStop() || attempts >= MAX_CONNECT_ATTEMPTS) {
+            return;
+          }
+
+          reconnects++;
+        }
+
+        socket = null;
+      }
+    } finally {
+      synchronized (lock) {
+        activeStreams--;
+
+        if (activeStreams == 0 && !isComplete() && failure == null) {
+          failure = new IOException("Lost every connection to the receiver");
+        }
+
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Applies a cumulative acknowledgement, releasing every chunk before the checkpoint.
+   */
+  private void acknowledge(int checkpoint) {
+    unacknowledged.headMap(checkpoint).clear();
+
+    removeBefore(pending, checkpoint);
+
+    for (Connection connection : connections) {
+      removeBefore(connection.inFlight, checkpoint);
+    }
+
+    lock.notifyAll();
+  }
+
+  private static void removeBefore(@NonNull List<Chunk> chunks, int checkpoint) {
+    Iterator<Chunk> iterator = chunks.iterator();
+
+    while (iterator.hasNext()) {
+      if (iterator.next().index < checkpoint) {
+        iterator.remove();
+      }
+    }
+  }
+
+  interface ConnectionFactory {
+    /**
+     * @return A new connection to the receiver, ready for chunks to be written to it.
+     */
+    @NonNull Socket connect() throws IOException;
+  }
+
+  private static final class Chunk {
+    private final int    index;
+    private final byte[] data;
+    private final int    length;
+
+    private Chunk(int index, @Nullable byte[] data, int length) {
+      this.index  = index;
+      this.data   = data;
+      this.length = length;
+    }
+  }
+
+  private final class Connection {
+    private final Socket      socket;
+    private final List<Chunk> inFlight;
+
+    private boolean closed;
+    private boolean madeProgress;
+
+    private Connection(@NonNull Socket socket) {
+      this.socket   = socket;
+      this.inFlight = new ArrayList<>();
+    }
+
+    /**
+     * Writes chunks until the transfer is complete or this connection fails.
+     *
+     * @return True if the transfer completed. The connection is left open in that case so that we
+     *         can still hear from the receiver that it's done.
+     */
+    private boolean run() {
+      synchronized (lock) {
+        if (shouldStop()) {
+          StreamUtil.close(socket);
+          return isComplete();
+        }
+
+        connections.add(this);
+      }
+
+      try {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        socket.setTcpNoDelay(true);
+
+        new Thread(this::readAcknowledgements, Thread.currentThread().getName() + "-ack").start();
+
+        while (true) {
+          Chunk chunk;
+
+          synchronized (lock) {
+            while (pending.isEmpty() && !closed && !shouldStop()) {
+              lock.wait();
+            }
+
+            if (isComplete()) {
+              return true;
+            } else if (closed || shouldStop()) {
+              break;
+            }
+
+            chunk = pending.removeFirst();
+            inFlight.add(chunk);
+          }
+
+          out.writeInt(chunk.index);
+          out.writeInt(chunk.length);
+
+          if (chunk.length > 0) {
+            out.write(chunk.data, 0, chunk.length);
+          }
+
+          out.flush();
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to write to connection.", e);
+      } catch (InterruptedException e) {
+        Log.w(TAG, "Interrupted while writing to connection.", e);
+      }
+
+      StreamUtil.close(socket);
+
+      synchronized (lock) {
+        List<Chunk> retry = new ArrayList<>(inFlight.size());
+
+        for (Chunk chunk : inFlight) {
+          if (unacknowledged.containsKey(chunk.index)) {
+            retry.add(chunk);
+          }
+        }
+
+        Collections.sort(retry, (a, b) -> Integer.compare(a.index, b.index));
+
+        if (retry.size() > 0) {
+          Log.i(TAG, "Connection lost with " + retry.size() + " chunk(s) in flight. Handing them to the other connections.");
+        }
+
+        pending.addAll(0, retry);
+        inFlight.clear();
+        connections.remove(this);
+        lock.notifyAll();
+      }
+
+      return false;
+    }
+
+    private void readAcknowledgements() {
+      try {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+
+        while (true) {
+          int value = in.readInt();
+
+          synchronized (lock) {
+            if (value == ParallelTransfer.DONE) {
+              remoteDone = true;
+              lock.notifyAll();
+              return;
+            }
+
+            madeProgress = true;
+            acknowledge(value);
+          }
+        }
+      } catch (IOException e) {
+        synchronized (lock) {
+          if (!isComplete() && !shutdown) {
+            Log.w(TAG, "Lost connection while reading acknowledgements.", e);
+          }
+
+          closed = true;
+          connections.remove(this);
+          lock.notifyAll();
+        }
+
+        StreamUtil.close(socket);
+      }
+    }
+  }
+}
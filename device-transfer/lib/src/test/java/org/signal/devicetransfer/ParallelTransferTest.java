@@ -0,0 +1,197 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class ParallelTransferTest {
+
+  private static final int CHUNK_SIZE = 16 * 1024;
+
+  private ServerSocket                serverSocket;
+  private ParallelTransferInputStream receiver;
+
+  @Before
+  public void setUp() throws IOException {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    receiver     = new ParallelTransferInputStream();
+
+    new Thread(() -> {
+      try {
+        while (true) {
+          receiver.addConnection(serverSocket.accept());
+        }
+      } catch (IOException e) {
+        // Server socket closed
+      }
+    }).start();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    serverSocket.close();
+    receiver.close();
+  }
+
+  @Test
+  public void transfer_emptyStream() throws Exception {
+    assertArrayEquals(new byte[0], transfer(new byte[0], 2, this::connect));
+  }
+
+  @Test
+  public void transfer_singleStream() throws Exception {
+    byte[] data = randomBytes(CHUNK_SIZE * 10 + 123);
+
+    assertArrayEquals(data, transfer(data, 1, this::connect));
+  }
+
+  @Test
+  public void transfer_multipleStreams() throws Exception {
+    byte[] data = randomBytes(CHUNK_SIZE * 50 + 7);
+
+    assertArrayEquals(data, transfer(data, 4, this::connect));
+  }
+
+  @Test
+  public void transfer_exactMultipleOfChunkSize() throws Exception {
+    byte[] data = randomBytes(CHUNK_SIZE * 8);
+
+    assertArrayEquals(data, transfer(data, 3, this::connect));
+  }
+
+  @Test
+  public void transfer_connectionDrops_resumesWithoutStartingOver() throws Exception {
+    byte[]        data        = randomBytes(CHUNK_SIZE * 40);
+    AtomicInteger connections = new AtomicInteger();
+
+    AtomicReference<ParallelTransferSender> senderReference = new AtomicReference<>();
+
+    byte[] received = transfer(data, 2, () -> {
+      if (connections.getAndIncrement() == 0) {
+        return new BreakingSocket(serverSocket.getLocalPort(), CHUNK_SIZE * 5 + CHUNK_SIZE / 2);
+      }
+      return connect();
+    }, senderReference);
+
+    assertArrayEquals(data, received);
+    assertTrue(senderReference.get().getReconnectCount() > 0);
+  }
+
+  private byte[] transfer(@NonNull byte[] data, int streams, @NonNull ParallelTransferSender.ConnectionFactory connectionFactory) throws Exception {
+    return transfer(data, streams, connectionFactory, new AtomicReference<>());
+  }
+
+  private byte[] transfer(@NonNull byte[] data,
+                          int streams,
+                          @NonNull ParallelTransferSender.ConnectionFactory connectionFactory,
+                          @NonNull AtomicReference<ParallelTransferSender> senderReference)
+      throws Exception
+  {
+    ByteArrayOutputStream      received  = new ByteArrayOutputStream();
+    AtomicReference<Exception> readError = new AtomicReference<>();
+
+    Thread reader = new Thread(() -> {
+      try {
+        copy(receiver, received);
+        receiver.finish();
+      } catch (IOException e) {
+        readError.set(e);
+      }
+    });
+    reader.start();
+
+    ParallelTransferSender sender = new ParallelTransferSender(connectionFactory, streams, CHUNK_SIZE);
+    senderReference.set(sender);
+
+    try {
+      sender.start(null);
+
+      int offset = 0;
+      while (offset < data.length) {
+        int length = Math.min(10_000, data.length - offset);
+        sender.write(data, offset, length);
+        offset += length;
+      }
+
+      sender.close();
+      assertTrue(sender.awaitRemoteDone(5000));
+    } finally {
+      sender.shutdown();
+    }
+
+    reader.join();
+
+    if (readError.get() != null) {
+      throw readError.get();
+    }
+
+    return received.toByteArray();
+  }
+
+  private @NonNull Socket connect() throws IOException {
+    return new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+  }
+
+  private static void copy(@NonNull InputStream in, @NonNull OutputStream out) throws IOException {
+    byte[] buffer = new byte[8192];
+    int    read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * Drops the connection once a certain number of bytes have been written to it.
+   */
+  private static final class BreakingSocket extends Socket {
+
+    private final int limit;
+
+    private BreakingSocket(int port, int limit) throws IOException {
+      super(InetAddress.getLoopbackAddress(), port);
+      this.limit = limit;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+      return new FilterOutputStream(super.getOutputStream()) {
+        private int written;
+
+        @Override
+        public void write(@NonNull byte[] buffer, int offset, int length) throws IOException {
+          if (written + length > limit) {
+            BreakingSocket.this.close();
+            throw new IOException("Connection dropped");
+          }
+
+          out.write(buffer, offset, length);
+          written += length;
+        }
+      };
+    }
+  }
+}
@@ -69,6 +69,8 @@ public class SignalServiceMessagePipe {
   private final Optional<CredentialsProvider> credentialsProvider;
   private final ClientZkProfileOperations     clientZkProfile;
 
+  private boolean socketEmptyPending;
+
   SignalServiceMessagePipe(WebSocketConnection websocket,
                            Optional<CredentialsProvider> credentialsProvider,
                            ClientZkProfileOperations clientZkProfile)
@@ -150,18 +152,7 @@ public class SignalServiceMessagePipe {
       WebSocketResponseMessage response = createWebSocketResponse(request);
       try {
         if (isSignalServiceEnvelope(request)) {
-          Optional<String> timestampHeader = findHeader(request, SERVER_DELIVERED_TIMESTAMP_HEADER);
-          long             timestamp       = 0;
-
-          if (timestampHeader.isPresent()) {
-            try {
-              timestamp = Long.parseLong(timestampHeader.get());
-            } catch (NumberFormatException e) {
-              Log.w(TAG, "Failed to parse " + SERVER_DELIVERED_TIMESTAMP_HEADER);
-            }
-          }
-
-          SignalServiceEnvelope envelope = new SignalServiceEnvelope(request.getBody().toByteArray(), timestamp);
+          SignalServiceEnvelope envelope = createEnvelope(request);
 
           callback.onMessage(envelope);
           return Optional.of(envelope);
@@ -174,6 +165,70 @@ public class SignalServiceMessagePipe {
     }
   }
 
+  /**
+   * Similar to {@link #readOrEmpty(long, TimeUnit, MessagePipeCallback)}, except that once an
+   * envelope has arrived, any more that are already waiting on the socket are read along with it,
+   * up to maxBatchSize. The callback is given the whole batch, and none of it is acknowledged until
+   * the callback has returned. This lets a burst of envelopes, like the delivery receipts for a
+   * message sent to a large group, be written to storage together.
+   * <p>
+   * Never waits for more envelopes once it has one. If the empty response turns up in the middle of
+   * a batch, the envelopes before it are returned, and the next call returns {@link Optional#absent()}.
+   */
+  public Optional<List<SignalServiceEnvelope>> readBatchOrEmpty(long timeout, TimeUnit unit, int maxBatchSize, MessagePipeBatchCallback callback)
+      throws TimeoutException, IOException
+  {
+    if (!credentialsProvider.isPresent()) {
+      throw new IllegalArgumentException("You can't read messages if you haven't specified credentials");
+    }
+
+    if (socketEmptyPending) {
+      socketEmptyPending = false;
+      return Optional.absent();
+    }
+
+    List<SignalServiceEnvelope>    envelopes = new LinkedList<>();
+    List<WebSocketResponseMessage> responses = new LinkedList<>();
+
+    try {
+      while (envelopes.size() < maxBatchSize) {
+        WebSocketRequestMessage request;
+
+        if (envelopes.isEmpty()) {
+          request = websocket.readRequest(unit.toMillis(timeout));
+        } else {
+          Optional<WebSocketRequestMessage> available = websocket.readRequestIfAvailable();
+
+          if (!available.isPresent()) {
+            break;
+          }
+
+          request = available.get();
+        }
+
+        responses.add(createWebSocketResponse(request));
+
+        if (isSignalServiceEnvelope(request)) {
+          envelopes.add(createEnvelope(request));
+        } else if (isSocketEmptyRequest(request)) {
+          if (envelopes.isEmpty()) {
+            return Optional.absent();
+          }
+
+          socketEmptyPending = true;
+          break;
+        }
+      }
+
+      callback.onMessages(envelopes);
+      return Optional.of(envelopes);
+    } finally {
+      for (WebSocketResponseMessage response : responses) {
+        websocket.sendResponse(response);
+      }
+    }
+  }
+
   public Future<SendMessageResponse> send(OutgoingPushMessageList list, Optional<UnidentifiedAccess> unidentifiedAccess) throws IOException {
     List<String> headers = new LinkedList<String>() {{
       add("content-type:application/json");
@@ -316,6 +371,21 @@ public class SignalServiceMessagePipe {
     websocket.disconnect();
   }
 
+  private SignalServiceEnvelope createEnvelope(WebSocketRequestMessage request) {
+    Optional<String> timestampHeader = findHeader(request, SERVER_DELIVERED_TIMESTAMP_HEADER);
+    long             timestamp       = 0;
+
+    if (timestampHeader.isPresent()) {
+      try {
+        timestamp = Long.parseLong(timestampHeader.get());
+      } catch (NumberFormatException e) {
+        Log.w(TAG, "Failed to parse " + SERVER_DELIVERED_TIMESTAMP_HEADER);
+      }
+    }
+
+    return new SignalServiceEnvelope(request.getBody().toByteArray(), timestamp);
+  }
+
   private boolean isSignalServiceEnvelope(WebSocketRequestMessage message) {
     return "PUT".equals(message.getVerb()) && "/api/v1/message".equals(message.getPath());
   }
@@ -365,6 +435,13 @@ public class SignalServiceMessagePipe {
     void onMessage(SignalServiceEnvelope envelope);
   }
 
+  /**
+   * For receiving a callback when a batch of messages has been received.
+   */
+  public interface MessagePipeBatchCallback {
+    void onMessages(List<SignalServiceEnvelope> envelopes);
+  }
+
   private static class NullMessagePipeCallback implements MessagePipeCallback {
     @Override
     public void onMessage(SignalServiceEnvelope envelope) {}
@@ -32,7 +32,7 @@ import org.whispersystems.signalservice.api.websocket.ConnectivityListener;
 import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
 import org.whispersystems.signalservice.internal.push.PushServiceSocket;
 import org.whispersystems.signalservice.internal.push.SignalServiceEnvelopeEntity;
-import org.whispersystems.signalservice.internal.push.SignalServiceMessagesResult;
+import org.whispersystems.signalservice.internal.push.SignalServiceEnvelopeEntityReader;
 import org.whispersystems.signalservice.internal.sticker.StickerProtos;
 import org.whispersystems.signalservice.internal.util.StaticCredentialsProvider;
 import org.whispersystems.signalservice.internal.util.Util;
@@ -194,6 +194,26 @@ public class SignalServiceMessageReceiver {
     return AttachmentCipherInputStream.createForAttachment(destination, pointer.getSize().or(0), pointer.getKey(), pointer.getDigest().get());
   }
 
+  /**
+   * Like {@link #retrieveAttachment(SignalServiceAttachmentPointer, File, long, ProgressListener)},
+   * but rather than reading the whole download to verify it before decrypting it, the attachment is
+   * verified in the same pass as it's decrypted.
+   *
+   * @param maxSegments If greater than one, large attachments are downloaded as up to this many
+   *                    byte ranges at once.
+   *
+   * @return An InputStream that streams the plaintext attachment contents. The final read will
+   *         throw an IOException if verification fails, in which case everything read from it must
+   *         be thrown away.
+   */
+  public InputStream retrieveStreamingAttachment(SignalServiceAttachmentPointer pointer, File destination, long maxSizeBytes, int maxSegments, ProgressListener listener)
+      throws IOException, InvalidMessageException, MissingConfigurationException {
+    if (!pointer.getDigest().isPresent()) throw new InvalidMessageException("No attachment digest!");
+
+    socket.retrieveAttachment(pointer.getCdnNumber(), pointer.getRemoteId(), destination, maxSizeBytes, maxSegments, listener);
+    return AttachmentCipherInputStream.createStreamingForAttachment(destination, pointer.getSize().or(0), pointer.getKey(), pointer.getDigest().get());
+  }
+
   public InputStream retrieveSticker(byte[] packId, byte[] packKey, int stickerId)
       throws IOException, InvalidMessageException
   {
@@ -267,46 +287,115 @@ public class SignalServiceMessageReceiver {
     return retrieveMessages(new NullMessageReceivedCallback());
   }
 
+  /**
+   * Envelopes are handed to the callback as they're read from the response, so the response is
+   * never held in memory all at once.
+   */
   public List<SignalServiceEnvelope> retrieveMessages(MessageReceivedCallback callback)
       throws IOException
   {
-    List<SignalServiceEnvelope> results       = new LinkedList<>();
-    SignalServiceMessagesResult messageResult = socket.getMessages();
-
-    for (SignalServiceEnvelopeEntity entity : messageResult.getEnvelopes()) {
-      SignalServiceEnvelope envelope;
-
-      if (entity.hasSource() && entity.getSourceDevice() > 0) {
-        SignalServiceAddress address = new SignalServiceAddress(UuidUtil.parseOrNull(entity.getSourceUuid()), entity.getSourceE164());
-        envelope = new SignalServiceEnvelope(entity.getType(),
-                                             Optional.of(address),
-                                             entity.getSourceDevice(),
-                                             entity.getTimestamp(),
-                                             entity.getMessage(),
-                                             entity.getContent(),
-                                             entity.getServerTimestamp(),
-                                             messageResult.getServerDeliveredTimestamp(),
-                                             entity.getServerUuid());
-      } else {
-        envelope = new SignalServiceEnvelope(entity.getType(),
-                                             entity.getTimestamp(),
-                                             entity.getMessage(),
-                                             entity.getContent(),
-                                             entity.getServerTimestamp(),
-                                             messageResult.getServerDeliveredTimestamp(),
-                                             entity.getServerUuid());
-      }
+    List<SignalServiceEnvelope> results = new LinkedList<>();
 
-      callback.onMessage(envelope);
-      results.add(envelope);
+    try (SignalServiceEnvelopeEntityReader reader = socket.getMessages()) {
+      SignalServiceEnvelopeEntity entity;
 
-      if (envelope.hasUuid()) socket.acknowledgeMessage(envelope.getUuid());
-      else                    socket.acknowledgeMessage(entity.getSourceE164(), entity.getTimestamp());
+      while ((entity = reader.read()) != null) {
+        SignalServiceEnvelope envelope = toEnvelope(entity, reader.getServerDeliveredTimestamp());
+
+        callback.onMessage(envelope);
+        results.add(envelope);
+
+        acknowledge(entity);
+      }
     }
 
     return results;
   }
 
+  /**
+   * Similar to {@link #retrieveMessages(MessageReceivedCallback)}, except envelopes are handed to
+   * the callback in groups of up to batchSize. No envelope in a batch is acknowledged to the server
+   * until the callback has returned for the whole batch, so the callback is free to process the
+   * batch as a single unit of work. If the callback throws, the envelopes in that batch remain on
+   * the server and will be delivered again.
+   * <p>
+   * Only one batch is held in memory at a time, with the rest of the response read as it's needed.
+   *
+   * @return The number of envelopes retrieved.
+   */
+  public int retrieveMessagesInBatches(int batchSize, MessageBatchReceivedCallback callback)
+      throws IOException
+  {
+    int count = 0;
+
+    try (SignalServiceEnvelopeEntityReader reader = socket.getMessages()) {
+      List<SignalServiceEnvelopeEntity> batch = new ArrayList<>(batchSize);
+      SignalServiceEnvelopeEntity       entity;
+
+      while ((entity = reader.read()) != null) {
+        batch.add(entity);
+
+        if (batch.size() >= batchSize) {
+          count += processBatch(batch, reader.getServerDeliveredTimestamp(), callback);
+        }
+      }
+
+      if (!batch.isEmpty()) {
+        count += processBatch(batch, reader.getServerDeliveredTimestamp(), callback);
+      }
+    }
+
+    return count;
+  }
+
+  private int processBatch(List<SignalServiceEnvelopeEntity> entities, long serverDeliveredTimestamp, MessageBatchReceivedCallback callback)
+      throws IOException
+  {
+    List<SignalServiceEnvelope> batch = new ArrayList<>(entities.size());
+
+    for (SignalServiceEnvelopeEntity entity : entities) {
+      batch.add(toEnvelope(entity, serverDeliveredTimestamp));
+    }
+
+    callback.onMessages(batch);
+
+    for (SignalServiceEnvelopeEntity entity : entities) {
+      acknowledge(entity);
+    }
+
+    entities.clear();
+
+    return batch.size();
+  }
+
+  private static SignalServiceEnvelope toEnvelope(SignalServiceEnvelopeEntity entity, long serverDeliveredTimestamp) {
+    if (entity.hasSource() && entity.getSourceDevice() > 0) {
+      SignalServiceAddress address = new SignalServiceAddress(UuidUtil.parseOrNull(entity.getSourceUuid()), entity.getSourceE164());
+      return new SignalServiceEnvelope(entity.getType(),
+                                       Optional.of(address),
+                                       entity.getSourceDevice(),
+                                       entity.getTimestamp(),
+                                       entity.getMessage(),
+                                       entity.getContent(),
+                                       entity.getServerTimestamp(),
+                                       serverDeliveredTimestamp,
+                                       entity.getServerUuid());
+    } else {
+      return new SignalServiceEnvelope(entity.getType(),
+                                       entity.getTimestamp(),
+                                       entity.getMessage(),
+                                       entity.getContent(),
+                                       entity.getServerTimestamp(),
+                                       serverDeliveredTimestamp,
+                                       entity.getServerUuid());
+    }
+  }
+
+  private void acknowledge(SignalServiceEnvelopeEntity entity) throws IOException {
+    if (entity.getServerUuid() != null) socket.acknowledgeMessage(entity.getServerUuid());
+    else                                socket.acknowledgeMessage(entity.getSourceE164(), entity.getTimestamp());
+  }
+
   public void setSoTimeoutMillis(long soTimeoutMillis) {
     socket.setSoTimeoutMillis(soTimeoutMillis);
   }
@@ -315,6 +404,10 @@ public class SignalServiceMessageReceiver {
     public void onMessage(SignalServiceEnvelope envelope);
   }
 
+  public interface MessageBatchReceivedCallback {
+    public void onMessages(List<SignalServiceEnvelope> envelopes);
+  }
+
   public static class NullMessageReceivedCallback implements MessageReceivedCallback {
     @Override
     public void onMessage(SignalServiceEnvelope envelope) {}
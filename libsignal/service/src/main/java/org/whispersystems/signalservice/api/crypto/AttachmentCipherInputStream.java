@@ -13,6 +13,7 @@ import org.whispersystems.signalservice.internal.util.ContentLengthInputStream;
 import org.whispersystems.signalservice.internal.util.Util;
 
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilterInputStream;
@@ -45,11 +46,20 @@ public class AttachmentCipherInputStream extends FilterInputStream {
   private static final int CIPHER_KEY_SIZE = 32;
   private static final int MAC_KEY_SIZE    = 32;
 
-  private Cipher  cipher;
+  private final SecretKeySpec cipherKey;
+  private final Cipher        cipher;
+  private final long          totalDataSize;
+
+  /** Only set when the stream verifies itself as it's read, rather than having been verified up front. */
+  private final Mac           mac;
+  private final MessageDigest digest;
+  private final byte[]        theirDigest;
+
   private boolean done;
-  private long    totalDataSize;
   private long    totalRead;
+  private long    position;
   private byte[]  overflowBuffer;
+  private byte[]  ciphertextBuffer;
 
   public static InputStream createForAttachment(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest)
       throws InvalidMessageException, IOException
@@ -71,7 +81,7 @@ public class AttachmentCipherInputStream extends FilterInputStream {
         verifyMac(fin, file.length(), mac, digest);
       }
 
-      InputStream inputStream = new AttachmentCipherInputStream(new FileInputStream(file), parts[0], file.length() - BLOCK_SIZE - mac.getMacLength());
+      InputStream inputStream = new AttachmentCipherInputStream(new FileInputStream(file), parts[0], file.length() - BLOCK_SIZE - mac.getMacLength(), null, null);
 
       if (plaintextLength != 0) {
         inputStream = new ContentLengthInputStream(inputStream, plaintextLength);
@@ -85,6 +95,46 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
+  /**
+   * Like {@link #createForAttachment(File, long, byte[], byte[])}, but instead of reading the whole
+   * file to verify it before decrypting it with a second read, the MAC and digest are computed as
+   * the stream is decrypted and checked once the end is reached. If they don't match, the final
+   * read throws an {@link IOException} wrapping an {@link InvalidMacException}, and anything read
+   * up to that point must be discarded.
+   * <p>
+   * If a plaintext length is provided, the stream still reads through any padding after it and
+   * verifies everything before the last of the plaintext is returned.
+   * <p>
+   * Since nothing is verified up front, skipping is done by reading rather than seeking.
+   */
+  public static InputStream createStreamingForAttachment(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest)
+      throws InvalidMessageException, IOException
+  {
+    try {
+      byte[][] parts = Util.split(combinedKeyMaterial, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
+      Mac      mac   = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+
+      if (file.length() <= BLOCK_SIZE + mac.getMacLength()) {
+        throw new InvalidMessageException("Message shorter than crypto overhead!");
+      }
+
+      if (digest == null) {
+        throw new InvalidMessageException("Missing digest!");
+      }
+
+      InputStream inputStream = new AttachmentCipherInputStream(new FileInputStream(file), parts[0], file.length() - BLOCK_SIZE - mac.getMacLength(), mac, digest);
+
+      if (plaintextLength != 0) {
+        inputStream = new VerifyingContentLengthInputStream(inputStream, plaintextLength);
+      }
+
+      return inputStream;
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
   public static InputStream createForStickerData(byte[] data, byte[] packKey)
       throws InvalidMessageException, IOException
   {
@@ -102,7 +152,7 @@ public class AttachmentCipherInputStream extends FilterInputStream {
         verifyMac(inputStream, data.length, mac, null);
       }
 
-      return new AttachmentCipherInputStream(new ByteArrayInputStream(data), parts[0], data.length - BLOCK_SIZE - mac.getMacLength());
+      return new AttachmentCipherInputStream(new ByteArrayInputStream(data), parts[0], data.length - BLOCK_SIZE - mac.getMacLength(), null, null);
     } catch (NoSuchAlgorithmException | InvalidKeyException e) {
       throw new AssertionError(e);
     } catch (InvalidMacException e) {
@@ -110,7 +160,7 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
-  private AttachmentCipherInputStream(InputStream inputStream, byte[] cipherKey, long totalDataSize)
+  private AttachmentCipherInputStream(InputStream inputStream, byte[] cipherKey, long totalDataSize, Mac mac, byte[] theirDigest)
       throws IOException
   {
     super(inputStream);
@@ -119,8 +169,18 @@ public class AttachmentCipherInputStream extends FilterInputStream {
       byte[] iv = new byte[BLOCK_SIZE];
       readFully(iv);
 
-      this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
+      this.cipherKey = new SecretKeySpec(cipherKey, "AES");
+      this.cipher    = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      this.cipher.init(Cipher.DECRYPT_MODE, this.cipherKey, new IvParameterSpec(iv));
+
+      this.mac         = mac;
+      this.digest      = mac != null ? MessageDigest.getInstance("SHA256") : null;
+      this.theirDigest = theirDigest;
+
+      if (mac != null) {
+        mac.update(iv);
+        digest.update(iv);
+      }
 
       this.done          = false;
       this.totalRead     = 0;
@@ -130,6 +190,14 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    int    read   = read(buffer, 0, 1);
+
+    return read == -1 ? -1 : buffer[0] & 0xFF;
+  }
+
   @Override
   public int read(byte[] buffer) throws IOException {
     return read(buffer, 0, buffer.length);
@@ -137,9 +205,26 @@ public class AttachmentCipherInputStream extends FilterInputStream {
 
   @Override
   public int read(byte[] buffer, int offset, int length) throws IOException {
-    if      (totalRead != totalDataSize) return readIncremental(buffer, offset, length);
-    else if (!done)                      return readFinal(buffer, offset, length);
-    else                                 return -1;
+    if (length == 0) {
+      return 0;
+    }
+
+    int read;
+
+    // The cipher holds back the last block it's seen until it knows whether it's the final one, so
+    // a small read can produce nothing.
+    do {
+      if      (overflowBuffer != null)      read = readOverflow(buffer, offset, length);
+      else if (totalRead != totalDataSize)  read = readIncremental(buffer, offset, length);
+      else if (!done)                       read = readFinal(buffer, offset, length);
+      else                                  read = -1;
+    } while (read == 0);
+
+    if (read > 0) {
+      position += read;
+    }
+
+    return read;
   }
 
   @Override
@@ -147,81 +232,152 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     return false;
   }
 
+  /**
+   * Once the attachment has been verified, we can jump straight to the block containing the target
+   * position: in CBC, each block only depends on the ciphertext block before it, which can be used
+   * as the IV to pick up decryption from there.
+   */
   @Override
   public long skip(long byteCount) throws IOException {
-    long skipped = 0L;
-    while (skipped < byteCount) {
-      byte[] buf  = new byte[Math.min(4096, (int)(byteCount-skipped))];
-      int    read = read(buf);
+    if (byteCount <= 0) {
+      return 0;
+    }
+
+    long start       = position;
+    long target      = position + byteCount;
+    long targetBlock = target / BLOCK_SIZE;
+    long ivOffset    = targetBlock * BLOCK_SIZE;
+    long inputOffset = BLOCK_SIZE + totalRead;
+
+    if (mac == null && ivOffset >= inputOffset && targetBlock < totalDataSize / BLOCK_SIZE) {
+      skipInputFully(ivOffset - inputOffset);
+
+      byte[] iv = new byte[BLOCK_SIZE];
+      readFully(iv);
 
-      skipped += read;
+      try {
+        cipher.init(Cipher.DECRYPT_MODE, cipherKey, new IvParameterSpec(iv));
+      } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+        throw new AssertionError(e);
+      }
+
+      totalRead      = ivOffset;
+      overflowBuffer = null;
+      position       = ivOffset;
+    }
+
+    byte[] buffer = new byte[4096];
+
+    while (position < target) {
+      int read = read(buffer, 0, (int) Math.min(buffer.length, target - position));
+
+      if (read == -1) {
+        break;
+      }
     }
 
-    return skipped;
+    return position - start;
+  }
+
+  private int readOverflow(byte[] buffer, int offset, int length) {
+    if (overflowBuffer.length > length) {
+      System.arraycopy(overflowBuffer, 0, buffer, offset, length);
+      overflowBuffer = Arrays.copyOfRange(overflowBuffer, length, overflowBuffer.length);
+      return length;
+    } else {
+      int overflowLength = overflowBuffer.length;
+      System.arraycopy(overflowBuffer, 0, buffer, offset, overflowLength);
+      overflowBuffer = null;
+      return overflowLength;
+    }
   }
 
   private int readFinal(byte[] buffer, int offset, int length) throws IOException {
+    if (mac != null) {
+      verifyStreamingMac();
+    }
+
     try {
-      int flourish = cipher.doFinal(buffer, offset);
+      byte[] flourish = cipher.doFinal();
 
       done = true;
-      return flourish;
-    } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
-      throw new IOException(e);
-    }
-  }
 
-  private int readIncremental(byte[] buffer, int offset, int length) throws IOException {
-    int readLength = 0;
-    if (null != overflowBuffer) {
-      if (overflowBuffer.length > length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(overflowBuffer, length, overflowBuffer.length);
-        return length;
-      } else if (overflowBuffer.length == length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = null;
+      if (flourish.length > length) {
+        System.arraycopy(flourish, 0, buffer, offset, length);
+        overflowBuffer = Arrays.copyOfRange(flourish, length, flourish.length);
         return length;
-      } else {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, overflowBuffer.length);
-        readLength += overflowBuffer.length;
-        offset += readLength;
-        length -= readLength;
-        overflowBuffer = null;
       }
+
+      System.arraycopy(flourish, 0, buffer, offset, flourish.length);
+      return flourish.length > 0 ? flourish.length : -1;
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      throw new IOException(e);
     }
+  }
 
+  private int readIncremental(byte[] buffer, int offset, int length) throws IOException {
     if (length + totalRead > totalDataSize)
       length = (int)(totalDataSize - totalRead);
 
-    byte[] internalBuffer = new byte[length];
-    int read              = super.read(internalBuffer, 0, internalBuffer.length <= cipher.getBlockSize() ? internalBuffer.length : internalBuffer.length - cipher.getBlockSize());
-    totalRead            += read;
+    if (ciphertextBuffer == null || ciphertextBuffer.length < length) {
+      ciphertextBuffer = new byte[length];
+    }
+
+    int read = super.read(ciphertextBuffer, 0, length <= cipher.getBlockSize() ? length : length - cipher.getBlockSize());
+
+    if (read == -1) {
+      throw new EOFException("Attachment ended early!");
+    }
+
+    totalRead += read;
+
+    if (mac != null) {
+      mac.update(ciphertextBuffer, 0, read);
+      digest.update(ciphertextBuffer, 0, read);
+    }
 
     try {
       int outputLen = cipher.getOutputSize(read);
 
       if (outputLen <= length) {
-        readLength += cipher.update(internalBuffer, 0, read, buffer, offset);
-        return readLength;
+        return cipher.update(ciphertextBuffer, 0, read, buffer, offset);
       }
 
       byte[] transientBuffer = new byte[outputLen];
-      outputLen = cipher.update(internalBuffer, 0, read, transientBuffer, 0);
+      outputLen = cipher.update(ciphertextBuffer, 0, read, transientBuffer, 0);
       if (outputLen <= length) {
         System.arraycopy(transientBuffer, 0, buffer, offset, outputLen);
-        readLength += outputLen;
+        return outputLen;
       } else {
         System.arraycopy(transientBuffer, 0, buffer, offset, length);
         overflowBuffer = Arrays.copyOfRange(transientBuffer, length, outputLen);
-        readLength += length;
+        return length;
       }
-      return readLength;
     } catch (ShortBufferException e) {
       throw new AssertionError(e);
     }
   }
 
+  /**
+   * Checks what we've computed while reading against the MAC that follows the ciphertext, before
+   * the padding on the final block is looked at.
+   */
+  private void verifyStreamingMac() throws IOException {
+    byte[] ourMac   = mac.doFinal();
+    byte[] theirMac = new byte[mac.getMacLength()];
+    readFully(theirMac);
+
+    if (!MessageDigest.isEqual(ourMac, theirMac)) {
+      throw new IOException(new InvalidMacException("MAC doesn't match!"));
+    }
+
+    byte[] ourDigest = digest.digest(theirMac);
+
+    if (!MessageDigest.isEqual(ourDigest, theirDigest)) {
+      throw new IOException(new InvalidMacException("Digest doesn't match!"));
+    }
+  }
+
   private static void verifyMac(InputStream inputStream, long length, Mac mac, byte[] theirDigest)
       throws InvalidMacException
   {
@@ -264,8 +420,105 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     for (;;) {
       int read = super.read(buffer, offset, buffer.length - offset);
 
+      if (read == -1) {
+        throw new EOFException("Attachment ended early!");
+      }
+
       if (read + offset < buffer.length) offset += read;
       else                		           return;
     }
   }
+
+  private void skipInputFully(long byteCount) throws IOException {
+    while (byteCount > 0) {
+      long skipped = super.skip(byteCount);
+
+      if (skipped <= 0) {
+        if (super.read() == -1) {
+          throw new EOFException("Attachment ended early!");
+        }
+        skipped = 1;
+      }
+
+      byteCount -= skipped;
+    }
+  }
+
+  /**
+   * Like {@link ContentLengthInputStream}, but for a stream that only verifies itself once it's
+   * been read to the end. Attachments are padded, so stopping at the plaintext length would never
+   * reach that point. Instead, once the limit is hit, the rest of the stream is read and thrown
+   * away before the last of the plaintext is handed back, so a bad attachment always fails.
+   */
+  private static final class VerifyingContentLengthInputStream extends FilterInputStream {
+
+    private long bytesRemaining;
+
+    private VerifyingContentLengthInputStream(InputStream inputStream, long contentLength) {
+      super(inputStream);
+      this.bytesRemaining = contentLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] buffer = new byte[1];
+      int    read   = read(buffer, 0, 1);
+
+      return read == -1 ? -1 : buffer[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer) throws IOException {
+      return read(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (bytesRemaining == 0) return -1;
+
+      int read = super.read(buffer, offset, (int) Math.min(length, bytesRemaining));
+
+      if (read == -1) {
+        return -1;
+      }
+
+      bytesRemaining -= read;
+
+      if (bytesRemaining == 0) {
+        drainAndVerify();
+      }
+
+      return read;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+      byte[] buffer  = new byte[4096];
+      long   skipped = 0;
+
+      while (skipped < byteCount) {
+        int read = read(buffer, 0, (int) Math.min(buffer.length, byteCount - skipped));
+
+        if (read == -1) {
+          break;
+        }
+
+        skipped += read;
+      }
+
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    private void drainAndVerify() throws IOException {
+      byte[] buffer = new byte[4096];
+
+      //noinspection StatementWithEmptyBody
+      while (in.read(buffer) != -1) {}
+    }
+  }
 }
@@ -418,11 +418,17 @@ public class PushServiceSocket {
     });
   }
 
-  public SignalServiceMessagesResult getMessages() throws IOException {
-    Response response = makeServiceRequest(String.format(MESSAGE_PATH, ""), "GET", (RequestBody) null, NO_HEADERS, NO_HANDLER, Optional.absent());
-    validateServiceResponse(response);
+  /**
+   * @return A reader for the envelopes waiting for us on the server, which must be closed once
+   *         it's no longer needed.
+   */
+  public SignalServiceEnvelopeEntityReader getMessages() throws IOException {
+    Response     response = makeServiceRequest(String.format(MESSAGE_PATH, ""), "GET", (RequestBody) null, NO_HEADERS, NO_HANDLER, Optional.absent());
+    ResponseBody body     = response.body();
 
-    List<SignalServiceEnvelopeEntity> envelopes = readBodyJson(response.body(), SignalServiceEnvelopeEntityList.class).getMessages();
+    if (body == null) {
+      throw new PushNetworkException("No body!");
+    }
 
     long serverDeliveredTimestamp = 0;
     try {
@@ -434,7 +440,12 @@ public class PushServiceSocket {
       Log.w(TAG, e);
     }
 
-    return new SignalServiceMessagesResult(envelopes, serverDeliveredTimestamp);
+    try {
+      return new SignalServiceEnvelopeEntityReader(body.byteStream(), serverDeliveredTimestamp);
+    } catch (IOException e) {
+      body.close();
+      throw new PushNetworkException(e);
+    }
   }
 
   public void acknowledgeMessage(String sender, long timestamp) throws IOException {
@@ -491,9 +502,8 @@ public class PushServiceSocket {
         path = path + "?relay=" + destination.getRelay().get();
       }
 
-      String             responseText = makeServiceRequest(path, "GET", null, NO_HEADERS, unidentifiedAccess);
-      PreKeyResponse     response     = JsonUtil.fromJson(responseText, PreKeyResponse.class);
-      List<PreKeyBundle> bundles      = new LinkedList<>();
+      PreKeyResponse     response = makeServiceJsonRequest(path, "GET", null, NO_HEADERS, unidentifiedAccess, PreKeyResponse.class);
+      List<PreKeyBundle> bundles  = new LinkedList<>();
 
       for (PreKeyResponseItem device : response.getDevices()) {
         ECPublicKey preKey                = null;
@@ -532,8 +542,7 @@ public class PushServiceSocket {
         path = path + "?relay=" + destination.getRelay().get();
       }
 
-      String         responseText = makeServiceRequest(path, "GET", null);
-      PreKeyResponse response     = JsonUtil.fromJson(responseText, PreKeyResponse.class);
+      PreKeyResponse response = makeServiceJsonRequest(path, "GET", null, NO_HEADERS, Optional.absent(), PreKeyResponse.class);
 
       if (response.getDevices() == null || response.getDevices().size() < 1)
         throw new IOException("Empty prekey list");
@@ -565,8 +574,7 @@ public class PushServiceSocket {
 
   public SignedPreKeyEntity getCurrentSignedPreKey() throws IOException {
     try {
-      String responseText = makeServiceRequest(SIGNED_PREKEY_PATH, "GET", null);
-      return JsonUtil.fromJson(responseText, SignedPreKeyEntity.class);
+      return makeServiceJsonRequest(SIGNED_PREKEY_PATH, "GET", null, NO_HEADERS, Optional.absent(), SignedPreKeyEntity.class);
     } catch (NotFoundException e) {
       Log.w(TAG, e);
       return null;
@@ -582,6 +590,17 @@ public class PushServiceSocket {
 
   public void retrieveAttachment(int cdnNumber, SignalServiceAttachmentRemoteId cdnPath, File destination, long maxSizeBytes, ProgressListener listener)
       throws IOException, MissingConfigurationException
+  {
+    retrieveAttachment(cdnNumber, cdnPath, destination, maxSizeBytes, 1, listener);
+  }
+
+  /**
+   * @param maxSegments If greater than one, a new download is split into up to this many ranges
+   *                    that are fetched at the same time. A download that was started this way is
+   *                    always resumed this way.
+   */
+  public void retrieveAttachment(int cdnNumber, SignalServiceAttachmentRemoteId cdnPath, File destination, long maxSizeBytes, int maxSegments, ProgressListener listener)
+      throws IOException, MissingConfigurationException
   {
     final String path;
     if (cdnPath.getV2().isPresent()) {
@@ -589,7 +608,12 @@ public class PushServiceSocket {
     } else {
       path = String.format(Locale.US, ATTACHMENT_KEY_DOWNLOAD_PATH, cdnPath.getV3().get());
     }
-    downloadFromCdn(destination, cdnNumber, path, maxSizeBytes, listener);
+
+    if (SegmentedCdnDownload.isInProgress(destination) || (maxSegments > 1 && destination.length() == 0)) {
+      downloadFromCdnSegmented(destination, cdnNumber, path, maxSizeBytes, maxSegments, listener);
+    } else {
+      downloadFromCdn(destination, cdnNumber, path, maxSizeBytes, listener);
+    }
   }
 
   public byte[] retrieveSticker(byte[] packId, int stickerId)
@@ -621,29 +645,13 @@ public class PushServiceSocket {
   }
 
   public ListenableFuture<SignalServiceProfile> retrieveProfile(SignalServiceAddress target, Optional<UnidentifiedAccess> unidentifiedAccess) {
-    ListenableFuture<String> response = submitServiceRequest(String.format(PROFILE_PATH, target.getIdentifier()), "GET", null, NO_HEADERS, unidentifiedAccess);
-
-    return FutureTransformers.map(response, body -> {
-      try {
-        return JsonUtil.fromJson(body, SignalServiceProfile.class);
-      } catch (IOException e) {
-        Log.w(TAG, e);
-        throw new MalformedResponseException("Unable to parse entity", e);
-      }
-    });
+    return submitServiceJsonRequest(String.format(PROFILE_PATH, target.getIdentifier()), "GET", null, NO_HEADERS, unidentifiedAccess, SignalServiceProfile.class);
   }
 
   public SignalServiceProfile retrieveProfileByUsername(String username, Optional<UnidentifiedAccess> unidentifiedAccess)
       throws NonSuccessfulResponseCodeException, PushNetworkException, MalformedResponseException
   {
-    String response = makeServiceRequest(String.format(PROFILE_USERNAME_PATH, username), "GET", null, NO_HEADERS, unidentifiedAccess);
-
-    try {
-      return JsonUtil.fromJson(response, SignalServiceProfile.class);
-    } catch (IOException e) {
-      Log.w(TAG, e);
-      throw new MalformedResponseException("Unable to parse entity", e);
-    }
+    return makeServiceJsonRequest(String.format(PROFILE_USERNAME_PATH, username), "GET", null, NO_HEADERS, unidentifiedAccess, SignalServiceProfile.class);
   }
 
   public ListenableFuture<ProfileAndCredential> retrieveVersionedProfileAndCredential(UUID target, ProfileKey profileKey, Optional<UnidentifiedAccess> unidentifiedAccess) {
@@ -655,47 +663,30 @@ public class PushServiceSocket {
     String credentialRequest = Hex.toStringCondensed(request.serialize());
     String subPath           = String.format("%s/%s/%s", target, version, credentialRequest);
 
-    ListenableFuture<String> response = submitServiceRequest(String.format(PROFILE_PATH, subPath), "GET", null, NO_HEADERS, unidentifiedAccess);
+    ListenableFuture<SignalServiceProfile> response = submitServiceJsonRequest(String.format(PROFILE_PATH, subPath), "GET", null, NO_HEADERS, unidentifiedAccess, SignalServiceProfile.class);
 
-    return FutureTransformers.map(response, body -> formatProfileAndCredentialBody(requestContext, body));
+    return FutureTransformers.map(response, profile -> formatProfileAndCredential(requestContext, profile));
   }
 
-  private ProfileAndCredential formatProfileAndCredentialBody(ProfileKeyCredentialRequestContext requestContext, String body)
-      throws MalformedResponseException
-  {
+  private ProfileAndCredential formatProfileAndCredential(ProfileKeyCredentialRequestContext requestContext, SignalServiceProfile signalServiceProfile) {
     try {
-      SignalServiceProfile signalServiceProfile = JsonUtil.fromJson(body, SignalServiceProfile.class);
-
-      try {
-        ProfileKeyCredential profileKeyCredential = signalServiceProfile.getProfileKeyCredentialResponse() != null
-                                                      ? clientZkProfileOperations.receiveProfileKeyCredential(requestContext, signalServiceProfile.getProfileKeyCredentialResponse())
-                                                      : null;
-        return new ProfileAndCredential(signalServiceProfile, SignalServiceProfile.RequestType.PROFILE_AND_CREDENTIAL, Optional.fromNullable(profileKeyCredential));
-      } catch (VerificationFailedException e) {
-        Log.w(TAG, "Failed to verify credential.", e);
-        return new ProfileAndCredential(signalServiceProfile, SignalServiceProfile.RequestType.PROFILE_AND_CREDENTIAL, Optional.absent());
-      }
-    } catch (IOException e) {
-      Log.w(TAG, e);
-      throw new MalformedResponseException("Unable to parse entity", e);
+      ProfileKeyCredential profileKeyCredential = signalServiceProfile.getProfileKeyCredentialResponse() != null
+                                                    ? clientZkProfileOperations.receiveProfileKeyCredential(requestContext, signalServiceProfile.getProfileKeyCredentialResponse())
+                                                    : null;
+      return new ProfileAndCredential(signalServiceProfile, SignalServiceProfile.RequestType.PROFILE_AND_CREDENTIAL, Optional.fromNullable(profileKeyCredential));
+    } catch (VerificationFailedException e) {
+      Log.w(TAG, "Failed to verify credential.", e);
+      return new ProfileAndCredential(signalServiceProfile, SignalServiceProfile.RequestType.PROFILE_AND_CREDENTIAL, Optional.absent());
     }
   }
 
   public ListenableFuture<SignalServiceProfile> retrieveVersionedProfile(UUID target, ProfileKey profileKey, Optional<UnidentifiedAccess> unidentifiedAccess) {
     ProfileKeyVersion profileKeyIdentifier = profileKey.getProfileKeyVersion(target);
 
-    String                   version  = profileKeyIdentifier.serialize();
-    String                   subPath  = String.format("%s/%s", target, version);
-    ListenableFuture<String> response = submitServiceRequest(String.format(PROFILE_PATH, subPath), "GET", null, NO_HEADERS, unidentifiedAccess);
+    String version = profileKeyIdentifier.serialize();
+    String subPath = String.format("%s/%s", target, version);
 
-    return FutureTransformers.map(response, body -> {
-      try {
-        return JsonUtil.fromJson(body, SignalServiceProfile.class);
-      } catch (IOException e) {
-        Log.w(TAG, e);
-        throw new MalformedResponseException("Unable to parse entity", e);
-      }
-    });
+    return submitServiceJsonRequest(String.format(PROFILE_PATH, subPath), "GET", null, NO_HEADERS, unidentifiedAccess, SignalServiceProfile.class);
   }
 
   public void retrieveProfileAvatar(String path, File destination, long maxSizeBytes)
@@ -765,8 +756,7 @@ public class PushServiceSocket {
   {
     try {
       ContactTokenList        contactTokenList = new ContactTokenList(new LinkedList<>(contactTokens));
-      String                  response         = makeServiceRequest(DIRECTORY_TOKENS_PATH, "PUT", JsonUtil.toJson(contactTokenList));
-      ContactTokenDetailsList activeTokens     = JsonUtil.fromJson(response, ContactTokenDetailsList.class);
+      ContactTokenDetailsList activeTokens     = makeServiceJsonRequest(DIRECTORY_TOKENS_PATH, "PUT", JsonUtil.toJson(contactTokenList), NO_HEADERS, Optional.absent(), ContactTokenDetailsList.class);
 
       return activeTokens.getContacts();
     } catch (IOException e) {
@@ -992,18 +982,26 @@ public class PushServiceSocket {
     }
   }
 
+  private void downloadFromCdnSegmented(File destination, int cdnNumber, String path, long maxSizeBytes, int maxSegments, ProgressListener listener)
+      throws IOException, MissingConfigurationException
+  {
+    ConnectionHolder connectionHolder = getCdnConnectionHolder(cdnNumber);
+    OkHttpClient     okHttpClient     = getCdnDownloadClient(connectionHolder);
+
+    new SegmentedCdnDownload(okHttpClient,
+                             connectionHolder.getUrl() + "/" + path,
+                             connectionHolder.getHostHeader(),
+                             destination,
+                             maxSizeBytes,
+                             maxSegments,
+                             listener,
+                             connections).download();
+  }
+
   private void downloadFromCdn(OutputStream outputStream, long offset, int cdnNumber, String path, long maxSizeBytes, ProgressListener listener)
       throws PushNetworkException, NonSuccessfulResponseCodeException, MissingConfigurationException {
-    ConnectionHolder[] cdnNumberClients = cdnClientsMap.get(cdnNumber);
-    if (cdnNumberClients == null) {
-      throw new MissingConfigurationException("Attempted to download from unsupported CDN number: " + cdnNumber + ", Our configuration supports: " + cdnClientsMap.keySet());
-    }
-    ConnectionHolder   connectionHolder = getRandom(cdnNumberClients, random);
-    OkHttpClient       okHttpClient     = connectionHolder.getClient()
-                                                          .newBuilder()
-                                                          .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                          .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                          .build();
+    ConnectionHolder connectionHolder = getCdnConnectionHolder(cdnNumber);
+    OkHttpClient     okHttpClient     = getCdnDownloadClient(connectionHolder);
 
     Request.Builder request = new Request.Builder().url(connectionHolder.getUrl() + "/" + path).get();
 
@@ -1069,6 +1067,22 @@ public class PushServiceSocket {
     throw new NonSuccessfulResponseCodeException(response.code(), "Response: " + response);
   }
 
+  private ConnectionHolder getCdnConnectionHolder(int cdnNumber) throws MissingConfigurationException {
+    ConnectionHolder[] cdnNumberClients = cdnClientsMap.get(cdnNumber);
+    if (cdnNumberClients == null) {
+      throw new MissingConfigurationException("Attempted to download from unsupported CDN number: " + cdnNumber + ", Our configuration supports: " + cdnClientsMap.keySet());
+    }
+    return getRandom(cdnNumberClients, random);
+  }
+
+  private OkHttpClient getCdnDownloadClient(ConnectionHolder connectionHolder) {
+    return connectionHolder.getClient()
+                           .newBuilder()
+                           .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
+                           .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
+                           .build();
+  }
+
   private byte[] uploadToCdn0(String path, String acl, String key, String policy, String algorithm,
                               String credential, String date, String signature,
                               InputStream data, String contentType, long length,
@@ -1347,6 +1361,16 @@ public class PushServiceSocket {
     }
   }
 
+  /**
+   * Like {@link #makeServiceRequest(String, String, String, Map, Optional)}, but parses the
+   * response as it's read rather than reading it into a String first.
+   */
+  private <T> T makeServiceJsonRequest(String urlFragment, String method, String jsonBody, Map<String, String> headers, Optional<UnidentifiedAccess> unidentifiedAccessKey, Class<T> responseClass)
+      throws NonSuccessfulResponseCodeException, PushNetworkException, MalformedResponseException
+  {
+    return readBodyJson(makeServiceBodyRequest(urlFragment, method, jsonRequestBody(jsonBody), headers, NO_HANDLER, unidentifiedAccessKey), responseClass);
+  }
+
   private static RequestBody jsonRequestBody(String jsonBody) {
     return jsonBody != null
         ? RequestBody.create(MediaType.parse("application/json"), jsonBody)
@@ -1361,6 +1385,18 @@ public class PushServiceSocket {
 
 
   private ListenableFuture<String> submitServiceRequest(String urlFragment, String method, String jsonBody, Map<String, String> headers, Optional<UnidentifiedAccess> unidentifiedAccessKey) {
+    return submitServiceRequest(urlFragment, method, jsonBody, headers, unidentifiedAccessKey, PushServiceSocket::readBodyString);
+  }
+
+  /**
+   * Like {@link #submitServiceRequest(String, String, String, Map, Optional)}, but parses the
+   * response as it's read rather than reading it into a String first.
+   */
+  private <T> ListenableFuture<T> submitServiceJsonRequest(String urlFragment, String method, String jsonBody, Map<String, String> headers, Optional<UnidentifiedAccess> unidentifiedAccessKey, Class<T> responseClass) {
+    return submitServiceRequest(urlFragment, method, jsonBody, headers, unidentifiedAccessKey, body -> readBodyJson(body, responseClass));
+  }
+
+  private <T> ListenableFuture<T> submitServiceRequest(String urlFragment, String method, String jsonBody, Map<String, String> headers, Optional<UnidentifiedAccess> unidentifiedAccessKey, ResponseBodyReader<T> reader) {
     OkHttpClient okHttpClient = buildOkHttpClient(unidentifiedAccessKey.isPresent());
     Call         call         = okHttpClient.newCall(buildServiceRequest(urlFragment, method, jsonRequestBody(jsonBody), headers, unidentifiedAccessKey));
 
@@ -1368,13 +1404,13 @@ public class PushServiceSocket {
       connections.add(call);
     }
 
-    SettableFuture<String> bodyFuture = new SettableFuture<>();
+    SettableFuture<T> bodyFuture = new SettableFuture<>();
 
     call.enqueue(new Callback() {
       @Override
       public void onResponse(Call call, Response response) {
         try (ResponseBody body = validateServiceResponse(response).body()) {
-          bodyFuture.set(readBodyString(body));
+          bodyFuture.set(reader.read(body));
         } catch (IOException e) {
           bodyFuture.setException(e);
         }
@@ -1877,8 +1913,11 @@ public class PushServiceSocket {
    * {@link IOException} during json parsing is converted to a {@link MalformedResponseException}
    */
   private static <T> T readBodyJson(ResponseBody body, Class<T> clazz) throws PushNetworkException, MalformedResponseException {
-    String json = readBodyString(body);
-    try {
+    if (body == null) {
+      throw new PushNetworkException("No body!");
+    }
+
+    try (InputStream json = body.byteStream()) {
       return JsonUtil.fromJson(json, clazz);
     } catch (JsonProcessingException e) {
       Log.w(TAG, e);
@@ -1986,6 +2025,10 @@ public class PushServiceSocket {
     }
   }
 
+  private interface ResponseBodyReader<T> {
+    T read(ResponseBody body) throws IOException;
+  }
+
   private interface ResponseCodeHandler {
     void handle(int responseCode) throws NonSuccessfulResponseCodeException, PushNetworkException;
   }
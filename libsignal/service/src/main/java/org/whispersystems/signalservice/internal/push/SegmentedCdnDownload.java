@@ -0,0 +1,524 @@
+package org.whispersystems.signalservice.internal.push;
+
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment.ProgressListener;
+import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
+import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
+import org.whispersystems.signalservice.api.push.exceptions.RangeException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Downloads a file from the CDN as several byte ranges at once, so that a large download on a
+ * high-latency link isn't limited to what a single connection can carry.
+ * <p>
+ * The destination is allocated up front and each range is written into place as it arrives. How
+ * far each range has got is kept in a small file beside the destination, so if we're killed part
+ * way through, the next attempt only fetches what's missing.
+ * <p>
+ * We don't know how big the file is until we've asked for some of it, so the first request is for
+ * a small range at the start, and the rest is split between the other requests once the response
+ * tells us the total size. If the server ignores ranges entirely, we just take the whole response.
+ */
+final class SegmentedCdnDownload {
+
+  private static final String TAG = SegmentedCdnDownload.class.getSimpleName();
+
+  private static final int STATE_VERSION        = 1;
+  private static final int BUFFER_SIZE          = 32768;
+  private static final int FIRST_SEGMENT_SIZE   = 256 * 1024;
+  private static final int MIN_SEGMENT_SIZE     = 512 * 1024;
+  private static final int MAX_SEGMENT_ATTEMPTS = 3;
+  private static final int SAVE_INTERVAL        = 1024 * 1024;
+
+  private static final long TERMINATION_TIMEOUT_SECONDS = 10;
+
+  private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+  private final OkHttpClient     client;
+  private final String           url;
+  private final Optional<String> hostHeader;
+  private final File             destination;
+  private final File             stateFile;
+  private final long             maxSizeBytes;
+  private final int              segmentCount;
+  private final ProgressListener listener;
+  private final Set<Call>        connections;
+  private final AtomicLong       downloaded;
+
+  private          long          totalSize;
+  private          List<Segment> segments;
+  private volatile long          lastSaved;
+  private volatile boolean       abandoned;
+
+  /**
+   * @param connections Calls are added here while they're in flight so that they can be canceled
+   *                    along with everything else, and must be synchronized on to be used.
+   */
+  SegmentedCdnDownload(OkHttpClient client,
+                       String url,
+                       Optional<String> hostHeader,
+                       File destination,
+                       long maxSizeBytes,
+                       int segmentCount,
+                       ProgressListener listener,
+                       Set<Call> connections)
+  {
+    this.client       = client;
+    this.url          = url;
+    this.hostHeader   = hostHeader;
+    this.destination  = destination;
+    this.stateFile    = getStateFile(destination);
+    this.maxSizeBytes = maxSizeBytes;
+    this.segmentCount = Math.max(1, segmentCount);
+    this.listener     = listener;
+    this.connections  = connections;
+    this.downloaded   = new AtomicLong();
+  }
+
+  /**
+   * @return True if there's a segmented download of this destination to be picked up again, in
+   *         which case it has to be resumed this way, since the file is already full size.
+   */
+  static boolean isInProgress(File destination) {
+    return getStateFile(destination).exists();
+  }
+
+  void download() throws IOException {
+    if (!loadState()) {
+      if (!start()) {
+        return;
+      }
+    } else {
+      Log.i(TAG, "Resuming segmented download, " + downloaded.get() + "/" + totalSize + " bytes already downloaded.");
+    }
+
+    List<Segment> remaining = new ArrayList<>();
+
+    for (Segment segment : segments) {
+      if (!segment.isComplete()) {
+        remaining.add(segment);
+      }
+    }
+
+    if (!remaining.isEmpty()) {
+      downloadSegments(remaining);
+    }
+
+    //noinspection ResultOfMethodCallIgnored
+    stateFile.delete();
+  }
+
+  /**
+   * Makes the first request, which tells us how big the file is.
+   *
+   * @return True if the rest of the file still needs to be fetched in segments, or false if the
+   *         server sent the whole thing.
+   */
+  private boolean start() throws IOException {
+    Response     response = null;
+    ResponseBody body     = null;
+    Call         call     = newCall(0, FIRST_SEGMENT_SIZE - 1);
+
+    try {
+      response = call.execute();
+      body     = response.body();
+
+      if (response.code() == 416) {
+        throw new RangeException(0);
+      } else if (response.code() == 200) {
+        if (body == null)                        throw new PushNetworkException("No response body!");
+        if (body.contentLength() > maxSizeBytes) throw new PushNetworkException("Response exceeds max size!");
+
+        Log.w(TAG, "Server ignored range request, downloading in one piece.");
+        downloadWhole(body);
+        return false;
+      } else if (response.code() != 206) {
+        throw new NonSuccessfulResponseCodeException(response.code(), "Response: " + response);
+      }
+
+      if (body == null) throw new PushNetworkException("No response body!");
+
+      Matcher range = CONTENT_RANGE.matcher(String.valueOf(response.header("Content-Range")));
+
+      if (!range.matches() || Long.parseLong(range.group(1)) != 0) {
+        throw new PushNetworkException("Bad Content-Range: " + response.header("Content-Range"));
+      }
+
+      totalSize = Long.parseLong(range.group(3));
+
+      if (totalSize > maxSizeBytes) throw new PushNetworkException("Response exceeds max size!");
+
+      try (RandomAccessFile file = new RandomAccessFile(destination, "rw")) {
+        file.setLength(totalSize);
+      }
+
+      segments = createSegments(totalSize, Long.parseLong(range.group(2)) + 1, segmentCount);
+      saveState();
+
+      Log.i(TAG, "Starting segmented download of " + totalSize + " bytes in " + segments.size() + " segments.");
+
+      writeSegment(segments.get(0), body.byteStream());
+      return true;
+    } catch (NonSuccessfulResponseCodeException | PushNetworkException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
+    } finally {
+      if (body != null) {
+        body.close();
+      }
+      finish(call);
+      saveStateQuietly();
+    }
+  }
+
+  private void downloadWhole(ResponseBody body) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(destination, "rw")) {
+      InputStream in     = body.byteStream();
+      byte[]      buffer = new byte[BUFFER_SIZE];
+      long        total  = 0;
+      int         read;
+
+      file.setLength(0);
+
+      while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+        file.write(buffer, 0, read);
+        if ((total += read) > maxSizeBytes) throw new PushNetworkException("Response exceeded max size!");
+
+        if (listener != null) {
+          listener.onAttachmentProgress(body.contentLength(), total);
+        }
+      }
+    }
+  }
+
+  private void downloadSegments(List<Segment> remaining) throws IOException {
+    ExecutorService         executor   = Executors.newFixedThreadPool(Math.min(segmentCount, remaining.size()));
+    CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+    List<Call>              calls      = Collections.synchronizedList(new ArrayList<>());
+
+    try {
+      for (Segment segment : remaining) {
+        completion.submit(() -> {
+          downloadSegment(segment, calls);
+          return null;
+        });
+      }
+
+      for (int i = 0; i < remaining.size(); i++) {
+        completion.take().get();
+      }
+    } catch (InterruptedException e) {
+      throw new PushNetworkException(e);
+    } catch (ExecutionException e) {
+      if      (e.getCause() instanceof IOException)      throw (IOException) e.getCause();
+      else if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      else                                               throw new AssertionError(e.getCause());
+    } finally {
+      synchronized (calls) {
+        for (Call call : calls) {
+          call.cancel();
+        }
+      }
+
+      executor.shutdownNow();
+      awaitTermination(executor);
+      saveStateQuietly();
+    }
+  }
+
+  /**
+   * Makes sure nothing is still writing to the destination once we've given up on it, since the
+   * caller may delete it.
+   */
+  private static void awaitTermination(ExecutorService executor) {
+    try {
+      if (!executor.awaitTermination(TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        Log.w(TAG, "Segment downloads did not stop in time!");
+      }
+    } catch (InterruptedException e) {
+      Log.w(TAG, e);
+    }
+  }
+
+  private void downloadSegment(Segment segment, List<Call> calls) throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      Call call = newCall(segment.getOffset(), segment.end - 1);
+      calls.add(call);
+
+      try {
+        downloadSegment(segment, call);
+        saveState();
+        return;
+      } catch (NonSuccessfulResponseCodeException e) {
+        throw e;
+      } catch (IOException e) {
+        if (call.isCanceled() || attempt >= MAX_SEGMENT_ATTEMPTS) {
+          throw e instanceof PushNetworkException ? e : new PushNetworkException(e);
+        }
+        Log.w(TAG, "Segment " + segment.start + "-" + segment.end + " failed at " + segment.getOffset() + ", retrying. Attempt " + attempt, e);
+      } finally {
+        calls.remove(call);
+      }
+    }
+  }
+
+  private void downloadSegment(Segment segment, Call call) throws IOException {
+    long         offset = segment.getOffset();
+    ResponseBody body   = null;
+
+    try {
+      Response response = call.execute();
+      body = response.body();
+
+      if (response.code() == 416 || response.code() == 200) {
+        Log.w(TAG, "Server rejected or ignored a range after the download started. Code: " + response.code());
+        reset();
+        throw new RangeException(offset);
+      } else if (response.code() != 206) {
+        throw new NonSuccessfulResponseCodeException(response.code(), "Response: " + response);
+      }
+
+      if (body == null) throw new PushNetworkException("No response body!");
+
+      writeSegment(segment, body.byteStream());
+
+      if (!segment.isComplete()) {
+        throw new PushNetworkException("Segment ended early at " + segment.getOffset() + ", expected " + segment.end);
+      }
+    } finally {
+      if (body != null) {
+        body.close();
+      }
+      finish(call);
+    }
+  }
+
+  private void writeSegment(Segment segment, InputStream in) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(destination, "rw")) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int    read;
+
+      file.seek(segment.getOffset());
+
+      while (!segment.isComplete() && (read = in.read(buffer, 0, (int) Math.min(buffer.length, segment.getRemaining()))) != -1) {
+        file.write(buffer, 0, read);
+        segment.advance(read);
+
+        long total = downloaded.addAndGet(read);
+
+        if (listener != null) {
+          listener.onAttachmentProgress(totalSize, total);
+        }
+
+        if (total - lastSaved >= SAVE_INTERVAL) {
+          saveState();
+        }
+      }
+    }
+  }
+
+  private Call newCall(long start, long end) {
+    Request.Builder request = new Request.Builder().url(url).get();
+
+    if (hostHeader.isPresent()) {
+      request.addHeader("Host", hostHeader.get());
+    }
+
+    request.addHeader("Range", "bytes=" + start + "-" + end);
+
+    Call call = client.newCall(request.build());
+
+    synchronized (connections) {
+      connections.add(call);
+    }
+
+    return call;
+  }
+
+  private void finish(Call call) {
+    synchronized (connections) {
+      connections.remove(call);
+    }
+  }
+
+  static List<Segment> createSegments(long totalSize, long firstSegmentEnd, int segmentCount) {
+    List<Segment> segments = new ArrayList<>(segmentCount + 1);
+    long          first    = Math.min(firstSegmentEnd, totalSize);
+
+    segments.add(new Segment(0, first, 0));
+
+    long remaining = totalSize - first;
+    int  count     = (int) Math.max(1, Math.min(segmentCount, remaining / MIN_SEGMENT_SIZE));
+    long size      = (remaining + count - 1) / count;
+
+    for (long start = first; start < totalSize; start += size) {
+      segments.add(new Segment(start, Math.min(start + size, totalSize), 0));
+    }
+
+    return segments;
+  }
+
+  /**
+   * @return True if there was state for a download of the same size we can carry on from.
+   */
+  private boolean loadState() {
+    if (!stateFile.exists()) {
+      return false;
+    }
+
+    try (DataInputStream in = new DataInputStream(new FileInputStream(stateFile))) {
+      if (in.readInt() != STATE_VERSION) {
+        throw new IOException("Unknown version");
+      }
+
+      long          size     = in.readLong();
+      int           count    = in.readInt();
+      List<Segment> segments = new ArrayList<>(count);
+      long          progress = 0;
+
+      for (int i = 0; i < count; i++) {
+        Segment segment = new Segment(in.readLong(), in.readLong(), in.readLong());
+        progress += segment.getDownloaded();
+        segments.add(segment);
+      }
+
+      if (size != destination.length()) {
+        throw new IOException("Destination is " + destination.length() + " bytes, expected " + size);
+      }
+
+      this.totalSize = size;
+      this.segments  = segments;
+      this.lastSaved = progress;
+      this.downloaded.set(progress);
+
+      return true;
+    } catch (IOException e) {
+      Log.w(TAG, "Discarding download state.", e);
+      //noinspection ResultOfMethodCallIgnored
+      stateFile.delete();
+      //noinspection ResultOfMethodCallIgnored
+      destination.delete();
+      return false;
+    }
+  }
+
+  private synchronized void saveState() throws IOException {
+    if (abandoned) {
+      return;
+    }
+
+    File temp = new File(stateFile.getPath() + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+      out.writeInt(STATE_VERSION);
+      out.writeLong(totalSize);
+      out.writeInt(segments.size());
+
+      for (Segment segment : segments) {
+        out.writeLong(segment.start);
+        out.writeLong(segment.end);
+        out.writeLong(segment.getDownloaded());
+      }
+    }
+
+    if (!temp.renameTo(stateFile)) {
+      throw new IOException("Failed to save download state!");
+    }
+
+    lastSaved = downloaded.get();
+  }
+
+  private void saveStateQuietly() {
+    if (segments == null) {
+      return;
+    }
+
+    try {
+      saveState();
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to save download state.", e);
+    }
+  }
+
+  private void reset() {
+    //noinspection ResultOfMethodCallIgnored
+    stateFile.delete();
+    //noinspection ResultOfMethodCallIgnored
+    destination.delete();
+
+    abandoned = true;
+  }
+
+  private static File getStateFile(File destination) {
+    return new File(destination.getPath() + ".segments");
+  }
+
+  static final class Segment {
+    private final long       start;
+    private final long       end;
+    private final AtomicLong downloaded;
+
+    Segment(long start, long end, long downloaded) {
+      this.start      = start;
+      this.end        = end;
+      this.downloaded = new AtomicLong(downloaded);
+    }
+
+    long getStart() {
+      return start;
+    }
+
+    long getEnd() {
+      return end;
+    }
+
+    long getDownloaded() {
+      return downloaded.get();
+    }
+
+    long getOffset() {
+      return start + downloaded.get();
+    }
+
+    long getRemaining() {
+      return end - getOffset();
+    }
+
+    boolean isComplete() {
+      return getOffset() >= end;
+    }
+
+    void advance(long bytes) {
+      downloaded.addAndGet(bytes);
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package org.whispersystems.signalservice.internal.push;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+import org.whispersystems.signalservice.api.push.exceptions.MalformedResponseException;
+import org.whispersystems.signalservice.internal.util.JsonUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the envelopes in a message retrieval response one at a time as they come off the network,
+ * rather than holding the whole response as a String and then every envelope in it at once.
+ */
+public final class SignalServiceEnvelopeEntityReader implements Closeable {
+
+  private static final String MESSAGES = "messages";
+
+  private final InputStream input;
+  private final JsonParser  parser;
+  private final long        serverDeliveredTimestamp;
+
+  private boolean started;
+  private boolean finished;
+
+  public SignalServiceEnvelopeEntityReader(InputStream input, long serverDeliveredTimestamp) throws IOException {
+    this.input                    = input;
+    this.parser                   = JsonUtil.createParser(input);
+    this.serverDeliveredTimestamp = serverDeliveredTimestamp;
+  }
+
+  public long getServerDeliveredTimestamp() {
+    return serverDeliveredTimestamp;
+  }
+
+  /**
+   * @return The next envelope, or null if there are no more.
+   * @throws MalformedResponseException If the response isn't what we expected.
+   */
+  public SignalServiceEnvelopeEntity read() throws IOException {
+    if (finished) {
+      return null;
+    }
+
+    try {
+      if (!started) {
+        started = true;
+
+        if (!moveToMessages()) {
+          finished = true;
+          return null;
+        }
+      }
+
+      JsonToken token = parser.nextToken();
+
+      if (token == JsonToken.START_OBJECT) {
+        return parser.readValueAs(SignalServiceEnvelopeEntity.class);
+      } else if (token == JsonToken.END_ARRAY) {
+        finished = true;
+        return null;
+      } else {
+        throw new MalformedResponseException("Unexpected " + token + " in message list");
+      }
+    } catch (JsonProcessingException e) {
+      throw new MalformedResponseException("Unable to parse entity", e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      parser.close();
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Skips everything in the response up to the start of the message list.
+   *
+   * @return False if there is no message list.
+   */
+  private boolean moveToMessages() throws IOException {
+    if (parser.nextToken() != JsonToken.START_OBJECT) {
+      throw new MalformedResponseException("Expected an object");
+    }
+
+    JsonToken token;
+
+    while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+      String    name  = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+
+      if (MESSAGES.equals(name)) {
+        if (value == JsonToken.START_ARRAY) return true;
+        if (value == JsonToken.VALUE_NULL)  return false;
+
+        throw new MalformedResponseException("Expected an array of messages, got " + value);
+      }
+
+      parser.skipChildren();
+    }
+
+    if (token != JsonToken.END_OBJECT) {
+      throw new MalformedResponseException("Unexpected " + token);
+    }
+
+    return false;
+  }
+}
@@ -38,4 +38,12 @@ public class ContentLengthInputStream extends FilterInputStream {
     return result;
   }
 
+  @Override
+  public long skip(long byteCount) throws IOException {
+    long skipped = super.skip(Math.min(byteCount, bytesRemaining));
+
+    bytesRemaining -= skipped;
+    return skipped;
+  }
+
 }
@@ -24,6 +24,7 @@ import org.whispersystems.signalservice.api.util.UuidUtil;
 import org.whispersystems.util.Base64;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.UUID;
 
 public class JsonUtil {
@@ -50,6 +51,22 @@ public class JsonUtil {
   {
     return objectMapper.readValue(json, clazz);
   }
+
+  /**
+   * Parses straight from the stream, without reading it into a String first.
+   */
+  public static <T> T fromJson(InputStream json, Class<T> clazz)
+      throws IOException
+  {
+    return objectMapper.readValue(json, clazz);
+  }
+
+  /**
+   * @return A parser that can read objects a piece at a time with {@link JsonParser#readValueAs(Class)}.
+   */
+  public static JsonParser createParser(InputStream json) throws IOException {
+    return objectMapper.getFactory().createParser(json);
+  }
   
   public static class IdentityKeySerializer extends JsonSerializer<IdentityKey> {
     @Override
@@ -181,6 +181,18 @@ public class WebSocketConnection extends WebSocketListener {
     else                                                   return incomingRequests.removeFirst();
   }
 
+  /**
+   * Like {@link #readRequest(long)}, but doesn't wait. Only returns a request if one has already
+   * been received.
+   */
+  public synchronized Optional<WebSocketRequestMessage> readRequestIfAvailable() throws IOException {
+    if (client == null) {
+      throw new IOException("Connection closed!");
+    }
+
+    return Optional.fromNullable(incomingRequests.pollFirst());
+  }
+
   public synchronized ListenableFuture<WebsocketResponse> sendRequest(WebSocketRequestMessage request) throws IOException {
     if (client == null || !connected) throw new IOException("No connection!");
 
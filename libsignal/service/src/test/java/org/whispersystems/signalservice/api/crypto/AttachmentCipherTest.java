@@ -2,8 +2,10 @@ package org.whispersystems.signalservice.api.crypto;
 
 import org.conscrypt.Conscrypt;
 import org.junit.Test;
+import org.whispersystems.libsignal.InvalidMacException;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.kdf.HKDFv3;
+import org.whispersystems.signalservice.internal.crypto.PaddingInputStream;
 import org.whispersystems.signalservice.internal.util.Util;
 
 import java.io.ByteArrayOutputStream;
@@ -16,7 +18,9 @@ import java.security.Security;
 import java.util.Arrays;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.whispersystems.signalservice.testutil.LibSignalLibraryUtil.assumeLibSignalSupportedOnOS;
 
 public final class AttachmentCipherTest {
@@ -154,6 +158,160 @@ public final class AttachmentCipherTest {
     assertTrue(hitCorrectException);
   }
 
+  @Test
+  public void attachment_streaming_encryptDecrypt() throws IOException, InvalidMessageException {
+    for (int length : new int[] { 0, 1, 15, 16, 17, 4096, 100_000 }) {
+      byte[]        key             = Util.getSecretBytes(64);
+      byte[]        plaintextInput  = Util.getSecretBytes(length);
+      EncryptResult encryptResult   = encryptData(plaintextInput, key);
+      File          cipherFile      = writeToFile(encryptResult.ciphertext);
+      InputStream   inputStream     = AttachmentCipherInputStream.createStreamingForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest);
+      byte[]        plaintextOutput = readInputStreamFully(inputStream);
+
+      assertArrayEquals(plaintextInput, plaintextOutput);
+
+      cipherFile.delete();
+    }
+  }
+
+  @Test
+  public void attachment_streaming_decryptFailOnBadMac() throws IOException, InvalidMessageException {
+    byte[]        key              = Util.getSecretBytes(64);
+    byte[]        plaintextInput   = Util.getSecretBytes(10_000);
+    EncryptResult encryptResult    = encryptData(plaintextInput, key);
+    byte[]        badMacCiphertext = Arrays.copyOf(encryptResult.ciphertext, encryptResult.ciphertext.length);
+
+    badMacCiphertext[badMacCiphertext.length - 1] += 1;
+
+    assertStreamingDecryptFails(badMacCiphertext, 0, key, encryptResult.digest);
+  }
+
+  @Test
+  public void attachment_streaming_decryptFailOnBadCiphertext() throws IOException, InvalidMessageException {
+    byte[]        key           = Util.getSecretBytes(64);
+    byte[]        plaintextInput = Util.getSecretBytes(10_000);
+    EncryptResult encryptResult  = encryptData(plaintextInput, key);
+    byte[]        badCiphertext  = Arrays.copyOf(encryptResult.ciphertext, encryptResult.ciphertext.length);
+
+    badCiphertext[100] += 1;
+
+    assertStreamingDecryptFails(badCiphertext, 0, key, encryptResult.digest);
+  }
+
+  @Test
+  public void attachment_streaming_decryptFailOnBadDigest() throws IOException, InvalidMessageException {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = Util.getSecretBytes(10_000);
+    EncryptResult encryptResult  = encryptData(plaintextInput, key);
+
+    assertStreamingDecryptFails(encryptResult.ciphertext, 0, key, new byte[32]);
+  }
+
+  @Test
+  public void attachment_streaming_padded_encryptDecrypt() throws IOException, InvalidMessageException {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = Util.getSecretBytes(10_000);
+    EncryptResult encryptResult  = encryptData(pad(plaintextInput), key);
+    File          cipherFile     = writeToFile(encryptResult.ciphertext);
+    InputStream   inputStream    = AttachmentCipherInputStream.createStreamingForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest);
+
+    assertArrayEquals(plaintextInput, readInputStreamFully(inputStream));
+
+    cipherFile.delete();
+  }
+
+  @Test
+  public void attachment_streaming_padded_decryptFailOnBadPadding() throws IOException, InvalidMessageException {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = Util.getSecretBytes(10_000);
+    EncryptResult encryptResult  = encryptData(pad(plaintextInput), key);
+    byte[]        badCiphertext  = Arrays.copyOf(encryptResult.ciphertext, encryptResult.ciphertext.length);
+
+    badCiphertext[badCiphertext.length - 32 - 20] += 1;
+
+    assertStreamingDecryptFails(badCiphertext, plaintextInput.length, key, encryptResult.digest);
+  }
+
+  @Test
+  public void attachment_streaming_padded_decryptFailOnBadCiphertext() throws IOException, InvalidMessageException {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = Util.getSecretBytes(10_000);
+    EncryptResult encryptResult  = encryptData(pad(plaintextInput), key);
+    byte[]        badCiphertext  = Arrays.copyOf(encryptResult.ciphertext, encryptResult.ciphertext.length);
+
+    badCiphertext[100] += 1;
+
+    assertStreamingDecryptFails(badCiphertext, plaintextInput.length, key, encryptResult.digest);
+  }
+
+  @Test
+  public void attachment_streaming_padded_decryptFailOnBadMac() throws IOException, InvalidMessageException {
+    byte[]        key              = Util.getSecretBytes(64);
+    byte[]        plaintextInput   = Util.getSecretBytes(10_000);
+    EncryptResult encryptResult    = encryptData(pad(plaintextInput), key);
+    byte[]        badMacCiphertext = Arrays.copyOf(encryptResult.ciphertext, encryptResult.ciphertext.length);
+
+    badMacCiphertext[badMacCiphertext.length - 1] += 1;
+
+    assertStreamingDecryptFails(badMacCiphertext, plaintextInput.length, key, encryptResult.digest);
+  }
+
+  @Test
+  public void attachment_streaming_padded_failsBeforeLastOfPlaintext() throws IOException, InvalidMessageException {
+    byte[]        key              = Util.getSecretBytes(64);
+    byte[]        plaintextInput   = Util.getSecretBytes(10_000);
+    EncryptResult encryptResult    = encryptData(pad(plaintextInput), key);
+    byte[]        badMacCiphertext = Arrays.copyOf(encryptResult.ciphertext, encryptResult.ciphertext.length);
+
+    badMacCiphertext[badMacCiphertext.length - 1] += 1;
+
+    File        cipherFile  = writeToFile(badMacCiphertext);
+    InputStream inputStream = AttachmentCipherInputStream.createStreamingForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest);
+
+    try {
+      Util.readFully(inputStream, new byte[plaintextInput.length]);
+      fail("Expected verification to fail");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof InvalidMacException);
+    } finally {
+      cipherFile.delete();
+    }
+  }
+
+  @Test
+  public void attachment_skip() throws IOException, InvalidMessageException {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = Util.getSecretBytes(100_003);
+    EncryptResult encryptResult  = encryptData(plaintextInput, key);
+    File          cipherFile     = writeToFile(encryptResult.ciphertext);
+
+    for (int[] skips : new int[][] { { 0 }, { 1 }, { 16 }, { 17 }, { 5, 40_000 }, { 32_768, 32_768, 1 }, { 99_990 }, { 100_002 }, { 100_003 }, { 200_000 } }) {
+      for (boolean streaming : new boolean[] { false, true }) {
+        InputStream inputStream = streaming ? AttachmentCipherInputStream.createStreamingForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest)
+                                            : AttachmentCipherInputStream.createForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest);
+        int         position    = 0;
+
+        for (int skip : skips) {
+          long skipped = inputStream.skip(skip);
+
+          assertEquals(Math.min(skip, plaintextInput.length - position), skipped);
+          position += skipped;
+
+          if (position < plaintextInput.length) {
+            assertEquals(plaintextInput[position] & 0xFF, inputStream.read());
+            position++;
+          }
+        }
+
+        byte[] remaining = readInputStreamFully(inputStream);
+
+        assertArrayEquals(Arrays.copyOfRange(plaintextInput, position, plaintextInput.length), remaining);
+      }
+    }
+
+    cipherFile.delete();
+  }
+
   @Test
   public void sticker_encryptDecrypt() throws IOException, InvalidMessageException {
     assumeLibSignalSupportedOnOS();
@@ -249,6 +407,37 @@ public final class AttachmentCipherTest {
     return outputStream.toByteArray();
   }
 
+  private static void assertStreamingDecryptFails(byte[] ciphertext, long plaintextLength, byte[] key, byte[] digest) throws IOException, InvalidMessageException {
+    File        cipherFile  = writeToFile(ciphertext);
+    InputStream inputStream = AttachmentCipherInputStream.createStreamingForAttachment(cipherFile, plaintextLength, key, digest);
+
+    try {
+      drain(inputStream);
+      fail("Expected verification to fail");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof InvalidMacException);
+    } finally {
+      cipherFile.delete();
+    }
+  }
+
+  private static byte[] pad(byte[] plaintext) {
+    return Arrays.copyOf(plaintext, Util.toIntExact(PaddingInputStream.getPaddedSize(plaintext.length)));
+  }
+
+  private static long drain(InputStream inputStream) throws IOException {
+    byte[] buffer = new byte[64 * 1024];
+    long   total  = 0;
+    int    read;
+
+    while ((read = inputStream.read(buffer)) != -1) {
+      total += read;
+    }
+
+    inputStream.close();
+    return total;
+  }
+
   private static byte[] expandPackKey(byte[] shortKey) {
     return new HKDFv3().deriveSecrets(shortKey, "Sticker Pack".getBytes(), 64);
   }
@@ -0,0 +1,280 @@
+package org.whispersystems.signalservice.internal.push;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.OkHttpClient;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class SegmentedCdnDownloadTest {
+
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private LocalCdn     cdn;
+  private OkHttpClient client;
+  private File         destination;
+
+  @Before
+  public void setUp() throws IOException {
+    cdn         = new LocalCdn();
+    client      = new OkHttpClient.Builder().readTimeout(1, TimeUnit.SECONDS).build();
+    destination = new File(folder.getRoot(), "download");
+  }
+
+  @After
+  public void tearDown() {
+    cdn.stop();
+  }
+
+  @Test
+  public void download_segmented() throws IOException {
+    byte[] content = cdn.setContent(5 * 1024 * 1024 + 123);
+
+    newDownload(4).download();
+
+    assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    assertEquals(content.length, cdn.bytesServed.get());
+    assertEquals(5, cdn.requests.get());
+    assertFalse(SegmentedCdnDownload.isInProgress(destination));
+  }
+
+  @Test
+  public void download_oneSegment() throws IOException {
+    byte[] content = cdn.setContent(3 * 1024 * 1024);
+
+    newDownload(1).download();
+
+    assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    assertEquals(2, cdn.requests.get());
+  }
+
+  @Test
+  public void download_smallerThanFirstRequest() throws IOException {
+    byte[] content = cdn.setContent(1000);
+
+    newDownload(4).download();
+
+    assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    assertEquals(1, cdn.requests.get());
+    assertFalse(SegmentedCdnDownload.isInProgress(destination));
+  }
+
+  @Test
+  public void download_serverIgnoresRanges() throws IOException {
+    byte[] content = cdn.setContent(2 * 1024 * 1024);
+    cdn.supportsRanges = false;
+
+    newDownload(4).download();
+
+    assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    assertEquals(1, cdn.requests.get());
+  }
+
+  @Test
+  public void download_retriesDroppedSegment() throws IOException {
+    byte[] content = cdn.setContent(4 * 1024 * 1024);
+    cdn.dropAfterBytes = 100 * 1024;
+    cdn.remainingDrops.set(2);
+
+    newDownload(4).download();
+
+    assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    assertEquals(content.length, cdn.bytesServed.get());
+  }
+
+  @Test
+  public void download_resumesFromSavedState() throws IOException {
+    byte[] content = cdn.setContent(4 * 1024 * 1024);
+    cdn.dropAfterBytes = 64 * 1024;
+    cdn.remainingDrops.set(Integer.MAX_VALUE);
+
+    try {
+      newDownload(4).download();
+      fail();
+    } catch (PushNetworkException e) {
+      // Expected
+    }
+
+    assertTrue(SegmentedCdnDownload.isInProgress(destination));
+    assertEquals(content.length, destination.length());
+
+    long servedBeforeFailure = cdn.bytesServed.get();
+
+    cdn.remainingDrops.set(0);
+    cdn.bytesServed.set(0);
+
+    newDownload(4).download();
+
+    assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    assertTrue(cdn.bytesServed.get() < content.length);
+    assertTrue(servedBeforeFailure + cdn.bytesServed.get() >= content.length);
+    assertFalse(SegmentedCdnDownload.isInProgress(destination));
+  }
+
+  @Test
+  public void download_discardsStateForDifferentFile() throws IOException {
+    byte[] content = cdn.setContent(4 * 1024 * 1024);
+    cdn.dropAfterBytes = 64 * 1024;
+    cdn.remainingDrops.set(Integer.MAX_VALUE);
+
+    try {
+      newDownload(4).download();
+      fail();
+    } catch (PushNetworkException e) {
+      // Expected
+    }
+
+    Files.write(destination.toPath(), new byte[10]);
+    cdn.remainingDrops.set(0);
+
+    newDownload(4).download();
+
+    assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+  }
+
+  @Test(expected = PushNetworkException.class)
+  public void download_tooLarge() throws IOException {
+    cdn.setContent(2 * 1024 * 1024);
+
+    new SegmentedCdnDownload(client, cdn.getUrl(), Optional.absent(), destination, 1024 * 1024, 4, null, new HashSet<>()).download();
+  }
+
+  @Test
+  public void createSegments_coverFile() {
+    long                               size     = 10 * 1024 * 1024 + 7;
+    List<SegmentedCdnDownload.Segment> segments = SegmentedCdnDownload.createSegments(size, 1000, 4);
+
+    assertEquals(5, segments.size());
+    assertEquals(0, segments.get(0).getStart());
+    assertEquals(1000, segments.get(0).getEnd());
+
+    for (int i = 1; i < segments.size(); i++) {
+      assertEquals(segments.get(i - 1).getEnd(), segments.get(i).getStart());
+    }
+
+    assertEquals(size, segments.get(segments.size() - 1).getEnd());
+  }
+
+  @Test
+  public void createSegments_doesNotSplitSmallFiles() {
+    assertEquals(2, SegmentedCdnDownload.createSegments(600 * 1024, 1000, 8).size());
+    assertEquals(1, SegmentedCdnDownload.createSegments(1000, 1000, 8).size());
+  }
+
+  private SegmentedCdnDownload newDownload(int segments) {
+    return new SegmentedCdnDownload(client, cdn.getUrl(), Optional.absent(), destination, Long.MAX_VALUE, segments, null, new HashSet<>());
+  }
+
+  private static final class LocalCdn {
+
+    private final HttpServer    server;
+    private final AtomicLong    bytesServed    = new AtomicLong();
+    private final AtomicInteger requests       = new AtomicInteger();
+    private final AtomicInteger remainingDrops = new AtomicInteger();
+
+    private volatile byte[]  content;
+    private volatile boolean supportsRanges = true;
+    private volatile long    dropAfterBytes;
+
+    private LocalCdn() throws IOException {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/attachment", this::handle);
+      server.setExecutor(Executors.newCachedThreadPool());
+      server.start();
+    }
+
+    private byte[] setContent(int length) {
+      content = new byte[length];
+      new Random(length).nextBytes(content);
+      return content;
+    }
+
+    private String getUrl() {
+      return "http://127.0.0.1:" + server.getAddress().getPort() + "/attachment";
+    }
+
+    private void stop() {
+      server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+      requests.incrementAndGet();
+
+      byte[]  content = this.content;
+      String  range   = exchange.getRequestHeaders().getFirst("Range");
+      Matcher matcher = range != null ? RANGE.matcher(range) : null;
+      int     start   = 0;
+      int     end     = content.length - 1;
+
+      if (supportsRanges && matcher != null && matcher.matches()) {
+        start = Integer.parseInt(matcher.group(1));
+        end   = (int) Math.min(Long.parseLong(matcher.group(2)), content.length - 1);
+
+        if (start >= content.length) {
+          exchange.sendResponseHeaders(416, -1);
+          exchange.close();
+          return;
+        }
+
+        exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+        exchange.sendResponseHeaders(206, end - start + 1);
+      } else {
+        exchange.sendResponseHeaders(200, content.length);
+      }
+
+      boolean drop = dropAfterBytes > 0 && start > 0 && remainingDrops.getAndDecrement() > 0;
+      long    sent = 0;
+
+      try (OutputStream out = exchange.getResponseBody()) {
+        for (int offset = start; offset <= end; ) {
+          int length = Math.min(16 * 1024, end - offset + 1);
+
+          if (drop && sent + length > dropAfterBytes) {
+            out.flush();
+            return;
+          }
+
+          out.write(content, offset, length);
+          bytesServed.addAndGet(length);
+          offset += length;
+          sent   += length;
+        }
+      } catch (IOException e) {
+        // Client went away
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+}
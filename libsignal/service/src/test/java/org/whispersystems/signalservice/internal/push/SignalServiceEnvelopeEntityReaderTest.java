@@ -0,0 +1,86 @@
+package org.whispersystems.signalservice.internal.push;
+
+import org.junit.Test;
+import org.whispersystems.signalservice.api.push.exceptions.MalformedResponseException;
+import org.whispersystems.util.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public final class SignalServiceEnvelopeEntityReaderTest {
+
+  @Test
+  public void read_envelopesInOrder() throws IOException {
+    String json = "{\"messages\":[" + envelope(1, new byte[] { 1, 2, 3 }) + "," + envelope(2, new byte[] { 4, 5 }) + "],\"more\":false}";
+
+    try (SignalServiceEnvelopeEntityReader reader = newReader(json)) {
+      SignalServiceEnvelopeEntity first  = reader.read();
+      SignalServiceEnvelopeEntity second = reader.read();
+
+      assertEquals(1, first.getTimestamp());
+      assertArrayEquals(new byte[] { 1, 2, 3 }, first.getContent());
+      assertEquals(2, second.getTimestamp());
+      assertArrayEquals(new byte[] { 4, 5 }, second.getContent());
+      assertNull(reader.read());
+      assertNull(reader.read());
+      assertEquals(1234, reader.getServerDeliveredTimestamp());
+    }
+  }
+
+  @Test
+  public void read_skipsOtherFields() throws IOException {
+    String json = "{\"more\":true,\"other\":{\"messages\":[1, 2]},\"list\":[{}, []],\"messages\":[" + envelope(7, new byte[] { 1 }) + "]}";
+
+    try (SignalServiceEnvelopeEntityReader reader = newReader(json)) {
+      assertEquals(7, reader.read().getTimestamp());
+      assertNull(reader.read());
+    }
+  }
+
+  @Test
+  public void read_empty() throws IOException {
+    for (String json : new String[] { "{\"messages\":[]}", "{\"messages\":null}", "{\"more\":false}", "{}" }) {
+      try (SignalServiceEnvelopeEntityReader reader = newReader(json)) {
+        assertNull(json, reader.read());
+      }
+    }
+  }
+
+  @Test(expected = MalformedResponseException.class)
+  public void read_notAnObject() throws IOException {
+    newReader("[]").read();
+  }
+
+  @Test(expected = MalformedResponseException.class)
+  public void read_notAnEnvelope() throws IOException {
+    SignalServiceEnvelopeEntityReader reader = newReader("{\"messages\":[" + envelope(1, new byte[0]) + ", 5]}");
+
+    reader.read();
+    reader.read();
+  }
+
+  @Test(expected = MalformedResponseException.class)
+  public void read_badEnvelope() throws IOException {
+    newReader("{\"messages\":[{\"timestamp\":\"soon\"}]}").read();
+  }
+
+  private static String envelope(long timestamp, byte[] content) {
+    return "{\"type\":6," +
+           "\"timestamp\":" + timestamp + "," +
+           "\"sourceUuid\":\"" + UUID.randomUUID() + "\"," +
+           "\"sourceDevice\":1," +
+           "\"content\":\"" + Base64.encodeBytes(content) + "\"," +
+           "\"serverTimestamp\":" + (timestamp + 1) + "," +
+           "\"guid\":\"" + UUID.randomUUID() + "\"}";
+  }
+
+  private static SignalServiceEnvelopeEntityReader newReader(String json) throws IOException {
+    return new SignalServiceEnvelopeEntityReader(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), 1234);
+  }
+}
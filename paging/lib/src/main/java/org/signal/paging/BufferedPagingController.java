@@ -18,17 +18,18 @@ import java.util.concurrent.Executors;
  *
  * It's also worth noting that this controller has lifecycle that matches the {@link PagedData} that
  * contains it. When invalidations come in, this class will just swap out the active controller with
- * a new one.
+ * a new one. Item-level changes are forwarded to the active controller if the data source is a
+ * {@link KeyedPagedDataSource}, and are otherwise treated as invalidations.
  */
-class BufferedPagingController<E> implements PagingController {
+class BufferedPagingController<Key, E> implements ObservablePagingController<Key> {
 
   private final PagedDataSource<E>       dataSource;
   private final PagingConfig             config;
   private final MutableLiveData<List<E>> liveData;
   private final Executor                 serializationExecutor;
 
-  private PagingController activeController;
-  private int              lastRequestedIndex;
+  private FixedSizePagingController<Key, E> activeController;
+  private int                               lastRequestedIndex;
 
   BufferedPagingController(PagedDataSource<E> dataSource, PagingConfig config, @NonNull MutableLiveData<List<E>> liveData) {
     this.dataSource            = dataSource;
@@ -52,13 +53,48 @@ class BufferedPagingController<E> implements PagingController {
 
   @Override
   public void onDataInvalidated() {
+    serializationExecutor.execute(this::invalidateActiveController);
+  }
+
+  @Override
+  public void onDataItemChanged(Key key) {
     serializationExecutor.execute(() -> {
-      if (activeController != null) {
-        activeController.onDataInvalidated();
+      if (activeController.supportsItemChanges()) {
+        activeController.onDataItemChanged(key);
+      } else {
+        invalidateActiveController();
       }
+    });
+  }
 
-      activeController = new FixedSizePagingController<>(dataSource, config, liveData, dataSource.size());
-      activeController.onDataNeededAroundIndex(lastRequestedIndex);
+  @Override
+  public void onDataItemInserted(Key key) {
+    serializationExecutor.execute(() -> {
+      if (activeController.supportsItemChanges()) {
+        activeController.onDataItemInserted(key);
+      } else {
+        invalidateActiveController();
+      }
     });
   }
+
+  @Override
+  public void onDataItemRemoved(Key key) {
+    serializationExecutor.execute(() -> {
+      if (activeController.supportsItemChanges()) {
+        activeController.onDataItemRemoved(key);
+      } else {
+        invalidateActiveController();
+      }
+    });
+  }
+
+  private void invalidateActiveController() {
+    if (activeController != null) {
+      activeController.onDataInvalidated();
+    }
+
+    activeController = new FixedSizePagingController<>(dataSource, config, liveData, dataSource.size(), this::onDataInvalidated);
+    activeController.onDataNeededAroundIndex(lastRequestedIndex);
+  }
 }
@@ -40,4 +40,14 @@ public class CompressedList<E> extends AbstractList<E> {
   public E set(int globalIndex, E element) {
     return wrapped.set(globalIndex, element);
   }
+
+  @Override
+  public void add(int globalIndex, E element) {
+    wrapped.add(globalIndex, element);
+  }
+
+  @Override
+  public E remove(int globalIndex) {
+    return wrapped.remove(globalIndex);
+  }
 }
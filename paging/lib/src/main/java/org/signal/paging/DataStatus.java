@@ -13,7 +13,8 @@ class DataStatus {
   private static final Pools.Pool<BitSet> POOL = new Pools.SynchronizedPool<>(1);
 
   private final BitSet state;
-  private final int    size;
+
+  private int size;
 
   public static DataStatus obtain(int size) {
     BitSet bitset = POOL.acquire();
@@ -53,6 +54,30 @@ class DataStatus {
     return -1;
   }
 
+  /**
+   * Inserts a new slot at the specified index, shifting everything at or after it to the right.
+   */
+  void insertState(int index, boolean marked) {
+    for (int i = size; i > index; i--) {
+      state.set(i, state.get(i - 1));
+    }
+
+    state.set(index, marked);
+    size++;
+  }
+
+  /**
+   * Removes the slot at the specified index, shifting everything after it to the left.
+   */
+  void removeState(int index) {
+    for (int i = index; i < size - 1; i++) {
+      state.set(i, state.get(i + 1));
+    }
+
+    state.clear(size - 1);
+    size--;
+  }
+
   int size() {
     return size;
   }
@@ -1,24 +1,35 @@
 package org.signal.paging;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.lifecycle.MutableLiveData;
 
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The workhorse of managing page requests.
  *
  * A controller whose life focuses around one invalidation cycle of a data set, and therefore has
- * a fixed size throughout. It assumes that all interface methods are called on a single thread,
- * which allows it to keep track of pending requests in a thread-safe way, while spinning off
- * tasks to fetch data on its own executor.
+ * a fixed size throughout. All of its bookkeeping (which ranges have been requested, and what has
+ * been loaded where) is owned by its fetch executor. Requests are simply queued up there, so every
+ * page load sees the same snapshot of the data that it eventually applies its results to.
+ *
+ * The one exception to the fixed size is when the controller is backed by a
+ * {@link KeyedPagedDataSource}. In that case, individual items can be inserted, changed, or removed
+ * in place (see {@link ObservablePagingController}), keeping everything else that has already been
+ * loaded. These item-level operations run on the same executor, so they're ordered with respect
+ * to page loads. A page load that races with an item-level change (i.e. the change was reported
+ * while the page was being queried) is thrown away and retried once the change has been applied.
  */
-class FixedSizePagingController<E> implements PagingController {
+class FixedSizePagingController<Key, E> implements ObservablePagingController<Key> {
 
   private static final String TAG = FixedSizePagingController.class.getSimpleName();
 
@@ -29,6 +40,9 @@ class FixedSizePagingController<E> implements PagingController {
   private final PagingConfig             config;
   private final MutableLiveData<List<E>> liveData;
   private final DataStatus               loadState;
+  private final Runnable                 invalidationRequest;
+  private final Map<Key, Integer>        positions;
+  private final AtomicInteger            pendingItemChanges;
 
   private List<E> data;
 
@@ -37,20 +51,19 @@ class FixedSizePagingController<E> implements PagingController {
   FixedSizePagingController(@NonNull PagedDataSource<E> dataSource,
                             @NonNull PagingConfig config,
                             @NonNull MutableLiveData<List<E>> liveData,
-                            int size)
+                            int size,
+                            @NonNull Runnable invalidationRequest)
   {
-    this.dataSource = dataSource;
-    this.config     = config;
-    this.liveData   = liveData;
-    this.loadState  = DataStatus.obtain(size);
-    this.data       = new CompressedList<>(loadState.size());
+    this.dataSource          = dataSource;
+    this.config              = config;
+    this.liveData            = liveData;
+    this.loadState           = DataStatus.obtain(size);
+    this.data                = new CompressedList<>(loadState.size());
+    this.invalidationRequest = invalidationRequest;
+    this.positions           = new HashMap<>();
+    this.pendingItemChanges  = new AtomicInteger(0);
   }
 
-  /**
-   * We assume this method is always called on the same thread, so we can read our
-   * {@code loadState} and construct the parameters of a fetch request. That fetch request can
-   * then be performed on separate single-thread executor.
-   */
   @Override
   public void onDataNeededAroundIndex(int aroundIndex) {
     if (invalidated) {
@@ -58,6 +71,24 @@ class FixedSizePagingController<E> implements PagingController {
       return;
     }
 
+    FETCH_EXECUTOR.execute(() -> loadAroundIndex(aroundIndex));
+  }
+
+  /**
+   * Must be called on the fetch executor.
+   */
+  private void loadAroundIndex(int aroundIndex) {
+    if (invalidated) {
+      Log.w(TAG, buildLog(aroundIndex, "Invalidated! At beginning of load task."));
+      return;
+    }
+
+    if (pendingItemChanges.get() > 0) {
+      if (DEBUG) Log.i(TAG, buildLog(aroundIndex, "Item changes are pending. Loading once they've been applied."));
+      FETCH_EXECUTOR.execute(() -> loadAroundIndex(aroundIndex));
+      return;
+    }
+
     if (loadState.size() == 0) {
       liveData.postValue(Collections.emptyList());
       return;
@@ -84,31 +115,164 @@ class FixedSizePagingController<E> implements PagingController {
       return;
     }
 
-    int totalSize = loadState.size();
+    if (DEBUG) Log.i(TAG, buildLog(aroundIndex, "start: " + loadStart + ", end: " + loadEnd + ", totalSize: " + loadState.size()));
+
+    List<E> loaded = load(loadStart, loadEnd - loadStart);
+
+    if (invalidated) {
+      Log.w(TAG, buildLog(aroundIndex, "Invalidated! Just after data was loaded."));
+      return;
+    }
+
+    if (pendingItemChanges.get() > 0) {
+      Log.w(TAG, buildLog(aroundIndex, "Item changes were reported while loading. Discarding and loading again once they've been applied."));
+      FETCH_EXECUTOR.execute(() -> loadAroundIndex(aroundIndex));
+      return;
+    }
+
+    if (loaded == null) {
+      Log.w(TAG, buildLog(aroundIndex, "The data set changed size while loading by position. Requesting invalidation."));
+      invalidationRequest.run();
+      return;
+    }
+
+    List<E> updated = new CompressedList<>(data);
+
+    for (int i = 0, len = Math.min(loaded.size(), data.size() - loadStart); i < len; i++) {
+      E item = loaded.get(i);
+
+      if (item != null && supportsItemChanges()) {
+        Key key = requireKeyedDataSource().getKey(item);
+
+        if (positions.containsKey(key)) {
+          Log.w(TAG, buildLog(aroundIndex, "Loaded an item that's already loaded elsewhere. Requesting invalidation."));
+          invalidationRequest.run();
+          return;
+        }
+
+        positions.put(key, loadStart + i);
+      }
+
+      updated.set(loadStart + i, item);
+    }
 
     loadState.markRange(loadStart, loadEnd);
 
-    if (DEBUG) Log.i(TAG, buildLog(aroundIndex, "start: " + loadStart + ", end: " + loadEnd + ", totalSize: " + totalSize));
+    data = updated;
+    liveData.postValue(updated);
+  }
 
-    FETCH_EXECUTOR.execute(() -> {
+  @Override
+  public void onDataItemChanged(Key key) {
+    KeyedPagedDataSource<Key, E> keyedDataSource = requireKeyedDataSource();
+
+    executeItemChange(() -> {
       if (invalidated) {
-        Log.w(TAG, buildLog(aroundIndex, "Invalidated! At beginning of load task."));
+        Log.w(TAG, "onDataItemChanged() Invalidated! At beginning of task.");
         return;
       }
 
-      List<E> loaded = dataSource.load(loadStart, loadEnd - loadStart, () -> invalidated);
+      int position = findPosition(key);
+
+      if (position < 0) {
+        if (DEBUG) Log.i(TAG, "onDataItemChanged() Item isn't loaded. Skipping.");
+        return;
+      }
+
+      E item = keyedDataSource.load(key);
 
       if (invalidated) {
-        Log.w(TAG, buildLog(aroundIndex, "Invalidated! Just after data was loaded."));
+        Log.w(TAG, "onDataItemChanged() Invalidated! Just after data was loaded.");
         return;
       }
 
       List<E> updated = new CompressedList<>(data);
 
-      for (int i = 0, len = Math.min(loaded.size(), data.size() - loadStart); i < len; i++) {
-        updated.set(loadStart + i, loaded.get(i));
+      if (item != null) {
+        updated.set(position, item);
+      } else {
+        Log.w(TAG, "onDataItemChanged() Item no longer exists. Removing.");
+        loadState.removeState(position);
+        removePosition(key, position);
+        updated.remove(position);
+      }
+
+      data = updated;
+      liveData.postValue(updated);
+    });
+  }
+
+  @Override
+  public void onDataItemInserted(Key key) {
+    KeyedPagedDataSource<Key, E> keyedDataSource = requireKeyedDataSource();
+
+    executeItemChange(() -> {
+      if (invalidated) {
+        Log.w(TAG, "onDataItemInserted() Invalidated! At beginning of task.");
+        return;
+      }
+
+      if (findPosition(key) >= 0) {
+        Log.w(TAG, "onDataItemInserted() Item was already picked up by a page load, so the items around it are out of place. Requesting invalidation.");
+        invalidationRequest.run();
+        return;
+      }
+
+      E item = keyedDataSource.load(key);
+
+      if (invalidated) {
+        Log.w(TAG, "onDataItemInserted() Invalidated! Just after data was loaded.");
+        return;
+      }
+
+      if (item == null) {
+        Log.w(TAG, "onDataItemInserted() Item no longer exists. Skipping.");
+        return;
+      }
+
+      int position = findInsertPosition(keyedDataSource, item);
+
+      if (position < 0) {
+        Log.w(TAG, "onDataItemInserted() Item belongs next to items that aren't loaded, so we can't know its position. Requesting invalidation.");
+        invalidationRequest.run();
+        return;
       }
 
+      List<E> updated = new CompressedList<>(data);
+
+      loadState.insertState(position, true);
+      insertPosition(key, position);
+      updated.add(position, item);
+
+      data = updated;
+      liveData.postValue(updated);
+    });
+  }
+
+  @Override
+  public void onDataItemRemoved(Key key) {
+    requireKeyedDataSource();
+
+    executeItemChange(() -> {
+      if (invalidated) {
+        Log.w(TAG, "onDataItemRemoved() Invalidated! At beginning of task.");
+        return;
+      }
+
+      int position = findPosition(key);
+
+      if (position < 0) {
+        Log.w(TAG, "onDataItemRemoved() Item isn't loaded, so we can't know its position. Requesting invalidation.");
+        invalidationRequest.run();
+        return;
+      }
+
+      List<E> updated = new CompressedList<>(data);
+
+      loadState.removeState(position);
+      removePosition(key, position);
+      updated.remove(position);
+
       data = updated;
       liveData.postValue(updated);
     });
@@ -121,7 +285,142 @@ class FixedSizePagingController<E> implements PagingController {
     }
 
     invalidated = true;
-    loadState.recycle();
+    FETCH_EXECUTOR.execute(loadState::recycle);
+  }
+
+  /**
+   * Item-level changes are counted as pending from the moment they're reported, so that a page load
+   * that is already in progress knows its results may not line up with what we have.
+   */
+  private void executeItemChange(@NonNull Runnable change) {
+    pendingItemChanges.incrementAndGet();
+
+    FETCH_EXECUTOR.execute(() -> {
+      try {
+        change.run();
+      } finally {
+        pendingItemChanges.decrementAndGet();
+      }
+    });
+  }
+
+  /**
+   * Must be called on the fetch executor.
+   *
+   * If the data source is seekable and an item adjacent to the requested range is already loaded,
+   * the range is loaded relative to that item. Otherwise, or if the seek doesn't fill the whole range
+   * (i.e. the data changed underneath us), we load by position. Either way, the range is marked as
+   * loaded, so we must never hand back less than was asked for.
+   *
+   * Positions are only meaningful if the data set hasn't changed since our snapshot of it, so if
+   * item-level changes are supported, a load by position is only trusted if the size still matches.
+   *
+   * @return The loaded items, or null if the data set changed size while loading by position.
+   */
+  @SuppressWarnings("unchecked")
+  private @Nullable List<E> load(int start, int length) {
+    if (dataSource instanceof SeekablePagedDataSource) {
+      SeekablePagedDataSource<Key, E> seekableDataSource = (SeekablePagedDataSource<Key, E>) dataSource;
+
+      E       previous = start > 0 ? data.get(start - 1) : null;
+      E       next     = start + length < data.size() ? data.get(start + length) : null;
+      List<E> loaded   = null;
+
+      if (previous != null) {
+        if (DEBUG) Log.i(TAG, "load(" + start + ", " + length + ") Seeking after the previous item.");
+        loaded = seekableDataSource.loadAfter(previous, length, () -> invalidated);
+      } else if (next != null) {
+        if (DEBUG) Log.i(TAG, "load(" + start + ", " + length + ") Seeking before the next item.");
+        loaded = seekableDataSource.loadBefore(next, length, () -> invalidated);
+      }
+
+      if (loaded != null) {
+        if (loaded.size() == length) {
+          return loaded;
+        }
+
+        Log.w(TAG, "load(" + start + ", " + length + ") Seek only found " + loaded.size() + " item(s). Loading by position instead.");
+      }
+    }
+
+    List<E> loaded = dataSource.load(start, length, () -> invalidated);
+
+    if (supportsItemChanges() && dataSource.size() != data.size()) {
+      return null;
+    }
+
+    return loaded;
+  }
+
+  /**
+   * @return Whether or not this controller is able to apply item-level changes. If not, callers
+   *         should fall back to invalidating the whole data set.
+   */
+  boolean supportsItemChanges() {
+    return dataSource instanceof KeyedPagedDataSource;
+  }
+
+  /**
+   * Must be called on the fetch executor.
+   *
+   * @return The position of the loaded item with the specified key, or -1 if it isn't loaded.
+   */
+  private int findPosition(@NonNull Key key) {
+    Integer position = positions.get(key);
+    return position != null ? position : -1;
+  }
+
+  /**
+   * Must be called on the fetch executor.
+   *
+   * @return The position the item belongs at, based on where it sorts among the loaded items, or -1
+   *         if it belongs next to an item that isn't loaded, in which case we can't know for sure.
+   */
+  private int findInsertPosition(@NonNull KeyedPagedDataSource<Key, E> keyedDataSource, @NonNull E item) {
+    for (int i = 0, len = data.size(); i < len; i++) {
+      E existing = data.get(i);
+
+      if (existing != null && keyedDataSource.compare(item, existing) < 0) {
+        return i == 0 || data.get(i - 1) != null ? i : -1;
+      }
+    }
+
+    return data.isEmpty() || data.get(data.size() - 1) != null ? data.size() : -1;
+  }
+
+  /**
+   * Must be called on the fetch executor. Shifts everything at or after the position to the right.
+   */
+  private void insertPosition(@NonNull Key key, int position) {
+    for (Map.Entry<Key, Integer> entry : positions.entrySet()) {
+      if (entry.getValue() >= position) {
+        entry.setValue(entry.getValue() + 1);
+      }
+    }
+
+    positions.put(key, position);
+  }
+
+  /**
+   * Must be called on the fetch executor. Shifts everything after the position to the left.
+   */
+  private void removePosition(@NonNull Key key, int position) {
+    positions.remove(key);
+
+    for (Map.Entry<Key, Integer> entry : positions.entrySet()) {
+      if (entry.getValue() > position) {
+        entry.setValue(entry.getValue() - 1);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private @NonNull KeyedPagedDataSource<Key, E> requireKeyedDataSource() {
+    if (!supportsItemChanges()) {
+      throw new UnsupportedOperationException("Item-level changes require a KeyedPagedDataSource!");
+    }
+
+    return (KeyedPagedDataSource<Key, E>) dataSource;
   }
 
   private static String buildLog(int aroundIndex, String message) {
@@ -0,0 +1,31 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * A {@link PagedDataSource} whose items can be identified by a stable key. This allows a
+ * controller to apply item-level changes (see {@link ObservablePagingController}) by re-querying
+ * only the affected items, rather than throwing away everything that has been loaded so far.
+ */
+public interface KeyedPagedDataSource<Key, Data> extends PagedDataSource<Data> {
+  /**
+   * @return The item identified by the provided key, or null if it no longer exists.
+   */
+  @WorkerThread
+  @Nullable Data load(@NonNull Key key);
+
+  /**
+   * @return The stable key for the provided item. Two items that represent the same underlying
+   *         entity must have equal keys.
+   */
+  @NonNull Key getKey(@NonNull Data data);
+
+  /**
+   * @return A negative number if {@code a} comes before {@code b} in the data set, a positive number
+   *         if it comes after, or 0 if they're the same item. Used to find where an inserted item
+   *         belongs among the items that have already been loaded.
+   */
+  int compare(@NonNull Data a, @NonNull Data b);
+}
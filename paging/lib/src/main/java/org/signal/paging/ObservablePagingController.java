@@ -0,0 +1,24 @@
+package org.signal.paging;
+
+/**
+ * A {@link PagingController} that can also be told about changes to individual items. When backed
+ * by a {@link KeyedPagedDataSource}, these changes are applied in place and only the affected
+ * items are re-queried. Otherwise, they're treated as a full invalidation.
+ */
+public interface ObservablePagingController<Key> extends PagingController {
+  /**
+   * The item identified by the key has changed and should be re-loaded if it's currently loaded.
+   */
+  void onDataItemChanged(Key key);
+
+  /**
+   * An item has been inserted into the data set. Its position is worked out from where it sorts
+   * among the items that have already been loaded.
+   */
+  void onDataItemInserted(Key key);
+
+  /**
+   * The item identified by the key has been removed from the data set.
+   */
+  void onDataItemRemoved(Key key);
+}
@@ -8,8 +8,11 @@ import androidx.annotation.Nullable;
  * A controller that forwards calls to a secondary, proxied controller. This is useful when you want
  * to keep a single, static controller, even when the true controller may be changing due to data
  * source changes.
+ *
+ * Item-level changes are forwarded if the proxied controller is an
+ * {@link ObservablePagingController}, and are otherwise treated as invalidations.
  */
-public class ProxyPagingController implements PagingController {
+public class ProxyPagingController<Key> implements ObservablePagingController<Key> {
 
   private PagingController proxied;
 
@@ -27,10 +30,52 @@ public class ProxyPagingController implements PagingController {
     }
   }
 
+  @Override
+  public synchronized void onDataItemChanged(Key key) {
+    ObservablePagingController<Key> observable = getObservable();
+
+    if (observable != null) {
+      observable.onDataItemChanged(key);
+    } else if (proxied != null) {
+      proxied.onDataInvalidated();
+    }
+  }
+
+  @Override
+  public synchronized void onDataItemInserted(Key key) {
+    ObservablePagingController<Key> observable = getObservable();
+
+    if (observable != null) {
+      observable.onDataItemInserted(key);
+    } else if (proxied != null) {
+      proxied.onDataInvalidated();
+    }
+  }
+
+  @Override
+  public synchronized void onDataItemRemoved(Key key) {
+    ObservablePagingController<Key> observable = getObservable();
+
+    if (observable != null) {
+      observable.onDataItemRemoved(key);
+    } else if (proxied != null) {
+      proxied.onDataInvalidated();
+    }
+  }
+
   /**
    * Updates the underlying controller to the one specified.
    */
   public synchronized void set(@Nullable PagingController bound) {
     this.proxied = bound;
   }
+
+  @SuppressWarnings("unchecked")
+  private @Nullable ObservablePagingController<Key> getObservable() {
+    if (proxied instanceof ObservablePagingController) {
+      return (ObservablePagingController<Key>) proxied;
+    } else {
+      return null;
+    }
+  }
 }
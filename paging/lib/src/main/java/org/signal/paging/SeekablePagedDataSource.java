@@ -0,0 +1,29 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.util.List;
+
+/**
+ * A {@link KeyedPagedDataSource} that can load a page relative to an item that has already been
+ * loaded, rather than by position. For data sources backed by a database, this allows a page to be
+ * found with an index seek instead of an OFFSET, so it costs the same no matter how deep it is.
+ *
+ * The controller will prefer these methods whenever a neighboring item is already loaded, and
+ * fall back to {@link #load(int, int, CancellationSignal)} otherwise.
+ */
+public interface SeekablePagedDataSource<Key, Data> extends KeyedPagedDataSource<Key, Data> {
+  /**
+   * @return Up to {@code length} items that come immediately after {@code anchor}, in order.
+   */
+  @WorkerThread
+  @NonNull List<Data> loadAfter(@NonNull Data anchor, int length, @NonNull CancellationSignal cancellationSignal);
+
+  /**
+   * @return Up to {@code length} items that come immediately before {@code anchor}, in order. In
+   *         other words, the last item in the list is the one directly before the anchor.
+   */
+  @WorkerThread
+  @NonNull List<Data> loadBefore(@NonNull Data anchor, int length, @NonNull CancellationSignal cancellationSignal);
+}
@@ -0,0 +1,54 @@
+package org.signal.paging;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public final class DataStatusTest {
+
+  @Test
+  public void insertState_shiftsMarkedRangeToTheRight() {
+    DataStatus status = DataStatus.obtain(10);
+    status.markRange(0, 5);
+
+    status.insertState(0, false);
+
+    assertEquals(11, status.size());
+    assertEquals(0, status.getEarliestUnmarkedIndexInRange(0, 11));
+    assertEquals(6, status.getEarliestUnmarkedIndexInRange(1, 11));
+  }
+
+  @Test
+  public void insertState_atEnd_growsSize() {
+    DataStatus status = DataStatus.obtain(3);
+    status.markRange(0, 3);
+
+    status.insertState(3, true);
+
+    assertEquals(4, status.size());
+    assertEquals(-1, status.getEarliestUnmarkedIndexInRange(0, 4));
+  }
+
+  @Test
+  public void removeState_shiftsMarkedRangeToTheLeft() {
+    DataStatus status = DataStatus.obtain(10);
+    status.markRange(5, 10);
+
+    status.removeState(0);
+
+    assertEquals(9, status.size());
+    assertEquals(3, status.getLatestUnmarkedIndexInRange(0, 9));
+    assertEquals(-1, status.getEarliestUnmarkedIndexInRange(4, 9));
+  }
+
+  @Test
+  public void removeState_clearsLastSlot() {
+    DataStatus status = DataStatus.obtain(2);
+    status.markRange(0, 2);
+
+    status.removeState(1);
+    status.insertState(1, false);
+
+    assertEquals(1, status.getEarliestUnmarkedIndexInRange(0, 2));
+  }
+}